@@ -0,0 +1,23 @@
+package org.crazyproxy.bench;
+
+import org.crazyproxy.buffer.BufferPool;
+
+/**
+ * 마이크로 벤치마크 공통 준비. 싱글톤은 JVM당 한 번만 만들 수 있으므로 클래스 초기화에 맡긴다.
+ */
+final class BenchSupport {
+
+    static {
+        BufferPool.initInstance(256L * 1024 * 1024, false, 300_000);
+    }
+
+    private BenchSupport() {
+    }
+
+    /**
+     * 처음 부를 때 BufferPool이 만들어진다. 여러 번 불러도 된다.
+     */
+    static void initBufferPool() {
+        // 클래스 초기화만 일으키면 된다.
+    }
+}
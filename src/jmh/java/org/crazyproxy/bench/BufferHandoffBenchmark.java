@@ -0,0 +1,109 @@
+package org.crazyproxy.bench;
+
+import org.crazyproxy.buffer.BufferPool;
+import org.crazyproxy.buffer.PooledBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ClientHandler의 버퍼 넘기기. 요청마다 입력 버퍼를 빌리고, 바디 조각을 워커에게 넘기고, 남은 바이트를 당기고, 돌려준다.
+ * pooled 계열은 지금 방식(BufferPool + 뷰), allocate 계열과 copy 계열은 비교용 예전 방식(매번 할당 / 바이트 복사).
+ * gc 프로파일러의 gc.alloc.rate.norm 으로 요청당 할당량을 같이 본다.
+ * 실행: ./gradlew jmh -Pjmh.includes=BufferHandoffBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BufferHandoffBenchmark {
+
+    @Param({"16384", "102400"})
+    public int bufferSize;
+
+    // 한 번 읽을 때 들어오는 요청(헤더 + 바디) 크기
+    @Param({"1024"})
+    public int requestSize;
+
+    private byte[] incoming;
+    private int headerLength;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchSupport.initBufferPool();
+        incoming = new byte[requestSize];
+        headerLength = requestSize / 4;
+    }
+
+    /**
+     * 풀에서 빌린 다이렉트 버퍼에 읽고, 바디는 뷰로 넘기고, compact 후 반납.
+     */
+    @Benchmark
+    public int pooledView() {
+        BufferPool bufferPool = BufferPool.getInstance();
+        PooledBuffer input = bufferPool.acquire(bufferSize);
+        ByteBuffer buffer = input.getBuffer();
+        buffer.put(incoming);
+
+        ByteBuffer body = buffer.duplicate().limit(buffer.position()).position(headerLength);
+        int handed = body.remaining();
+
+        buffer.flip();
+        buffer.position(buffer.limit());
+        buffer.compact();
+        bufferPool.release(input);
+        return handed;
+    }
+
+    /**
+     * 요청마다 다이렉트 버퍼를 새로 만들고 바디는 뷰로 넘긴다.
+     */
+    @Benchmark
+    public int allocateDirectView() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+        buffer.put(incoming);
+        ByteBuffer body = buffer.duplicate().limit(buffer.position()).position(headerLength);
+        return body.remaining();
+    }
+
+    /**
+     * 요청마다 힙 버퍼를 새로 만들고 바디는 새 배열로 복사해서 넘긴다.
+     */
+    @Benchmark
+    public int allocateHeapCopy() {
+        ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+        buffer.put(incoming);
+        byte[] body = new byte[buffer.position() - headerLength];
+        buffer.get(headerLength, body);
+        return body.length;
+    }
+
+    /**
+     * 풀 버퍼를 쓰지만 바디는 복사해서 넘긴다. 뷰 대신 복사했을 때의 차이만 본다.
+     */
+    @Benchmark
+    public int pooledCopy() {
+        BufferPool bufferPool = BufferPool.getInstance();
+        PooledBuffer input = bufferPool.acquire(bufferSize);
+        ByteBuffer buffer = input.getBuffer();
+        buffer.put(incoming);
+        byte[] body = new byte[buffer.position() - headerLength];
+        buffer.get(headerLength, body);
+        bufferPool.release(input);
+        return body.length;
+    }
+}
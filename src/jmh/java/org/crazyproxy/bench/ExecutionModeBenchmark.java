@@ -0,0 +1,247 @@
+package org.crazyproxy.bench;
+
+import org.crazyproxy.balance.TargetGroup;
+import org.crazyproxy.buffer.BufferPool;
+import org.crazyproxy.cache.ResponseCache;
+import org.crazyproxy.compress.ResponseCompression;
+import org.crazyproxy.config.ClientWorkConfig;
+import org.crazyproxy.config.MainConfig;
+import org.crazyproxy.config.SocketInfo;
+import org.crazyproxy.health.OutlierDetection;
+import org.crazyproxy.http2.Http2ConnectionPool;
+import org.crazyproxy.http2.Http2Server;
+import org.crazyproxy.limit.ConcurrencyLimits;
+import org.crazyproxy.metrics.ProxyMetrics;
+import org.crazyproxy.nio.AcceptorThread;
+import org.crazyproxy.nio.ConnectionDispatcher;
+import org.crazyproxy.pool.UpstreamConnectionPool;
+import org.crazyproxy.ssl.TlsTerminator;
+import org.crazyproxy.timeout.PortTimeouts;
+import org.crazyproxy.timeout.TimeoutPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * executionMode별 처리량 비교. 프록시를 이 JVM 안에 띄우고, 클라 스레드 64개가 요청 하나씩 보내고 응답을 다 읽는다.
+ * 업스트림은 upstreamDelayMillis 만큼 늦게 응답하는 스텁 서버라, 지연이 있으면 platform 모드는 workerCount 에서 막히고
+ * virtual 모드는 동시 요청 수만큼 늘어난다. reactor는 기준값.
+ *
+ * 설정이 싱글톤이라 파라미터 조합마다 JVM을 새로 띄워야 한다(@Fork). virtual은 Java 21 이상에서 돌려야 함.
+ * 실행: ./gradlew jmh -Pjmh.includes=ExecutionModeBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(64)
+public class ExecutionModeBenchmark {
+
+    private static final byte[] REQUEST = "GET /bench HTTP/1.1\r\nHost: bench\r\nConnection: close\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    @Param({"platform", "virtual", "reactor"})
+    public String executionMode;
+
+    @Param({"0", "20"})
+    public int upstreamDelayMillis;
+
+    @Param({"16"})
+    public int workerCount;
+
+    private StubUpstream upstream;
+    private InetSocketAddress proxyAddress;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        upstream = new StubUpstream(upstreamDelayMillis, 1024);
+        upstream.start();
+
+        int proxyPort;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            proxyPort = probe.getLocalPort();
+        }
+        SocketInfo target = new SocketInfo(new InetSocketAddress("127.0.0.1", upstream.getPort()), "127.0.0.1", "/", false);
+        Map<String, TargetGroup> portMap = Map.of(String.valueOf(proxyPort), new TargetGroup(target));
+        ClientWorkConfig.initInstance(portMap, workerCount, 16 * 1024, 8 * 1024, 60_000, 256 * 1024, 64 * 1024, 250);
+        ProxyMetrics.initInstance(portMap);
+        BufferPool.initInstance(64 * 1024 * 1024, false, 300_000);
+        UpstreamConnectionPool.initInstance(256, 30_000, 300_000);
+        ResponseCache.initInstance(Set.of(), 0, 0, 0, 0);
+        ResponseCompression.initInstance(Set.of(), List.of(), 0, 0, 0);
+        TimeoutPolicy.initInstance(new PortTimeouts(10_000, 10_000, 30_000, 60_000, 0), Map.of());
+        ConcurrencyLimits.initInstance(false, 20, 4, 1000);
+        OutlierDetection.initInstance(false, 5, 50, 20, 5_000, 300_000);
+        Http2Server.initInstance(false, 0, 0);
+        TlsTerminator.initInstance(Set.of(), null, List.of(), 0, 0, 0, 0);
+        Http2ConnectionPool.initInstance(false, 0, 0, 0, 0);
+
+        MainConfig mainConfig = MainConfig.builder()
+                .executionMode(executionMode)
+                .workerCount(workerCount)
+                .reactorCount(Runtime.getRuntime().availableProcessors())
+                .reactorBalance("round-robin")
+                .build();
+        ConnectionDispatcher dispatcher = ConnectionDispatcher.create(mainConfig);
+        dispatcher.start();
+        AcceptorThread acceptor = new AcceptorThread(dispatcher);
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        proxyAddress = new InetSocketAddress("127.0.0.1", proxyPort);
+        waitForPort(proxyAddress);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        upstream.close();
+    }
+
+    @Benchmark
+    public int request() throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(proxyAddress);
+            socket.setTcpNoDelay(true);
+            socket.getOutputStream().write(REQUEST);
+            return readResponse(socket.getInputStream());
+        }
+    }
+
+    /**
+     * 헤더 끝까지 읽고 Content-Length 만큼 바디를 읽는다.
+     * @return 받은 바디 크기
+     */
+    static int readResponse(InputStream in) throws IOException {
+        StringBuilder header = new StringBuilder();
+        if (!readHeader(in, header)) {
+            throw new IOException("connection closed before response header end");
+        }
+
+        int contentLength = 0;
+        for (String line : header.toString().split("\r\n")) {
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                contentLength = Integer.parseInt(line.substring(15).trim());
+            }
+        }
+        byte[] body = in.readNBytes(contentLength);
+        if (body.length != contentLength) {
+            throw new IOException("short body " + body.length + " / " + contentLength);
+        }
+        return contentLength;
+    }
+
+    /**
+     * 빈 줄(\r\n\r\n)까지 읽는다. header가 null이 아니면 읽은 걸 담는다.
+     * @return 헤더 끝까지 읽었으면 true, 그 전에 끊기면 false
+     */
+    static boolean readHeader(InputStream in, StringBuilder header) throws IOException {
+        int last4 = 0;
+        while (last4 != 0x0d0a0d0a) {
+            int b = in.read();
+            if (b < 0) {
+                return false;
+            }
+            if (header != null) {
+                header.append((char) b);
+            }
+            last4 = (last4 << 8) | b;
+        }
+        return true;
+    }
+
+    private static void waitForPort(InetSocketAddress address) throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            try (Socket socket = new Socket()) {
+                socket.connect(address, 100);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("proxy did not start on " + address);
+    }
+
+    /**
+     * keep-alive를 지원하는 고정 응답 서버. 커넥션마다 스레드 하나.
+     */
+    static class StubUpstream extends Thread implements AutoCloseable {
+        private final ServerSocket serverSocket;
+        private final int delayMillis;
+        private final byte[] response;
+
+        StubUpstream(int delayMillis, int bodySize) throws IOException {
+            super("stub-upstream");
+            setDaemon(true);
+            this.serverSocket = new ServerSocket(0, 1024);
+            this.delayMillis = delayMillis;
+            String head = "HTTP/1.1 200 OK\r\nContent-Length: " + bodySize + "\r\nConnection: keep-alive\r\n\r\n";
+            byte[] headBytes = head.getBytes(StandardCharsets.US_ASCII);
+            this.response = new byte[headBytes.length + bodySize];
+            System.arraycopy(headBytes, 0, response, 0, headBytes.length);
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    Thread connection = new Thread(() -> serve(socket), "stub-upstream-conn");
+                    connection.setDaemon(true);
+                    connection.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            try (socket) {
+                socket.setTcpNoDelay(true);
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                while (readHeader(in, null)) {
+                    if (delayMillis > 0) {
+                        Thread.sleep(delayMillis);
+                    }
+                    out.write(response);
+                }
+            } catch (IOException | InterruptedException ignored) {
+                // 벤치마크 끝나면 그냥 닫힌다
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}
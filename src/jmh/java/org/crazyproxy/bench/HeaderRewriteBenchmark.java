@@ -0,0 +1,96 @@
+package org.crazyproxy.bench;
+
+import org.crazyproxy.buffer.BufferPool;
+import org.crazyproxy.buffer.PooledBuffer;
+import org.crazyproxy.config.SocketInfo;
+import org.crazyproxy.http.HttpHeaderRewriter;
+import org.crazyproxy.http.HttpRequestParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 요청 헤더 파싱 + 변조(ClientHandler.startExchange 경로). 바이트 파서와 헤더 슬랩 복사 비용을 본다.
+ * minimal은 curl 수준, browser는 쿠키/UA가 붙은 브라우저 요청 수준의 헤더.
+ * 실행: ./gradlew jmh -Pjmh.includes=HeaderRewriteBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HeaderRewriteBenchmark {
+
+    private static final String MINIMAL = "GET /api/items?id=42 HTTP/1.1\r\n" +
+            "Host: localhost:8001\r\n" +
+            "User-Agent: curl/8.4.0\r\n" +
+            "Accept: */*\r\n" +
+            "\r\n";
+
+    private static final String BROWSER = "GET /api/items?id=42&sort=desc HTTP/1.1\r\n" +
+            "Host: localhost:8001\r\n" +
+            "Connection: keep-alive\r\n" +
+            "sec-ch-ua: \"Chromium\";v=\"124\", \"Google Chrome\";v=\"124\", \"Not-A.Brand\";v=\"99\"\r\n" +
+            "sec-ch-ua-mobile: ?0\r\n" +
+            "User-Agent: Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/124.0.0.0 Safari/537.36\r\n" +
+            "sec-ch-ua-platform: \"macOS\"\r\n" +
+            "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n" +
+            "Sec-Fetch-Site: same-origin\r\n" +
+            "Sec-Fetch-Mode: navigate\r\n" +
+            "Sec-Fetch-Dest: document\r\n" +
+            "Referer: http://localhost:8001/index.html\r\n" +
+            "Accept-Encoding: gzip, deflate, br, zstd\r\n" +
+            "Accept-Language: ko-KR,ko;q=0.9,en-US;q=0.8,en;q=0.7\r\n" +
+            "Cookie: SESSION=YmI2ZmM4YzYtZDE2Mi00ZjQ2LTg2NjAtYzJlYTM2MGE0ZDFh; _ga=GA1.1.1234567890.1700000000; theme=dark\r\n" +
+            "\r\n";
+
+    @Param({"minimal", "browser"})
+    public String headers;
+
+    @Param({"true", "false"})
+    public boolean keepAlive;
+
+    private final HttpRequestParser parser = new HttpRequestParser(8 * 1024);
+    private final SocketInfo socketInfo = new SocketInfo(new InetSocketAddress("127.0.0.1", 8081), "backend.internal:8081", "/v1/", false);
+    private ByteBuffer request;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchSupport.initBufferPool();
+        byte[] bytes = ("minimal".equals(headers) ? MINIMAL : BROWSER).getBytes(StandardCharsets.US_ASCII);
+        // 클라 입력 버퍼와 같은 다이렉트 버퍼, 쓰기 모드
+        request = ByteBuffer.allocateDirect(16 * 1024);
+        request.put(bytes);
+    }
+
+    @Benchmark
+    public HttpRequestParser.Result parse() {
+        parser.reset();
+        return parser.parseHeaders(request, 0, request.position());
+    }
+
+    @Benchmark
+    public int parseAndRewrite() {
+        parser.reset();
+        parser.parseHeaders(request, 0, request.position());
+        PooledBuffer head = HttpHeaderRewriter.rewrite(parser, request, 0, socketInfo, keepAlive);
+        int length = head.getBuffer().remaining();
+        BufferPool.getInstance().release(head);
+        return length;
+    }
+}
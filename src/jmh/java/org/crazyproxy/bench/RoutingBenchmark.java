@@ -0,0 +1,106 @@
+package org.crazyproxy.bench;
+
+import org.crazyproxy.balance.TargetGroup;
+import org.crazyproxy.config.RoutingTable;
+import org.crazyproxy.config.SocketInfo;
+import org.crazyproxy.util.Initiator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 설정 파싱, 커넥션마다 하는 포트 -> 타겟 그룹 조회, 요청마다 하는 타겟 고르기.
+ * 조회는 ClientHandler처럼 AtomicReference에 올린 RoutingTable 스냅샷에서 로컬 포트 int로 찾는다(lookupByLocalPort).
+ * 예전 방식(포트를 문자열로 바꿔서 HashMap을 찾기)은 lookupByPortString으로 비교한다.
+ * pickTarget은 타겟 4개짜리 그룹에서 balance 방식별로 고르는 비용이다. 스레드를 늘려서 돌리면 경합도 볼 수 있다(-t 옵션).
+ * 실행: ./gradlew jmh -Pjmh.includes=RoutingBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoutingBenchmark {
+
+    @Param({"4", "64"})
+    public int mappings;
+
+    @Param({TargetGroup.ROUND_ROBIN, TargetGroup.LEAST_OUTSTANDING, TargetGroup.PEAK_EWMA})
+    public String balance;
+
+    private final Initiator initiator = new Initiator();
+    private final Map<String, TargetGroup> portMap = new HashMap<>();
+    private final AtomicReference<RoutingTable> routingTable = new AtomicReference<>();
+    private TargetGroup group;
+    private int[] ports;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ports = new int[mappings];
+        for (int i = 0; i < mappings; i++) {
+            ports[i] = 8001 + i;
+            portMap.put(String.valueOf(ports[i]),
+                    new TargetGroup(new SocketInfo(new InetSocketAddress("127.0.0.1", 9001 + i), "backend-" + i + ":9001", "/", false)));
+        }
+
+        routingTable.set(new RoutingTable(portMap));
+
+        SocketInfo[] targets = new SocketInfo[4];
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = new SocketInfo(new InetSocketAddress("127.0.0.1", 9101 + i), "backend-" + i + ":9101", "/", false, i + 1);
+        }
+        group = new TargetGroup(targets, balance);
+    }
+
+    @Benchmark
+    public int parseBufferSize() {
+        return initiator.parseBufferSize("100kb");
+    }
+
+    @Benchmark
+    public long parseDuration() {
+        return initiator.parseDuration("30s", 0);
+    }
+
+    @Benchmark
+    public TargetGroup lookupByLocalPort() {
+        int port = ports[next];
+        next = next + 1 == ports.length ? 0 : next + 1;
+        return routingTable.get().get(port);
+    }
+
+    @Benchmark
+    public TargetGroup lookupByPortString() {
+        int port = ports[next];
+        next = next + 1 == ports.length ? 0 : next + 1;
+        return portMap.get(String.valueOf(port));
+    }
+
+    /**
+     * 고르고 바로 끝낸 걸로 친다. 워커가 요청마다 하는 onStart/onComplete 갱신까지 포함.
+     */
+    @Benchmark
+    public SocketInfo pickTarget() {
+        SocketInfo target = group.pick();
+        target.getStats().onStart();
+        target.getStats().onComplete(1_000_000, false);
+        return target;
+    }
+}
@@ -0,0 +1,208 @@
+package org.crazyproxy.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SSLEngine wrap/unwrap 처리량. 소켓 없이 메모리에서 클라/서버 엔진 한 쌍으로 레코드를 주고받는다.
+ * 버퍼 크기는 프록시와 맞춘다. 넷 버퍼는 세션 패킷 크기, 평문 버퍼는 SelectorThread 앱 버퍼(최소 64KB).
+ * chunkSize는 한 번에 흘려보내는 평문 크기. 100kb는 디폴트 bufferSize로 읽은 응답 한 덩어리.
+ * 결과 ops/s x chunkSize 가 바이트 처리량이다.
+ * 실행: ./gradlew jmh -Pjmh.includes=TlsRecordBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsRecordBenchmark {
+
+    private static final int APP_BUFFER_SIZE = 64 * 1024;
+
+    @Param({"TLSv1.2", "TLSv1.3"})
+    public String protocol;
+
+    @Param({"1024", "16384", "102400"})
+    public int chunkSize;
+
+    private SSLEngine client;
+    private SSLEngine server;
+    private ByteBuffer plain;
+    private ByteBuffer net;
+    private ByteBuffer app;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        SSLContext context = createContext();
+        client = context.createSSLEngine("localhost", 443);
+        client.setUseClientMode(true);
+        client.setEnabledProtocols(new String[]{protocol});
+        server = context.createSSLEngine();
+        server.setUseClientMode(false);
+        server.setEnabledProtocols(new String[]{protocol});
+
+        int packetSize = client.getSession().getPacketBufferSize();
+        plain = ByteBuffer.allocateDirect(chunkSize);
+        net = ByteBuffer.allocateDirect(packetSize);
+        app = ByteBuffer.allocateDirect(Math.max(APP_BUFFER_SIZE, client.getSession().getApplicationBufferSize()));
+        handshake();
+    }
+
+    /**
+     * 평문 chunk를 전부 레코드로 암호화한다(업스트림으로 요청을 보내는 쪽).
+     */
+    @Benchmark
+    public long wrap() throws SSLException {
+        plain.clear();
+        long produced = 0;
+        while (plain.hasRemaining()) {
+            net.clear();
+            SSLEngineResult result = client.wrap(plain, net);
+            produced += result.bytesProduced();
+        }
+        return produced;
+    }
+
+    /**
+     * 서버가 암호화한 chunk를 클라가 풀어낸다(업스트림 응답을 받는 쪽, ClientWorker.unwrapResponse).
+     */
+    @Benchmark
+    public long wrapUnwrap() throws SSLException {
+        plain.clear();
+        long consumed = 0;
+        while (plain.hasRemaining()) {
+            net.clear();
+            server.wrap(plain, net);
+            net.flip();
+            while (net.hasRemaining()) {
+                app.clear();
+                SSLEngineResult result = client.unwrap(net, app);
+                consumed += result.bytesProduced();
+            }
+        }
+        return consumed;
+    }
+
+    private void handshake() throws SSLException {
+        ByteBuffer clientToServer = ByteBuffer.allocate(client.getSession().getPacketBufferSize() * 4);
+        ByteBuffer serverToClient = ByteBuffer.allocate(server.getSession().getPacketBufferSize() * 4);
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        ByteBuffer sink = ByteBuffer.allocate(APP_BUFFER_SIZE);
+
+        client.beginHandshake();
+        server.beginHandshake();
+        for (int i = 0; i < 1000 && !(isDone(client) && isDone(server)); i++) {
+            step(client, empty, clientToServer, serverToClient, sink);
+            step(server, empty, serverToClient, clientToServer, sink);
+        }
+        if (!isDone(client) || !isDone(server)) {
+            throw new IllegalStateException("handshake did not finish");
+        }
+        // TLS 1.3은 핸드셰이크 뒤에 NewSessionTicket 레코드가 남는다. 안 넘기면 레코드 순서가 어긋난다.
+        drain(serverToClient, client, sink);
+        drain(clientToServer, server, sink);
+    }
+
+    private static void drain(ByteBuffer in, SSLEngine engine, ByteBuffer sink) throws SSLException {
+        in.flip();
+        while (in.hasRemaining()) {
+            sink.clear();
+            if (engine.unwrap(in, sink).bytesConsumed() == 0) {
+                break;
+            }
+        }
+        in.clear();
+    }
+
+    private static void step(SSLEngine engine, ByteBuffer empty, ByteBuffer out, ByteBuffer in, ByteBuffer sink) throws SSLException {
+        switch (engine.getHandshakeStatus()) {
+            case NEED_WRAP:
+                engine.wrap(empty, out);
+                break;
+            case NEED_UNWRAP:
+            case NEED_UNWRAP_AGAIN:
+                in.flip();
+                engine.unwrap(in, sink);
+                in.compact();
+                sink.clear();
+                break;
+            case NEED_TASK:
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static boolean isDone(SSLEngine engine) {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        return status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING || status == SSLEngineResult.HandshakeStatus.FINISHED;
+    }
+
+    /**
+     * 벤치마크용 자체 서명 인증서. JDK에 들어있는 keytool로 임시 키스토어를 만든다.
+     */
+    private static SSLContext createContext() throws Exception {
+        char[] password = "changeit".toCharArray();
+        Path dir = Files.createTempDirectory("crazyproxy-bench");
+        File keyStoreFile = dir.resolve("bench.p12").toFile();
+        keyStoreFile.deleteOnExit();
+        dir.toFile().deleteOnExit();
+
+        String keytool = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "bench", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-validity", "1", "-storetype", "PKCS12",
+                "-keystore", keyStoreFile.getPath(), "-storepass", "changeit", "-keypass", "changeit")
+                .redirectErrorStream(true)
+                .start();
+        try (InputStream output = process.getInputStream()) {
+            output.readAllBytes();
+        }
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool failed");
+        }
+
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (FileInputStream in = new FileInputStream(keyStoreFile)) {
+            keyStore.load(in, password);
+        }
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, password);
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(keyStore);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+        return context;
+    }
+}
@@ -0,0 +1,90 @@
+package org.crazyproxy.loadtest;
+
+/**
+ * 지연시간(ns) 분포. HdrHistogram처럼 2의 거듭제곱 구간마다 64칸으로 나눠서 상대 오차 1.6% 안쪽으로 센다.
+ * 스레드 하나가 하나씩 쓰고, 끝나고 merge로 합친다. 동기화 없음.
+ */
+public class LatencyRecorder {
+
+    // 구간당 칸 수(2^SUB_BITS). 128 미만 값은 1ns 단위 그대로
+    private static final int SUB_BITS = 6;
+    private static final int LINEAR = 1 << (SUB_BITS + 1);
+    private static final int BUCKETS = ((63 - SUB_BITS) << SUB_BITS) + LINEAR;
+
+    private final long[] counts = new long[BUCKETS];
+    private long totalCount;
+    private long max;
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts[indexOf(value)]++;
+        totalCount++;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * closed-loop 보정. 응답이 expectedIntervalNanos보다 늦었으면 그동안 못 보낸 요청들이 겪었을 지연도 채워 넣는다.
+     * 보정값은 HdrHistogram recordValueWithExpectedInterval과 같은 방식.
+     */
+    public void recordCorrected(long nanos, long expectedIntervalNanos) {
+        record(nanos);
+        if (expectedIntervalNanos <= 0) {
+            return;
+        }
+        for (long missing = nanos - expectedIntervalNanos; missing >= expectedIntervalNanos; missing -= expectedIntervalNanos) {
+            record(missing);
+        }
+    }
+
+    public void merge(LatencyRecorder other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        max = Math.max(max, other.max);
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * @param percentile 0~100
+     * @return 해당 백분위가 들어있는 칸의 상한(ns). 기록이 없으면 0
+     */
+    public long valueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(highestOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int indexOf(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift << SUB_BITS) + (int) (value >>> shift);
+    }
+
+    private static long highestOf(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int shift = (index >>> SUB_BITS) - 1;
+        long base = index - ((long) shift << SUB_BITS);
+        return ((base + 1) << shift) - 1;
+    }
+}
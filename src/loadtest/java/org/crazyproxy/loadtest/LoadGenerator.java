@@ -0,0 +1,271 @@
+package org.crazyproxy.loadtest;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 프록시에 keep-alive 커넥션 N개로 GET을 보내고 지연시간을 잰다. 커넥션마다 스레드 하나.
+ *
+ * closed-loop: 응답을 다 받으면 바로 다음 요청. 느려지면 보내는 양도 같이 줄어서 지연이 덜 잡힌다(coordinated omission).
+ *   raw는 보낸 시점부터, corrected는 지금까지 잰 평균 지연을 기대 간격으로 잡고 못 보낸 요청들의 지연을 채워 넣는다.
+ * open-loop: rate에 맞춘 예정 시각표대로 보내고, 지연은 예정 시각부터 잰다. 밀리면 밀린 만큼 지연에 들어가서 그 자체로 보정된 값.
+ */
+@Slf4j
+public class LoadGenerator {
+
+    private final LoadTestOptions options;
+    private final InetSocketAddress proxyAddress;
+    private final byte[] request;
+
+    public LoadGenerator(LoadTestOptions options, InetSocketAddress proxyAddress) {
+        this.options = options;
+        this.proxyAddress = proxyAddress;
+        this.request = ("GET /load?size=" + options.getSize() + "&delay=" + options.getDelayMillis() + "&chunk=" + options.getChunkSize()
+                + " HTTP/1.1\r\nHost: " + proxyAddress.getHostString() + "\r\nUser-Agent: crazyproxy-loadtest\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public Result run() throws InterruptedException {
+        int connections = options.getConnections();
+        long startAt = System.nanoTime();
+        long measureFrom = startAt + options.getWarmupMillis() * 1_000_000L;
+        long endAt = measureFrom + options.getDurationMillis() * 1_000_000L;
+        // open-loop: 커넥션 하나가 맡는 요청 간격. 커넥션끼리는 전체 간격만큼 엇갈려 시작한다
+        long interval = (long) (1_000_000_000.0 * connections / options.getRate());
+
+        List<Connection> workers = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            long firstSendAt = options.isOpenLoop() ? startAt + interval * i / connections : startAt;
+            Connection connection = new Connection(i, firstSendAt, interval, measureFrom, endAt);
+            workers.add(connection);
+            connection.start();
+        }
+
+        Result result = new Result(options.getDurationMillis());
+        for (Connection connection : workers) {
+            connection.join();
+            result.add(connection);
+        }
+        return result;
+    }
+
+    @Getter
+    public static class Result {
+        private final long durationMillis;
+        private final LatencyRecorder latency = new LatencyRecorder();
+        private final LatencyRecorder corrected = new LatencyRecorder();
+        private long requests;
+        private long errors;
+        private long bodyBytes;
+
+        private Result(long durationMillis) {
+            this.durationMillis = durationMillis;
+        }
+
+        private void add(Connection connection) {
+            latency.merge(connection.latency);
+            corrected.merge(connection.corrected);
+            requests += connection.requests;
+            errors += connection.errors;
+            bodyBytes += connection.bodyBytes;
+        }
+
+        public double getThroughput() {
+            return requests * 1000.0 / durationMillis;
+        }
+    }
+
+    private class Connection extends Thread {
+        private final long interval;
+        private final long measureFrom;
+        private final long endAt;
+        private final LatencyRecorder latency = new LatencyRecorder();
+        private final LatencyRecorder corrected = new LatencyRecorder();
+        private long nextSendAt;
+        private long requests;
+        private long errors;
+        private long bodyBytes;
+        // closed-loop 보정용. 측정 구간에서 잰 지연 합
+        private long latencySum;
+
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+
+        Connection(int index, long firstSendAt, long interval, long measureFrom, long endAt) {
+            super("load-" + index);
+            setDaemon(true);
+            this.nextSendAt = firstSendAt;
+            this.interval = interval;
+            this.measureFrom = measureFrom;
+            this.endAt = endAt;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    long sendAt = options.isOpenLoop() ? waitUntil(nextSendAt) : System.nanoTime();
+                    long intendedAt = options.isOpenLoop() ? nextSendAt : sendAt;
+                    if (sendAt >= endAt || intendedAt >= endAt) {
+                        return;
+                    }
+                    nextSendAt += interval;
+
+                    long body;
+                    try {
+                        body = exchange();
+                    } catch (IOException e) {
+                        closeQuietly();
+                        if (intendedAt >= measureFrom) {
+                            errors++;
+                        }
+                        log.debug("{} request failed. {}", getName(), e.getMessage());
+                        continue;
+                    }
+                    long doneAt = System.nanoTime();
+
+                    if (intendedAt < measureFrom) {
+                        continue;
+                    }
+                    requests++;
+                    bodyBytes += body;
+                    latencySum += doneAt - intendedAt;
+                    latency.record(doneAt - intendedAt);
+                    corrected.recordCorrected(doneAt - intendedAt, expectedInterval());
+                }
+            } finally {
+                closeQuietly();
+            }
+        }
+
+        private long expectedInterval() {
+            if (options.isOpenLoop()) {
+                return 0;
+            }
+            return latencySum / requests;
+        }
+
+        private long waitUntil(long deadline) {
+            long now;
+            while ((now = System.nanoTime()) < deadline) {
+                LockSupport.parkNanos(deadline - now);
+            }
+            return now;
+        }
+
+        /**
+         * 요청 하나 보내고 응답 끝까지 읽는다. 커넥션이 없으면 새로 연다.
+         * @return 받은 바디 크기
+         */
+        private long exchange() throws IOException {
+            if (socket == null) {
+                socket = new Socket();
+                socket.setTcpNoDelay(true);
+                socket.connect(proxyAddress, 5_000);
+                socket.setSoTimeout(30_000);
+                in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+                out = socket.getOutputStream();
+            }
+            out.write(request);
+
+            StringBuilder header = new StringBuilder();
+            readLine(in, header);
+            if (!header.toString().startsWith("HTTP/1.1 200")) {
+                throw new IOException("unexpected status line: " + header);
+            }
+
+            long contentLength = -1;
+            boolean chunked = false;
+            boolean close = false;
+            while (true) {
+                header.setLength(0);
+                readLine(in, header);
+                if (header.length() == 0) {
+                    break;
+                }
+                String line = header.toString();
+                if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                    contentLength = Long.parseLong(line.substring(15).trim());
+                } else if (line.regionMatches(true, 0, "Transfer-Encoding:", 0, 18)) {
+                    chunked = line.toLowerCase().contains("chunked");
+                } else if (line.regionMatches(true, 0, "Connection:", 0, 11)) {
+                    close = line.toLowerCase().contains("close");
+                }
+            }
+
+            long body = chunked ? skipChunked(header) : skip(contentLength);
+            if (close) {
+                closeQuietly();
+            }
+            return body;
+        }
+
+        private long skip(long contentLength) throws IOException {
+            if (contentLength < 0) {
+                throw new IOException("response without Content-Length");
+            }
+            in.skipNBytes(contentLength);
+            return contentLength;
+        }
+
+        private long skipChunked(StringBuilder line) throws IOException {
+            long total = 0;
+            while (true) {
+                line.setLength(0);
+                readLine(in, line);
+                int extension = line.indexOf(";");
+                long size = Long.parseLong((extension < 0 ? line.toString() : line.substring(0, extension)).trim(), 16);
+                if (size == 0) {
+                    // trailer 없이 빈 줄로 끝난다고 본다
+                    do {
+                        line.setLength(0);
+                        readLine(in, line);
+                    } while (line.length() > 0);
+                    return total;
+                }
+                in.skipNBytes(size + 2);
+                total += size;
+            }
+        }
+
+        private void closeQuietly() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    log.debug("{} close failed. {}", getName(), e.getMessage());
+                }
+            }
+            socket = null;
+            in = null;
+            out = null;
+        }
+    }
+
+    /**
+     * CRLF까지 읽고 CRLF는 뺀다.
+     */
+    private static void readLine(InputStream in, StringBuilder line) throws IOException {
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new IOException("connection closed by proxy");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+    }
+}
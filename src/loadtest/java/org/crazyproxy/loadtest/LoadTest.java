@@ -0,0 +1,125 @@
+package org.crazyproxy.loadtest;
+
+import lombok.extern.slf4j.Slf4j;
+import org.crazyproxy.CrazyProxy;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 로컬 부하 테스트. 네트워크 없이 이 JVM 안에 평문/TLS 가짜 업스트림과 프록시를 띄우고 부하를 건다.
+ * main.yaml, mapping.properties는 임시 디렉터리에 만들고, TLS 업스트림 인증서는 trustFilePath로 프록시에 넘긴다.
+ * 프록시 설정이 싱글톤이라 실행 한 번에 설정 하나만 잰다.
+ *
+ * 실행: ./gradlew loadTest -Pargs="mode=open rate=20000 connections=128 duration=60s target=https size=8kb"
+ */
+@Slf4j
+public class LoadTest {
+
+    private static final String PASSWORD = "changeit";
+
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options = LoadTestOptions.parse(args);
+        log.info("load test options. {}", options);
+
+        Path workDir = Files.createTempDirectory("crazyproxy-loadtest");
+        SelfSignedCertificate certificate = SelfSignedCertificate.generate(workDir, PASSWORD);
+
+        StandInUpstream httpUpstream = new StandInUpstream(null, options.getSize(), options.getDelayMillis(),
+                options.getChunkSize(), options.getMaxSize());
+        StandInUpstream httpsUpstream = new StandInUpstream(certificate.createServerContext(), options.getSize(),
+                options.getDelayMillis(), options.getChunkSize(), options.getMaxSize());
+        httpUpstream.start();
+        httpsUpstream.start();
+
+        int httpPort = freePort();
+        int httpsPort = freePort();
+        Path mappingPath = workDir.resolve("mapping.properties");
+        Files.writeString(mappingPath,
+                httpPort + "=http://127.0.0.1:" + httpUpstream.getPort() + "\n"
+                        + httpsPort + "=https://localhost:" + httpsUpstream.getPort() + "\n",
+                StandardCharsets.UTF_8);
+
+        Map<String, String> settings = new LinkedHashMap<>();
+        settings.put("mappingFilePath", mappingPath.toString());
+        settings.put("trustFilePath", certificate.getTrustStorePath().toString());
+        settings.put("trustPassword", PASSWORD);
+        settings.put("bufferSize", "100kb");
+        settings.putAll(options.getProxySettings());
+        Path mainConfigPath = workDir.resolve("main.yaml");
+        Files.writeString(mainConfigPath, toYaml(settings), StandardCharsets.UTF_8);
+        log.info("proxy config generated. {}", mainConfigPath);
+
+        System.setProperty("org.crazyproxy.properties", mainConfigPath.toString());
+        CrazyProxy.main(new String[0]);
+
+        InetSocketAddress proxyAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), options.isHttps() ? httpsPort : httpPort);
+        waitForPort(proxyAddress);
+
+        log.info("load started. warmup {}ms, measure {}ms", options.getWarmupMillis(), options.getDurationMillis());
+        LoadGenerator.Result result = new LoadGenerator(options, proxyAddress).run();
+        report(options, result);
+
+        httpUpstream.close();
+        httpsUpstream.close();
+        // 프록시 스레드는 데몬이 아니라서 직접 끝낸다
+        System.exit(result.getRequests() == 0 ? 1 : 0);
+    }
+
+    private static void report(LoadTestOptions options, LoadGenerator.Result result) {
+        log.info("==== {} ====", options);
+        log.info("requests = {}, errors = {}, throughput = {} req/s, {} MB/s",
+                result.getRequests(), result.getErrors(), String.format("%.1f", result.getThroughput()),
+                String.format("%.2f", result.getBodyBytes() / 1048576.0 / (result.getDurationMillis() / 1000.0)));
+        if (options.isOpenLoop()) {
+            log.info("latency (from intended send time) {}", percentiles(result.getLatency()));
+            if (result.getThroughput() < options.getRate() * 0.95) {
+                log.warn("achieved {} req/s is below target {} req/s. proxy or load generator is saturated",
+                        String.format("%.1f", result.getThroughput()), options.getRate());
+            }
+        } else {
+            log.info("latency raw       {}", percentiles(result.getLatency()));
+            log.info("latency corrected {}", percentiles(result.getCorrected()));
+        }
+    }
+
+    private static String percentiles(LatencyRecorder recorder) {
+        return String.format("p50 = %.3fms, p99 = %.3fms, p999 = %.3fms, max = %.3fms (samples = %d)",
+                recorder.valueAtPercentile(50) / 1e6, recorder.valueAtPercentile(99) / 1e6,
+                recorder.valueAtPercentile(99.9) / 1e6, recorder.getMax() / 1e6, recorder.getTotalCount());
+    }
+
+    private static String toYaml(Map<String, String> settings) {
+        StringBuilder yaml = new StringBuilder();
+        for (Map.Entry<String, String> entry : settings.entrySet()) {
+            yaml.append(entry.getKey()).append(": \"").append(entry.getValue().replace("\\", "\\\\").replace("\"", "\\\"")).append("\"\n");
+        }
+        return yaml.toString();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    private static void waitForPort(InetSocketAddress address) throws InterruptedException {
+        for (int i = 0; i < 200; i++) {
+            try (Socket socket = new Socket()) {
+                socket.connect(address, 100);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("proxy did not start on " + address);
+    }
+}
@@ -0,0 +1,98 @@
+package org.crazyproxy.loadtest;
+
+import lombok.Getter;
+import org.crazyproxy.util.Initiator;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 부하 테스트 옵션. 인자는 key=value 형식이고 크기/시간은 프록시 설정과 같은 단위(1kb, 500ms, 30s)를 쓴다.
+ * proxy.로 시작하는 키는 앞을 떼고 생성하는 main.yaml에 그대로 넣는다. 예) proxy.executionMode=virtual
+ */
+@Getter
+public class LoadTestOptions {
+
+    private static final Initiator INITIATOR = new Initiator();
+
+    // closed: 커넥션마다 응답 받자마자 다음 요청. open: rate에 맞춘 일정대로 보낸다
+    private final String mode;
+    private final int connections;
+    // open 모드 목표 요청 수/초 (전체)
+    private final int rate;
+    private final long warmupMillis;
+    private final long durationMillis;
+    // http: 평문 업스트림, https: TLS 업스트림
+    private final String target;
+    private final int size;
+    private final long delayMillis;
+    private final int chunkSize;
+    private final int maxSize;
+    private final Map<String, String> proxySettings;
+
+    private LoadTestOptions(Map<String, String> values, Map<String, String> proxySettings) {
+        this.mode = values.getOrDefault("mode", "closed");
+        this.connections = Integer.parseInt(values.getOrDefault("connections", "64"));
+        this.rate = Integer.parseInt(values.getOrDefault("rate", "10000"));
+        this.warmupMillis = parseMillis(values.get("warmup"), 5_000);
+        this.durationMillis = parseMillis(values.get("duration"), 30_000);
+        this.target = values.getOrDefault("target", "http");
+        this.size = parseSize(values.get("size"), 1024);
+        this.delayMillis = parseMillis(values.get("delay"), 0);
+        this.chunkSize = parseSize(values.get("chunk"), 0);
+        this.maxSize = parseSize(values.get("maxSize"), 16 * 1024 * 1024);
+        this.proxySettings = proxySettings;
+
+        if (!"closed".equals(mode) && !"open".equals(mode)) {
+            throw new IllegalArgumentException("mode must be closed or open: " + mode);
+        }
+        if (!"http".equals(target) && !"https".equals(target)) {
+            throw new IllegalArgumentException("target must be http or https: " + target);
+        }
+        if (connections <= 0 || rate <= 0) {
+            throw new IllegalArgumentException("connections and rate must be positive");
+        }
+    }
+
+    public static LoadTestOptions parse(String[] args) {
+        Map<String, String> values = new LinkedHashMap<>();
+        Map<String, String> proxySettings = new LinkedHashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("argument must be key=value: " + arg);
+            }
+            String key = arg.substring(0, eq);
+            String value = arg.substring(eq + 1);
+            if (key.startsWith("proxy.")) {
+                proxySettings.put(key.substring("proxy.".length()), value);
+            } else {
+                values.put(key, value);
+            }
+        }
+        return new LoadTestOptions(values, proxySettings);
+    }
+
+    public boolean isOpenLoop() {
+        return "open".equals(mode);
+    }
+
+    public boolean isHttps() {
+        return "https".equals(target);
+    }
+
+    static int parseSize(String value, int defaultSize) {
+        return INITIATOR.parseSize(value, defaultSize);
+    }
+
+    static long parseMillis(String value, long defaultMillis) {
+        return INITIATOR.parseDuration(value, defaultMillis);
+    }
+
+    @Override
+    public String toString() {
+        return "mode=" + mode + ", connections=" + connections + (isOpenLoop() ? ", rate=" + rate + "/s" : "")
+                + ", warmup=" + warmupMillis + "ms, duration=" + durationMillis + "ms, target=" + target
+                + ", size=" + size + ", delay=" + delayMillis + "ms, chunk=" + chunkSize + ", proxy=" + proxySettings;
+    }
+}
@@ -0,0 +1,85 @@
+package org.crazyproxy.loadtest;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.security.KeyStore;
+
+/**
+ * TLS 업스트림용 자체 서명 인증서. JDK에 들어있는 keytool로 만들어서 네트워크 없이 된다.
+ * 서버 키스토어(PKCS12)와, 그 인증서만 넣은 트러스트스토어(JKS)를 만든다. 트러스트스토어는 프록시 trustFilePath로 넘긴다.
+ */
+@Slf4j
+@Getter
+public class SelfSignedCertificate {
+
+    private static final String ALIAS = "crazyproxy-loadtest";
+
+    private final Path keyStorePath;
+    private final Path trustStorePath;
+    private final String password;
+
+    private SelfSignedCertificate(Path keyStorePath, Path trustStorePath, String password) {
+        this.keyStorePath = keyStorePath;
+        this.trustStorePath = trustStorePath;
+        this.password = password;
+    }
+
+    /**
+     * dir 아래에 upstream.p12, trust.jks를 만든다. CN과 SAN은 localhost, 127.0.0.1.
+     */
+    public static SelfSignedCertificate generate(Path dir, String password) throws IOException, InterruptedException {
+        Path keyStorePath = dir.resolve("upstream.p12");
+        Path certPath = dir.resolve("upstream.crt");
+        Path trustStorePath = dir.resolve("trust.jks");
+
+        keytool("-genkeypair", "-alias", ALIAS, "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "30",
+                "-storetype", "PKCS12", "-keystore", keyStorePath.toString(), "-storepass", password, "-keypass", password);
+        keytool("-exportcert", "-alias", ALIAS, "-keystore", keyStorePath.toString(), "-storepass", password,
+                "-file", certPath.toString());
+        // 프록시는 트러스트스토어를 JKS로 읽는다(Initiator.createTrustManager)
+        keytool("-importcert", "-noprompt", "-alias", ALIAS, "-file", certPath.toString(),
+                "-storetype", "JKS", "-keystore", trustStorePath.toString(), "-storepass", password);
+
+        log.info("self-signed certificate created. keyStore = {}, trustStore = {}", keyStorePath, trustStorePath);
+        return new SelfSignedCertificate(keyStorePath, trustStorePath, password);
+    }
+
+    /**
+     * 업스트림 서버 쪽 SSLContext.
+     */
+    public SSLContext createServerContext() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(keyStorePath.toFile())) {
+            keyStore.load(in, password.toCharArray());
+        }
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, password.toCharArray());
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagerFactory.getKeyManagers(), null, null);
+        return context;
+    }
+
+    private static void keytool(String... args) throws IOException, InterruptedException {
+        String[] command = new String[args.length + 1];
+        command[0] = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+        System.arraycopy(args, 0, command, 1, args.length);
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output;
+        try (InputStream in = process.getInputStream()) {
+            output = new String(in.readAllBytes());
+        }
+        if (process.waitFor() != 0) {
+            throw new IOException("keytool " + args[0] + " failed: " + output);
+        }
+    }
+}
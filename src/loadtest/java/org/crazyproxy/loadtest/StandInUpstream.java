@@ -0,0 +1,180 @@
+package org.crazyproxy.loadtest;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.net.ssl.SSLContext;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 부하 테스트용 가짜 업스트림. HTTP/1.1 keep-alive, 커넥션마다 스레드 하나.
+ * 응답 크기, 지연, chunked 여부는 생성할 때 정한 기본값을 쓰고, 요청 쿼리(?size=1kb&delay=20ms&chunk=4kb)로 요청마다 바꿀 수 있다.
+ * sslContext를 주면 TLS 서버로 뜬다.
+ */
+@Slf4j
+public class StandInUpstream extends Thread implements AutoCloseable {
+
+    private static final int MAX_HEADER = 16 * 1024;
+
+    private final ServerSocket serverSocket;
+    private final int defaultSize;
+    private final long defaultDelayMillis;
+    private final int defaultChunkSize;
+    private final byte[] body;
+
+    /**
+     * @param sslContext null이면 평문 HTTP
+     * @param defaultSize 응답 바디 크기(byte)
+     * @param defaultDelayMillis 헤더 보내기 전 대기
+     * @param defaultChunkSize 0이면 Content-Length, 아니면 이 크기로 나눠서 chunked 전송
+     * @param maxSize 쿼리로 받을 수 있는 최대 바디 크기
+     */
+    public StandInUpstream(SSLContext sslContext, int defaultSize, long defaultDelayMillis, int defaultChunkSize, int maxSize) throws IOException {
+        super(sslContext == null ? "upstream-http" : "upstream-https");
+        setDaemon(true);
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        this.serverSocket = sslContext == null
+                ? new ServerSocket(0, 4096, loopback)
+                : sslContext.getServerSocketFactory().createServerSocket(0, 4096, loopback);
+        this.defaultSize = defaultSize;
+        this.defaultDelayMillis = defaultDelayMillis;
+        this.defaultChunkSize = defaultChunkSize;
+        this.body = new byte[Math.max(defaultSize, maxSize)];
+        Arrays.fill(body, (byte) 'x');
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread connection = new Thread(() -> serve(socket), getName() + "-conn");
+                connection.setDaemon(true);
+                connection.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    log.warn("{} accept failed", getName(), e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            StringBuilder header = new StringBuilder();
+            while (true) {
+                header.setLength(0);
+                if (!readHeader(in, header)) {
+                    return;
+                }
+                skipBody(in, header);
+                respond(out, header);
+            }
+        } catch (SocketException e) {
+            log.debug("{} connection closed. {}", getName(), e.getMessage());
+        } catch (IOException e) {
+            log.warn("{} connection failed. {}", getName(), e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void respond(OutputStream out, StringBuilder header) throws IOException, InterruptedException {
+        String target = header.substring(header.indexOf(" ") + 1, header.indexOf(" ", header.indexOf(" ") + 1));
+        int size = Math.min(body.length, LoadTestOptions.parseSize(queryParam(target, "size"), defaultSize));
+        long delayMillis = LoadTestOptions.parseMillis(queryParam(target, "delay"), defaultDelayMillis);
+        int chunkSize = LoadTestOptions.parseSize(queryParam(target, "chunk"), defaultChunkSize);
+
+        if (delayMillis > 0) {
+            Thread.sleep(delayMillis);
+        }
+
+        if (chunkSize <= 0) {
+            out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\nContent-Length: " + size + "\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            out.write(body, 0, size);
+            out.flush();
+            return;
+        }
+
+        out.write("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\nTransfer-Encoding: chunked\r\n\r\n"
+                .getBytes(StandardCharsets.US_ASCII));
+        // 조각마다 flush해서 프록시가 나눠서 받게 한다
+        for (int offset = 0; offset < size; offset += chunkSize) {
+            int length = Math.min(chunkSize, size - offset);
+            out.write((Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(body, offset, length);
+            out.write('\r');
+            out.write('\n');
+            out.flush();
+        }
+        out.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    /**
+     * 빈 줄까지 읽는다.
+     * @return 헤더 끝까지 읽었으면 true, 그 전에 끊기면 false
+     */
+    private static boolean readHeader(InputStream in, StringBuilder header) throws IOException {
+        int last4 = 0;
+        while (last4 != 0x0d0a0d0a) {
+            int b = in.read();
+            if (b < 0) {
+                return false;
+            }
+            if (header.length() >= MAX_HEADER) {
+                throw new IOException("request header too large");
+            }
+            header.append((char) b);
+            last4 = (last4 << 8) | b;
+        }
+        return true;
+    }
+
+    /**
+     * 요청 바디는 Content-Length만 지원한다. 읽고 버린다.
+     */
+    private static void skipBody(InputStream in, StringBuilder header) throws IOException {
+        for (String line : header.toString().split("\r\n")) {
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                in.skipNBytes(Long.parseLong(line.substring(15).trim()));
+            }
+        }
+    }
+
+    private static String queryParam(String target, String name) {
+        int query = target.indexOf('?');
+        if (query < 0) {
+            return null;
+        }
+        for (String pair : target.substring(query + 1).split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0 && pair.substring(0, eq).equals(name)) {
+                return pair.substring(eq + 1);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
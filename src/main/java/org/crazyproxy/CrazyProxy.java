@@ -3,11 +3,30 @@ package org.crazyproxy;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
+import org.crazyproxy.balance.TargetGroup;
+import org.crazyproxy.buffer.BufferPool;
+import org.crazyproxy.cache.ResponseCache;
+import org.crazyproxy.compress.ResponseCompression;
 import org.crazyproxy.config.*;
+import org.crazyproxy.dns.DnsCache;
 import org.crazyproxy.exception.FilePathNullPointException;
 import org.crazyproxy.exception.MainConfigNotFoundException;
 import org.crazyproxy.exception.SSLContextInitiationException;
-import org.crazyproxy.nio.SelectorThread;
+import org.crazyproxy.health.HealthChecker;
+import org.crazyproxy.health.OutlierDetection;
+import org.crazyproxy.http2.Http2ConnectionPool;
+import org.crazyproxy.http2.Http2Server;
+import org.crazyproxy.limit.ConcurrencyLimits;
+import org.crazyproxy.metrics.AdminServer;
+import org.crazyproxy.metrics.ProxyMetrics;
+import org.crazyproxy.nio.AcceptorThread;
+import org.crazyproxy.nio.ConnectionDispatcher;
+import org.crazyproxy.pool.UpstreamConnectionPool;
+import org.crazyproxy.ssl.CryptoExecutor;
+import org.crazyproxy.ssl.HandshakeStats;
+import org.crazyproxy.ssl.TlsTerminator;
+import org.crazyproxy.timeout.PortTimeouts;
+import org.crazyproxy.timeout.TimeoutPolicy;
 import org.crazyproxy.util.Initiator;
 import org.yaml.snakeyaml.Yaml;
 
@@ -16,6 +35,7 @@ import java.io.*;
 import java.security.*;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 @Slf4j
 public class CrazyProxy {
@@ -84,9 +104,56 @@ public class CrazyProxy {
 
         // todo. need worker count and bufferSize setting
         log.info("try to portMap setting");
-        final Map<String, SocketInfo> portMap = initiator.initSocketInfoHashMap(mainConfig.getMappingFilePath());
+        // 매핑 파일에서 호스트를 처음 조회하기 전에 만들어야 JDK 주소 캐시 설정이 먹힌다.
+        DnsCache.initInstance(mainConfig.getDnsRefreshInterval());
+        final Map<String, TargetGroup> portMap = initiator.initTargetGroupMap(mainConfig.getMappingFilePath(), mainConfig.getLoadBalancer());
+        for (TargetGroup targetGroup : portMap.values()) {
+            for (SocketInfo socketInfo : targetGroup.getTargets()) {
+                DnsCache.getInstance().register(socketInfo);
+            }
+        }
         log.info("portMap setting done.");
-        ClientWorkConfig.initInstance(portMap, mainConfig.getWorkerCount(), mainConfig.getBufferSize());
+        ClientWorkConfig.initInstance(portMap, mainConfig.getWorkerCount(), mainConfig.getBufferSize(), mainConfig.getMaxHeaderSize(),
+                mainConfig.getClientKeepAliveTimeout(), mainConfig.getWriteHighWaterMark(), mainConfig.getWriteLowWaterMark(),
+                mainConfig.getConnectRaceDelay());
+        ProxyMetrics.initInstance(portMap);
+        BufferPool.initInstance(mainConfig.getBufferPoolMaxSize(), mainConfig.isBufferLeakDetection(), mainConfig.getBufferLeakTimeout());
+        UpstreamConnectionPool.initInstance(mainConfig.getPoolMaxIdlePerTarget(), mainConfig.getPoolMaxIdleTime(), mainConfig.getPoolMaxLifetime());
+        Set<String> cachePorts = initiator.parsePorts(mainConfig.getCachePorts());
+        String executionMode = mainConfig.getExecutionMode();
+        if (!cachePorts.isEmpty() && executionMode != null && !ConnectionDispatcher.REACTOR.equalsIgnoreCase(executionMode)) {
+            // 캐시에서 바로 내보내는 건 리액터에서만 한다.
+            log.warn("response cache works in reactor mode only. ignore cachePorts. executionMode = {}", executionMode);
+            cachePorts = Set.of();
+        }
+        ResponseCache.initInstance(cachePorts, mainConfig.getCacheMaxSize(), mainConfig.getCacheMaxObjectSize(),
+                mainConfig.getCoalesceMaxWait(), mainConfig.getCoalesceMaxFanOut());
+        Set<String> compressPorts = initiator.parsePorts(mainConfig.getCompressPorts());
+        if (!compressPorts.isEmpty() && executionMode != null && !ConnectionDispatcher.REACTOR.equalsIgnoreCase(executionMode)) {
+            // 블로킹 모드는 ClientWorker를 안 거치고 바이트를 그대로 넘긴다.
+            log.warn("response compression works in reactor mode only. ignore compressPorts. executionMode = {}", executionMode);
+            compressPorts = Set.of();
+        }
+        ResponseCompression.initInstance(compressPorts, initiator.parseList(mainConfig.getCompressTypes()),
+                mainConfig.getCompressMinLength(), mainConfig.getCompressLevel(), mainConfig.getCompressPoolSize());
+        // 블로킹 모드는 타이머 대신 BlockingConnectionGroup의 감시 스레드가 본다
+        PortTimeouts defaultTimeouts = new PortTimeouts(mainConfig.getConnectTimeout(), mainConfig.getTlsHandshakeTimeout(),
+                mainConfig.getRequestHeaderTimeout(), mainConfig.getClientKeepAliveTimeout(), mainConfig.getRequestTimeout());
+        TimeoutPolicy.initInstance(defaultTimeouts, initiator.parsePortTimeouts(mainConfig.getPortTimeouts(), defaultTimeouts));
+        ConcurrencyLimits.initInstance(mainConfig.isAdaptiveLimit(), mainConfig.getAdaptiveLimitInitial(),
+                mainConfig.getAdaptiveLimitMin(), mainConfig.getAdaptiveLimitMax());
+        OutlierDetection.initInstance(mainConfig.isOutlierDetection(), mainConfig.getOutlierConsecutiveFailures(),
+                mainConfig.getOutlierErrorRate(), mainConfig.getOutlierMinRequests(),
+                mainConfig.getOutlierEjectionTime(), mainConfig.getOutlierMaxEjectionTime());
+        // 스트림 받기 창은 클라에게 쌓아둘 수 있는 만큼과 맞춘다. 블로킹 모드는 ClientWorker를 안 쓰니 HTTP/1.1 그대로다
+        Http2ConnectionPool.initInstance(mainConfig.isH2Upstream(), mainConfig.getH2MaxConcurrentStreams(),
+                mainConfig.getWriteHighWaterMark(), mainConfig.getPoolMaxIdleTime(), mainConfig.getPoolMaxLifetime());
+        // 클라 쪽 h2. 스트림 받기 창은 요청 바디를 모아 두는 크기라 bufferSize와 맞춘다. TlsTerminator가 ALPN h2를 받을지 여기서 본다
+        Http2Server.initInstance(mainConfig.isH2c(), mainConfig.getH2ListenerMaxConcurrentStreams(), mainConfig.getBufferSize());
+
+        // TLS 1.2 session ticket, TLS 1.3 PSK 재개용. SSLContext 만들기 전에 세팅해야 먹힌다.
+        System.setProperty("jdk.tls.client.enableSessionTicketExtension", String.valueOf(mainConfig.isSslSessionTicket()));
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension", String.valueOf(mainConfig.isSslSessionTicket()));
 
         SSLConfig sslConfig = SSLConfig.getInstance();
         SSLContext sslContext = sslConfig.getContext();
@@ -102,8 +169,122 @@ public class CrazyProxy {
             throw new SSLContextInitiationException(e.getMessage());
         }
 
-        SelectorThread selectorThread = new SelectorThread();
-        selectorThread.start();
+        Set<String> tlsPorts = initiator.parsePorts(mainConfig.getTlsPorts());
+        if (!tlsPorts.isEmpty()) {
+            // 평문으로 조용히 받아버리면 안 되니 캐시와 달리 무시하지 않고 멈춘다.
+            if (executionMode != null && !ConnectionDispatcher.REACTOR.equalsIgnoreCase(executionMode)) {
+                throw new IllegalArgumentException("tlsPorts works in reactor mode only. executionMode = " + executionMode);
+            }
+            if (keyManagers == null) {
+                throw new SSLContextInitiationException("tlsPorts needs a server certificate. please set keyFilePath");
+            }
+        }
+        TlsTerminator.initInstance(tlsPorts, sslContext, initiator.parseList(mainConfig.getTlsAlpn()),
+                mainConfig.getTlsHandshakeThreads(), mainConfig.getWorkerQueueSize(),
+                mainConfig.getSslSessionCacheSize(), (int) (mainConfig.getSslSessionTimeout() / 1000));
+        CryptoExecutor.initInstance(mainConfig.getWorkerCount(), mainConfig.getWorkerQueueSize());
+        sslConfig.initClientSessionCache(mainConfig.getSslSessionCacheSize(), (int) (mainConfig.getSslSessionTimeout() / 1000));
+        registerMetrics(ProxyMetrics.getInstance());
+
+        try {
+            ConnectionDispatcher dispatcher = ConnectionDispatcher.create(mainConfig);
+            dispatcher.start();
+            AcceptorThread acceptor = new AcceptorThread(dispatcher);
+            acceptor.start();
+            if (mainConfig.isMappingWatch()) {
+                new MappingWatcher(mainConfig.getMappingFilePath(), mainConfig.getLoadBalancer(), acceptor::reconcilePorts).start();
+            }
+            if (mainConfig.getHealthCheckInterval() > 0) {
+                new HealthChecker(mainConfig.getHealthCheckInterval(), mainConfig.getHealthCheckTimeout(), mainConfig.getHealthCheckPath()).start();
+            }
+            if (mainConfig.getAdminPort() > 0) {
+                new AdminServer(mainConfig.getAdminPort()).start();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+    }
+
+    /**
+     * 싱글톤 컴포넌트들이 이미 세고 있는 값을 지표로 노출한다. 긁어갈 때만 읽는다.
+     */
+    private static void registerMetrics(ProxyMetrics metrics) {
+        CryptoExecutor cryptoExecutor = CryptoExecutor.getInstance();
+        metrics.registerGauge("crazyproxy_crypto_executor_queue_depth", "TLS delegated tasks waiting for a crypto thread", cryptoExecutor::getQueueDepth);
+        metrics.registerGauge("crazyproxy_crypto_executor_active", "Crypto threads running a task", cryptoExecutor::getActiveCount);
+        metrics.registerCounter("crazyproxy_crypto_executor_caller_runs_total", "Delegated tasks run on the reactor because the queue was full", cryptoExecutor::getCallerRuns);
+
+        HandshakeStats handshakeStats = HandshakeStats.getInstance();
+        metrics.registerCounter("crazyproxy_tls_full_handshakes_total", "Upstream TLS full handshakes", handshakeStats::getFullHandshakes);
+        metrics.registerCounter("crazyproxy_tls_resumed_handshakes_total", "Upstream TLS handshakes that resumed a cached session", handshakeStats::getResumedHandshakes);
+        metrics.registerCounter("crazyproxy_tls_failed_handshakes_total", "Upstream TLS handshakes that failed", handshakeStats::getFailedHandshakes);
+
+        HandshakeStats serverHandshakeStats = HandshakeStats.getServerInstance();
+        metrics.registerCounter("crazyproxy_tls_server_full_handshakes_total", "Client TLS full handshakes on tlsPorts", serverHandshakeStats::getFullHandshakes);
+        metrics.registerCounter("crazyproxy_tls_server_resumed_handshakes_total", "Client TLS handshakes that resumed a session or ticket", serverHandshakeStats::getResumedHandshakes);
+        metrics.registerCounter("crazyproxy_tls_server_failed_handshakes_total", "Client TLS handshakes that failed", serverHandshakeStats::getFailedHandshakes);
+        CryptoExecutor tlsAcceptExecutor = TlsTerminator.getInstance().getHandshakeExecutor();
+        if (tlsAcceptExecutor != null) {
+            metrics.registerGauge("crazyproxy_tls_accept_executor_queue_depth", "Client TLS delegated tasks waiting for a handshake thread", tlsAcceptExecutor::getQueueDepth);
+            metrics.registerGauge("crazyproxy_tls_accept_executor_active", "Handshake threads running a task", tlsAcceptExecutor::getActiveCount);
+            metrics.registerCounter("crazyproxy_tls_accept_executor_caller_runs_total", "Client delegated tasks run on the reactor because the queue was full", tlsAcceptExecutor::getCallerRuns);
+        }
+
+        Http2ConnectionPool h2Pool = Http2ConnectionPool.getInstance();
+        metrics.registerGauge("crazyproxy_h2_upstream_connections", "Open upstream HTTP/2 connections", h2Pool::getConnections);
+        metrics.registerGauge("crazyproxy_h2_upstream_active_streams", "Requests in flight on upstream HTTP/2 streams", h2Pool::getActiveStreams);
+        metrics.registerCounter("crazyproxy_h2_upstream_streams_total", "Streams opened on upstream HTTP/2 connections", h2Pool::getStreams);
+        metrics.registerCounter("crazyproxy_h2_upstream_alpn_fallbacks_total", "ALPN connects where the upstream chose http/1.1", h2Pool::getFallbacks);
+
+        Http2Server h2Server = Http2Server.getInstance();
+        metrics.registerGauge("crazyproxy_h2_client_connections", "Open client HTTP/2 connections", h2Server::getConnections);
+        metrics.registerGauge("crazyproxy_h2_client_active_streams", "Client HTTP/2 streams being served", h2Server::getActiveStreams);
+        metrics.registerCounter("crazyproxy_h2_client_streams_total", "Streams accepted on client HTTP/2 connections", h2Server::getStreams);
+        metrics.registerCounter("crazyproxy_h2_client_refused_streams_total", "Client streams refused over h2ListenerMaxConcurrentStreams or while closing", h2Server::getRefusedStreams);
+
+        BufferPool bufferPool = BufferPool.getInstance();
+        metrics.registerGauge("crazyproxy_buffer_pool_reserved_bytes", "Direct memory reserved by buffer pool slabs", bufferPool::getReservedBytes);
+        metrics.registerGauge("crazyproxy_buffer_pool_in_use_bytes", "Buffer bytes currently lent out", bufferPool::getInUseBytes);
+        metrics.registerGauge("crazyproxy_buffer_pool_in_use", "Buffers currently lent out", bufferPool::getInUseCount);
+        metrics.registerCounter("crazyproxy_buffer_pool_acquires_total", "Buffer acquisitions", bufferPool::getAcquires);
+        metrics.registerCounter("crazyproxy_buffer_pool_unpooled_total", "Buffers allocated outside the pool", bufferPool::getUnpooled);
+        metrics.registerCounter("crazyproxy_buffer_pool_leaks_total", "Buffers held longer than bufferLeakTimeout", bufferPool::getLeaks);
+
+        ResponseCache responseCache = ResponseCache.getInstance();
+        metrics.registerCounter("crazyproxy_cache_hits_total", "Responses served fresh from the response cache", responseCache::getHits);
+        metrics.registerCounter("crazyproxy_cache_stale_hits_total", "Stale responses served while revalidating in the background", responseCache::getStaleHits);
+        metrics.registerCounter("crazyproxy_cache_misses_total", "Cacheable requests sent upstream without a usable entry", responseCache::getMisses);
+        metrics.registerCounter("crazyproxy_cache_revalidations_total", "Conditional requests sent upstream for a stale entry", responseCache::getRevalidations);
+        metrics.registerCounter("crazyproxy_cache_not_modified_total", "Entries refreshed by a 304 response", responseCache::getNotModified);
+        metrics.registerCounter("crazyproxy_cache_stores_total", "Responses stored", responseCache::getStores);
+        metrics.registerCounter("crazyproxy_cache_evictions_total", "Entries evicted to make room", responseCache::getEvictions);
+        metrics.registerCounter("crazyproxy_cache_admission_rejects_total", "New entries rejected by the frequency filter", responseCache::getAdmissionRejects);
+        metrics.registerCounter("crazyproxy_cache_coalesced_total", "Requests that waited on an identical in-flight upstream request", responseCache::getCoalesced);
+        metrics.registerCounter("crazyproxy_cache_coalesce_fallbacks_total", "Coalesced requests that timed out or could not share the response and went upstream", responseCache::getCoalesceFallbacks);
+        metrics.registerGauge("crazyproxy_cache_entries", "Entries in the response cache", responseCache::getEntryCount);
+        metrics.registerGauge("crazyproxy_cache_bytes", "Bytes held by cached responses", responseCache::getWeight);
+        metrics.registerGauge("crazyproxy_cache_reserved_bytes", "Direct memory reserved for cached bodies", responseCache::getReservedBytes);
+
+        ResponseCompression compression = ResponseCompression.getInstance();
+        metrics.registerCounter("crazyproxy_compress_deflaters_created_total", "Deflaters created because the pool was empty", compression::getCreated);
+        metrics.registerGauge("crazyproxy_compress_deflaters_pooled", "Idle deflaters in the pool", compression::getPooled);
+
+        TimeoutPolicy timeouts = TimeoutPolicy.getInstance();
+        metrics.registerCounter("crazyproxy_connect_timeouts_total", "Upstream connects that did not finish within connectTimeout",
+                () -> timeouts.getExpired(TimeoutPolicy.Kind.CONNECT));
+        metrics.registerCounter("crazyproxy_tls_handshake_timeouts_total", "Client or upstream TLS handshakes that did not finish within tlsHandshakeTimeout",
+                () -> timeouts.getExpired(TimeoutPolicy.Kind.HANDSHAKE));
+        metrics.registerCounter("crazyproxy_request_header_timeouts_total", "Client connections closed with 408 because request headers did not arrive within requestHeaderTimeout",
+                () -> timeouts.getExpired(TimeoutPolicy.Kind.HEADER));
+        metrics.registerCounter("crazyproxy_idle_timeouts_total", "Client connections closed after idling for clientKeepAliveTimeout",
+                () -> timeouts.getExpired(TimeoutPolicy.Kind.IDLE));
+        metrics.registerCounter("crazyproxy_request_timeouts_total", "Requests cut off after requestTimeout",
+                () -> timeouts.getExpired(TimeoutPolicy.Kind.REQUEST));
 
+        metrics.registerCounter("crazyproxy_limit_rejections_total", "Requests rejected with 503 because a target concurrency limit was reached",
+                ConcurrencyLimits.getInstance()::getRejected);
+        metrics.registerCounter("crazyproxy_no_healthy_target_rejections_total", "Requests rejected with 503 because every target circuit of the port was open",
+                OutlierDetection.getInstance().getRejected()::sum);
     }
 }
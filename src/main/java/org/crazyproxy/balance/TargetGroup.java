@@ -0,0 +1,201 @@
+package org.crazyproxy.balance;
+
+import org.crazyproxy.config.SocketInfo;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 리슨 포트 하나에 묶인 업스트림 타겟들. 요청마다 pick으로 타겟을 고른다.
+ * round-robin: 가중치만큼 돌아가며 고른다. 가중치는 smooth weighted round-robin 순서로 미리 펼쳐둬서 한 타겟에 몰아 주지 않는다
+ * least-outstanding: 걸려 있는 요청 수 / 가중치가 가장 작은 타겟
+ * peak-ewma: 응답 시간 peak EWMA x (걸려 있는 요청 + 1) / 가중치가 작은 쪽. 타겟이 셋 이상이면 무작위로 둘만 골라 비교한다(P2C)
+ *
+ * 회로가 열린 타겟(TargetHealth)은 건너뛴다. 밸런서가 고른 타겟이 빠져 있으면 다음 타겟부터 차례로 본다.
+ *
+ * pick은 모든 요청마다 리액터/워커 스레드에서 불리므로 락 없이 원자 변수만 읽는다.
+ */
+public class TargetGroup {
+
+    public static final String ROUND_ROBIN = "round-robin";
+    public static final String LEAST_OUTSTANDING = "least-outstanding";
+    public static final String PEAK_EWMA = "peak-ewma";
+
+    // 가중치를 펼친 round-robin 순서 길이 상한
+    private static final int MAX_SCHEDULE = 10_000;
+
+    private final SocketInfo[] targets;
+    private final String balance;
+    private final int[] schedule;
+    private final AtomicInteger nextIndex = new AtomicInteger();
+
+    public TargetGroup(SocketInfo[] targets, String balance) {
+        if (targets.length == 0) {
+            throw new IllegalArgumentException("TargetGroup needs at least one target");
+        }
+        if (balance == null) {
+            balance = ROUND_ROBIN;
+        }
+        balance = balance.toLowerCase();
+        if (!ROUND_ROBIN.equals(balance) && !LEAST_OUTSTANDING.equals(balance) && !PEAK_EWMA.equals(balance)) {
+            throw new IllegalArgumentException("Unknown loadBalancer: " + balance);
+        }
+        this.targets = targets.clone();
+        this.balance = balance;
+        this.schedule = buildSchedule(this.targets);
+    }
+
+    public TargetGroup(SocketInfo target) {
+        this(new SocketInfo[]{target}, ROUND_ROBIN);
+    }
+
+    /**
+     * 이번 요청을 보낼 타겟.
+     * @return 타겟 회로가 전부 열려 있으면 null. 업스트림에 보내지 말고 바로 돌려보낸다
+     */
+    public SocketInfo pick() {
+        SocketInfo selected = select();
+        if (selected.getHealth().allowRequest()) {
+            return selected;
+        }
+        return pickHealthy();
+    }
+
+    private SocketInfo select() {
+        if (targets.length == 1) {
+            return targets[0];
+        }
+        switch (balance) {
+            case LEAST_OUTSTANDING:
+                return pickLeastOutstanding();
+            case PEAK_EWMA:
+                return pickPeakEwma();
+            default:
+                return targets[schedule[Math.floorMod(nextIndex.getAndIncrement(), schedule.length)]];
+        }
+    }
+
+    /**
+     * 밸런서가 고른 타겟이 빠져 있을 때. 시작점을 돌려 가며 보낼 수 있는 첫 타겟을 고른다
+     */
+    private SocketInfo pickHealthy() {
+        if (targets.length == 1) {
+            return null;
+        }
+        int start = Math.floorMod(nextIndex.getAndIncrement(), targets.length);
+        for (int i = 0; i < targets.length; i++) {
+            SocketInfo candidate = targets[(start + i) % targets.length];
+            if (candidate.getHealth().allowRequest()) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 전부 훑는다. 동점이면 앞에 있는 타겟으로 몰리지 않게 시작점을 돌린다.
+     */
+    private SocketInfo pickLeastOutstanding() {
+        int start = Math.floorMod(nextIndex.getAndIncrement(), targets.length);
+        SocketInfo selected = targets[start];
+        double selectedLoad = (selected.getStats().getOutstanding() + 1) / (double) selected.getWeight();
+        for (int i = 1; i < targets.length; i++) {
+            SocketInfo candidate = targets[(start + i) % targets.length];
+            double load = (candidate.getStats().getOutstanding() + 1) / (double) candidate.getWeight();
+            if (load < selectedLoad) {
+                selected = candidate;
+                selectedLoad = load;
+            }
+        }
+        return selected;
+    }
+
+    private SocketInfo pickPeakEwma() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(targets.length);
+        int second = random.nextInt(targets.length - 1);
+        if (second >= first) {
+            second++;
+        }
+        long now = System.nanoTime();
+        SocketInfo a = targets[first];
+        SocketInfo b = targets[second];
+        double costA = a.getStats().getPeakEwmaCost(now) / a.getWeight();
+        double costB = b.getStats().getPeakEwmaCost(now) / b.getWeight();
+        return costB < costA ? b : a;
+    }
+
+    /**
+     * nginx smooth weighted round-robin 순서. 가중치 {5, 1, 1}이면 a a b a c a a 처럼 섞인다.
+     */
+    private static int[] buildSchedule(SocketInfo[] targets) {
+        long total = 0;
+        for (SocketInfo target : targets) {
+            total += target.getWeight();
+        }
+        if (total > MAX_SCHEDULE) {
+            throw new IllegalArgumentException("sum of target weights must be <= " + MAX_SCHEDULE + " but was " + total);
+        }
+
+        int[] schedule = new int[(int) total];
+        long[] current = new long[targets.length];
+        for (int slot = 0; slot < schedule.length; slot++) {
+            int best = 0;
+            for (int i = 0; i < targets.length; i++) {
+                current[i] += targets[i].getWeight();
+                if (current[i] > current[best]) {
+                    best = i;
+                }
+            }
+            current[best] -= total;
+            schedule[slot] = best;
+        }
+        return schedule;
+    }
+
+    public SocketInfo[] getTargets() {
+        return targets.clone();
+    }
+
+    public String getBalance() {
+        return balance;
+    }
+
+    /**
+     * 설정이 같은 그룹인지. 매핑 파일을 다시 읽었을 때 안 바뀐 포트는 기존 그룹을 그대로 써서
+     * 타겟 통계, 풀에 있는 커넥션, DNS 조회 결과를 버리지 않는다.
+     */
+    public boolean sameConfig(TargetGroup other) {
+        if (!balance.equals(other.balance) || targets.length != other.targets.length) {
+            return false;
+        }
+        for (int i = 0; i < targets.length; i++) {
+            SocketInfo mine = targets[i];
+            SocketInfo theirs = other.targets[i];
+            if (!mine.getInetSocketAddress().getHostString().equals(theirs.getInetSocketAddress().getHostString())
+                    || mine.getInetSocketAddress().getPort() != theirs.getInetSocketAddress().getPort()
+                    || !mine.getHost().equals(theirs.getHost())
+                    || !mine.getPath().equals(theirs.getPath())
+                    || mine.isHttps() != theirs.isHttps()
+                    || mine.getWeight() != theirs.getWeight()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("TargetGroup [balance=").append(balance).append(", targets=");
+        for (int i = 0; i < targets.length; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(targets[i]);
+            if (targets[i].getWeight() != 1) {
+                builder.append(" weight=").append(targets[i].getWeight());
+            }
+        }
+        return builder.append(']').toString();
+    }
+}
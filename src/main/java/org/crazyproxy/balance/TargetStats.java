@@ -0,0 +1,94 @@
+package org.crazyproxy.balance;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 타겟 하나의 밸런싱 상태. 요청이 시작/끝날 때마다 워커가 갱신하고 TargetGroup이 고를 때 읽는다.
+ * 락 없이 원자 변수만 쓴다.
+ *
+ * peak EWMA: 응답 시간이 지금 값보다 크면 바로 그 값으로 올리고(peak), 작으면 지난 갱신 이후 흐른 시간만큼 감쇠시켜 섞는다.
+ * 느려진 타겟은 바로 피하고, 좋아진 건 천천히 믿는다. 안 쓰는 동안에는 읽을 때 0 쪽으로 감쇠시켜서 다시 시도해볼 수 있게 한다.
+ */
+public class TargetStats {
+
+    // EWMA 감쇠 시간. 이 시간이 지나면 예전 값의 영향이 1/e로 준다
+    private static final double DECAY_NANOS = 10_000_000_000.0;
+    // 응답을 못 받고 실패하면 최소 이만큼 걸린 걸로 친다. 바로 실패하는 타겟이 빨라 보여서 몰리는 걸 막는다
+    private static final long FAILURE_PENALTY_NANOS = 1_000_000_000L;
+    // 아직 잰 값이 없는데 요청이 걸려 있으면 이 비용 + 걸린 요청 수
+    private static final double UNMEASURED_PENALTY = Long.MAX_VALUE >> 16;
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicLong ewmaNanos = new AtomicLong();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile long lastObservedAt = System.nanoTime();
+
+    public void onStart() {
+        outstanding.incrementAndGet();
+        requests.increment();
+    }
+
+    /**
+     * 요청 하나가 끝났다.
+     * @param failed 업스트림 때문에 응답을 다 못 받았으면 true. 클라가 끊은 건 false로 넘긴다
+     */
+    public void onComplete(long latencyNanos, boolean failed) {
+        outstanding.decrementAndGet();
+        if (failed) {
+            failures.increment();
+            observe(Math.max(latencyNanos, FAILURE_PENALTY_NANOS));
+        } else {
+            observe(latencyNanos);
+        }
+    }
+
+    private void observe(long rttNanos) {
+        long now = System.nanoTime();
+        long elapsed = Math.max(0, now - lastObservedAt);
+        lastObservedAt = now;
+        double weight = Math.exp(-elapsed / DECAY_NANOS);
+        while (true) {
+            long previous = ewmaNanos.get();
+            long next = rttNanos > previous ? rttNanos : (long) (previous * weight + rttNanos * (1 - weight));
+            if (ewmaNanos.compareAndSet(previous, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * peak EWMA 비용. 응답 시간 x (걸린 요청 + 1). 가중치는 TargetGroup이 나눈다.
+     */
+    double getPeakEwmaCost(long now) {
+        int pending = outstanding.get();
+        long ewma = ewmaNanos.get();
+        if (ewma == 0) {
+            return pending == 0 ? 0 : UNMEASURED_PENALTY + pending;
+        }
+        return getDecayedEwma(ewma, now) * (pending + 1);
+    }
+
+    private double getDecayedEwma(long ewma, long now) {
+        long idle = Math.max(0, now - lastObservedAt);
+        return ewma * Math.exp(-idle / DECAY_NANOS);
+    }
+
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    public long getEwmaNanos() {
+        return (long) getDecayedEwma(ewmaNanos.get(), System.nanoTime());
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+}
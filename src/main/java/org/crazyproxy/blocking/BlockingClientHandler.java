@@ -0,0 +1,590 @@
+package org.crazyproxy.blocking;
+
+import lombok.extern.slf4j.Slf4j;
+import org.crazyproxy.balance.TargetGroup;
+import org.crazyproxy.buffer.BufferPool;
+import org.crazyproxy.buffer.PooledBuffer;
+import org.crazyproxy.config.ClientWorkConfig;
+import org.crazyproxy.config.SSLConfig;
+import org.crazyproxy.config.SocketInfo;
+import org.crazyproxy.health.OutlierDetection;
+import org.crazyproxy.http.HttpHeaderRewriter;
+import org.crazyproxy.http.HttpRequestParser;
+import org.crazyproxy.http.HttpResponseFramer;
+import org.crazyproxy.http.HttpResponses;
+import org.crazyproxy.limit.ConcurrencyLimits;
+import org.crazyproxy.metrics.ProxyMetrics;
+import org.crazyproxy.metrics.TargetMetrics;
+import org.crazyproxy.pool.PooledConnection;
+import org.crazyproxy.pool.UpstreamConnectionPool;
+import org.crazyproxy.timeout.PortTimeouts;
+import org.crazyproxy.timeout.TimeoutPolicy;
+import org.crazyproxy.util.SocketUtil;
+
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 블로킹 실행 방식(platform / virtual)에서 클라 커넥션 하나를 처음부터 끝까지 처리한다.
+ * 리액터 방식의 ClientHandler + ClientWorker가 하는 일을 스레드 하나에서 순서대로 한다.
+ * 파서, 헤더 변조, 응답 프레이밍, 업스트림 풀, 버퍼 풀은 리액터 방식과 같은 걸 쓴다.
+ * 버퍼는 스레드가 아니라 BufferPool에서 빌리므로 어떤 스레드에서 돌아도 상관없다.
+ *
+ * 클라 keep-alive: 응답이 끝나면 같은 커넥션에서 다음 요청을 읽는다. 요청을 하나씩 차례로 처리하므로 pipelining 응답 순서는 그대로다.
+ * 다음 요청을 기다리는 동안에는 큰 버퍼를 돌려주고 작은 버퍼로 기다린다.
+ *
+ * 타임아웃은 리액터 모드와 같은 설정(TimeoutPolicy의 포트별 PortTimeouts)을 쓴다.
+ * 블로킹 SocketChannel의 read는 SO_TIMEOUT을 안 보므로, 만기 시각만 적어 두고 BlockingConnectionGroup의 감시 스레드가 checkTimeouts로 본다.
+ * 만기가 되면 막혀 있는 채널을 닫아서 이 스레드를 깨운다.
+ * header: 408을 쓰고 클라를 닫는다. idle: 클라를 닫는다.
+ * connect: BlockingConnectRace가 직접 건다. handshake, request: 업스트림을 닫고, 아직 응답을 안 보냈으면 504를 쓰고 닫는다. 보내는 중이었으면 그냥 닫는다.
+ * 타겟 동시 요청 한도(ConcurrencyLimits)가 찼거나 포트의 타겟 회로가 전부 열려 있으면 업스트림에 보내지 않고 503 + Retry-After로 돌려보낸다.
+ */
+@Slf4j
+class BlockingClientHandler implements Runnable {
+
+    private static final int IDLE_BUFFER_SIZE = 4 * 1024;
+
+    private final SocketChannel clientChannel;
+    private final ClientWorkConfig clientWorkConfig = ClientWorkConfig.getInstance();
+    private final UpstreamConnectionPool connectionPool = UpstreamConnectionPool.getInstance();
+    private final BufferPool bufferPool = BufferPool.getInstance();
+    private final ConcurrencyLimits concurrencyLimits = ConcurrencyLimits.getInstance();
+    private final HttpRequestParser parser = new HttpRequestParser(clientWorkConfig.getMaxHeaderSize());
+    private final HttpResponseFramer responseFramer = new HttpResponseFramer();
+    private final ByteBuffer[] writeSources = new ByteBuffer[1];
+
+    // 요청마다 RoutingTable에서 다시 찾는다. 매핑을 다시 읽으면 다음 요청부터 새 타겟으로 간다
+    private TargetGroup targetGroup;
+    private int localPort;
+    // 이번 요청을 보내는 타겟. 요청마다 targetGroup에서 고른다
+    private SocketInfo socketInfo;
+    private TargetMetrics targetMetrics;
+    private PooledBuffer input;
+    private ByteBuffer buffer;
+    private int readIndex;
+    private boolean upstreamClosed;
+    // 이번 요청 중에 클라 쪽이 끊겼다. 타겟 탓이 아니므로 밸런서에 실패로 알리지 않는다
+    private boolean clientFailed;
+    // 지표용
+    private long startedAt;
+    // 응답 첫 바이트를 받은 시각. 0이면 아직
+    private long firstByteAt;
+    private PortTimeouts timeouts;
+
+    // 아래 만기 상태는 감시 스레드와 같이 본다. 바꾸고 볼 때는 this로 동기화한다
+    // header, idle, handshake 중 지금 걸린 것. 만기 시각은 nanoTime 기준, 0이면 없음
+    private TimeoutPolicy.Kind phase;
+    private long phaseDeadline;
+    private long requestDeadline;
+    // 지금 요청을 보내고 있는 업스트림 채널. 만기가 되면 감시 스레드가 닫는다
+    private SocketChannel activeUpstream;
+    // 응답 바이트를 클라에게 쓰기 시작했다. 그 뒤에 만기가 되면 504 없이 닫는다
+    private boolean responseStarted;
+    // 만기가 된 타임아웃. 이번 요청이 끝날 때까지 남겨 둔다
+    private TimeoutPolicy.Kind expired;
+
+    BlockingClientHandler(SocketChannel clientChannel) {
+        this.clientChannel = clientChannel;
+    }
+
+    @Override
+    public void run() {
+        try {
+            localPort = ((InetSocketAddress) clientChannel.getLocalAddress()).getPort();
+            String clientPort = String.valueOf(localPort);
+            targetGroup = findTargetGroup(clientPort);
+            targetMetrics = ProxyMetrics.getInstance().forPort(clientPort);
+            targetMetrics.connectionOpened();
+            timeouts = TimeoutPolicy.getInstance().forPort(clientPort);
+            // 새 커넥션은 accept부터 헤더 타임아웃을 잰다
+            startPhase(TimeoutPolicy.Kind.HEADER, timeouts.getHeader());
+            input = bufferPool.acquire(clientWorkConfig.getBufferSize());
+            buffer = input.getBuffer();
+
+            while (readRequestHeader() && exchange() && awaitNextRequest()) {
+                parser.reset();
+            }
+        } catch (ClosedChannelException e) {
+            log.debug("client channel closed. target = {}", targetGroup);
+        } catch (IOException | RuntimeException e) {
+            log.error("exchange fail!! socket close. target = {}", socketInfo == null ? targetGroup : socketInfo, e);
+        } finally {
+            bufferPool.release(input);
+            SocketUtil.getInstance().socketClose(clientChannel);
+            if (targetMetrics != null) {
+                targetMetrics.connectionClosed();
+            }
+        }
+    }
+
+    /**
+     * 감시 스레드(BlockingConnectionGroup)에서 부른다. 만기가 된 타임아웃이 있으면 막혀 있는 채널을 닫아서 처리 스레드를 깨운다.
+     * @param now System.nanoTime()
+     */
+    synchronized void checkTimeouts(long now) {
+        if (phaseDeadline != 0 && now - phaseDeadline >= 0) {
+            TimeoutPolicy.Kind kind = phase;
+            phaseDeadline = 0;
+            expire(kind);
+            switch (kind) {
+                case HEADER:
+                    log.debug("client header timeout. close channel. port = {}", localPort);
+                    try {
+                        clientChannel.write(ByteBuffer.wrap(HttpResponses.REQUEST_TIMEOUT));
+                    } catch (IOException e) {
+                        log.debug("408 write fail. port = {}", localPort, e);
+                    }
+                    SocketUtil.getInstance().socketClose(clientChannel);
+                    break;
+                case IDLE:
+                    log.debug("idle client connection timeout. close channel. port = {}", localPort);
+                    SocketUtil.getInstance().socketClose(clientChannel);
+                    break;
+                default:
+                    abortExchange();
+                    break;
+            }
+            return;
+        }
+        if (requestDeadline != 0 && now - requestDeadline >= 0) {
+            requestDeadline = 0;
+            expire(TimeoutPolicy.Kind.REQUEST);
+            abortExchange();
+        }
+    }
+
+    private void expire(TimeoutPolicy.Kind kind) {
+        expired = kind;
+        TimeoutPolicy.getInstance().recordExpired(kind);
+    }
+
+    /**
+     * 업스트림을 닫는다. 응답을 보내기 전이면 클라 읽기만 닫아서 요청 바디를 기다리던 스레드도 깨운다. 504는 처리 스레드가 쓴다.
+     */
+    private void abortExchange() {
+        log.debug("upstream {} timeout. target = {}", expired, socketInfo);
+        if (activeUpstream != null) {
+            SocketUtil.getInstance().socketClose(activeUpstream);
+        }
+        if (responseStarted) {
+            SocketUtil.getInstance().socketClose(clientChannel);
+            return;
+        }
+        try {
+            clientChannel.shutdownInput();
+        } catch (IOException e) {
+            log.debug("client shutdownInput fail. port = {}", localPort, e);
+        }
+    }
+
+    /**
+     * header, idle, handshake 중 하나를 건다. 앞에 걸린 건 풀린다.
+     * @param millis 0이면 안 건다
+     */
+    private synchronized void startPhase(TimeoutPolicy.Kind kind, long millis) {
+        phase = kind;
+        phaseDeadline = millis > 0 ? deadlineOf(millis) : 0;
+    }
+
+    /**
+     * @return 걸려 있던 타임아웃이 만기가 안 됐으면 true
+     */
+    private synchronized boolean endPhase() {
+        phaseDeadline = 0;
+        return expired == null;
+    }
+
+    /**
+     * 새로 연결했거나 풀에서 꺼낸 업스트림을 만기 때 닫을 수 있게 알려 둔다.
+     * @throws SocketTimeoutException 연결하는 사이에 요청 타임아웃이 지났다
+     */
+    private synchronized void attachUpstream(SocketChannel channel) throws SocketTimeoutException {
+        activeUpstream = channel;
+        if (expired != null) {
+            throw new SocketTimeoutException("request timed out");
+        }
+    }
+
+    private synchronized void markResponseStarted() {
+        responseStarted = true;
+    }
+
+    private static long deadlineOf(long millis) {
+        long deadline = System.nanoTime() + millis * 1_000_000L;
+        // 0은 안 걸렸다는 뜻으로 쓴다
+        return deadline == 0 ? 1 : deadline;
+    }
+
+    private TargetGroup findTargetGroup(String clientPort) throws IOException {
+        TargetGroup group = clientWorkConfig.getRoutingTable().get(localPort);
+        if (group == null) {
+            throw new IOException("Invalid port " + clientPort);
+        }
+        return group;
+    }
+
+    /**
+     * 헤더가 다 올 때까지 읽는다.
+     * @return 요청을 보낼 수 있으면 true. 클라가 끊었거나 잘못된 요청이면 false
+     */
+    private boolean readRequestHeader() throws IOException {
+        while (true) {
+            HttpRequestParser.Result result = parser.parseHeaders(buffer, readIndex, buffer.position());
+            switch (result) {
+                case HEADERS_DONE:
+                    // 마지막 바이트와 같이 만기가 됐으면 408이 이미 나갔다
+                    return endPhase();
+                case HEADER_TOO_LARGE:
+                    clientChannel.write(ByteBuffer.wrap(HttpResponses.HEADER_TOO_LARGE));
+                    return false;
+                case BAD_REQUEST:
+                    clientChannel.write(ByteBuffer.wrap(HttpResponses.BAD_REQUEST));
+                    return false;
+                default:
+                    break;
+            }
+            if (!buffer.hasRemaining()) {
+                compact();
+            }
+            if (readClient(buffer) < 0) {
+                return false;
+            }
+        }
+    }
+
+    private int readClient(ByteBuffer dst) throws IOException {
+        int readBytes;
+        try {
+            readBytes = clientChannel.read(dst);
+        } catch (IOException e) {
+            clientFailed = true;
+            throw e;
+        }
+        if (readBytes > 0) {
+            targetMetrics.addBytesIn(readBytes);
+        }
+        return readBytes;
+    }
+
+    /**
+     * 요청 하나를 업스트림에 보내고 응답을 클라에게 흘려보낸다.
+     * @return 클라 커넥션으로 다음 요청을 받을 수 있으면 true
+     */
+    private boolean exchange() throws IOException {
+        targetGroup = clientWorkConfig.getRoutingTable().get(localPort);
+        if (targetGroup == null) {
+            // keep-alive로 기다리는 사이 매핑에서 빠진 포트
+            log.debug("port removed from mapping. close channel. port = {}", localPort);
+            clientChannel.write(ByteBuffer.wrap(HttpResponses.SERVICE_UNAVAILABLE));
+            return false;
+        }
+        boolean keepAlive = connectionPool.isEnabled();
+        socketInfo = targetGroup.pick();
+        if (socketInfo == null) {
+            log.debug("no healthy target. reject. port = {}", localPort);
+            OutlierDetection.getInstance().recordRejected();
+            clientChannel.write(ByteBuffer.wrap(HttpResponses.NO_HEALTHY_TARGET));
+            return false;
+        }
+        if (!concurrencyLimits.tryAcquire(socketInfo)) {
+            log.debug("target concurrency limit reached. reject. target = {}", socketInfo);
+            clientChannel.write(ByteBuffer.wrap(HttpResponses.OVERLOADED));
+            return false;
+        }
+        PooledBuffer requestHead;
+        try {
+            requestHead = HttpHeaderRewriter.rewrite(parser, buffer, readIndex, socketInfo, keepAlive);
+        } catch (RuntimeException e) {
+            // 아래 finally까지 못 갔다. 잡은 자리는 여기서 돌려준다
+            concurrencyLimits.release(socketInfo, 0, false, true);
+            throw e;
+        }
+        readIndex += parser.getHeaderLength();
+        responseFramer.reset(parser.isHeadRequest());
+        upstreamClosed = false;
+        clientFailed = false;
+        firstByteAt = 0;
+        startedAt = System.nanoTime();
+        socketInfo.getStats().onStart();
+        long probe = socketInfo.getHealth().startRequest();
+        startRequestTimeout();
+
+        PooledConnection upstream = null;
+        BlockingTlsSession tls = null;
+        PooledBuffer responseBuffer = null;
+        boolean keepUpstream = false;
+        try {
+            upstream = connectionPool.checkout(socketInfo);
+            boolean reused = upstream != null;
+            if (!reused) {
+                upstream = connect();
+            }
+            attachUpstream(upstream.getChannel());
+            tls = openTls(upstream, reused);
+
+            writeRequest(upstream, tls, requestHead.getBuffer());
+
+            int responseSize = Math.max(clientWorkConfig.getBufferSize(), 64 * 1024);
+            responseBuffer = bufferPool.acquire(responseSize);
+            long responseBytes = relayResponse(upstream, tls, responseBuffer.getBuffer());
+
+            if (responseBytes == 0 && reused && !parser.hasBody() && parser.isIdempotent() && !responseFramer.isComplete()) {
+                // 풀에서 꺼낸 커넥션을 서버가 그 사이에 끊은 경우. 새 커넥션으로 한 번만 다시 보낸다.
+                // 서버가 처리하고 끊었을 수도 있으니 두 번 보내도 되는 메서드만.
+                log.debug("Pooled connection closed by server. retry with new connection");
+                connectionPool.discard(upstream);
+                upstream = null;
+                if (tls != null) {
+                    tls.release();
+                    tls = null;
+                }
+                upstream = connect();
+                attachUpstream(upstream.getChannel());
+                tls = openTls(upstream, false);
+                requestHead.getBuffer().rewind();
+                upstreamClosed = false;
+                writeRequest(upstream, tls, requestHead.getBuffer());
+                responseBytes = relayResponse(upstream, tls, responseBuffer.getBuffer());
+            }
+            if (responseBytes == 0) {
+                // 응답 없이 끊겼다. 클라가 빈 응답을 받지 않게 502
+                log.debug("upstream closed without response. target = {}", socketInfo);
+                writeClient(ByteBuffer.wrap(HttpResponses.BAD_GATEWAY));
+            }
+
+            // close-delimited 응답은 서버가 끊어서 끝난 거라 재사용할 수 없다.
+            keepUpstream = !upstreamClosed && responseFramer.isComplete() && responseFramer.isKeepAlive();
+        } catch (IOException e) {
+            TimeoutPolicy.Kind kind = endRequestTimeout();
+            if (kind == null) {
+                throw e;
+            }
+            // 타겟이 늦은 것이다. 감시 스레드가 클라 읽기를 닫아서 생긴 클라 실패는 지운다
+            clientFailed = false;
+            if (!responseStarted) {
+                try {
+                    clientChannel.write(ByteBuffer.wrap(HttpResponses.GATEWAY_TIMEOUT));
+                } catch (IOException writeError) {
+                    log.debug("504 write fail. target = {}", socketInfo, writeError);
+                }
+            }
+            return false;
+        } finally {
+            endRequestTimeout();
+            if (tls != null) {
+                tls.release();
+            }
+            if (upstream != null) {
+                if (keepUpstream) {
+                    connectionPool.release(upstream);
+                } else {
+                    connectionPool.discard(upstream);
+                }
+            }
+            bufferPool.release(responseBuffer);
+            bufferPool.release(requestHead);
+            long elapsed = System.nanoTime() - startedAt;
+            targetMetrics.recordRequest(elapsed, responseFramer.isComplete());
+            socketInfo.getStats().onComplete(elapsed, !responseFramer.isComplete() && !clientFailed);
+            concurrencyLimits.release(socketInfo, firstByteAt == 0 ? elapsed : firstByteAt - startedAt,
+                    !responseFramer.isComplete(), clientFailed);
+            if (!clientFailed) {
+                socketInfo.getHealth().onResult(!responseFramer.isComplete() || responseFramer.getStatusCode() >= 500, probe);
+            }
+        }
+        return keepUpstream && parser.isPersistent() && clientWorkConfig.isClientKeepAlive();
+    }
+
+    /**
+     * 다음 요청을 기다린다. 버퍼에 이미 와 있으면(pipelining) 바로 돌아간다.
+     * 아니면 큰 버퍼는 풀에 돌려주고 작은 버퍼로 첫 바이트를 기다린다(idle 타임아웃). 놀고 있는 커넥션이 버퍼를 붙잡고 있지 않게.
+     * @return 다음 요청 바이트가 있으면 true. 클라가 끊었으면 false
+     */
+    private boolean awaitNextRequest() throws IOException {
+        if (!clientWorkConfig.getRoutingTable().contains(localPort)) {
+            // 매핑에서 빠진 포트. 하던 응답까지만 마치고 닫는다.
+            return false;
+        }
+        if (readIndex < buffer.position()) {
+            startPhase(TimeoutPolicy.Kind.HEADER, timeouts.getHeader());
+            return true;
+        }
+
+        bufferPool.release(input);
+        input = null;
+        buffer = null;
+        readIndex = 0;
+        PooledBuffer idle = bufferPool.acquire(Math.min(IDLE_BUFFER_SIZE, clientWorkConfig.getBufferSize()));
+        startPhase(TimeoutPolicy.Kind.IDLE, timeouts.getIdle());
+        try {
+            if (readClient(idle.getBuffer()) < 0) {
+                return false;
+            }
+            // keep-alive면 다음 요청 첫 바이트부터 헤더 타임아웃을 잰다
+            startPhase(TimeoutPolicy.Kind.HEADER, timeouts.getHeader());
+            input = bufferPool.acquire(clientWorkConfig.getBufferSize());
+            buffer = input.getBuffer();
+            buffer.put(idle.getBuffer().flip());
+            return true;
+        } finally {
+            bufferPool.release(idle);
+        }
+    }
+
+    private synchronized void startRequestTimeout() {
+        expired = null;
+        responseStarted = false;
+        requestDeadline = timeouts.getRequest() > 0 ? deadlineOf(timeouts.getRequest()) : 0;
+    }
+
+    /**
+     * 요청 타임아웃을 풀고 업스트림을 놓는다.
+     * @return 이번 요청 중에 만기가 된 타임아웃. 없으면 null
+     */
+    private synchronized TimeoutPolicy.Kind endRequestTimeout() {
+        requestDeadline = 0;
+        phaseDeadline = 0;
+        activeUpstream = null;
+        return expired;
+    }
+
+    private synchronized void onConnectTimeout() {
+        expire(TimeoutPolicy.Kind.CONNECT);
+    }
+
+    private PooledConnection connect() throws IOException {
+        long connectStartedAt = System.nanoTime();
+        SocketChannel targetChannel;
+        try {
+            targetChannel = BlockingConnectRace.connect(socketInfo.getAddresses(), clientWorkConfig.getConnectRaceDelay(),
+                    timeouts.getConnect());
+        } catch (SocketTimeoutException e) {
+            log.debug("upstream connect timeout. target = {}", socketInfo);
+            onConnectTimeout();
+            throw e;
+        }
+        targetMetrics.getConnectTime().record(System.nanoTime() - connectStartedAt);
+        SSLEngine sslEngine = socketInfo.isHttps() ? SSLConfig.getInstance().createClientEngine(socketInfo) : null;
+        return new PooledConnection(socketInfo, targetChannel, sslEngine);
+    }
+
+    private BlockingTlsSession openTls(PooledConnection upstream, boolean reused) throws IOException {
+        if (upstream.getSslEngine() == null) {
+            return null;
+        }
+        BlockingTlsSession tls = new BlockingTlsSession(upstream.getSslEngine(), upstream.getChannel());
+        if (!reused) {
+            startPhase(TimeoutPolicy.Kind.HANDSHAKE, timeouts.getHandshake());
+            try {
+                long handshakeStartedAt = System.nanoTime();
+                tls.handshake();
+                targetMetrics.getTlsHandshakeTime().record(System.nanoTime() - handshakeStartedAt);
+            } catch (IOException | RuntimeException e) {
+                tls.release();
+                throw e;
+            } finally {
+                endPhase();
+            }
+        }
+        return tls;
+    }
+
+    /**
+     * 변조된 헤더를 보내고, 바디가 있으면 클라에서 읽는 대로 프레이밍 경계까지 흘려보낸다.
+     */
+    private void writeRequest(PooledConnection upstream, BlockingTlsSession tls, ByteBuffer requestHead) throws IOException {
+        writeUpstream(upstream, tls, requestHead);
+        if (!parser.hasBody()) {
+            return;
+        }
+
+        while (true) {
+            int bodyBytes = parser.frameBody(buffer, readIndex, buffer.position());
+            if (bodyBytes > 0) {
+                ByteBuffer chunk = buffer.duplicate().limit(readIndex + bodyBytes).position(readIndex);
+                readIndex += bodyBytes;
+                writeUpstream(upstream, tls, chunk);
+            }
+            if (parser.isMessageComplete()) {
+                return;
+            }
+            compact();
+            if (readClient(buffer) < 0) {
+                clientFailed = true;
+                throw new IOException("client closed during request body");
+            }
+        }
+    }
+
+    private void writeUpstream(PooledConnection upstream, BlockingTlsSession tls, ByteBuffer source) throws IOException {
+        if (tls != null) {
+            writeSources[0] = source;
+            tls.write(writeSources);
+            return;
+        }
+        SocketChannel targetChannel = upstream.getChannel();
+        while (source.hasRemaining()) {
+            targetChannel.write(source);
+        }
+    }
+
+    /**
+     * 응답이 끝날 때까지(프레이밍 기준, 또는 서버가 끊을 때까지) 읽어서 클라에게 흘려보낸다.
+     * @return 받은 응답 바이트 수
+     */
+    private long relayResponse(PooledConnection upstream, BlockingTlsSession tls, ByteBuffer responseBuffer) throws IOException {
+        long responseBytes = 0;
+        while (!responseFramer.isComplete()) {
+            responseBuffer.clear();
+            int readBytes = tls == null ? upstream.getChannel().read(responseBuffer) : tls.read(responseBuffer);
+            if (readBytes < 0) {
+                upstreamClosed = true;
+                if (responseBytes > 0) {
+                    responseFramer.onEndOfStream();
+                }
+                break;
+            }
+
+            if (firstByteAt == 0) {
+                firstByteAt = System.nanoTime();
+                targetMetrics.getTimeToFirstByte().record(firstByteAt - startedAt);
+            }
+            responseBuffer.flip();
+            responseBytes += responseBuffer.remaining();
+            targetMetrics.addBytesOut(responseBuffer.remaining());
+            responseFramer.feed(responseBuffer);
+            if (!responseStarted) {
+                markResponseStarted();
+            }
+            writeClient(responseBuffer);
+        }
+        return responseBytes;
+    }
+
+    private void writeClient(ByteBuffer source) throws IOException {
+        try {
+            while (source.hasRemaining()) {
+                clientChannel.write(source);
+            }
+        } catch (IOException e) {
+            clientFailed = true;
+            throw e;
+        }
+    }
+
+    private void compact() {
+        if (readIndex == 0) {
+            return;
+        }
+        buffer.flip();
+        buffer.position(readIndex);
+        buffer.compact();
+        readIndex = 0;
+    }
+}
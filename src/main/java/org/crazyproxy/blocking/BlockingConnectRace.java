@@ -0,0 +1,122 @@
+package org.crazyproxy.blocking;
+
+import lombok.extern.slf4j.Slf4j;
+import org.crazyproxy.util.SocketUtil;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * blocking 모드의 업스트림 연결 경주(Happy Eyeballs, RFC 8305). reactor 모드의 ConnectRace와 규칙은 같다.
+ * 첫 주소로 연결을 걸고 raceDelay 안에 안 붙으면 다음 주소로도 같이 건다. 실패한 주소가 있으면 바로 다음 주소로 간다.
+ * 주소가 하나면 그냥 blocking connect다. 여러 개일 때만 임시 셀렉터로 기다리고, 이긴 채널을 blocking으로 돌려서 넘긴다.
+ * connectTimeout이 있으면 경주 전체를 그 안에 끝내고, 넘기면 SocketTimeoutException을 던진다.
+ */
+@Slf4j
+final class BlockingConnectRace {
+
+    private BlockingConnectRace() {
+    }
+
+    /**
+     * @param connectTimeout 경주 전체를 기다리는 시간(ms). 0이면 안 건다
+     */
+    static SocketChannel connect(InetSocketAddress[] addresses, long raceDelay, long connectTimeout) throws IOException {
+        if (addresses.length == 1) {
+            SocketChannel channel = SocketChannel.open();
+            try {
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().connect(addresses[0], (int) Math.min(Integer.MAX_VALUE, connectTimeout));
+                return channel;
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        List<SocketChannel> attempts = new ArrayList<>(2);
+        SocketChannel winner = null;
+        IOException lastError = null;
+        long deadline = System.nanoTime() + connectTimeout * 1_000_000L;
+        try (Selector selector = Selector.open()) {
+            int next = 0;
+            long nextAttemptAt = 0;
+            while (winner == null) {
+                long now = System.nanoTime();
+                if (next < addresses.length && (attempts.isEmpty() || now - nextAttemptAt >= 0)) {
+                    InetSocketAddress address = addresses[next++];
+                    try {
+                        SocketChannel channel = SocketChannel.open();
+                        attempts.add(channel);
+                        channel.configureBlocking(false);
+                        channel.socket().setTcpNoDelay(true);
+                        if (channel.connect(address)) {
+                            winner = channel;
+                            break;
+                        }
+                        channel.register(selector, SelectionKey.OP_CONNECT, address);
+                        nextAttemptAt = System.nanoTime() + raceDelay * 1_000_000L;
+                    } catch (IOException e) {
+                        log.debug("connect attempt failed. address = {}, {}", address, e.getMessage());
+                        lastError = e;
+                        SocketUtil.getInstance().socketClose(attempts.remove(attempts.size() - 1));
+                    }
+                    continue;
+                }
+                if (attempts.isEmpty()) {
+                    throw lastError != null ? lastError : new ConnectException("no address to connect");
+                }
+
+                long waitMillis = next < addresses.length ? Math.max(1, (nextAttemptAt - now) / 1_000_000L) : 0;
+                if (connectTimeout > 0) {
+                    if (now - deadline >= 0) {
+                        throw new SocketTimeoutException("connect timed out");
+                    }
+                    long untilDeadline = Math.max(1, (deadline - now) / 1_000_000L);
+                    waitMillis = waitMillis == 0 ? untilDeadline : Math.min(waitMillis, untilDeadline);
+                }
+                selector.select(waitMillis);
+                for (SelectionKey key : selector.selectedKeys()) {
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    try {
+                        if (channel.finishConnect()) {
+                            winner = channel;
+                            break;
+                        }
+                    } catch (IOException e) {
+                        log.debug("connect attempt failed. address = {}, {}", key.attachment(), e.getMessage());
+                        lastError = e;
+                        key.cancel();
+                        attempts.remove(channel);
+                        SocketUtil.getInstance().socketClose(channel);
+                        // 실패했으면 기다리지 않고 다음 주소로
+                        nextAttemptAt = System.nanoTime();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } finally {
+            for (SocketChannel attempt : attempts) {
+                if (attempt != winner) {
+                    SocketUtil.getInstance().socketClose(attempt);
+                }
+            }
+        }
+
+        // 셀렉터를 닫아서 등록이 풀린 뒤에야 blocking으로 돌릴 수 있다.
+        try {
+            winner.configureBlocking(true);
+        } catch (IOException e) {
+            winner.close();
+            throw e;
+        }
+        return winner;
+    }
+}
@@ -0,0 +1,143 @@
+package org.crazyproxy.blocking;
+
+import lombok.extern.slf4j.Slf4j;
+import org.crazyproxy.http.HttpResponses;
+import org.crazyproxy.metrics.ProxyMetrics;
+import org.crazyproxy.nio.ConnectionDispatcher;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 커넥션 하나를 스레드 하나가 블로킹으로 처리하는 실행 방식.
+ * platform: workerCount 크기 고정 스레드 풀. 동시 커넥션이 스레드 수를 넘으면 workerQueueSize 만큼 줄을 선다.
+ * 줄도 꽉 차면 기다려 봐야 응답이 늦을 뿐이라 503 + Retry-After를 쓰고 바로 닫는다.
+ * virtual: 커넥션마다 가상 스레드(Java 21+). 블로킹 I/O에서 캐리어 스레드를 놓아주므로 스레드 수 튜닝이 필요 없다.
+ *
+ * 빌드는 Java 17 기준이라 가상 스레드 API는 리플렉션으로 부른다.
+ * 타임아웃(TimeoutPolicy의 header, idle, handshake, request)은 timeout-watcher 스레드가 TIMEOUT_CHECK_INTERVAL마다 커넥션들을 훑어서 본다.
+ * 만기가 된 커넥션은 막혀 있는 채널을 닫아서 처리 스레드를 깨운다 (BlockingClientHandler.checkTimeouts). connect는 BlockingConnectRace가 직접 건다.
+ */
+@Slf4j
+public class BlockingConnectionGroup implements ConnectionDispatcher {
+
+    // 만기를 보는 간격(ms). 타임아웃은 이만큼 늦게 걸릴 수 있다
+    private static final long TIMEOUT_CHECK_INTERVAL = 100;
+
+    private final String mode;
+    private final ExecutorService executor;
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final Set<BlockingClientHandler> handlers = ConcurrentHashMap.newKeySet();
+    private final LongAdder queueRejections = new LongAdder();
+
+    private BlockingConnectionGroup(String mode, ExecutorService executor) {
+        this.mode = mode;
+        this.executor = executor;
+    }
+
+    /**
+     * @param queueSize 스레드를 기다리는 커넥션 수 상한
+     */
+    public static BlockingConnectionGroup platform(int threads, int queueSize) {
+        AtomicInteger threadIndex = new AtomicInteger();
+        ThreadFactory threadFactory = r -> {
+            Thread thread = new Thread(r, "conn-" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), threadFactory);
+        return new BlockingConnectionGroup(PLATFORM, executor);
+    }
+
+    public static BlockingConnectionGroup virtual() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "vconn-", 0L);
+            ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return new BlockingConnectionGroup(VIRTUAL, (ExecutorService) newThreadPerTaskExecutor.invoke(null, threadFactory));
+        } catch (NoSuchMethodException | ClassNotFoundException e) {
+            throw new IllegalStateException("executionMode=virtual requires Java 21 or later. running on " + Runtime.version(), e);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("failed to create virtual thread executor", e);
+        }
+    }
+
+    @Override
+    public void start() {
+        log.info("Blocking connection group. mode = {}", mode);
+        ProxyMetrics metrics = ProxyMetrics.getInstance();
+        metrics.registerGauge("crazyproxy_blocking_connections", "Connections being handled or waiting for a thread", activeConnections::get);
+        if (executor instanceof ThreadPoolExecutor threadPool) {
+            metrics.registerGauge("crazyproxy_connection_queue_depth", "Connections waiting for a platform thread", () -> threadPool.getQueue().size());
+            metrics.registerCounter("crazyproxy_connection_queue_rejections_total", "Connections rejected with 503 because the platform thread queue was full", queueRejections::sum);
+        }
+        ScheduledExecutorService watcher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "timeout-watcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watcher.scheduleWithFixedDelay(this::checkTimeouts, TIMEOUT_CHECK_INTERVAL, TIMEOUT_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void dispatch(SocketChannel channel) throws IOException {
+        channel.configureBlocking(true);
+        activeConnections.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                BlockingClientHandler handler = new BlockingClientHandler(channel);
+                handlers.add(handler);
+                try {
+                    handler.run();
+                } finally {
+                    handlers.remove(handler);
+                    activeConnections.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            activeConnections.decrementAndGet();
+            queueRejections.increment();
+            log.debug("connection queue full. reject. remote = {}", channel.getRemoteAddress());
+            try {
+                channel.write(ByteBuffer.wrap(HttpResponses.OVERLOADED));
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private void checkTimeouts() {
+        long now = System.nanoTime();
+        for (BlockingClientHandler handler : handlers) {
+            try {
+                handler.checkTimeouts(now);
+            } catch (RuntimeException e) {
+                log.error("timeout check error", e);
+            }
+        }
+    }
+
+    /**
+     * 처리 중이거나 스레드를 기다리는 커넥션 수
+     */
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+}
@@ -0,0 +1,153 @@
+package org.crazyproxy.blocking;
+
+import lombok.extern.slf4j.Slf4j;
+import org.crazyproxy.buffer.BufferPool;
+import org.crazyproxy.buffer.PooledBuffer;
+import org.crazyproxy.ssl.TlsHandshaker;
+import org.crazyproxy.util.SSLHandshakeUtil;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLHandshakeException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 블로킹 채널 위의 SSLEngine. 블로킹 모드 전용이라 read/write는 끝날 때까지 스레드를 붙잡는다.
+ * 핸드셰이크는 TlsHandshaker를 그대로 쓰고, delegated task는 지금 스레드에서 바로 돌린다.
+ * 넷 버퍼는 BufferPool에서 빌리고 release()에서 반납한다.
+ */
+@Slf4j
+class BlockingTlsSession {
+
+    private final SSLEngine sslEngine;
+    private final SocketChannel channel;
+    private PooledBuffer myNetData;
+    // 쓰기 모드. 덜 온 레코드 조각이 남아있을 수 있다.
+    private PooledBuffer peerNetData;
+
+    BlockingTlsSession(SSLEngine sslEngine, SocketChannel channel) {
+        this.sslEngine = sslEngine;
+        this.channel = channel;
+        int packetSize = sslEngine.getSession().getPacketBufferSize();
+        this.myNetData = BufferPool.getInstance().acquire(packetSize);
+        this.peerNetData = BufferPool.getInstance().acquire(packetSize);
+    }
+
+    void handshake() throws IOException {
+        TlsHandshaker handshaker = new TlsHandshaker(sslEngine, channel, myNetData, peerNetData);
+        try {
+            handshaker.begin();
+            while (true) {
+                TlsHandshaker.Step step = handshaker.step();
+                if (step == TlsHandshaker.Step.DONE) {
+                    return;
+                }
+                if (step == TlsHandshaker.Step.FAILED) {
+                    throw new SSLHandshakeException("handshake failed");
+                }
+                if (step == TlsHandshaker.Step.TASK_PENDING) {
+                    Runnable task;
+                    while ((task = sslEngine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                }
+                // 블로킹 채널이라 NEED_READ/NEED_WRITE는 거의 안 나온다. 나와도 다시 돌면 된다.
+            }
+        } finally {
+            myNetData = handshaker.getMyNetData();
+            peerNetData = handshaker.getPeerNetData();
+            handshaker.close();
+        }
+    }
+
+    /**
+     * srcs를 전부 암호화해서 보낸다.
+     */
+    void write(ByteBuffer[] srcs) throws IOException {
+        while (hasRemaining(srcs)) {
+            ByteBuffer myNet = myNetData.getBuffer();
+            myNet.clear();
+            SSLEngineResult result = sslEngine.wrap(srcs, myNet);
+            switch (result.getStatus()) {
+                case OK:
+                    myNet.flip();
+                    while (myNet.hasRemaining()) {
+                        channel.write(myNet);
+                    }
+                    break;
+                case BUFFER_OVERFLOW:
+                    myNet.clear();
+                    myNetData = SSLHandshakeUtil.enlargePacketBuffer(myNetData, sslEngine);
+                    break;
+                case CLOSED:
+                    throw new SSLException("SSLEngine closed while writing request");
+                default:
+                    throw new IllegalStateException("Unexpected value: " + result.getStatus());
+            }
+        }
+    }
+
+    /**
+     * 평문을 dst에 채운다. 최소 1바이트가 풀릴 때까지 블로킹.
+     * @return 풀린 바이트 수. 서버가 끊었거나 close_notify를 보냈으면 -1
+     */
+    int read(ByteBuffer dst) throws IOException {
+        while (true) {
+            ByteBuffer peerNet = peerNetData.getBuffer();
+            if (peerNet.position() > 0) {
+                peerNet.flip();
+                SSLEngineResult result;
+                try {
+                    result = sslEngine.unwrap(peerNet, dst);
+                } finally {
+                    peerNet.compact();
+                }
+                switch (result.getStatus()) {
+                    case OK:
+                        if (result.bytesProduced() > 0) {
+                            return result.bytesProduced();
+                        }
+                        continue;
+                    case CLOSED:
+                        return -1;
+                    case BUFFER_OVERFLOW:
+                        if (dst.position() > 0) {
+                            return 0;
+                        }
+                        throw new SSLException("application buffer too small. capacity = " + dst.capacity());
+                    case BUFFER_UNDERFLOW:
+                        if (!peerNet.hasRemaining()) {
+                            peerNetData = SSLHandshakeUtil.enlargePacketBuffer(peerNetData, sslEngine);
+                        }
+                        break;
+                    default:
+                        throw new IllegalStateException("Unexpected value: " + result.getStatus());
+                }
+            }
+
+            if (channel.read(peerNetData.getBuffer()) < 0) {
+                return -1;
+            }
+        }
+    }
+
+    void release() {
+        BufferPool bufferPool = BufferPool.getInstance();
+        bufferPool.release(myNetData);
+        bufferPool.release(peerNetData);
+        myNetData = null;
+        peerNetData = null;
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
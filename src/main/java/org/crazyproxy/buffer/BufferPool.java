@@ -0,0 +1,286 @@
+package org.crazyproxy.buffer;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 프록시 I/O 버퍼 풀. 4KB ~ 1MB 2의 거듭제곱 크기 클래스별로 다이렉트 슬랩을 잡고 잘라서 빌려준다.
+ * 힙 버퍼로 채널 read/write를 하면 JDK가 매번 임시 다이렉트 버퍼로 복사하므로 I/O 버퍼는 전부 여기서 빌린다.
+ * 커넥션은 실제로 바이트를 옮기는 동안만 빌리고, idle 상태에서는 돌려준다.
+ *
+ * 슬랩은 필요할 때 만들고 maxPoolBytes 까지만 잡는다. 그 이상이나 1MB 넘는 요청은 풀 밖에서 만들어 주고 반납하면 GC에 맡긴다.
+ * leakTimeout 넘게 안 돌아온 버퍼는 누수로 보고 로그를 남긴다. leakDetection을 켜면 빌려간 위치까지 같이 찍는다.
+ */
+@Slf4j
+public class BufferPool {
+
+    private static final int MIN_CLASS_SHIFT = 12;  // 4KB
+    private static final int MAX_CLASS_SHIFT = 20;  // 1MB
+    private static final int SLAB_SIZE = 256 * 1024;
+
+    private static BufferPool instance;
+
+    private final SizeClass[] sizeClasses = new SizeClass[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+    // 누수 감시용. 슬랩 만들 때만 추가된다.
+    private final Queue<PooledBuffer> pooledBuffers = new ConcurrentLinkedQueue<>();
+    @Getter
+    private final long maxPoolBytes;
+    private final boolean leakDetection;
+    private final long leakTimeout;
+    private final ScheduledExecutorService leakDetector;
+
+    private final AtomicLong reservedBytes = new AtomicLong();
+    private final LongAdder inUseBytes = new LongAdder();
+    private final LongAdder inUseCount = new LongAdder();
+    private final LongAdder acquires = new LongAdder();
+    private final LongAdder unpooled = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+    private final LongAdder doubleReleases = new LongAdder();
+
+    private BufferPool(long maxPoolBytes, boolean leakDetection, long leakTimeout) {
+        this.maxPoolBytes = maxPoolBytes;
+        this.leakDetection = leakDetection;
+        this.leakTimeout = leakTimeout;
+        for (int i = 0; i < sizeClasses.length; i++) {
+            sizeClasses[i] = new SizeClass(1 << (MIN_CLASS_SHIFT + i));
+        }
+
+        leakDetector = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "buffer-leak-detector");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, Math.min(leakTimeout / 2, 30_000));
+        leakDetector.scheduleWithFixedDelay(this::detectLeaks, period, period, TimeUnit.MILLISECONDS);
+        log.info("Buffer pool. maxPoolBytes = {}, leakDetection = {}, leakTimeout = {}", maxPoolBytes, leakDetection, leakTimeout);
+    }
+
+    public static void initInstance(long maxPoolBytes, boolean leakDetection, long leakTimeout) {
+        if (instance != null) {
+            throw new IllegalStateException("BufferPool has already been initialized");
+        }
+        instance = new BufferPool(maxPoolBytes, leakDetection, leakTimeout);
+    }
+
+    public static BufferPool getInstance() {
+        if (instance == null) {
+            throw new IllegalStateException("BufferPool not initialized");
+        }
+        return instance;
+    }
+
+    /**
+     * minCapacity 이상인 버퍼를 빌린다. 비워진(clear) 상태로 준다.
+     */
+    public PooledBuffer acquire(int minCapacity) {
+        acquires.increment();
+        SizeClass sizeClass = sizeClassFor(minCapacity);
+        PooledBuffer pooled = sizeClass == null ? null : sizeClass.poll();
+        if (pooled == null) {
+            unpooled.increment();
+            pooled = new PooledBuffer(ByteBuffer.allocateDirect(minCapacity), null);
+        }
+
+        pooled.inUse.set(true);
+        pooled.acquiredAt = System.currentTimeMillis();
+        pooled.leakReported = false;
+        if (leakDetection) {
+            pooled.acquiredBy = new Throwable("buffer acquired here");
+        }
+        inUseBytes.add(pooled.capacity());
+        inUseCount.increment();
+        return pooled;
+    }
+
+    /**
+     * 빌린 버퍼를 돌려준다. null이면 아무것도 안 한다.
+     * 이미 반납된 버퍼면 풀에 넣지 않고 로그만 남긴다. 던지면 호출한 쪽의 나머지 정리가 멈춘다
+     */
+    public void release(PooledBuffer pooled) {
+        if (pooled == null) {
+            return;
+        }
+        if (!pooled.inUse.compareAndSet(true, false)) {
+            doubleReleases.increment();
+            IllegalStateException e = new IllegalStateException("double release");
+            Throwable acquiredBy = pooled.acquiredBy;
+            if (acquiredBy != null) {
+                // 그 사이 다른 쪽이 다시 빌렸다면 그쪽이 빌린 위치
+                e.addSuppressed(acquiredBy);
+            }
+            log.error("buffer released twice. capacity = {}", pooled.capacity(), e);
+            return;
+        }
+        pooled.acquiredBy = null;
+        inUseBytes.add(-pooled.capacity());
+        inUseCount.decrement();
+
+        if (pooled.sizeClass != null) {
+            pooled.getBuffer().clear();
+            pooled.sizeClass.offer(pooled);
+        }
+    }
+
+    /**
+     * 더 큰 버퍼로 바꾼다. 쓰기 모드 기준으로 [0, position) 을 옮겨 담고 기존 버퍼는 반납한다.
+     */
+    public PooledBuffer grow(PooledBuffer pooled, int minCapacity) {
+        PooledBuffer bigger = acquire(minCapacity);
+        ByteBuffer old = pooled.getBuffer();
+        old.flip();
+        bigger.getBuffer().put(old);
+        release(pooled);
+        return bigger;
+    }
+
+    private SizeClass sizeClassFor(int capacity) {
+        if (capacity > 1 << MAX_CLASS_SHIFT) {
+            return null;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1);
+        return sizeClasses[Math.max(shift, MIN_CLASS_SHIFT) - MIN_CLASS_SHIFT];
+    }
+
+    private void detectLeaks() {
+        long now = System.currentTimeMillis();
+        for (PooledBuffer pooled : pooledBuffers) {
+            if (pooled.inUse.get() && !pooled.leakReported && now - pooled.acquiredAt > leakTimeout) {
+                pooled.leakReported = true;
+                leaks.increment();
+                Throwable acquiredBy = pooled.acquiredBy;
+                if (acquiredBy != null) {
+                    log.warn("buffer leak suspected. capacity = {}, held {}ms", pooled.capacity(), now - pooled.acquiredAt, acquiredBy);
+                } else {
+                    log.warn("buffer leak suspected. capacity = {}, held {}ms (set bufferLeakDetection=true to see where)",
+                            pooled.capacity(), now - pooled.acquiredAt);
+                }
+            }
+        }
+        log.debug("{}", this);
+    }
+
+    /**
+     * 슬랩으로 잡아둔 다이렉트 메모리 총량
+     */
+    public long getReservedBytes() {
+        return reservedBytes.get();
+    }
+
+    public long getInUseBytes() {
+        return inUseBytes.sum();
+    }
+
+    public long getInUseCount() {
+        return inUseCount.sum();
+    }
+
+    public long getAcquires() {
+        return acquires.sum();
+    }
+
+    /**
+     * 풀이 꽉 찼거나 너무 커서 풀 밖에서 만든 횟수
+     */
+    public long getUnpooled() {
+        return unpooled.sum();
+    }
+
+    public long getLeaks() {
+        return leaks.sum();
+    }
+
+    public long getDoubleReleases() {
+        return doubleReleases.sum();
+    }
+
+    /**
+     * 크기 클래스별 놀고 있는 버퍼 수
+     */
+    public int getFreeCount(int sizeClassIndex) {
+        return sizeClasses[sizeClassIndex].getFreeCount();
+    }
+
+    public int getSizeClassCount() {
+        return sizeClasses.length;
+    }
+
+    public int getSizeClassCapacity(int sizeClassIndex) {
+        return sizeClasses[sizeClassIndex].size;
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{" +
+                "reservedBytes=" + getReservedBytes() +
+                ", inUseBytes=" + getInUseBytes() +
+                ", inUseCount=" + getInUseCount() +
+                ", acquires=" + getAcquires() +
+                ", unpooled=" + getUnpooled() +
+                ", leaks=" + getLeaks() +
+                '}';
+    }
+
+    /**
+     * 같은 크기 버퍼들의 free 스택. 배열 스택이라 빌리고 돌려줄 때 객체를 안 만든다.
+     */
+    final class SizeClass {
+        private final int size;
+        private PooledBuffer[] free = new PooledBuffer[16];
+        private int freeCount;
+
+        private SizeClass(int size) {
+            this.size = size;
+        }
+
+        synchronized PooledBuffer poll() {
+            if (freeCount == 0 && !addSlab()) {
+                return null;
+            }
+            PooledBuffer pooled = free[--freeCount];
+            free[freeCount] = null;
+            return pooled;
+        }
+
+        synchronized void offer(PooledBuffer pooled) {
+            if (freeCount == free.length) {
+                PooledBuffer[] bigger = new PooledBuffer[free.length * 2];
+                System.arraycopy(free, 0, bigger, 0, freeCount);
+                free = bigger;
+            }
+            free[freeCount++] = pooled;
+        }
+
+        synchronized int getFreeCount() {
+            return freeCount;
+        }
+
+        private boolean addSlab() {
+            int slabSize = Math.max(SLAB_SIZE, size);
+            long reserved;
+            do {
+                reserved = reservedBytes.get();
+                if (reserved + slabSize > maxPoolBytes) {
+                    return false;
+                }
+            } while (!reservedBytes.compareAndSet(reserved, reserved + slabSize));
+
+            ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+            for (int offset = 0; offset < slabSize; offset += size) {
+                PooledBuffer pooled = new PooledBuffer(slab.slice(offset, size), this);
+                pooledBuffers.add(pooled);
+                offer(pooled);
+            }
+            log.debug("new slab. size class = {}, slab = {}, reserved = {}", size, slabSize, reservedBytes.get());
+            return true;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package org.crazyproxy.buffer;
+
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * BufferPool에서 빌린 다이렉트 버퍼 한 개. 슬랩의 한 칸마다 하나씩 미리 만들어 두고 재사용한다.
+ * 다 쓰면 반드시 release() 해야 한다. 안 돌려주면 BufferPool의 누수 감시에 걸린다.
+ */
+public class PooledBuffer {
+
+    @Getter
+    private final ByteBuffer buffer;
+    // 풀 밖에서 만든 버퍼면 null. 반납하면 그냥 GC에 맡긴다.
+    final BufferPool.SizeClass sizeClass;
+
+    // 반납은 compareAndSet(true, false) 한 번만 이긴다. 두 스레드가 같이 반납해도 풀에 두 번 들어가지 않게
+    final AtomicBoolean inUse = new AtomicBoolean();
+    volatile long acquiredAt;
+    volatile Throwable acquiredBy;
+    volatile boolean leakReported;
+
+    PooledBuffer(ByteBuffer buffer, BufferPool.SizeClass sizeClass) {
+        this.buffer = buffer;
+        this.sizeClass = sizeClass;
+    }
+
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    public void release() {
+        BufferPool.getInstance().release(this);
+    }
+}
@@ -0,0 +1,66 @@
+package org.crazyproxy.cache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 응답 캐시 바디를 담는 다이렉트 메모리. SEGMENT_SIZE 짜리 세그먼트로 잘라서 빌려준다.
+ * I/O 버퍼 풀(BufferPool)과는 따로 잡는다. 캐시가 커져도 I/O 버퍼가 밀려나지 않게.
+ * 슬랩은 필요할 때 만들고 maxBytes 까지만 잡는다. 자리가 없으면 null을 주고, 자리는 ResponseCache가 쫓아내서 만든다.
+ */
+final class CacheArena {
+
+    static final int SEGMENT_SIZE = 16 * 1024;
+    private static final int SLAB_SIZE = 1024 * 1024;
+
+    private final long maxBytes;
+    private long reservedBytes;
+    private ByteBuffer[] free = new ByteBuffer[64];
+    private int freeCount;
+
+    CacheArena(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 비워진(clear) 세그먼트 하나. 자리가 없으면 null
+     */
+    synchronized ByteBuffer allocate() {
+        if (freeCount == 0 && !addSlab()) {
+            return null;
+        }
+        ByteBuffer segment = free[--freeCount];
+        free[freeCount] = null;
+        return segment;
+    }
+
+    synchronized void free(ByteBuffer segment) {
+        if (freeCount == free.length) {
+            ByteBuffer[] bigger = new ByteBuffer[free.length * 2];
+            System.arraycopy(free, 0, bigger, 0, freeCount);
+            free = bigger;
+        }
+        segment.clear();
+        free[freeCount++] = segment;
+    }
+
+    synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    synchronized long getFreeBytes() {
+        return (long) freeCount * SEGMENT_SIZE;
+    }
+
+    private boolean addSlab() {
+        long slabSize = Math.min(SLAB_SIZE, maxBytes - reservedBytes) / SEGMENT_SIZE * SEGMENT_SIZE;
+        if (slabSize < SEGMENT_SIZE) {
+            return false;
+        }
+        ByteBuffer slab = ByteBuffer.allocateDirect((int) slabSize);
+        reservedBytes += slabSize;
+        for (int offset = 0; offset < slabSize; offset += SEGMENT_SIZE) {
+            free(slab.slice(offset, SEGMENT_SIZE));
+        }
+        return true;
+    }
+}
@@ -0,0 +1,167 @@
+package org.crazyproxy.cache;
+
+import org.crazyproxy.nio.Outbound;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 캐시된 응답 하나. 바디는 CacheArena 세그먼트에 업스트림에서 받은 그대로(chunked면 chunked 그대로) 들어 있다.
+ * 바디는 담은 뒤로 바뀌지 않고, 헤더는 304로 재검증할 때 통째로 갈아끼운다.
+ *
+ * 참조 카운트: 캐시가 1을 들고 있고, 내보내거나 재검증하는 쪽이 retain/release 한다.
+ * 쫓겨나도 누가 내보내는 중이면 세그먼트는 그쪽이 release 할 때 돌아간다.
+ */
+final class CacheEntry {
+
+    private static final byte[] AGE = "Age: ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] NOT_MODIFIED = "HTTP/1.1 304 Not Modified\r\n".getBytes(StandardCharsets.US_ASCII);
+    // 304로 내보낼 때 같이 보내는 헤더 (RFC 9110 15.4.5)
+    private static final String[] NOT_MODIFIED_HEADERS = {"cache-control", "content-location", "date", "etag", "expires", "vary"};
+
+    final String key;
+    final int hash;
+    private final CacheArena arena;
+    private final ByteBuffer[] segments;
+    private final long bodyLength;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+    private final AtomicBoolean revalidating = new AtomicBoolean();
+    private volatile CachedHeaders headers;
+
+    // CachePolicy 락 안에서만 만지는 필드들
+    final long weight;
+    CacheEntry prev;
+    CacheEntry next;
+    int queue = CachePolicy.NONE;
+
+    /**
+     * @param hash 빈도를 세는 해시. Vary로 갈린 항목들도 같은 URL이면 같은 빈도를 쓴다
+     */
+    CacheEntry(String key, int hash, CacheArena arena, ByteBuffer[] segments, long bodyLength, CachedHeaders headers) {
+        this.key = key;
+        this.hash = hash;
+        this.arena = arena;
+        this.segments = segments;
+        this.bodyLength = bodyLength;
+        this.headers = headers;
+        this.weight = (long) segments.length * CacheArena.SEGMENT_SIZE + headers.getHead().length;
+    }
+
+    /**
+     * CachePolicy 리스트 머리(빈 노드)용
+     */
+    CacheEntry() {
+        this.key = "";
+        this.hash = 0;
+        this.arena = null;
+        this.segments = new ByteBuffer[0];
+        this.bodyLength = 0;
+        this.weight = 0;
+    }
+
+    CachedHeaders getHeaders() {
+        return headers;
+    }
+
+    void setHeaders(CachedHeaders headers) {
+        this.headers = headers;
+    }
+
+    /**
+     * @return 이미 다 풀려서 세그먼트가 돌아간 항목이면 false
+     */
+    boolean retain() {
+        int count;
+        do {
+            count = refCount.get();
+            if (count <= 0) {
+                return false;
+            }
+        } while (!refCount.compareAndSet(count, count + 1));
+        return true;
+    }
+
+    void release() {
+        if (refCount.decrementAndGet() == 0) {
+            for (ByteBuffer segment : segments) {
+                arena.free(segment);
+            }
+        }
+    }
+
+    /**
+     * 재검증은 한 번에 하나만. 이긴 쪽만 true
+     */
+    boolean tryStartRevalidation() {
+        return revalidating.compareAndSet(false, true);
+    }
+
+    void endRevalidation() {
+        revalidating.set(false);
+    }
+
+    /**
+     * 응답을 클라 큐에 쓴다. 못 쓴 건 큐가 복사해 두므로 이 호출이 끝나면 세그먼트는 더 안 본다.
+     * @param headOnly HEAD 요청이면 바디는 안 쓴다
+     * @return 쓴 바이트 수
+     */
+    long writeTo(Outbound out, boolean headOnly, long now) throws IOException {
+        CachedHeaders current = headers;
+        long written = writeHead(out, current.getHead(), current.currentAge(now));
+        if (headOnly) {
+            return written;
+        }
+        long remaining = bodyLength;
+        for (ByteBuffer segment : segments) {
+            int length = (int) Math.min(remaining, CacheArena.SEGMENT_SIZE);
+            out.write(segment.duplicate().limit(length).position(0));
+            remaining -= length;
+        }
+        return written + bodyLength;
+    }
+
+    /**
+     * 클라 사본이 유효할 때 304를 쓴다. 바디는 없다.
+     */
+    long writeNotModified(Outbound out, long now) throws IOException {
+        CachedHeaders current = headers;
+        StringBuilder lines = new StringBuilder();
+        String head = new String(current.getHead(), StandardCharsets.ISO_8859_1);
+        for (String line : head.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && isNotModifiedHeader(line.substring(0, colon).trim())) {
+                lines.append(line).append("\r\n");
+            }
+        }
+        byte[] selected = lines.toString().getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer response = ByteBuffer.allocate(NOT_MODIFIED.length + selected.length);
+        response.put(NOT_MODIFIED).put(selected).flip();
+        return writeHeadFrom(out, response, current.currentAge(now));
+    }
+
+    private static long writeHead(Outbound out, byte[] head, long ageMillis) throws IOException {
+        return writeHeadFrom(out, ByteBuffer.wrap(head), ageMillis);
+    }
+
+    private static long writeHeadFrom(Outbound out, ByteBuffer head, long ageMillis) throws IOException {
+        byte[] age = Long.toString(ageMillis / 1000).getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer response = ByteBuffer.allocate(head.remaining() + AGE.length + age.length + CRLF.length * 2);
+        response.put(head).put(AGE).put(age).put(CRLF).put(CRLF).flip();
+        int length = response.remaining();
+        out.write(response);
+        return length;
+    }
+
+    private static boolean isNotModifiedHeader(String name) {
+        for (String candidate : NOT_MODIFIED_HEADERS) {
+            if (candidate.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
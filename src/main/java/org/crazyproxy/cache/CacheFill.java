@@ -0,0 +1,248 @@
+package org.crazyproxy.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 업스트림 응답을 받으면서 캐시에 담을 사본을 만든다. ClientWorker가 응답 바이트를 클라에게 쓰기 전에 offer로 보여준다.
+ * 헤더는 힙 배열에, 바디는 CacheArena 세그먼트에 받은 그대로 복사한다. cacheMaxObjectSize를 넘거나 세그먼트를 못 구하면 바디 사본은 버린다.
+ * 응답이 프레이밍대로 끝나면 complete, 아니면 close.
+ *
+ * 재검증 중이면 헤더가 다 올 때까지 클라에게 안 쓰고 들고 있다가(워커가 판단), 304면 캐시 항목을 갱신하고 그걸 내보낸다.
+ */
+public final class CacheFill {
+
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+
+    private final ResponseCache cache;
+    private final String primaryKey;
+    private final String[][] requestHeaders;
+    // 재검증 대상. retain 해서 들고 있다
+    private CacheEntry revalidated;
+    private final boolean background;
+    // 같은 요청들에게 응답을 나눠주는 중이면 그 Flight. 그만 나눠주면 null
+    private Flight flight;
+
+    private byte[] head = new byte[1024];
+    private int headLength;
+    private int lineLength;
+    private boolean headComplete;
+    private int statusCode;
+    // 바디 사본을 버렸다. 헤더는 계속 본다
+    private boolean abandoned;
+    private final List<ByteBuffer> segments = new ArrayList<>();
+    private ByteBuffer current;
+    private long bodyLength;
+    private boolean closed;
+
+    CacheFill(ResponseCache cache, String primaryKey, String[][] requestHeaders, CacheEntry revalidated, boolean background,
+              Flight flight) {
+        this.cache = cache;
+        this.primaryKey = primaryKey;
+        this.requestHeaders = requestHeaders;
+        this.background = background;
+        this.flight = flight;
+        if (revalidated != null && revalidated.retain()) {
+            this.revalidated = revalidated;
+        } else if (background && revalidated != null) {
+            revalidated.endRevalidation();
+        }
+    }
+
+    /**
+     * 재검증 요청이면 true. 304일 수 있으니 헤더가 다 올 때까지 클라에게 쓰지 않는다.
+     */
+    public boolean isRevalidating() {
+        return revalidated != null;
+    }
+
+    /**
+     * 응답 바이트 src[position, limit)의 사본을 만든다. src는 건드리지 않는다.
+     * @return src 중 헤더에 속한 바이트 수. 헤더가 이미 끝났으면 0
+     */
+    public int offer(ByteBuffer src) {
+        int index = src.position();
+        int limit = src.limit();
+        if (!headComplete && !abandoned) {
+            while (index < limit && !headComplete) {
+                if (headLength == MAX_HEAD_SIZE) {
+                    // 헤더가 너무 크다. 담지 않는다. 들고 있던 건 워커가 그대로 흘려보낸다.
+                    abandon();
+                    failFlight();
+                    break;
+                }
+                byte b = src.get(index++);
+                if (headLength == head.length) {
+                    byte[] bigger = new byte[Math.min(head.length * 2, MAX_HEAD_SIZE)];
+                    System.arraycopy(head, 0, bigger, 0, headLength);
+                    head = bigger;
+                }
+                head[headLength++] = b;
+                if (b == '\n') {
+                    headComplete = lineLength == 0;
+                    lineLength = 0;
+                } else if (b != '\r') {
+                    lineLength++;
+                }
+            }
+            if (headComplete) {
+                onHeadComplete();
+            }
+        }
+        int headBytes = index - src.position();
+        if (flight != null && headComplete && index < limit && !flight.append(src, index, limit)) {
+            flight = null;
+        }
+        if (headComplete && !abandoned && index < limit) {
+            appendBody(src, index, limit);
+        }
+        return headBytes;
+    }
+
+    /**
+     * 헤더를 다 받았거나 담기를 포기해서 들고 있던 응답을 어떻게 할지 정할 수 있다
+     */
+    public boolean isDecided() {
+        return headComplete || abandoned;
+    }
+
+    /**
+     * 재검증 결과가 304다. 클라에게는 업스트림 응답 대신 캐시 항목을 내보낸다.
+     */
+    public boolean isNotModified() {
+        return revalidated != null && headComplete && statusCode == 304;
+    }
+
+    /**
+     * 지금까지 받은 헤더 바이트. 들고 있던 응답을 클라에게 흘려보낼 때 쓴다.
+     */
+    public ByteBuffer getHead() {
+        return ByteBuffer.wrap(head, 0, headLength);
+    }
+
+    /**
+     * 응답이 프레이밍대로 끝났다. 담을 수 있으면 캐시에 넣는다.
+     * @param keepAlive 업스트림이 커넥션 유지를 허락했는지. 응답을 나눠받은 요청들도 이걸 보고 클라 커넥션을 이어 쓴다
+     * @return 재검증 결과가 304면 갱신한 항목을 내보낼 CacheLookup(다 쓰면 release). 아니면 null
+     */
+    public CacheLookup complete(boolean keepAlive) {
+        if (closed) {
+            return null;
+        }
+        try {
+            if (!headComplete) {
+                return null;
+            }
+            long now = System.currentTimeMillis();
+            if (isNotModified()) {
+                cache.refresh(revalidated, head, headLength, now);
+                completeFlight(keepAlive);
+                if (!revalidated.retain()) {
+                    return null;
+                }
+                return new CacheLookup(cache, CacheLookup.Action.HIT, primaryKey, primaryKey, null, revalidated, false, false, false);
+            }
+            boolean stored = false;
+            if (!abandoned) {
+                CachedHeaders headers = CachedHeaders.parse(head, headLength, now);
+                if (headers != null && headers.getStatusCode() == statusCode) {
+                    cache.store(primaryKey, requestHeaders, headers, segments.toArray(new ByteBuffer[0]), bodyLength);
+                    segments.clear();
+                    stored = true;
+                }
+            }
+            if (!stored && revalidated != null) {
+                // 새 응답이 담을 수 없는 응답이면 예전 항목도 더는 못 쓴다.
+                cache.invalidate(revalidated);
+            }
+            completeFlight(keepAlive);
+            return null;
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * 끝. 담지 못한 세그먼트와 재검증 대상을 놓는다. 여러 번 불려도 된다.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        abandon();
+        failFlight();
+        if (revalidated != null) {
+            if (background) {
+                revalidated.endRevalidation();
+            }
+            revalidated.release();
+            revalidated = null;
+        }
+    }
+
+    private void onHeadComplete() {
+        if (headLength < 12) {
+            abandon();
+            failFlight();
+            return;
+        }
+        statusCode = (head[9] - '0') * 100 + (head[10] - '0') * 10 + (head[11] - '0');
+        if (statusCode >= 100 && statusCode < 200) {
+            // 중간 응답(1xx). 진짜 응답은 담지 않고 그냥 흘려보낸다.
+            abandon();
+            failFlight();
+            return;
+        }
+        if (flight != null && !flight.onHead(head, headLength, statusCode, revalidated != null)) {
+            flight = null;
+        }
+    }
+
+    private void completeFlight(boolean keepAlive) {
+        if (flight != null) {
+            flight.complete(keepAlive);
+            flight = null;
+        }
+    }
+
+    private void failFlight() {
+        if (flight != null) {
+            flight.fail();
+            flight = null;
+        }
+    }
+
+    private void appendBody(ByteBuffer src, int from, int to) {
+        int index = from;
+        while (index < to) {
+            if (current == null || !current.hasRemaining()) {
+                if (headLength + bodyLength + (to - index) > cache.getMaxObjectSize()) {
+                    abandon();
+                    return;
+                }
+                current = cache.allocateSegment(primaryKey.hashCode());
+                if (current == null) {
+                    abandon();
+                    return;
+                }
+                segments.add(current);
+            }
+            int length = Math.min(current.remaining(), to - index);
+            current.put(current.position(), src, index, length);
+            current.position(current.position() + length);
+            index += length;
+            bodyLength += length;
+        }
+    }
+
+    private void abandon() {
+        abandoned = true;
+        current = null;
+        for (ByteBuffer segment : segments) {
+            cache.freeSegment(segment);
+        }
+        segments.clear();
+    }
+}
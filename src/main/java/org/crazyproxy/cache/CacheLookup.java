@@ -0,0 +1,117 @@
+package org.crazyproxy.cache;
+
+import org.crazyproxy.nio.Outbound;
+
+import java.io.IOException;
+
+/**
+ * 요청 하나를 캐시에서 찾아본 결과. ClientHandler가 보고 캐시에서 바로 내보낼지, 업스트림에 보낼지 정한다.
+ * 찾은 항목은 retain 해서 들고 있으므로 다 쓰면 release를 불러야 한다.
+ */
+public final class CacheLookup {
+
+    private static final byte[] NO_HEADERS = new byte[0];
+
+    public enum Action {
+        // 신선한 항목. 캐시에서 바로 내보낸다
+        HIT,
+        // 신선도는 지났지만 stale-while-revalidate 안. 캐시에서 바로 내보내고 뒤에서 재검증한다
+        STALE,
+        // 검증자를 붙여 업스트림에 묻는다. 304면 캐시 것을, 아니면 새 응답을 내보낸다
+        REVALIDATE,
+        // 업스트림에 그대로 보내고 응답을 담아본다
+        MISS
+    }
+
+    private final ResponseCache cache;
+    private final Action action;
+    private final String primaryKey;
+    // Vary 값까지 붙인 키
+    private final String key;
+    // 요청 헤더 {소문자 이름, 값}. 응답의 Vary로 키를 만들 때 쓴다. 캐시에서 바로 내보내기만 하면 null
+    private final String[][] requestHeaders;
+    private CacheEntry entry;
+    // 클라가 보낸 조건부 헤더로 보면 클라 사본이 유효하다. 304로 내보낸다
+    private final boolean clientCopyValid;
+    // STALE에서 이 요청이 뒤에서 재검증을 맡았다
+    private final boolean backgroundRevalidation;
+    // 같은 키의 요청들과 업스트림 요청 하나로 묶을 수 있다
+    private final boolean coalescable;
+
+    CacheLookup(ResponseCache cache, Action action, String primaryKey, String key, String[][] requestHeaders, CacheEntry entry,
+                boolean clientCopyValid, boolean backgroundRevalidation, boolean coalescable) {
+        this.cache = cache;
+        this.action = action;
+        this.primaryKey = primaryKey;
+        this.key = key;
+        this.requestHeaders = requestHeaders;
+        this.entry = entry;
+        this.clientCopyValid = clientCopyValid;
+        this.backgroundRevalidation = backgroundRevalidation;
+        this.coalescable = coalescable;
+    }
+
+    public Action getAction() {
+        return action;
+    }
+
+    /**
+     * 업스트림 없이 캐시에서 바로 내보낼 수 있는지
+     */
+    public boolean isServable() {
+        return action == Action.HIT || action == Action.STALE;
+    }
+
+    public boolean hasBackgroundRevalidation() {
+        return backgroundRevalidation;
+    }
+
+    public boolean isCoalescable() {
+        return coalescable;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    String[][] getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    /**
+     * 업스트림 요청에 붙일 조건부 헤더. 재검증이 아니면 null.
+     * 재검증이면 클라가 보낸 조건부 헤더는 빼야 하므로 검증자가 없어도 빈 배열을 준다.
+     */
+    public byte[] getConditionalHeaders() {
+        if (entry == null || (action != Action.REVALIDATE && !backgroundRevalidation)) {
+            return null;
+        }
+        byte[] conditionalHeaders = entry.getHeaders().getConditionalHeaders();
+        return conditionalHeaders == null ? NO_HEADERS : conditionalHeaders;
+    }
+
+    /**
+     * 캐시된 응답을 클라 큐에 쓴다.
+     * @return 쓴 바이트 수
+     */
+    public long serve(Outbound out, boolean headOnly) throws IOException {
+        long now = System.currentTimeMillis();
+        return clientCopyValid ? entry.writeNotModified(out, now) : entry.writeTo(out, headOnly, now);
+    }
+
+    /**
+     * 업스트림 응답을 받아 담을 CacheFill. MISS, REVALIDATE, 뒤에서 하는 재검증에서만 쓴다.
+     * 묶을 수 있는 요청이면 이 요청이 리더가 되어 Flight를 연다.
+     */
+    public CacheFill newFill() {
+        return new CacheFill(cache, primaryKey, requestHeaders, action == Action.MISS ? null : entry, backgroundRevalidation,
+                cache.lead(this));
+    }
+
+    public void release() {
+        if (entry != null) {
+            entry.release();
+            entry = null;
+        }
+    }
+}
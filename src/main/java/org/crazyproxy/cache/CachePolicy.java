@@ -0,0 +1,224 @@
+package org.crazyproxy.cache;
+
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 응답 캐시 교체 정책. W-TinyLFU를 바이트 가중치로 단순하게 옮긴 것.
+ * 새 항목은 작은 window LRU(전체의 1%)에 들어가고, window에서 밀려난 후보는 main의 probation LRU 끝 항목(희생자)과
+ * FrequencySketch 빈도를 비교해서 더 자주 찾힌 쪽만 남는다. 한 번 찾히고 마는 응답이 자주 찾히는 응답을 밀어내지 못하게.
+ * main은 SLRU. probation에서 다시 찾히면 protected(main의 80%)로 올라가고, protected가 넘치면 끝 항목이 probation으로 내려간다.
+ *
+ * 리스트는 CacheEntry에 박힌 prev/next로 잇는다. 전부 lock 안에서만 만진다.
+ * 조회 때 순서 갱신은 tryLock으로만 한다. 락이 바쁘면 그 조회는 기록하지 않는다(빈도 추정이 조금 덜 정확해질 뿐).
+ */
+final class CachePolicy {
+
+    static final int NONE = -1;
+    static final int WINDOW = 0;
+    static final int PROBATION = 1;
+    static final int PROTECTED = 2;
+    // 자리가 모자랄 때 쫓아내는 순서
+    private static final int[] EVICTION_ORDER = {PROBATION, WINDOW, PROTECTED};
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final FrequencySketch sketch;
+    private final long maxWeight;
+    private final long windowMaxWeight;
+    private final long protectedMaxWeight;
+    // 큐마다 원형 리스트의 머리(빈 노드). head.next가 가장 오래된(LRU) 항목, head.prev가 최근(MRU) 항목
+    private final CacheEntry[] heads = new CacheEntry[3];
+    private final long[] weights = new long[3];
+    private long admissionRejects;
+
+    CachePolicy(long maxWeight) {
+        this.maxWeight = maxWeight;
+        this.windowMaxWeight = Math.max(CacheArena.SEGMENT_SIZE, maxWeight / 100);
+        this.protectedMaxWeight = (maxWeight - windowMaxWeight) * 8 / 10;
+        this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, maxWeight / CacheArena.SEGMENT_SIZE));
+        for (int i = 0; i < heads.length; i++) {
+            CacheEntry head = new CacheEntry();
+            head.prev = head;
+            head.next = head;
+            heads[i] = head;
+        }
+    }
+
+    /**
+     * 조회를 기록한다. 캐시에 있는 항목이면 순서도 갱신한다. 락이 바쁘면 건너뛴다.
+     * @param entry 찾은 항목. 없으면 null
+     */
+    void recordAccess(int hash, CacheEntry entry) {
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            sketch.increment(hash);
+            if (entry != null && entry.queue != NONE) {
+                onHit(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 새 항목을 window에 넣고, 넘친 만큼 쫓아낸다.
+     * @param evicted 쫓겨난 항목이 여기 담긴다. 새 항목 자신이 입장을 못 할 수도 있다
+     */
+    void add(CacheEntry entry, List<CacheEntry> evicted) {
+        lock.lock();
+        try {
+            link(WINDOW, entry);
+            while (weights[WINDOW] > windowMaxWeight && heads[WINDOW].next != entry) {
+                CacheEntry candidate = heads[WINDOW].next;
+                unlink(candidate);
+                admit(candidate, evicted);
+            }
+            while (totalWeight() > maxWeight) {
+                CacheEntry victim = oldest();
+                if (victim == null) {
+                    break;
+                }
+                unlink(victim);
+                evicted.add(victim);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 다른 항목으로 바뀌었거나 무효화된 항목을 뺀다. 이미 빠진 항목이면 아무것도 안 한다.
+     */
+    void remove(CacheEntry entry) {
+        lock.lock();
+        try {
+            if (entry.queue != NONE) {
+                unlink(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 새 응답의 바디를 담다가 메모리가 모자라면 하나를 쫓아낸다. 빈도가 낮은 쪽(probation)부터.
+     * window에서 밀려난 후보와 같은 기준으로, 담는 중인 응답이 희생자보다 자주 찾혔을 때만 쫓아낸다.
+     * @param candidateHash 담는 중인 응답의 키 해시
+     * @return 쫓겨난 항목. 비었거나 담는 쪽이 입장을 못 하면 null
+     */
+    CacheEntry evictFor(int candidateHash) {
+        lock.lock();
+        try {
+            CacheEntry victim = oldest();
+            if (victim == null) {
+                return null;
+            }
+            if (sketch.frequency(candidateHash) <= sketch.frequency(victim.hash)) {
+                admissionRejects++;
+                return null;
+            }
+            unlink(victim);
+            return victim;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getWeight() {
+        lock.lock();
+        try {
+            return totalWeight();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getAdmissionRejects() {
+        lock.lock();
+        try {
+            return admissionRejects;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * window에서 밀려난 후보를 main에 들일지 정한다. 자리가 모자라면 probation 끝 항목과 빈도를 비교해서
+     * 후보가 더 자주 찾혔을 때만 희생자를 내보내고 들어간다.
+     */
+    private void admit(CacheEntry candidate, List<CacheEntry> evicted) {
+        while (totalWeight() + candidate.weight > maxWeight) {
+            CacheEntry victim = heads[PROBATION].next != heads[PROBATION] ? heads[PROBATION].next
+                    : heads[PROTECTED].next != heads[PROTECTED] ? heads[PROTECTED].next : null;
+            if (victim == null) {
+                break;
+            }
+            if (sketch.frequency(candidate.hash) <= sketch.frequency(victim.hash)) {
+                admissionRejects++;
+                evicted.add(candidate);
+                return;
+            }
+            unlink(victim);
+            evicted.add(victim);
+        }
+        link(PROBATION, candidate);
+    }
+
+    private void onHit(CacheEntry entry) {
+        switch (entry.queue) {
+            case WINDOW:
+            case PROTECTED: {
+                int queue = entry.queue;
+                unlink(entry);
+                link(queue, entry);
+                break;
+            }
+            case PROBATION: {
+                unlink(entry);
+                link(PROTECTED, entry);
+                while (weights[PROTECTED] > protectedMaxWeight && heads[PROTECTED].next != entry) {
+                    CacheEntry demoted = heads[PROTECTED].next;
+                    unlink(demoted);
+                    link(PROBATION, demoted);
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    private CacheEntry oldest() {
+        for (int queue : EVICTION_ORDER) {
+            if (heads[queue].next != heads[queue]) {
+                return heads[queue].next;
+            }
+        }
+        return null;
+    }
+
+    private long totalWeight() {
+        return weights[WINDOW] + weights[PROBATION] + weights[PROTECTED];
+    }
+
+    private void link(int queue, CacheEntry entry) {
+        CacheEntry head = heads[queue];
+        entry.prev = head.prev;
+        entry.next = head;
+        head.prev.next = entry;
+        head.prev = entry;
+        entry.queue = queue;
+        weights[queue] += entry.weight;
+    }
+
+    private void unlink(CacheEntry entry) {
+        entry.prev.next = entry.next;
+        entry.next.prev = entry.prev;
+        entry.prev = null;
+        entry.next = null;
+        weights[entry.queue] -= entry.weight;
+        entry.queue = NONE;
+    }
+}
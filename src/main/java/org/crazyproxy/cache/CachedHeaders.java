@@ -0,0 +1,393 @@
+package org.crazyproxy.cache;
+
+import lombok.Getter;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 캐시된 응답의 헤더 부분과 신선도 정보 (RFC 9111). 바뀌지 않는다. 304로 갱신하면 새 객체로 갈아끼운다.
+ * head는 상태 라인 + 헤더 라인들이고 마지막 빈 줄은 없다. hop-by-hop 헤더와 Age는 빼고 담는다. Age는 내보낼 때 새로 붙인다.
+ *
+ * 신선도는 s-maxage > max-age > Expires - Date 순으로 본다. 명시된 게 없고 검증자(ETag/Last-Modified)만 있으면
+ * 신선도 0으로 담아두고 매번 재검증한다. 둘 다 없으면 담지 않는다(휴리스틱 신선도는 안 씀).
+ */
+@Getter
+final class CachedHeaders {
+
+    private static final int[] STORABLE_STATUS = {200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501};
+    private static final String[] HOP_BY_HOP = {"connection", "keep-alive", "proxy-connection", "te", "trailer", "upgrade", "age"};
+    // 304로 갱신할 때 덮어쓰지 않는 헤더. 바디는 그대로 쓰므로 프레이밍은 원래 것을 유지한다.
+    private static final String[] KEEP_ON_UPDATE = {"content-length", "transfer-encoding", "content-encoding", "content-range"};
+
+    private final byte[] head;
+    private final int statusCode;
+    private final String etag;
+    private final String lastModified;
+    // 응답을 받은 시각(ms)과 그때 이미 먹은 나이(ms)
+    private final long responseTime;
+    private final long initialAge;
+    private final long freshnessLifetime;
+    private final long staleWhileRevalidate;
+    // Vary에 적힌 요청 헤더 이름들 (소문자). 없으면 빈 배열
+    private final String[] varyNames;
+    // 재검증 요청에 붙일 If-None-Match / If-Modified-Since 라인들. 검증자가 없으면 null
+    private final byte[] conditionalHeaders;
+
+    private CachedHeaders(byte[] head, int statusCode, String etag, String lastModified, long responseTime, long initialAge,
+                          long freshnessLifetime, long staleWhileRevalidate, String[] varyNames) {
+        this.head = head;
+        this.statusCode = statusCode;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.responseTime = responseTime;
+        this.initialAge = initialAge;
+        this.freshnessLifetime = freshnessLifetime;
+        this.staleWhileRevalidate = staleWhileRevalidate;
+        this.varyNames = varyNames;
+        this.conditionalHeaders = buildConditionalHeaders(etag, lastModified);
+    }
+
+    /**
+     * 업스트림 응답 헤더를 캐시에 담을 수 있으면 만든다.
+     * @param raw 상태 라인부터 빈 줄까지 받은 그대로의 바이트
+     * @return 담을 수 없는 응답이면 null
+     */
+    static CachedHeaders parse(byte[] raw, int length, long responseTime) {
+        HeaderLines lines = HeaderLines.parse(raw, length);
+        if (lines == null || !isStorableStatus(lines.statusCode)) {
+            return null;
+        }
+        // 연결이 끊길 때까지 읽는 응답은 keep-alive 클라에게 다시 내보낼 수 없다.
+        if (lines.get("content-length") == null && !containsToken(lines.get("transfer-encoding"), "chunked") && lines.statusCode != 204) {
+            return null;
+        }
+        return from(lines, responseTime);
+    }
+
+    /**
+     * 응답 헤더의 Content-Length. 없거나 틀렸으면 -1
+     */
+    static long contentLength(byte[] raw, int length) {
+        HeaderLines lines = HeaderLines.parse(raw, length);
+        return lines == null ? -1 : parseLong(lines.get("content-length"));
+    }
+
+    /**
+     * 304 응답의 헤더로 갱신한 새 헤더 (RFC 9111 4.3.4). 바디 프레이밍 헤더는 원래 것을 둔다.
+     * @return 갱신한 결과가 담을 수 없는 응답이 됐으면 null
+     */
+    CachedHeaders update(byte[] notModifiedRaw, int length, long responseTime) {
+        HeaderLines stored = HeaderLines.parse(head, head.length);
+        HeaderLines notModified = HeaderLines.parse(notModifiedRaw, length);
+        if (stored == null || notModified == null) {
+            return null;
+        }
+        for (String[] header : notModified.headers) {
+            if (!contains(KEEP_ON_UPDATE, header[0])) {
+                stored.removeAll(header[0]);
+            }
+        }
+        for (String[] header : notModified.headers) {
+            if (!contains(KEEP_ON_UPDATE, header[0])) {
+                stored.headers.add(header);
+            }
+        }
+        return from(stored, responseTime);
+    }
+
+    private static CachedHeaders from(HeaderLines lines, long responseTime) {
+        String cacheControl = lines.getAll("cache-control");
+        if (hasDirective(cacheControl, "no-store") || hasDirective(cacheControl, "private") || lines.get("set-cookie") != null) {
+            return null;
+        }
+        String vary = lines.getAll("vary");
+        String[] varyNames = new String[0];
+        if (vary != null) {
+            if (vary.trim().equals("*")) {
+                return null;
+            }
+            List<String> names = new ArrayList<>();
+            for (String name : vary.split(",")) {
+                if (!name.isBlank()) {
+                    names.add(name.trim().toLowerCase(Locale.ROOT));
+                }
+            }
+            varyNames = names.toArray(new String[0]);
+        }
+
+        String etag = lines.get("etag");
+        String lastModified = lines.get("last-modified");
+        long dateMillis = parseDate(lines.get("date"));
+
+        long freshness = directiveSeconds(cacheControl, "s-maxage");
+        if (freshness < 0) {
+            freshness = directiveSeconds(cacheControl, "max-age");
+        }
+        if (freshness >= 0) {
+            freshness *= 1000;
+        } else if (lines.get("expires") != null) {
+            long expires = parseDate(lines.get("expires"));
+            long base = dateMillis >= 0 ? dateMillis : responseTime;
+            // 형식이 틀린 Expires는 이미 지난 걸로 본다.
+            freshness = expires < 0 ? 0 : Math.max(0, expires - base);
+        } else if (etag != null || lastModified != null) {
+            freshness = 0;
+        } else {
+            return null;
+        }
+        if (hasDirective(cacheControl, "no-cache")) {
+            if (etag == null && lastModified == null) {
+                return null;
+            }
+            freshness = 0;
+        }
+
+        long staleWhileRevalidate = 0;
+        if (!hasDirective(cacheControl, "must-revalidate") && !hasDirective(cacheControl, "proxy-revalidate")
+                && !hasDirective(cacheControl, "no-cache")) {
+            staleWhileRevalidate = Math.max(0, directiveSeconds(cacheControl, "stale-while-revalidate")) * 1000;
+        }
+
+        long ageHeader = Math.max(0, parseLong(lines.get("age"))) * 1000;
+        long apparentAge = dateMillis >= 0 ? Math.max(0, responseTime - dateMillis) : 0;
+        long initialAge = Math.max(ageHeader, apparentAge);
+
+        return new CachedHeaders(lines.toHead(), lines.statusCode, etag, lastModified, responseTime, initialAge,
+                freshness, staleWhileRevalidate, varyNames);
+    }
+
+    long currentAge(long now) {
+        return initialAge + Math.max(0, now - responseTime);
+    }
+
+    boolean isFresh(long now) {
+        return currentAge(now) < freshnessLifetime;
+    }
+
+    /**
+     * 신선도는 지났지만 stale-while-revalidate 안이라 일단 내보내고 뒤에서 재검증해도 되는지
+     */
+    boolean isStaleServable(long now) {
+        return !isFresh(now) && currentAge(now) < freshnessLifetime + staleWhileRevalidate;
+    }
+
+    boolean hasValidator() {
+        return conditionalHeaders != null;
+    }
+
+    /**
+     * 클라가 보낸 조건부 헤더로 보면 클라 사본이 아직 유효한지 (RFC 9110 13.2.2). If-None-Match가 있으면 그것만 본다.
+     */
+    boolean matchesClientCopy(String ifNoneMatch, String ifModifiedSince) {
+        if (ifNoneMatch != null) {
+            if (etag == null) {
+                return false;
+            }
+            String ours = weakless(etag);
+            for (String tag : ifNoneMatch.split(",")) {
+                String theirs = tag.trim();
+                if (theirs.equals("*") || weakless(theirs).equals(ours)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (ifModifiedSince != null && lastModified != null) {
+            long since = parseDate(ifModifiedSince);
+            long modified = parseDate(lastModified);
+            return since >= 0 && modified >= 0 && modified <= since;
+        }
+        return false;
+    }
+
+    private static String weakless(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    private static byte[] buildConditionalHeaders(String etag, String lastModified) {
+        if (etag == null && lastModified == null) {
+            return null;
+        }
+        StringBuilder lines = new StringBuilder();
+        if (etag != null) {
+            lines.append("If-None-Match: ").append(etag).append("\r\n");
+        }
+        if (lastModified != null) {
+            lines.append("If-Modified-Since: ").append(lastModified).append("\r\n");
+        }
+        return lines.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean isStorableStatus(int statusCode) {
+        for (int status : STORABLE_STATUS) {
+            if (status == statusCode) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean hasDirective(String cacheControl, String directive) {
+        return directiveValue(cacheControl, directive) != null;
+    }
+
+    /**
+     * Cache-Control 디렉티브의 초 값. 없거나 숫자가 아니면 -1
+     */
+    static long directiveSeconds(String cacheControl, String directive) {
+        String value = directiveValue(cacheControl, directive);
+        return value == null ? -1 : parseLong(value);
+    }
+
+    /**
+     * @return 디렉티브가 없으면 null, 값 없는 디렉티브면 ""
+     */
+    private static String directiveValue(String cacheControl, String directive) {
+        if (cacheControl == null) {
+            return null;
+        }
+        for (String part : cacheControl.split(",")) {
+            String token = part.trim();
+            int equals = token.indexOf('=');
+            String name = equals < 0 ? token : token.substring(0, equals).trim();
+            if (name.equalsIgnoreCase(directive)) {
+                if (equals < 0) {
+                    return "";
+                }
+                String value = token.substring(equals + 1).trim();
+                return value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"") ? value.substring(1, value.length() - 1) : value;
+            }
+        }
+        return null;
+    }
+
+    static boolean containsToken(String value, String token) {
+        if (value == null) {
+            return false;
+        }
+        for (String part : value.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * HTTP-date (IMF-fixdate). 못 읽으면 -1
+     */
+    static long parseDate(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private static boolean contains(String[] names, String name) {
+        for (String candidate : names) {
+            if (candidate.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 응답 헤더를 줄 단위로 쪼갠 것. 이름은 소문자로 들고 있고 내보낼 때는 받은 그대로의 이름을 쓴다.
+     * 캐시에 담거나 갱신할 때만 만든다.
+     */
+    private static final class HeaderLines {
+        private final String statusLine;
+        private final int statusCode;
+        // {소문자 이름, 값, 원래 이름}
+        private final List<String[]> headers = new ArrayList<>();
+
+        private HeaderLines(String statusLine, int statusCode) {
+            this.statusLine = statusLine;
+            this.statusCode = statusCode;
+        }
+
+        static HeaderLines parse(byte[] raw, int length) {
+            String text = new String(raw, 0, length, StandardCharsets.ISO_8859_1);
+            String[] lines = text.split("\r?\n");
+            if (lines.length == 0 || lines[0].length() < 12 || !lines[0].startsWith("HTTP/1.")) {
+                return null;
+            }
+            int statusCode;
+            try {
+                statusCode = Integer.parseInt(lines[0].substring(9, 12));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            HeaderLines headerLines = new HeaderLines(lines[0], statusCode);
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = lines[i].substring(0, colon).trim();
+                String lowerName = name.toLowerCase(Locale.ROOT);
+                if (contains(HOP_BY_HOP, lowerName)) {
+                    continue;
+                }
+                headerLines.headers.add(new String[] {lowerName, lines[i].substring(colon + 1).trim(), name});
+            }
+            return headerLines;
+        }
+
+        String get(String lowerName) {
+            for (String[] header : headers) {
+                if (header[0].equals(lowerName)) {
+                    return header[1];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * 같은 이름이 여러 줄이면 콤마로 잇는다 (Cache-Control, Vary)
+         */
+        String getAll(String lowerName) {
+            String joined = null;
+            for (String[] header : headers) {
+                if (header[0].equals(lowerName)) {
+                    joined = joined == null ? header[1] : joined + ", " + header[1];
+                }
+            }
+            return joined;
+        }
+
+        void removeAll(String lowerName) {
+            headers.removeIf(header -> header[0].equals(lowerName));
+        }
+
+        byte[] toHead() {
+            StringBuilder head = new StringBuilder(statusLine).append("\r\n");
+            for (String[] header : headers) {
+                head.append(header[2]).append(": ").append(header[1]).append("\r\n");
+            }
+            return head.toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+}
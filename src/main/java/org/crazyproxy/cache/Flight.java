@@ -0,0 +1,270 @@
+package org.crazyproxy.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 같은 키로 동시에 들어온 GET을 업스트림 요청 하나로 묶는다 (single-flight).
+ * 처음 캐시를 놓친 요청(리더)의 CacheFill이 응답 바이트를 여기에도 흘려주고, 뒤에 온 요청들(Seat)은 그걸 받아서 각자 클라에게 쓴다.
+ * 리더가 바이트를 넘기는 스레드와 각 Seat이 읽는 스레드(자기 리액터)가 다르므로 상태는 전부 this 락 안에서 만진다.
+ *
+ * 응답 헤더를 보고 나눠줄지 정한다. 캐시에 담을 수 있는 응답이고, 크기가 maxBytes 안이고, Vary 헤더 값이 같은 Seat에게만 나눠준다.
+ * 못 나눠주는 Seat은 RETRY를 받고 자기 요청을 직접 업스트림에 보낸다. 재검증 결과가 304면 다들 캐시에서 다시 찾는다.
+ */
+public final class Flight {
+
+    public enum Status {
+        // 응답 헤더를 기다리는 중
+        WAITING,
+        // 응답 바이트를 받아 쓰면 된다
+        STREAMING,
+        // 나눠받을 수 없다. 자기 요청을 직접 처리한다
+        RETRY,
+        // 응답 도중 리더가 실패했다. 이미 일부를 썼으니 클라 커넥션을 닫아야 한다
+        FAILED
+    }
+
+    private enum State {
+        WAITING, STREAMING, NOT_MODIFIED, REJECTED
+    }
+
+    /**
+     * Seat에 새 소식(응답 헤더 판단, 바이트 추가, 끝)이 있을 때 리더 스레드에서 불린다. 자기 스레드로 넘겨서 처리할 것.
+     */
+    public interface Listener {
+        void onFlightUpdate();
+    }
+
+    private final ResponseCache cache;
+    private final String key;
+    private final String[][] requestHeaders;
+    private final int maxSeats;
+    private final long maxBytes;
+
+    private State state = State.WAITING;
+    private final List<Seat> seats = new ArrayList<>();
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private long bytes;
+    private String[] varyNames;
+    private boolean completed;
+    private boolean failed;
+    private boolean keepAlive;
+
+    Flight(ResponseCache cache, String key, String[][] requestHeaders, int maxSeats, long maxBytes) {
+        this.cache = cache;
+        this.key = key;
+        this.requestHeaders = requestHeaders;
+        this.maxSeats = maxSeats;
+        this.maxBytes = maxBytes;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * 뒤에 온 요청을 태운다. 자리가 없거나 이미 나눠줄 수 없게 됐으면 null
+     */
+    synchronized Seat join(String[][] joinerHeaders, Listener listener) {
+        if (seats.size() >= maxSeats || completed || failed || (state != State.WAITING && state != State.STREAMING)) {
+            return null;
+        }
+        if (state == State.STREAMING && !sameVariant(joinerHeaders)) {
+            return null;
+        }
+        Seat seat = new Seat(joinerHeaders, listener);
+        seats.add(seat);
+        return seat;
+    }
+
+    /**
+     * 리더가 응답 헤더를 다 받았다. 나눠줄지 정하고, 나눠주면 헤더 바이트를 첫 조각으로 둔다.
+     * @param revalidating 리더가 조건부 요청으로 재검증 중이면 true
+     * @return 나눠주지 않기로 했으면 false. 더 넘기지 않아도 된다
+     */
+    boolean onHead(byte[] head, int length, int statusCode, boolean revalidating) {
+        State decided;
+        synchronized (this) {
+            if (revalidating && statusCode == 304) {
+                state = State.NOT_MODIFIED;
+            } else if (seats.isEmpty()) {
+                // 아무도 안 탔으면 바이트를 복사해 둘 이유가 없다. 이 뒤에 오는 요청은 직접 업스트림에 보낸다.
+                state = State.REJECTED;
+            } else {
+                CachedHeaders headers = CachedHeaders.parse(head, length, System.currentTimeMillis());
+                long contentLength = CachedHeaders.contentLength(head, length);
+                if (headers == null || statusCode != headers.getStatusCode() || length + Math.max(0, contentLength) > maxBytes) {
+                    state = State.REJECTED;
+                } else {
+                    state = State.STREAMING;
+                    varyNames = headers.getVaryNames();
+                    for (Seat seat : seats) {
+                        seat.rejected = !sameVariant(seat.requestHeaders);
+                    }
+                    chunks.add(ByteBuffer.wrap(Arrays.copyOf(head, length)).asReadOnlyBuffer());
+                    bytes = length;
+                }
+            }
+            decided = state;
+        }
+        if (decided == State.REJECTED) {
+            cache.endFlight(this);
+        }
+        notifySeats();
+        return decided != State.REJECTED;
+    }
+
+    /**
+     * 리더가 받은 응답 바이트 src[from, to). 복사해 둔다.
+     * @return maxBytes를 넘어서 그만 넘겨야 하면 false
+     */
+    boolean append(ByteBuffer src, int from, int to) {
+        boolean overflow;
+        synchronized (this) {
+            if (failed) {
+                return false;
+            }
+            if (state != State.STREAMING) {
+                return state == State.NOT_MODIFIED;
+            }
+            bytes += to - from;
+            if (bytes <= maxBytes) {
+                byte[] copy = new byte[to - from];
+                src.get(from, copy);
+                chunks.add(ByteBuffer.wrap(copy).asReadOnlyBuffer());
+            } else {
+                failed = true;
+            }
+            overflow = failed;
+        }
+        if (overflow) {
+            cache.endFlight(this);
+        }
+        notifySeats();
+        return !overflow;
+    }
+
+    /**
+     * 리더의 응답이 프레이밍대로 끝났다. 304였으면 캐시 항목을 갱신한 뒤에 불러야 Seat들이 캐시에서 찾는다.
+     */
+    void complete(boolean keepAlive) {
+        synchronized (this) {
+            if (completed || failed) {
+                return;
+            }
+            completed = true;
+            this.keepAlive = keepAlive;
+        }
+        cache.endFlight(this);
+        notifySeats();
+    }
+
+    /**
+     * 리더가 응답을 끝까지 못 받았다. 아직 아무것도 안 쓴 Seat은 직접 다시 요청한다.
+     */
+    void fail() {
+        synchronized (this) {
+            if (completed || failed) {
+                return;
+            }
+            failed = true;
+        }
+        cache.endFlight(this);
+        notifySeats();
+    }
+
+    private void notifySeats() {
+        Seat[] snapshot;
+        synchronized (this) {
+            snapshot = seats.toArray(new Seat[0]);
+        }
+        for (Seat seat : snapshot) {
+            seat.listener.onFlightUpdate();
+        }
+    }
+
+    private boolean sameVariant(String[][] otherHeaders) {
+        for (String name : varyNames) {
+            if (!ResponseCache.headerValue(requestHeaders, name).equals(ResponseCache.headerValue(otherHeaders, name))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 리더 응답을 나눠받는 자리 하나. 가진 쪽 스레드에서만 부른다.
+     */
+    public final class Seat {
+        private final String[][] requestHeaders;
+        private final Listener listener;
+        private int next;
+        private boolean rejected;
+
+        private Seat(String[][] requestHeaders, Listener listener) {
+            this.requestHeaders = requestHeaders;
+            this.listener = listener;
+        }
+
+        public Status getStatus() {
+            synchronized (Flight.this) {
+                if (rejected || state == State.REJECTED) {
+                    return Status.RETRY;
+                }
+                if (failed) {
+                    return next == 0 ? Status.RETRY : Status.FAILED;
+                }
+                switch (state) {
+                    case STREAMING:
+                        return Status.STREAMING;
+                    case NOT_MODIFIED:
+                        return completed ? Status.RETRY : Status.WAITING;
+                    default:
+                        return Status.WAITING;
+                }
+            }
+        }
+
+        /**
+         * 아직 안 읽은 다음 조각. 조각은 읽기 전용이고 여러 Seat이 나눠 쓰므로 duplicate를 준다.
+         * @return 지금 읽을 게 없으면 null
+         */
+        public ByteBuffer next() {
+            synchronized (Flight.this) {
+                if (rejected || next == chunks.size()) {
+                    return null;
+                }
+                return chunks.get(next++).duplicate();
+            }
+        }
+
+        /**
+         * 응답이 끝났고 다 읽었다
+         */
+        public boolean isComplete() {
+            synchronized (Flight.this) {
+                return completed && next == chunks.size();
+            }
+        }
+
+        /**
+         * 업스트림이 응답 뒤에도 커넥션 유지를 허락했는지. 리더와 같은 판단으로 클라 커넥션을 이어 쓴다.
+         */
+        public boolean isKeepAlive() {
+            synchronized (Flight.this) {
+                return keepAlive;
+            }
+        }
+
+        /**
+         * 내린다. 여러 번 불려도 된다.
+         */
+        public void leave() {
+            synchronized (Flight.this) {
+                seats.remove(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.crazyproxy.cache;
+
+/**
+ * 키별 최근 요청 빈도를 대충 세는 count-min sketch. 카운터는 4비트(최대 15)이고 long 하나에 16개씩 들어간다.
+ * 키 하나당 4개 카운터를 올리고 읽을 때는 그중 최솟값을 본다.
+ * 추가가 sampleSize번 쌓이면 전부 반으로 줄인다(aging). 예전에 인기 있던 키가 영원히 버티지 않게.
+ * 스레드 안전하지 않다. CachePolicy 락 안에서만 쓴다.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int expectedEntries) {
+        int size = Integer.highestOneBit(Math.max(64, Math.min(expectedEntries, 1 << 20)) - 1) << 1;
+        this.table = new long[size];
+        this.tableMask = size - 1;
+        this.sampleSize = 10 * size;
+    }
+
+    int frequency(int hash) {
+        int frequency = 15;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long h = spread(hash, i);
+            int index = (int) (h >>> 32) & tableMask;
+            int shift = ((int) h & 15) << 2;
+            frequency = Math.min(frequency, (int) ((table[index] >>> shift) & 0xf));
+        }
+        return frequency;
+    }
+
+    void increment(int hash) {
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            long h = spread(hash, i);
+            int index = (int) (h >>> 32) & tableMask;
+            int shift = ((int) h & 15) << 2;
+            if (((table[index] >>> shift) & 0xf) < 15) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions >>>= 1;
+    }
+
+    private static long spread(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        return h ^ (h >>> 29);
+    }
+}
@@ -0,0 +1,392 @@
+package org.crazyproxy.cache;
+
+import lombok.Getter;
+import org.crazyproxy.http.HttpRequestParser;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 포트별로 켜는 공유 HTTP 응답 캐시 (RFC 9111).
+ * 키는 "포트 target"이고, 응답에 Vary가 있으면 그 요청 헤더 값들을 뒤에 붙인다. 포트별 Vary 이름은 varyNames에 들고 있다.
+ * 바디는 CacheArena(다이렉트 메모리, maxBytes 까지)에 담고, 넘치면 CachePolicy(W-TinyLFU)가 고른 항목을 쫓아낸다.
+ *
+ * GET만 담는다. 요청 바디, Authorization, Range, Upgrade가 있거나 no-store면 캐시를 안 거친다.
+ * 응답의 신선도는 s-maxage, max-age, Expires 순으로 보고 휴리스틱 신선도는 쓰지 않는다.
+ *
+ * 캐시를 놓친 같은 키의 요청이 동시에 여러 개 오면 처음 것만 업스트림에 보내고 나머지는 그 응답을 나눠받는다 (Flight).
+ * 나눠받는 쪽은 응답 헤더를 coalesceMaxWait 까지만 기다리고, 한 Flight에 coalesceMaxFanOut 개까지만 탄다.
+ */
+public class ResponseCache {
+
+    private static ResponseCache instance;
+
+    private final Set<String> ports;
+    private final CacheArena arena;
+    private final CachePolicy policy;
+    @Getter
+    private final int maxObjectSize;
+    private final Map<String, CacheEntry> entries = new ConcurrentHashMap<>();
+    // "포트 target" -> 그 응답의 Vary 헤더 이름들
+    private final Map<String, String[]> varyNames = new ConcurrentHashMap<>();
+    // 키 -> 업스트림에 가 있는 요청
+    private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+    @Getter
+    private final long coalesceMaxWait;
+    private final int coalesceMaxFanOut;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+    private final LongAdder stores = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder coalesceFallbacks = new LongAdder();
+
+    private ResponseCache(Set<String> ports, long maxBytes, int maxObjectSize, long coalesceMaxWait, int coalesceMaxFanOut) {
+        this.ports = ports;
+        this.arena = new CacheArena(maxBytes);
+        this.policy = new CachePolicy(maxBytes);
+        this.maxObjectSize = maxObjectSize;
+        this.coalesceMaxWait = coalesceMaxWait;
+        this.coalesceMaxFanOut = coalesceMaxFanOut;
+    }
+
+    /**
+     * @param ports 캐시를 켤 포트들. 비었으면 캐시는 꺼진다
+     * @param maxBytes 바디를 담는 메모리 상한
+     * @param maxObjectSize 응답 하나(헤더+바디) 상한. 넘으면 담지도, 나눠주지도 않는다
+     * @param coalesceMaxWait 같은 요청을 묶었을 때 뒤에 온 요청이 응답 헤더를 기다리는 시간(ms). 0이면 묶지 않는다
+     * @param coalesceMaxFanOut 요청 하나의 응답을 나눠받을 수 있는 요청 수. 0이면 묶지 않는다
+     */
+    public static void initInstance(Set<String> ports, long maxBytes, int maxObjectSize, long coalesceMaxWait, int coalesceMaxFanOut) {
+        if (instance != null) {
+            throw new IllegalStateException("ResponseCache has already been initialized");
+        }
+        instance = new ResponseCache(ports, maxBytes, maxObjectSize, coalesceMaxWait, coalesceMaxFanOut);
+    }
+
+    public static ResponseCache getInstance() {
+        if (instance == null) {
+            throw new IllegalStateException("ResponseCache not initialized");
+        }
+        return instance;
+    }
+
+    public boolean isEnabled(String port) {
+        return ports.contains(port);
+    }
+
+    /**
+     * 파싱이 끝난 요청으로 캐시를 찾는다. buffer[start, start + headerLength)가 요청 헤더.
+     * @return 캐시를 안 거치는 요청이면 null. 아니면 다 쓰고 release 해야 하는 CacheLookup
+     */
+    public CacheLookup lookup(String port, HttpRequestParser parser, ByteBuffer buffer, int start) {
+        boolean headRequest = parser.isHeadRequest();
+        if ((!parser.isGetRequest() && !headRequest) || parser.hasBody()) {
+            return null;
+        }
+        boolean noCache = false;
+        String ifNoneMatch = null;
+        String ifModifiedSince = null;
+        for (int i = 0; i < parser.getHeaderCount(); i++) {
+            if (parser.isHeader(buffer, start, i, "authorization")
+                    || parser.isHeader(buffer, start, i, "range")
+                    || parser.isHeader(buffer, start, i, "upgrade")) {
+                return null;
+            }
+            if (parser.isHeader(buffer, start, i, "cache-control")) {
+                String cacheControl = parser.getHeaderValue(buffer, start, i);
+                if (CachedHeaders.hasDirective(cacheControl, "no-store")) {
+                    return null;
+                }
+                noCache |= CachedHeaders.hasDirective(cacheControl, "no-cache")
+                        || CachedHeaders.directiveSeconds(cacheControl, "max-age") == 0;
+            } else if (parser.isHeader(buffer, start, i, "pragma")) {
+                noCache |= CachedHeaders.containsToken(parser.getHeaderValue(buffer, start, i), "no-cache");
+            } else if (parser.isHeader(buffer, start, i, "if-none-match")) {
+                ifNoneMatch = parser.getHeaderValue(buffer, start, i);
+            } else if (parser.isHeader(buffer, start, i, "if-modified-since")) {
+                ifModifiedSince = parser.getHeaderValue(buffer, start, i);
+            }
+        }
+
+        String primaryKey = port + ' ' + parser.getTarget(buffer, start);
+        String[] vary = varyNames.get(primaryKey);
+        String key = vary == null ? primaryKey : primaryKey + varySuffix(vary, snapshot(parser, buffer, start));
+        CacheEntry entry = entries.get(key);
+        if (entry != null && !entry.retain()) {
+            entry = null;
+        }
+        policy.recordAccess(primaryKey.hashCode(), entry);
+
+        long now = System.currentTimeMillis();
+        boolean clientConditional = ifNoneMatch != null || ifModifiedSince != null;
+        if (entry != null) {
+            CachedHeaders headers = entry.getHeaders();
+            boolean clientCopyValid = clientConditional && headers.matchesClientCopy(ifNoneMatch, ifModifiedSince);
+            if (!noCache && headers.isFresh(now)) {
+                hits.increment();
+                return new CacheLookup(this, CacheLookup.Action.HIT, primaryKey, key, null, entry, clientCopyValid, false, false);
+            }
+            if (!noCache && headers.isStaleServable(now)) {
+                staleHits.increment();
+                // HEAD로는 바디를 못 받으니 뒤에서 재검증은 GET이 맡는다.
+                boolean background = !headRequest && entry.tryStartRevalidation();
+                String[][] requestHeaders = background ? snapshot(parser, buffer, start) : null;
+                return new CacheLookup(this, CacheLookup.Action.STALE, primaryKey, key, requestHeaders, entry, clientCopyValid,
+                        background, false);
+            }
+            if (!headRequest && !clientConditional && headers.hasValidator()) {
+                revalidations.increment();
+                return new CacheLookup(this, CacheLookup.Action.REVALIDATE, primaryKey, key, snapshot(parser, buffer, start),
+                        entry, false, false, isCoalescing());
+            }
+            entry.release();
+        }
+        misses.increment();
+        if (headRequest) {
+            return null;
+        }
+        // 클라가 보낸 조건부 요청의 응답(304일 수 있다)은 다른 요청에게 나눠줄 수 없다.
+        return new CacheLookup(this, CacheLookup.Action.MISS, primaryKey, key, snapshot(parser, buffer, start), null, false,
+                false, isCoalescing() && !clientConditional);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getStaleHits() {
+        return staleHits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getRevalidations() {
+        return revalidations.sum();
+    }
+
+    public long getNotModified() {
+        return notModified.sum();
+    }
+
+    public long getStores() {
+        return stores.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getCoalesceFallbacks() {
+        return coalesceFallbacks.sum();
+    }
+
+    /**
+     * 나눠받던 요청이 기다리다 지쳤거나 나눠받을 수 없어서 직접 업스트림에 보낸다
+     */
+    public void recordCoalesceFallback() {
+        coalesceFallbacks.increment();
+    }
+
+    public long getAdmissionRejects() {
+        return policy.getAdmissionRejects();
+    }
+
+    public long getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * 캐시가 쓰는 바이트 (바디 세그먼트 + 헤더)
+     */
+    public long getWeight() {
+        return policy.getWeight();
+    }
+
+    public long getReservedBytes() {
+        return arena.getReservedBytes();
+    }
+
+    /**
+     * 같은 키로 업스트림에 가 있는 요청이 있으면 그 응답을 나눠받는다.
+     * @return 탄 자리. 묶을 요청이 없거나 자리가 없으면 null. 이 요청이 직접 업스트림에 보낸다
+     */
+    public Flight.Seat join(CacheLookup lookup, Flight.Listener listener) {
+        if (!lookup.isCoalescable()) {
+            return null;
+        }
+        Flight flight = flights.get(lookup.getKey());
+        Flight.Seat seat = flight == null ? null : flight.join(lookup.getRequestHeaders(), listener);
+        if (seat != null) {
+            coalesced.increment();
+        }
+        return seat;
+    }
+
+    /**
+     * 이 요청이 리더가 되어 Flight를 연다. 이미 누가 열었으면 null
+     */
+    Flight lead(CacheLookup lookup) {
+        if (!lookup.isCoalescable()) {
+            return null;
+        }
+        Flight flight = new Flight(this, lookup.getKey(), lookup.getRequestHeaders(), coalesceMaxFanOut, maxObjectSize);
+        return flights.putIfAbsent(lookup.getKey(), flight) == null ? flight : null;
+    }
+
+    void endFlight(Flight flight) {
+        flights.remove(flight.getKey(), flight);
+    }
+
+    private boolean isCoalescing() {
+        return coalesceMaxWait > 0 && coalesceMaxFanOut > 0;
+    }
+
+    /**
+     * 바디를 담을 세그먼트. 자리가 없으면 담는 응답보다 덜 찾힌 항목을 하나씩 쫓아내며 만든다.
+     * @param candidateHash 담는 중인 응답의 키 해시
+     * @return 쫓아낼 게 없으면 null
+     */
+    ByteBuffer allocateSegment(int candidateHash) {
+        ByteBuffer segment = arena.allocate();
+        while (segment == null) {
+            CacheEntry victim = policy.evictFor(candidateHash);
+            if (victim == null) {
+                return null;
+            }
+            drop(victim);
+            segment = arena.allocate();
+        }
+        return segment;
+    }
+
+    void freeSegment(ByteBuffer segment) {
+        arena.free(segment);
+    }
+
+    /**
+     * 새 응답을 담는다. 세그먼트는 이제 캐시 것이다.
+     * @param requestHeaders 응답의 Vary로 키를 만들 요청 헤더
+     */
+    void store(String primaryKey, String[][] requestHeaders, CachedHeaders headers, ByteBuffer[] segments, long bodyLength) {
+        String[] vary = headers.getVaryNames();
+        String key;
+        if (vary.length == 0) {
+            varyNames.remove(primaryKey);
+            key = primaryKey;
+        } else {
+            varyNames.put(primaryKey, vary);
+            key = primaryKey + varySuffix(vary, requestHeaders);
+        }
+        CacheEntry entry = new CacheEntry(key, primaryKey.hashCode(), arena, segments, bodyLength, headers);
+        CacheEntry previous = entries.put(key, entry);
+        if (previous != null) {
+            policy.remove(previous);
+            previous.release();
+        }
+        stores.increment();
+
+        List<CacheEntry> evicted = new ArrayList<>(2);
+        policy.add(entry, evicted);
+        for (CacheEntry victim : evicted) {
+            if (victim == entry) {
+                // 빈도가 낮아서 입장을 못 했다.
+                if (entries.remove(key, entry)) {
+                    entry.release();
+                }
+            } else {
+                drop(victim);
+            }
+        }
+    }
+
+    /**
+     * 304로 재검증한 항목의 헤더를 갈아끼운다. 갱신한 헤더가 담을 수 없는 응답이면 항목을 뺀다.
+     */
+    void refresh(CacheEntry entry, byte[] notModifiedHead, int length, long now) {
+        notModified.increment();
+        CachedHeaders updated = entry.getHeaders().update(notModifiedHead, length, now);
+        if (updated == null) {
+            invalidate(entry);
+            return;
+        }
+        entry.setHeaders(updated);
+    }
+
+    /**
+     * 포트의 타겟이 바뀌었다. 예전 업스트림에게 받은 응답은 더 내보내지 않는다.
+     */
+    public void invalidatePort(String port) {
+        String prefix = port + ' ';
+        for (CacheEntry entry : entries.values()) {
+            if (entry.key.startsWith(prefix)) {
+                invalidate(entry);
+            }
+        }
+        varyNames.keySet().removeIf(primaryKey -> primaryKey.startsWith(prefix));
+    }
+
+    void invalidate(CacheEntry entry) {
+        if (entries.remove(entry.key, entry)) {
+            policy.remove(entry);
+            entry.release();
+        }
+    }
+
+    private void drop(CacheEntry victim) {
+        evictions.increment();
+        if (entries.remove(victim.key, victim)) {
+            victim.release();
+        }
+    }
+
+    /**
+     * 요청 헤더 {소문자 이름, 값}. 같은 이름은 콤마로 잇지 않고 따로 둔다.
+     */
+    private static String[][] snapshot(HttpRequestParser parser, ByteBuffer buffer, int start) {
+        String[][] headers = new String[parser.getHeaderCount()][];
+        for (int i = 0; i < headers.length; i++) {
+            headers[i] = new String[] {parser.getHeaderName(buffer, start, i), parser.getHeaderValue(buffer, start, i)};
+        }
+        return headers;
+    }
+
+    private static String varySuffix(String[] names, String[][] requestHeaders) {
+        StringBuilder suffix = new StringBuilder();
+        for (String name : names) {
+            suffix.append('\n').append(name).append(':').append(headerValue(requestHeaders, name));
+        }
+        return suffix.toString();
+    }
+
+    /**
+     * 요청 헤더 값. 같은 이름이 여러 줄이면 콤마로 잇는다. 없으면 빈 문자열
+     */
+    static String headerValue(String[][] requestHeaders, String lowerName) {
+        StringBuilder value = new StringBuilder();
+        for (String[] header : requestHeaders) {
+            if (header[0].equals(lowerName)) {
+                if (value.length() > 0) {
+                    value.append(',');
+                }
+                value.append(header[1].trim());
+            }
+        }
+        return value.toString();
+    }
+}
@@ -0,0 +1,223 @@
+package org.crazyproxy.compress;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.crazyproxy.http.HttpRequestParser;
+import org.crazyproxy.metrics.TargetMetrics;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/**
+ * 포트별로 켜는 응답 압축 (gzip, deflate).
+ * 요청의 Accept-Encoding으로 인코딩을 고르고, 응답 헤더를 보고 압축할지 정한다 (ResponseCompressor).
+ *
+ * Deflater는 네이티브 메모리를 잡으므로 요청마다 만들지 않고 인코딩별 풀에서 빌린다. 풀은 둘 합쳐 poolSize 개까지만 들고 있고 넘치면 end() 한다.
+ * gzip은 raw deflate(nowrap) Deflater에 헤더와 CRC32 트레일러를 직접 붙이고, deflate는 zlib 포맷 그대로 쓴다.
+ */
+@Slf4j
+public class ResponseCompression {
+
+    public enum Encoding {
+        GZIP("gzip"),
+        DEFLATE("deflate");
+
+        @Getter
+        private final String token;
+
+        Encoding(String token) {
+            this.token = token;
+        }
+    }
+
+    private static ResponseCompression instance;
+
+    private final Set<String> ports;
+    // 소문자 미디어 타입들. "text/*" 처럼 끝이 /*면 앞부분만 본다
+    private final List<String> types;
+    @Getter
+    private final int minLength;
+    private final int level;
+    private final int poolSize;
+    private final Queue<Deflater> gzipDeflaters = new ConcurrentLinkedQueue<>();
+    private final Queue<Deflater> zlibDeflaters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    private final LongAdder created = new LongAdder();
+
+    private ResponseCompression(Set<String> ports, List<String> types, int minLength, int level, int poolSize) {
+        this.ports = ports;
+        this.types = new ArrayList<>();
+        for (String type : types) {
+            this.types.add(type.toLowerCase(Locale.ROOT));
+        }
+        this.minLength = minLength;
+        this.level = level;
+        this.poolSize = poolSize;
+        if (!ports.isEmpty()) {
+            log.info("Response compression. ports = {}, types = {}, minLength = {}, level = {}, poolSize = {}",
+                    ports, this.types, minLength, level, poolSize);
+        }
+    }
+
+    /**
+     * @param ports 압축을 켤 포트들. 비었으면 압축은 꺼진다
+     * @param types 압축할 Content-Type들 ("text/*" 가능)
+     * @param minLength Content-Length가 이보다 작은 응답은 그대로 보낸다. 길이를 모르는 응답은 압축한다
+     * @param level Deflater 압축 레벨 (1 ~ 9)
+     * @param poolSize 풀에 들고 있을 Deflater 수 (두 인코딩 합쳐서)
+     */
+    public static void initInstance(Set<String> ports, List<String> types, int minLength, int level, int poolSize) {
+        if (instance != null) {
+            throw new IllegalStateException("ResponseCompression has already been initialized");
+        }
+        instance = new ResponseCompression(ports, types, minLength, level, poolSize);
+    }
+
+    public static ResponseCompression getInstance() {
+        if (instance == null) {
+            throw new IllegalStateException("ResponseCompression not initialized");
+        }
+        return instance;
+    }
+
+    public boolean isEnabled(String port) {
+        return ports.contains(port);
+    }
+
+    /**
+     * 파싱이 끝난 요청으로 압축기를 만든다. buffer[start, start + headerLength)가 요청 헤더.
+     * HTTP/1.0 클라는 chunked를 못 받으니 안 한다. HEAD는 바디가 없다.
+     * @return 압축하지 않는 요청이면 null. 아니면 교환이 끝날 때 close 해야 하는 ResponseCompressor
+     */
+    public ResponseCompressor newCompressor(String port, HttpRequestParser parser, ByteBuffer buffer, int start,
+                                            TargetMetrics targetMetrics) {
+        if (!isEnabled(port) || parser.isHttp10() || parser.isHeadRequest()) {
+            return null;
+        }
+        Encoding encoding = null;
+        for (int i = 0; i < parser.getHeaderCount(); i++) {
+            if (parser.isHeader(buffer, start, i, "accept-encoding")) {
+                encoding = selectEncoding(parser.getHeaderValue(buffer, start, i));
+                break;
+            }
+        }
+        return encoding == null ? null : new ResponseCompressor(this, encoding, targetMetrics);
+    }
+
+    /**
+     * Accept-Encoding에서 q가 0이 아닌 gzip, deflate 중 하나를 고른다. 둘 다 되면 gzip.
+     */
+    static Encoding selectEncoding(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        boolean gzip = false;
+        boolean deflate = false;
+        Boolean wildcard = null;
+        boolean gzipRefused = false;
+        boolean deflateRefused = false;
+        for (String part : acceptEncoding.split(",")) {
+            int semicolon = part.indexOf(';');
+            String coding = (semicolon < 0 ? part : part.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+            boolean accepted = semicolon < 0 || !isZeroQuality(part.substring(semicolon + 1));
+            switch (coding) {
+                case "gzip":
+                case "x-gzip":
+                    gzip |= accepted;
+                    gzipRefused |= !accepted;
+                    break;
+                case "deflate":
+                    deflate |= accepted;
+                    deflateRefused |= !accepted;
+                    break;
+                case "*":
+                    wildcard = accepted;
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (wildcard != null && wildcard) {
+            gzip |= !gzipRefused;
+            deflate |= !deflateRefused;
+        }
+        if (gzip) {
+            return Encoding.GZIP;
+        }
+        return deflate ? Encoding.DEFLATE : null;
+    }
+
+    private static boolean isZeroQuality(String params) {
+        for (String param : params.split(";")) {
+            String token = param.trim();
+            if (token.length() > 1 && (token.charAt(0) == 'q' || token.charAt(0) == 'Q') && token.charAt(1) == '=') {
+                try {
+                    return Double.parseDouble(token.substring(2).trim()) <= 0;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Content-Type 값(파라미터 포함)이 압축할 타입인지
+     */
+    boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int semicolon = contentType.indexOf(';');
+        String type = (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+        for (String candidate : types) {
+            if (candidate.endsWith("/*") ? type.startsWith(candidate.substring(0, candidate.length() - 1)) : type.equals(candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    Deflater acquire(Encoding encoding) {
+        Deflater deflater = (encoding == Encoding.GZIP ? gzipDeflaters : zlibDeflaters).poll();
+        if (deflater != null) {
+            pooled.decrementAndGet();
+            return deflater;
+        }
+        created.increment();
+        return new Deflater(level, encoding == Encoding.GZIP);
+    }
+
+    void release(Encoding encoding, Deflater deflater) {
+        if (pooled.incrementAndGet() > poolSize) {
+            pooled.decrementAndGet();
+            deflater.end();
+            return;
+        }
+        deflater.reset();
+        (encoding == Encoding.GZIP ? gzipDeflaters : zlibDeflaters).offer(deflater);
+    }
+
+    /**
+     * 지금까지 새로 만든 Deflater 수. 풀이 모자라면 계속 오른다
+     */
+    public long getCreated() {
+        return created.sum();
+    }
+
+    /**
+     * 풀에서 쉬고 있는 Deflater 수
+     */
+    public int getPooled() {
+        return pooled.get();
+    }
+}
@@ -0,0 +1,580 @@
+package org.crazyproxy.compress;
+
+import lombok.extern.slf4j.Slf4j;
+import org.crazyproxy.buffer.BufferPool;
+import org.crazyproxy.buffer.PooledBuffer;
+import org.crazyproxy.metrics.TargetMetrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 요청 하나의 HTTP/1.1 응답을 받는 대로 압축해서 넘긴다. ClientWorker가 클라에게 쓰기 직전에 거친다. 리액터 스레드에서만 쓴다.
+ *
+ * 응답 헤더가 다 올 때까지 모아서 압축할지 정한다. 200이고, 이미 인코딩돼 있지 않고, no-transform이 아니고, Content-Type이 압축할 타입이고,
+ * Content-Length가 minLength 이상(모르면 압축)일 때만 한다. 아니면 헤더부터 끝까지 그대로 넘긴다.
+ * 압축하면 Content-Length/Transfer-Encoding을 빼고 Content-Encoding, Transfer-Encoding: chunked, Vary: Accept-Encoding을 붙인다.
+ * 바이트가 달라지므로 강한 ETag는 약한 ETag(W/)로 바꾼다.
+ *
+ * 바디는 업스트림 프레이밍(길이, chunked, 닫힐 때까지)을 벗겨서 Deflater에 넣고, 한 번 받은 만큼을 SYNC_FLUSH로 비워서 청크 하나로 내보낸다.
+ * 바디를 통째로 모으지 않으니 스트리밍 응답도 밀리지 않는다. 출력 버퍼는 BufferPool에서 빌린 것 하나를 청크마다 다시 쓴다.
+ */
+@Slf4j
+public class ResponseCompressor {
+
+    /**
+     * 압축기가 내보낸 바이트를 받는 쪽. 넘긴 버퍼는 돌아오면 다시 쓰므로 다 못 보낸 건 받는 쪽이 복사해 둬야 한다 (Outbound처럼)
+     */
+    public interface Sink {
+        void write(ByteBuffer bytes) throws IOException;
+    }
+
+    private enum Phase {
+        HEAD, LENGTH, CHUNK_SIZE, CHUNK_DATA, CHUNK_CRLF, TRAILERS, UNTIL_CLOSE, DONE, PASSTHROUGH
+    }
+
+    private static final int MIN_HEAD_BUFFER = 4 * 1024;
+    private static final int MAX_RESPONSE_HEAD = 64 * 1024;
+    private static final int OUT_BUFFER = 32 * 1024;
+    // 청크 크기 줄(16진수 8자리 + CRLF)이 들어갈 앞자리
+    private static final int CHUNK_HEADER = 10;
+    // 청크 끝 CRLF + gzip 트레일러 + 마지막 청크가 들어갈 뒷자리
+    private static final int CHUNK_TAIL = 2 + 8 + 5;
+    // 고정 헤더: 매직, CM=deflate, 플래그 없음, MTIME 없음, XFL 없음, OS=unknown
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = bytes("0\r\n\r\n");
+    private static final byte[] HTTP11 = bytes("HTTP/1.1 ");
+    private static final byte[] CHUNKED_LINE = bytes("Transfer-Encoding: chunked\r\n");
+    private static final byte[] VARY_LINE = bytes("Vary: Accept-Encoding\r\n");
+    private static final byte[] VARY_APPEND = bytes(", Accept-Encoding");
+    private static final byte[] WEAK_ETAG = bytes("ETag: W/");
+    private static final byte[] HEX = bytes("0123456789abcdef");
+
+    private final ResponseCompression compression;
+    private final ResponseCompression.Encoding encoding;
+    private final TargetMetrics targetMetrics;
+
+    private Phase phase = Phase.HEAD;
+    // 응답 헤더를 다 받을 때까지 모으는 곳 (쓰기 모드)
+    private PooledBuffer head;
+    // 헤더 끝(빈 줄)을 찾으려고 센 연속 줄바꿈 수
+    private int newlines;
+    private long remaining;
+    private long chunkSize;
+    private int chunkDigits;
+    private boolean chunkExtension;
+    private boolean trailerLine;
+
+    private Deflater deflater;
+    private CRC32 crc;
+    private PooledBuffer out;
+    // 첫 출력을 보냈다. gzip이면 헤더를 그 앞에 붙였다
+    private boolean started;
+    // SYNC_FLUSH로 아직 안 비운 입력이 있다
+    private boolean unflushed;
+    // 지표는 write 한 번에 모아서 기록한다
+    private long pendingIn;
+    private long pendingOut;
+    private long pendingNanos;
+
+    ResponseCompressor(ResponseCompression compression, ResponseCompression.Encoding encoding, TargetMetrics targetMetrics) {
+        this.compression = compression;
+        this.encoding = encoding;
+        this.targetMetrics = targetMetrics;
+    }
+
+    /**
+     * 응답 바이트(position ~ limit)를 넘긴다. 압축하면 바꾼 바이트를, 아니면 받은 그대로 sink로 쓴다. src는 다 읽은 걸로 둔다.
+     * 응답이 끝난 뒤에 오는 바이트는 버린다.
+     */
+    public void write(ByteBuffer src, Sink sink) throws IOException {
+        while (src.hasRemaining() && phase != Phase.DONE && phase != Phase.PASSTHROUGH) {
+            switch (phase) {
+                case HEAD:
+                    readHead(src, sink);
+                    break;
+                case LENGTH:
+                case CHUNK_DATA: {
+                    int length = (int) Math.min(remaining, src.remaining());
+                    deflate(src, length, sink);
+                    remaining -= length;
+                    if (remaining == 0) {
+                        if (phase == Phase.LENGTH) {
+                            endBody(sink);
+                        } else {
+                            phase = Phase.CHUNK_CRLF;
+                        }
+                    }
+                    break;
+                }
+                case UNTIL_CLOSE:
+                    deflate(src, src.remaining(), sink);
+                    break;
+                case CHUNK_SIZE:
+                    readChunkSize(src);
+                    break;
+                case CHUNK_CRLF:
+                    if (skipLine(src)) {
+                        phase = Phase.CHUNK_SIZE;
+                    }
+                    break;
+                case TRAILERS:
+                    // 트레일러는 버린다. 빈 줄이 바디의 끝
+                    readTrailers(src, sink);
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected phase: " + phase);
+            }
+        }
+        if (phase == Phase.PASSTHROUGH && src.hasRemaining()) {
+            sink.write(src);
+        }
+        if (unflushed) {
+            unflushed = false;
+            drain(Deflater.SYNC_FLUSH, sink);
+        }
+        src.position(src.limit());
+        recordMetrics();
+    }
+
+    /**
+     * 응답이 끝났다. 닫힐 때까지 읽는 응답은 여기가 바디의 끝이라 압축 스트림을 닫고 마지막 청크를 쓴다.
+     */
+    public void finish(Sink sink) throws IOException {
+        if (phase == Phase.UNTIL_CLOSE) {
+            endBody(sink);
+            recordMetrics();
+        }
+    }
+
+    /**
+     * 빌린 Deflater와 버퍼를 돌려준다. 교환이 끝날 때 반드시 불러야 한다.
+     */
+    public void close() {
+        if (deflater != null) {
+            compression.release(encoding, deflater);
+            deflater = null;
+        }
+        BufferPool bufferPool = BufferPool.getInstance();
+        bufferPool.release(head);
+        bufferPool.release(out);
+        head = null;
+        out = null;
+    }
+
+    private void readHead(ByteBuffer src, Sink sink) throws IOException {
+        if (head == null) {
+            head = BufferPool.getInstance().acquire(MIN_HEAD_BUFFER);
+        }
+        while (src.hasRemaining()) {
+            ByteBuffer buffer = head.getBuffer();
+            if (!buffer.hasRemaining()) {
+                if (buffer.capacity() >= MAX_RESPONSE_HEAD) {
+                    // 이렇게 큰 헤더는 안 건드린다
+                    passThrough(sink);
+                    return;
+                }
+                head = BufferPool.getInstance().grow(head, buffer.capacity() * 2);
+                buffer = head.getBuffer();
+            }
+            byte b = src.get();
+            buffer.put(b);
+            if (b == '\n') {
+                if (++newlines == 2) {
+                    newlines = 0;
+                    onHeadEnd(sink);
+                    return;
+                }
+            } else if (b != '\r') {
+                newlines = 0;
+            }
+        }
+    }
+
+    private void onHeadEnd(Sink sink) throws IOException {
+        ByteBuffer buffer = head.getBuffer();
+        int length = buffer.position();
+        int statusEnd = lineEnd(buffer, 0, length);
+        int status = parseStatus(buffer, statusEnd);
+        if (status >= 100 && status < 200 && status != 101) {
+            // 100 Continue 같은 중간 응답. 그대로 보내고 진짜 응답 헤더를 다시 모은다
+            writeHead(sink);
+            buffer.clear();
+            return;
+        }
+
+        String contentType = null;
+        String transferEncoding = null;
+        long contentLength = -1;
+        int contentLengths = 0;
+        boolean encoded = false;
+        boolean noTransform = false;
+        boolean partial = false;
+        for (int from = nextLine(buffer, statusEnd, length); from < length; from = nextLine(buffer, from, length)) {
+            int end = lineEnd(buffer, from, length);
+            int colon = indexOf(buffer, from, end, (byte) ':');
+            if (colon < 0) {
+                continue;
+            }
+            if (isName(buffer, from, colon, "content-type")) {
+                contentType = value(buffer, colon, end);
+            } else if (isName(buffer, from, colon, "content-length")) {
+                contentLength = parseLength(value(buffer, colon, end));
+                contentLengths++;
+            } else if (isName(buffer, from, colon, "transfer-encoding")) {
+                transferEncoding = transferEncoding == null ? value(buffer, colon, end) : transferEncoding + "," + value(buffer, colon, end);
+            } else if (isName(buffer, from, colon, "content-encoding")) {
+                encoded |= !value(buffer, colon, end).equalsIgnoreCase("identity");
+            } else if (isName(buffer, from, colon, "cache-control")) {
+                noTransform |= value(buffer, colon, end).toLowerCase(Locale.ROOT).contains("no-transform");
+            } else if (isName(buffer, from, colon, "content-range")) {
+                partial = true;
+            }
+        }
+
+        boolean chunked = transferEncoding != null;
+        boolean framingOk = chunked ? transferEncoding.trim().equalsIgnoreCase("chunked") && contentLengths == 0
+                : contentLengths <= 1 && (contentLength >= 0 || contentLengths == 0);
+        // 업스트림이 HTTP/1.0이면 상태 줄을 그대로 두고 chunked를 붙일 수 없다
+        if (status != 200 || !startsWith(buffer, 0, HTTP11) || encoded || noTransform || partial || !framingOk
+                || !compression.isCompressible(contentType)
+                || (contentLength >= 0 && contentLength < compression.getMinLength())) {
+            passThrough(sink);
+            return;
+        }
+
+        out = BufferPool.getInstance().acquire(Math.max(OUT_BUFFER, length + 128));
+        writeCompressedHead(buffer, statusEnd, length);
+        ByteBuffer outBuffer = out.getBuffer();
+        outBuffer.flip();
+        sink.write(outBuffer);
+        BufferPool.getInstance().release(head);
+        head = null;
+
+        deflater = compression.acquire(encoding);
+        if (encoding == ResponseCompression.Encoding.GZIP) {
+            crc = new CRC32();
+        }
+        targetMetrics.responseCompressed();
+        if (chunked) {
+            phase = Phase.CHUNK_SIZE;
+        } else if (contentLength >= 0) {
+            remaining = contentLength;
+            phase = Phase.LENGTH;
+            if (contentLength == 0) {
+                endBody(sink);
+            }
+        } else {
+            phase = Phase.UNTIL_CLOSE;
+        }
+    }
+
+    /**
+     * 모아 둔 헤더를 압축 응답 헤더로 바꿔 out에 쓴다.
+     */
+    private void writeCompressedHead(ByteBuffer buffer, int statusEnd, int length) {
+        ByteBuffer dst = out.getBuffer();
+        dst.clear();
+        dst.put(dst.position(), buffer, 0, statusEnd).position(statusEnd).put(CRLF);
+        boolean varied = false;
+        for (int from = nextLine(buffer, statusEnd, length); from < length; from = nextLine(buffer, from, length)) {
+            int end = lineEnd(buffer, from, length);
+            int colon = indexOf(buffer, from, end, (byte) ':');
+            if (colon < 0) {
+                continue;
+            }
+            if (isName(buffer, from, colon, "content-length") || isName(buffer, from, colon, "transfer-encoding")) {
+                continue;
+            }
+            if (isName(buffer, from, colon, "etag")) {
+                String etag = value(buffer, colon, end);
+                if (etag.startsWith("\"")) {
+                    dst.put(WEAK_ETAG).put(etag.getBytes(StandardCharsets.ISO_8859_1)).put(CRLF);
+                    continue;
+                }
+            }
+            dst.put(dst.position(), buffer, from, end - from).position(dst.position() + end - from);
+            if (isName(buffer, from, colon, "vary")) {
+                varied = true;
+                String vary = value(buffer, colon, end).toLowerCase(Locale.ROOT);
+                if (!vary.contains("accept-encoding") && !vary.contains("*")) {
+                    dst.put(VARY_APPEND);
+                }
+            }
+            dst.put(CRLF);
+        }
+        dst.put(bytes("Content-Encoding: " + encoding.getToken() + "\r\n"));
+        dst.put(CHUNKED_LINE);
+        if (!varied) {
+            dst.put(VARY_LINE);
+        }
+        dst.put(CRLF);
+    }
+
+    private void passThrough(Sink sink) throws IOException {
+        phase = Phase.PASSTHROUGH;
+        writeHead(sink);
+        BufferPool.getInstance().release(head);
+        head = null;
+    }
+
+    private void writeHead(Sink sink) throws IOException {
+        ByteBuffer buffer = head.getBuffer();
+        buffer.flip();
+        sink.write(buffer);
+        buffer.clear();
+    }
+
+    private void readChunkSize(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            byte b = src.get();
+            if (b == '\n') {
+                if (chunkDigits == 0) {
+                    throw new IOException("invalid chunk size");
+                }
+                remaining = chunkSize;
+                chunkSize = 0;
+                chunkDigits = 0;
+                chunkExtension = false;
+                trailerLine = false;
+                phase = remaining == 0 ? Phase.TRAILERS : Phase.CHUNK_DATA;
+                return;
+            }
+            if (b == '\r' || chunkExtension) {
+                continue;
+            }
+            int digit = Character.digit(b, 16);
+            if (digit < 0) {
+                // chunk extension(;) 이후는 무시
+                chunkExtension = true;
+                continue;
+            }
+            chunkSize = (chunkSize << 4) | digit;
+            if (++chunkDigits > 15) {
+                throw new IOException("chunk size overflow");
+            }
+        }
+    }
+
+    private void readTrailers(ByteBuffer src, Sink sink) throws IOException {
+        while (src.hasRemaining()) {
+            byte b = src.get();
+            if (b == '\n') {
+                if (!trailerLine) {
+                    endBody(sink);
+                    return;
+                }
+                trailerLine = false;
+            } else if (b != '\r') {
+                trailerLine = true;
+            }
+        }
+    }
+
+    private static boolean skipLine(ByteBuffer src) {
+        while (src.hasRemaining()) {
+            if (src.get() == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * src의 length 바이트를 Deflater에 넣는다. 나오는 대로 청크로 쓰고 나머지는 write 끝에 SYNC_FLUSH로 비운다.
+     */
+    private void deflate(ByteBuffer src, int length, Sink sink) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        ByteBuffer input = src.duplicate();
+        input.limit(src.position() + length);
+        if (crc != null) {
+            crc.update(input.duplicate());
+        }
+        deflater.setInput(input);
+        drain(Deflater.NO_FLUSH, sink);
+        src.position(src.position() + length);
+        pendingIn += length;
+        unflushed = true;
+    }
+
+    private void endBody(Sink sink) throws IOException {
+        phase = Phase.DONE;
+        unflushed = false;
+        deflater.finish();
+        drain(Deflater.NO_FLUSH, sink);
+    }
+
+    /**
+     * Deflater에서 나올 만큼 꺼내 청크로 쓴다. finish() 뒤에 부르면 압축 스트림 끝(gzip 트레일러)과 마지막 청크까지 쓴다.
+     * @param flush NO_FLUSH면 입력을 다 먹을 때까지, SYNC_FLUSH면 밀린 출력이 다 나올 때까지
+     */
+    private void drain(int flush, Sink sink) throws IOException {
+        boolean finishing = phase == Phase.DONE;
+        ByteBuffer buffer = out.getBuffer();
+        while (true) {
+            buffer.clear();
+            buffer.position(CHUNK_HEADER).limit(buffer.capacity() - CHUNK_TAIL);
+            if (!started && crc != null) {
+                buffer.put(GZIP_HEADER);
+            }
+            int space = buffer.remaining();
+            long startedAt = System.nanoTime();
+            int written = deflater.deflate(buffer, flush);
+            pendingNanos += System.nanoTime() - startedAt;
+            if (written == 0 && !finishing) {
+                // 아직 나온 게 없다. gzip 헤더는 첫 출력과 같이 보낸다
+                return;
+            }
+            started = true;
+            boolean more;
+            if (finishing) {
+                more = !deflater.finished();
+            } else if (flush == Deflater.NO_FLUSH) {
+                more = !deflater.needsInput();
+            } else {
+                more = written == space;
+            }
+            buffer.limit(buffer.capacity());
+            if (finishing && !more && crc != null) {
+                putIntLE(buffer, (int) crc.getValue());
+                putIntLE(buffer, (int) deflater.getBytesRead());
+            }
+            writeChunk(buffer, finishing && !more, sink);
+            if (!more) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * buffer[CHUNK_HEADER, position)를 청크 하나로 감싸서 쓴다. 앞자리에 크기 줄을 뒤에서부터 채운다
+     */
+    private void writeChunk(ByteBuffer buffer, boolean last, Sink sink) throws IOException {
+        int size = buffer.position() - CHUNK_HEADER;
+        int start = CHUNK_HEADER;
+        if (size > 0) {
+            pendingOut += size;
+            buffer.put(CRLF);
+            buffer.put(--start, (byte) '\n');
+            buffer.put(--start, (byte) '\r');
+            for (int value = size; value != 0; value >>>= 4) {
+                buffer.put(--start, HEX[value & 0xf]);
+            }
+        }
+        if (last) {
+            buffer.put(LAST_CHUNK);
+        }
+        if (buffer.position() == CHUNK_HEADER) {
+            return;
+        }
+        buffer.limit(buffer.position()).position(start);
+        sink.write(buffer);
+    }
+
+    private void recordMetrics() {
+        if (pendingIn == 0 && pendingOut == 0) {
+            return;
+        }
+        targetMetrics.addCompressed(pendingIn, pendingOut, pendingNanos);
+        pendingIn = 0;
+        pendingOut = 0;
+        pendingNanos = 0;
+    }
+
+    private static int parseStatus(ByteBuffer buffer, int statusEnd) throws IOException {
+        // HTTP/1.x SSS reason
+        if (statusEnd < 12 || buffer.get(0) != 'H' || buffer.get(8) != ' ') {
+            throw new IOException("invalid status line");
+        }
+        int status = 0;
+        for (int i = 9; i < 12; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                throw new IOException("invalid status code");
+            }
+            status = status * 10 + (b - '0');
+        }
+        return status;
+    }
+
+    /**
+     * from부터 시작하는 줄의 끝 (CR/LF 앞)
+     */
+    private static int lineEnd(ByteBuffer buffer, int from, int limit) {
+        int end = from;
+        while (end < limit && buffer.get(end) != '\n') {
+            end++;
+        }
+        return end > from && buffer.get(end - 1) == '\r' ? end - 1 : end;
+    }
+
+    private static int nextLine(ByteBuffer buffer, int from, int limit) {
+        while (from < limit && buffer.get(from++) != '\n') {
+            // 줄 끝까지
+        }
+        return from;
+    }
+
+    private static int indexOf(ByteBuffer buffer, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * buffer[from, colon)이 name(소문자)과 같은 헤더 이름인지
+     */
+    private static boolean isName(ByteBuffer buffer, int from, int colon, String name) {
+        if (colon - from != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            byte b = buffer.get(from + i);
+            if ((b >= 'A' && b <= 'Z' ? b + 32 : b) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String value(ByteBuffer buffer, int colon, int end) {
+        byte[] value = new byte[end - colon - 1];
+        buffer.get(colon + 1, value);
+        return new String(value, StandardCharsets.ISO_8859_1).trim();
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int from, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(from + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseLength(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void putIntLE(ByteBuffer buffer, int value) {
+        buffer.put((byte) value).put((byte) (value >>> 8)).put((byte) (value >>> 16)).put((byte) (value >>> 24));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
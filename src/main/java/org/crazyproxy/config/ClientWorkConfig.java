@@ -1,41 +1,89 @@
 package org.crazyproxy.config;
 
 import lombok.Getter;
+import org.crazyproxy.balance.TargetGroup;
 
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ClientWorkConfig {
 
-    private static ClientWorkConfig instance;
+    // 요청마다 읽으므로 락 없이 읽는다. initInstance가 한 번만 쓴다.
+    private static volatile ClientWorkConfig instance;
 
-    @Getter
-    private final Map<String, SocketInfo> portMap;
+    // 매핑 파일을 다시 읽으면 MappingWatcher가 새 스냅샷으로 갈아끼운다.
+    private final AtomicReference<RoutingTable> routingTable;
     @Getter
     private final int workerCount;
     @Getter
     private final int bufferSize;
+    @Getter
+    private final int maxHeaderSize;
+    // 클라 커넥션이 다음 요청 없이 놀 수 있는 시간(ms). 0이면 클라 keep-alive를 안 쓰고 응답마다 닫는다.
+    @Getter
+    private final long clientKeepAliveTimeout;
+    // 클라에게 못 보내고 쌓인 응답 바이트가 high 이상이면 업스트림 읽기를 멈추고 low 이하로 빠지면 다시 읽는다.
+    @Getter
+    private final int writeHighWaterMark;
+    @Getter
+    private final int writeLowWaterMark;
+    // 타겟 주소가 여러 개일 때 앞 주소 연결을 이만큼(ms) 기다려보고 다음 주소로도 연결을 건다.
+    @Getter
+    private final long connectRaceDelay;
 
-    private ClientWorkConfig(Map<String, SocketInfo> portMap, int workerCount, int bufferSize) {
-        this.portMap = portMap;
+    private ClientWorkConfig(Map<String, TargetGroup> portMap, int workerCount, int bufferSize, int maxHeaderSize, long clientKeepAliveTimeout,
+                             int writeHighWaterMark, int writeLowWaterMark, long connectRaceDelay) {
+        this.routingTable = new AtomicReference<>(new RoutingTable(portMap));
         this.workerCount = workerCount;
         this.bufferSize = bufferSize;
+        // 헤더는 클라 버퍼 하나 안에서 파싱하므로 버퍼보다 클 수 없다.
+        this.maxHeaderSize = Math.min(maxHeaderSize, bufferSize);
+        this.clientKeepAliveTimeout = clientKeepAliveTimeout;
+        this.writeHighWaterMark = writeHighWaterMark;
+        this.writeLowWaterMark = Math.min(writeLowWaterMark, writeHighWaterMark);
+        this.connectRaceDelay = connectRaceDelay;
     }
 
-    public static void initInstance(Map<String, SocketInfo> portMap, int workerCount, int bufferSize) {
+    public static void initInstance(Map<String, TargetGroup> portMap, int workerCount, int bufferSize, int maxHeaderSize, long clientKeepAliveTimeout,
+                                    int writeHighWaterMark, int writeLowWaterMark, long connectRaceDelay) {
         if (instance != null) {
             throw new IllegalStateException("Config has already been initialized");
         }
-        instance = new ClientWorkConfig(portMap, workerCount, bufferSize);
+        instance = new ClientWorkConfig(portMap, workerCount, bufferSize, maxHeaderSize, clientKeepAliveTimeout,
+                writeHighWaterMark, writeLowWaterMark, connectRaceDelay);
     }
 
-    public static synchronized ClientWorkConfig getInstance() {
+    public static ClientWorkConfig getInstance() {
         if (instance == null) {
             throw new IllegalStateException("Config not initialized");
         }
         return instance;
     }
 
+    public boolean isClientKeepAlive() {
+        return clientKeepAliveTimeout > 0;
+    }
+
+    public RoutingTable getRoutingTable() {
+        return routingTable.get();
+    }
+
+    /**
+     * 포트 매핑을 새 스냅샷으로 바꾼다. 이미 TargetGroup을 골라 간 요청은 그대로 끝나고, 다음 요청부터 새 매핑을 본다.
+     * @return 바꾸기 전 스냅샷
+     */
+    public RoutingTable replaceRoutingTable(RoutingTable next) {
+        return routingTable.getAndSet(next);
+    }
+
+    /**
+     * 지금 스냅샷의 포트 -> TargetGroup. 고칠 수 없다.
+     */
+    public Map<String, TargetGroup> getPortMap() {
+        return routingTable.get().getPortMap();
+    }
+
     public String[] getPortMapKeySet() {
-        return portMap.keySet().toArray(new String[0]);
+        return getPortMap().keySet().toArray(new String[0]);
     }
 }
@@ -12,8 +12,65 @@ public class MainConfig {
     private final String trustFilePath;
     private final String trustPassword;
     private final String mappingFilePath;
+    private final boolean mappingWatch;
     private final int workerCount;
+    private final int workerQueueSize;
     private final int bufferSize;
+    private final int maxHeaderSize;
+    private final int bufferPoolMaxSize;
+    private final boolean bufferLeakDetection;
+    private final long bufferLeakTimeout;
+    private final int reactorCount;
+    private final String reactorBalance;
+    private final String loadBalancer;
+    private final long dnsRefreshInterval;
+    private final long connectRaceDelay;
+    private final String cachePorts;
+    private final int cacheMaxSize;
+    private final int cacheMaxObjectSize;
+    private final long coalesceMaxWait;
+    private final int coalesceMaxFanOut;
+    private final String compressPorts;
+    private final String compressTypes;
+    private final int compressMinLength;
+    private final int compressLevel;
+    private final int compressPoolSize;
+    private final String executionMode;
+    private final long clientKeepAliveTimeout;
+    private final long connectTimeout;
+    private final long tlsHandshakeTimeout;
+    private final long requestHeaderTimeout;
+    private final long requestTimeout;
+    private final String portTimeouts;
+    private final boolean adaptiveLimit;
+    private final int adaptiveLimitInitial;
+    private final int adaptiveLimitMin;
+    private final int adaptiveLimitMax;
+    private final boolean outlierDetection;
+    private final int outlierConsecutiveFailures;
+    private final int outlierErrorRate;
+    private final int outlierMinRequests;
+    private final long outlierEjectionTime;
+    private final long outlierMaxEjectionTime;
+    private final long healthCheckInterval;
+    private final long healthCheckTimeout;
+    private final String healthCheckPath;
+    private final int writeHighWaterMark;
+    private final int writeLowWaterMark;
+    private final int adminPort;
+    private final int poolMaxIdlePerTarget;
+    private final long poolMaxIdleTime;
+    private final long poolMaxLifetime;
+    private final int sslSessionCacheSize;
+    private final long sslSessionTimeout;
+    private final boolean sslSessionTicket;
+    private final String tlsPorts;
+    private final String tlsAlpn;
+    private final int tlsHandshakeThreads;
+    private final boolean h2Upstream;
+    private final int h2MaxConcurrentStreams;
+    private final boolean h2c;
+    private final int h2ListenerMaxConcurrentStreams;
     @Override
     public String toString() {
         return "MainConfig{\n" +
@@ -23,8 +80,65 @@ public class MainConfig {
                 ", trustFilePath='" + trustFilePath + '\'' + '\n' +
                 ", trustPassword='" + trustPassword + '\'' + '\n' +
                 ", mappingFilePath='" + mappingFilePath + '\'' + '\n' +
+                ", mappingWatch=" + mappingWatch + '\n' +
                 ", workerCount=" + workerCount + '\n' +
-                ", bufferSize=" + bufferSize +
+                ", workerQueueSize=" + workerQueueSize + '\n' +
+                ", bufferSize=" + bufferSize + '\n' +
+                ", maxHeaderSize=" + maxHeaderSize + '\n' +
+                ", bufferPoolMaxSize=" + bufferPoolMaxSize + '\n' +
+                ", bufferLeakDetection=" + bufferLeakDetection + '\n' +
+                ", bufferLeakTimeout=" + bufferLeakTimeout + '\n' +
+                ", reactorCount=" + reactorCount + '\n' +
+                ", reactorBalance='" + reactorBalance + '\'' + '\n' +
+                ", loadBalancer='" + loadBalancer + '\'' + '\n' +
+                ", dnsRefreshInterval=" + dnsRefreshInterval + '\n' +
+                ", connectRaceDelay=" + connectRaceDelay + '\n' +
+                ", cachePorts='" + cachePorts + '\'' + '\n' +
+                ", cacheMaxSize=" + cacheMaxSize + '\n' +
+                ", cacheMaxObjectSize=" + cacheMaxObjectSize + '\n' +
+                ", coalesceMaxWait=" + coalesceMaxWait + '\n' +
+                ", coalesceMaxFanOut=" + coalesceMaxFanOut + '\n' +
+                ", compressPorts='" + compressPorts + '\'' + '\n' +
+                ", compressTypes='" + compressTypes + '\'' + '\n' +
+                ", compressMinLength=" + compressMinLength + '\n' +
+                ", compressLevel=" + compressLevel + '\n' +
+                ", compressPoolSize=" + compressPoolSize + '\n' +
+                ", executionMode='" + executionMode + '\'' + '\n' +
+                ", clientKeepAliveTimeout=" + clientKeepAliveTimeout + '\n' +
+                ", connectTimeout=" + connectTimeout + '\n' +
+                ", tlsHandshakeTimeout=" + tlsHandshakeTimeout + '\n' +
+                ", requestHeaderTimeout=" + requestHeaderTimeout + '\n' +
+                ", requestTimeout=" + requestTimeout + '\n' +
+                ", portTimeouts='" + portTimeouts + '\'' + '\n' +
+                ", adaptiveLimit=" + adaptiveLimit + '\n' +
+                ", adaptiveLimitInitial=" + adaptiveLimitInitial + '\n' +
+                ", adaptiveLimitMin=" + adaptiveLimitMin + '\n' +
+                ", adaptiveLimitMax=" + adaptiveLimitMax + '\n' +
+                ", outlierDetection=" + outlierDetection + '\n' +
+                ", outlierConsecutiveFailures=" + outlierConsecutiveFailures + '\n' +
+                ", outlierErrorRate=" + outlierErrorRate + '\n' +
+                ", outlierMinRequests=" + outlierMinRequests + '\n' +
+                ", outlierEjectionTime=" + outlierEjectionTime + '\n' +
+                ", outlierMaxEjectionTime=" + outlierMaxEjectionTime + '\n' +
+                ", healthCheckInterval=" + healthCheckInterval + '\n' +
+                ", healthCheckTimeout=" + healthCheckTimeout + '\n' +
+                ", healthCheckPath='" + healthCheckPath + '\'' + '\n' +
+                ", writeHighWaterMark=" + writeHighWaterMark + '\n' +
+                ", writeLowWaterMark=" + writeLowWaterMark + '\n' +
+                ", adminPort=" + adminPort + '\n' +
+                ", poolMaxIdlePerTarget=" + poolMaxIdlePerTarget + '\n' +
+                ", poolMaxIdleTime=" + poolMaxIdleTime + '\n' +
+                ", poolMaxLifetime=" + poolMaxLifetime + '\n' +
+                ", sslSessionCacheSize=" + sslSessionCacheSize + '\n' +
+                ", sslSessionTimeout=" + sslSessionTimeout + '\n' +
+                ", sslSessionTicket=" + sslSessionTicket + '\n' +
+                ", tlsPorts='" + tlsPorts + '\'' + '\n' +
+                ", tlsAlpn='" + tlsAlpn + '\'' + '\n' +
+                ", tlsHandshakeThreads=" + tlsHandshakeThreads + '\n' +
+                ", h2Upstream=" + h2Upstream + '\n' +
+                ", h2MaxConcurrentStreams=" + h2MaxConcurrentStreams + '\n' +
+                ", h2c=" + h2c + '\n' +
+                ", h2ListenerMaxConcurrentStreams=" + h2ListenerMaxConcurrentStreams +
                 '}';
     }
 }
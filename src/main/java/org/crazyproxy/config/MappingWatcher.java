@@ -0,0 +1,140 @@
+package org.crazyproxy.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.crazyproxy.balance.TargetGroup;
+import org.crazyproxy.cache.ResponseCache;
+import org.crazyproxy.dns.DnsCache;
+import org.crazyproxy.http2.Http2ConnectionPool;
+import org.crazyproxy.limit.ConcurrencyLimits;
+import org.crazyproxy.metrics.ProxyMetrics;
+import org.crazyproxy.pool.UpstreamConnectionPool;
+import org.crazyproxy.util.Initiator;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 매핑 파일(mapping.properties)이 바뀌면 다시 읽어서 RoutingTable을 갈아끼운다.
+ * 파일이 있는 디렉토리를 WatchService로 본다. 편집기가 파일을 새로 만들어 바꿔치기해도 잡히게 생성/수정 둘 다 본다.
+ * 연달아 오는 이벤트는 debounce 동안 모았다가 한 번만 읽는다.
+ *
+ * 안 바뀐 포트는 기존 TargetGroup을 그대로 쓴다. 타겟이 바뀐 포트는 다음 요청부터 새 그룹으로 가고, 그 포트의 캐시 응답은 버린다.
+ * 파일을 읽다 실패하면(문법 오류, 잘못된 포트 등) 로그만 남기고 지금 매핑을 그대로 둔다.
+ */
+@Slf4j
+public class MappingWatcher extends Thread {
+
+    // 파일 하나를 여러 번 나눠 쓰는 걸 한 번으로 모으는 시간(ms)
+    private static final long DEBOUNCE = 200;
+
+    private final Path mappingFile;
+    private final String loadBalancer;
+    // 새 RoutingTable을 올린 뒤에 부른다. 리슨 포트를 맞추는 데 쓴다
+    private final Runnable onReload;
+    private final Initiator initiator = new Initiator();
+
+    public MappingWatcher(String mappingFilePath, String loadBalancer, Runnable onReload) {
+        super("mapping-watcher");
+        setDaemon(true);
+        this.mappingFile = Paths.get(mappingFilePath).toAbsolutePath().normalize();
+        this.loadBalancer = loadBalancer;
+        this.onReload = onReload;
+    }
+
+    @Override
+    public void run() {
+        Path directory = mappingFile.getParent();
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            log.info("watching mapping file. path = {}", mappingFile);
+            while (!isInterrupted()) {
+                boolean changed = drain(watchService.take());
+                WatchKey more;
+                while ((more = watchService.poll(DEBOUNCE, TimeUnit.MILLISECONDS)) != null) {
+                    changed |= drain(more);
+                }
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            log.error("mapping file watch fail. hot reload disabled. path = {}", mappingFile, e);
+        }
+    }
+
+    /**
+     * @return 매핑 파일에 대한 이벤트가 있었으면 true
+     */
+    private boolean drain(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                changed = true;
+            } else if (mappingFile.getFileName().equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    private void reload() {
+        Map<String, TargetGroup> loaded;
+        RoutingTable next;
+        ClientWorkConfig clientWorkConfig = ClientWorkConfig.getInstance();
+        Map<String, TargetGroup> current = clientWorkConfig.getPortMap();
+        Map<String, TargetGroup> merged = new HashMap<>();
+        try {
+            loaded = initiator.initTargetGroupMap(mappingFile.toString(), loadBalancer);
+            for (Map.Entry<String, TargetGroup> entry : loaded.entrySet()) {
+                TargetGroup previous = current.get(entry.getKey());
+                merged.put(entry.getKey(), previous != null && previous.sameConfig(entry.getValue()) ? previous : entry.getValue());
+            }
+            next = new RoutingTable(merged);
+        } catch (RuntimeException e) {
+            log.error("mapping reload fail. keep current mapping. path = {}", mappingFile, e);
+            return;
+        }
+
+        boolean changed = merged.size() != current.size();
+        for (Map.Entry<String, TargetGroup> entry : merged.entrySet()) {
+            if (current.get(entry.getKey()) != entry.getValue()) {
+                changed = true;
+                for (SocketInfo socketInfo : entry.getValue().getTargets()) {
+                    DnsCache.getInstance().register(socketInfo);
+                }
+            }
+        }
+        if (!changed) {
+            log.debug("mapping file touched but nothing changed");
+            return;
+        }
+
+        clientWorkConfig.replaceRoutingTable(next);
+        for (Map.Entry<String, TargetGroup> entry : current.entrySet()) {
+            if (merged.get(entry.getKey()) != entry.getValue()) {
+                for (SocketInfo socketInfo : entry.getValue().getTargets()) {
+                    DnsCache.getInstance().unregister(socketInfo);
+                    UpstreamConnectionPool.getInstance().retire(socketInfo);
+                    ConcurrencyLimits.getInstance().retire(socketInfo);
+                    Http2ConnectionPool.getInstance().retire(socketInfo);
+                }
+                ResponseCache.getInstance().invalidatePort(entry.getKey());
+            }
+        }
+        ProxyMetrics.getInstance().updatePortMap(next.getPortMap());
+        onReload.run();
+        log.info("mapping reloaded. {}", next.getPortMap());
+    }
+}
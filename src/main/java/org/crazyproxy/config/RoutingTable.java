@@ -0,0 +1,72 @@
+package org.crazyproxy.config;
+
+import org.crazyproxy.balance.TargetGroup;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 리슨 포트 -> TargetGroup 스냅샷. 한 번 만들면 바뀌지 않는다. 매핑 파일을 다시 읽으면 새로 만들어 통째로 갈아끼운다.
+ * 요청마다 리액터/워커 스레드에서 찾으므로 포트(int)를 키로 하는 open addressing 배열로 들고 있다. 박싱도 락도 없다.
+ */
+public final class RoutingTable {
+
+    // 0번 포트로는 리슨하지 않으니 빈 칸 표시로 쓴다
+    private static final int EMPTY = 0;
+
+    private final int[] ports;
+    private final TargetGroup[] groups;
+    private final int mask;
+    // 설정, 지표처럼 드물게 전체를 훑는 쪽에서 쓴다
+    private final Map<String, TargetGroup> portMap;
+
+    public RoutingTable(Map<String, TargetGroup> portMap) {
+        int capacity = Integer.highestOneBit(Math.max(4, portMap.size() * 2 - 1)) << 1;
+        this.ports = new int[capacity];
+        this.groups = new TargetGroup[capacity];
+        this.mask = capacity - 1;
+        for (Map.Entry<String, TargetGroup> entry : portMap.entrySet()) {
+            int port = Integer.parseInt(entry.getKey().trim());
+            if (port <= 0 || port > 65535) {
+                throw new IllegalArgumentException("Invalid listen port " + entry.getKey());
+            }
+            int index = slot(port);
+            while (ports[index] != EMPTY && ports[index] != port) {
+                index = (index + 1) & mask;
+            }
+            ports[index] = port;
+            groups[index] = entry.getValue();
+        }
+        this.portMap = Collections.unmodifiableMap(new HashMap<>(portMap));
+    }
+
+    /**
+     * @return 포트에 묶인 TargetGroup. 없는 포트면 null
+     */
+    public TargetGroup get(int port) {
+        int index = slot(port);
+        while (true) {
+            int candidate = ports[index];
+            if (candidate == port) {
+                return groups[index];
+            }
+            if (candidate == EMPTY) {
+                return null;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    public boolean contains(int port) {
+        return get(port) != null;
+    }
+
+    public Map<String, TargetGroup> getPortMap() {
+        return portMap;
+    }
+
+    private int slot(int port) {
+        return (port * 0x9E3779B9) >>> 16 & mask;
+    }
+}
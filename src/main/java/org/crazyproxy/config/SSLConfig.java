@@ -3,6 +3,9 @@ package org.crazyproxy.config;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
 import java.security.NoSuchAlgorithmException;
 
 @Slf4j
@@ -35,4 +38,39 @@ public class SSLConfig {
     public SSLContext getContext() {
         return instance.context;
     }
+
+    /**
+     * 업스트림용 client 모드 SSLEngine 생성.
+     * peer host/port를 넘겨야 JSSE client session cache에서 이전 세션을 찾아 재개(resumption)할 수 있다.
+     * host가 도메인이면 SNI도 같이 실린다.
+     */
+    public SSLEngine createClientEngine(SocketInfo socketInfo) {
+        SSLEngine sslEngine = context.createSSLEngine(socketInfo.getHost(), socketInfo.getInetSocketAddress().getPort());
+        sslEngine.setUseClientMode(true);
+        return sslEngine;
+    }
+
+    /**
+     * ALPN으로 프로토콜을 고를 클라 엔진. 핸드셰이크가 끝나면 sslEngine.getApplicationProtocol()로 서버가 고른 걸 본다.
+     * @param applicationProtocols 선호 순서대로. 서버가 ALPN을 모르면 아무것도 안 고른다(빈 문자열)
+     */
+    public SSLEngine createClientEngine(SocketInfo socketInfo, String... applicationProtocols) {
+        SSLEngine sslEngine = createClientEngine(socketInfo);
+        SSLParameters sslParameters = sslEngine.getSSLParameters();
+        sslParameters.setApplicationProtocols(applicationProtocols);
+        sslEngine.setSSLParameters(sslParameters);
+        return sslEngine;
+    }
+
+    /**
+     * client session cache 설정. sslContext.init 이후에 호출해야 한다.
+     * @param cacheSize 캐시할 세션 수. 0이면 무제한
+     * @param timeoutSeconds 세션 유효 시간(초)
+     */
+    public void initClientSessionCache(int cacheSize, int timeoutSeconds) {
+        SSLSessionContext sessionContext = context.getClientSessionContext();
+        sessionContext.setSessionCacheSize(cacheSize);
+        sessionContext.setSessionTimeout(timeoutSeconds);
+        log.info("===== SSL client session cache size: {}, timeout: {}s =====", cacheSize, timeoutSeconds);
+    }
 }
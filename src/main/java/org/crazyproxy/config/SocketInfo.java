@@ -1,18 +1,59 @@
 package org.crazyproxy.config;
 
-import lombok.AllArgsConstructor;
 import lombok.Getter;
+import org.crazyproxy.balance.TargetStats;
+import org.crazyproxy.health.TargetHealth;
 
 import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
 
-@AllArgsConstructor
 @Getter
 public class SocketInfo {
 
-    private InetSocketAddress inetSocketAddress;
-    private String host;
-    private String path;
-    private boolean isHttps;
+    private final InetSocketAddress inetSocketAddress;
+    private final String host;
+    private final String path;
+    private final boolean isHttps;
+    // TargetGroup 안에서의 가중치. 1 이상
+    private final int weight;
+    private final TargetStats stats = new TargetStats();
+    // 회로 상태. 열려 있으면 TargetGroup이 이 타겟을 안 고른다
+    private final TargetHealth health;
+    // 연결할 주소 후보들. DnsCache가 다시 조회할 때마다 배열째 갈아끼운다. 처음에는 inetSocketAddress 하나
+    private volatile InetSocketAddress[] addresses;
+
+    // 요청 헤더 변조할 때 매번 인코딩하지 않도록 미리 만들어 둔다.
+    private final byte[] pathBytes;
+    private final byte[] hostHeaderBytes;
+
+    public SocketInfo(InetSocketAddress inetSocketAddress, String host, String path, boolean isHttps) {
+        this(inetSocketAddress, host, path, isHttps, 1);
+    }
+
+    public SocketInfo(InetSocketAddress inetSocketAddress, String host, String path, boolean isHttps, int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("weight must be >= 1 but was " + weight);
+        }
+        this.inetSocketAddress = inetSocketAddress;
+        this.host = host;
+        this.path = path;
+        this.isHttps = isHttps;
+        this.weight = weight;
+        this.addresses = new InetSocketAddress[] {inetSocketAddress};
+        this.pathBytes = path.getBytes(StandardCharsets.US_ASCII);
+        this.hostHeaderBytes = ("Host: " + host + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        this.health = new TargetHealth(toString());
+    }
+
+    /**
+     * 새로 조회한 주소로 바꾼다. 넘긴 배열은 그 뒤로 고치면 안 된다.
+     */
+    public void setAddresses(InetSocketAddress[] addresses) {
+        if (addresses.length == 0) {
+            throw new IllegalArgumentException("addresses must not be empty");
+        }
+        this.addresses = addresses;
+    }
 
     @Override
     public String toString() {
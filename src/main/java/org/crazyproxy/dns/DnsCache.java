@@ -0,0 +1,193 @@
+package org.crazyproxy.dns;
+
+import lombok.extern.slf4j.Slf4j;
+import org.crazyproxy.config.SocketInfo;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 업스트림 호스트 주소 캐시. 호스트마다 A/AAAA 레코드를 전부 들고 있고 refreshInterval마다 다시 조회한다.
+ * 조회는 전용 스레드(dns-resolver) 하나에서만 한다. 리액터/워커는 SocketInfo에 올려둔 주소 배열을 읽기만 한다.
+ * 조회가 실패하면 이전 주소를 그대로 쓴다.
+ *
+ * JDK InetAddress 캐시가 끼면 주소가 바뀐 걸 늦게 보므로, 사용자가 따로 정하지 않았으면 JDK 캐시는 끈다.
+ * 그래서 InetAddress 클래스가 처음 조회하기 전에 initInstance를 불러야 한다.
+ */
+@Slf4j
+public class DnsCache {
+
+    private static DnsCache instance;
+
+    private final long refreshInterval;
+    private final ScheduledExecutorService resolver;
+    // 호스트 -> 그 호스트를 가리키는 타겟들. 같은 호스트는 한 번만 조회한다
+    private final Map<String, List<SocketInfo>> targetsByHost = new ConcurrentHashMap<>();
+    // 호스트별 주기 조회 작업. 호스트를 가리키는 타겟이 다 빠지면 멈춘다
+    private final Map<String, ScheduledFuture<?>> refreshTasks = new ConcurrentHashMap<>();
+
+    private DnsCache(long refreshInterval) {
+        this.refreshInterval = refreshInterval;
+        this.resolver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dns-resolver");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param refreshInterval 다시 조회하는 주기(ms). 0이면 처음 한 번만 조회한다
+     */
+    public static void initInstance(long refreshInterval) {
+        if (instance != null) {
+            throw new IllegalStateException("DnsCache has already been initialized");
+        }
+        if (refreshInterval > 0 && Security.getProperty("networkaddress.cache.ttl") == null) {
+            Security.setProperty("networkaddress.cache.ttl", "0");
+        }
+        instance = new DnsCache(refreshInterval);
+    }
+
+    public static DnsCache getInstance() {
+        if (instance == null) {
+            throw new IllegalStateException("DnsCache not initialized");
+        }
+        return instance;
+    }
+
+    /**
+     * 타겟을 캐시에 올린다. 바로 resolver 스레드에서 전체 주소를 조회하고, 그 뒤로 주기적으로 다시 조회한다.
+     * 첫 조회가 끝나기 전에는 설정 파일을 읽을 때 잡은 주소 하나로 연결한다.
+     */
+    public void register(SocketInfo socketInfo) {
+        String host = socketInfo.getInetSocketAddress().getHostString();
+        if (isLiteral(host)) {
+            return;
+        }
+        List<SocketInfo> targets = targetsByHost.get(host);
+        if (targets != null) {
+            targets.add(socketInfo);
+            resolver.execute(() -> resolve(host));
+            return;
+        }
+
+        targetsByHost.computeIfAbsent(host, key -> new CopyOnWriteArrayList<>()).add(socketInfo);
+        if (refreshInterval > 0) {
+            refreshTasks.put(host, resolver.scheduleWithFixedDelay(() -> resolve(host), 0, refreshInterval, TimeUnit.MILLISECONDS));
+        } else {
+            resolver.execute(() -> resolve(host));
+        }
+    }
+
+    /**
+     * 매핑에서 빠진 타겟을 내린다. 호스트를 가리키는 타겟이 더 없으면 다시 조회하지 않는다.
+     * register와 같은 스레드(시작할 때, 또는 MappingWatcher)에서만 부른다.
+     */
+    public void unregister(SocketInfo socketInfo) {
+        String host = socketInfo.getInetSocketAddress().getHostString();
+        List<SocketInfo> targets = targetsByHost.get(host);
+        if (targets == null) {
+            return;
+        }
+        targets.remove(socketInfo);
+        if (targets.isEmpty()) {
+            targetsByHost.remove(host);
+            ScheduledFuture<?> refreshTask = refreshTasks.remove(host);
+            if (refreshTask != null) {
+                refreshTask.cancel(false);
+            }
+        }
+    }
+
+    private void resolve(String host) {
+        InetAddress[] resolved;
+        try {
+            resolved = InetAddress.getAllByName(host);
+        } catch (UnknownHostException e) {
+            log.warn("dns lookup failed. keep previous addresses. host = {}, {}", host, e.getMessage());
+            return;
+        } catch (RuntimeException e) {
+            log.error("dns lookup error. host = {}", host, e);
+            return;
+        }
+
+        InetAddress[] ordered = interleave(resolved);
+        for (SocketInfo socketInfo : targetsByHost.getOrDefault(host, List.of())) {
+            InetSocketAddress[] addresses = new InetSocketAddress[ordered.length];
+            for (int i = 0; i < ordered.length; i++) {
+                addresses[i] = new InetSocketAddress(ordered[i], socketInfo.getInetSocketAddress().getPort());
+            }
+            if (!sameAddresses(socketInfo.getAddresses(), addresses)) {
+                log.info("upstream addresses changed. host = {}, addresses = {}", host, List.of(ordered));
+                socketInfo.setAddresses(addresses);
+            }
+        }
+    }
+
+    /**
+     * RFC 8305 순서. 리졸버가 준 순서를 지키되 IPv6/IPv4를 번갈아 놓는다. 첫 주소의 주소 체계가 먼저.
+     * 한쪽 체계가 통째로 안 될 때 다른 쪽을 빨리 시도할 수 있게.
+     */
+    static InetAddress[] interleave(InetAddress[] resolved) {
+        List<InetAddress> v6 = new ArrayList<>();
+        List<InetAddress> v4 = new ArrayList<>();
+        for (InetAddress address : resolved) {
+            (address instanceof Inet6Address ? v6 : v4).add(address);
+        }
+        boolean v6First = resolved.length > 0 && resolved[0] instanceof Inet6Address;
+        List<InetAddress> first = v6First ? v6 : v4;
+        List<InetAddress> second = v6First ? v4 : v6;
+
+        InetAddress[] ordered = new InetAddress[resolved.length];
+        int index = 0;
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                ordered[index++] = first.get(i);
+            }
+            if (i < second.size()) {
+                ordered[index++] = second.get(i);
+            }
+        }
+        return ordered;
+    }
+
+    private static boolean sameAddresses(InetSocketAddress[] current, InetSocketAddress[] resolved) {
+        if (current.length != resolved.length) {
+            return false;
+        }
+        for (int i = 0; i < current.length; i++) {
+            if (!current[i].equals(resolved[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * IP 리터럴은 조회할 게 없다.
+     */
+    private static boolean isLiteral(String host) {
+        if (host.indexOf(':') >= 0) {
+            return true;
+        }
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if ((c < '0' || c > '9') && c != '.') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,6 +1,7 @@
 package org.crazyproxy.handler;
 
 import lombok.extern.slf4j.Slf4j;
+import org.crazyproxy.nio.ConnectionDispatcher;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
@@ -11,16 +12,26 @@ import java.nio.channels.SocketChannel;
 @Slf4j
 public class AcceptHandler implements NioHandler {
 
+    private final ConnectionDispatcher dispatcher;
+
+    public AcceptHandler(ConnectionDispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * accept 큐에 쌓인 연결을 한 번에 다 받아서 리액터(또는 커넥션 스레드)에 나눠준다.
+     */
     @Override
     public void handle(SelectionKey key) throws IOException {
         ServerSocketChannel socketChannel = (ServerSocketChannel) key.channel();
 
-        SocketChannel acceptChannel = socketChannel.accept();
-        acceptChannel.configureBlocking(false);
-        SelectionKey clientKey = acceptChannel.register(key.selector(), SelectionKey.OP_READ);
-        clientKey.attach(new ClientHandler());
-        InetSocketAddress remoteSocketAddress = (InetSocketAddress) acceptChannel.socket().getRemoteSocketAddress();
-        log.info("Accepted connection from {}", remoteSocketAddress.getAddress().getHostAddress());
+        SocketChannel acceptChannel;
+        while ((acceptChannel = socketChannel.accept()) != null) {
+            acceptChannel.configureBlocking(false);
+            InetSocketAddress remoteSocketAddress = (InetSocketAddress) acceptChannel.socket().getRemoteSocketAddress();
+            log.info("Accepted connection from {}", remoteSocketAddress.getAddress().getHostAddress());
+            dispatcher.dispatch(acceptChannel);
+        }
 
     }
 }
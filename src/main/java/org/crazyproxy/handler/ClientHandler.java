@@ -1,41 +1,786 @@
 package org.crazyproxy.handler;
 
 import lombok.extern.slf4j.Slf4j;
+import org.crazyproxy.balance.TargetGroup;
+import org.crazyproxy.buffer.BufferPool;
+import org.crazyproxy.buffer.PooledBuffer;
+import org.crazyproxy.cache.CacheLookup;
+import org.crazyproxy.cache.Flight;
+import org.crazyproxy.cache.ResponseCache;
+import org.crazyproxy.compress.ResponseCompression;
+import org.crazyproxy.compress.ResponseCompressor;
 import org.crazyproxy.config.ClientWorkConfig;
+import org.crazyproxy.config.SocketInfo;
+import org.crazyproxy.health.OutlierDetection;
+import org.crazyproxy.http.HttpHeaderRewriter;
+import org.crazyproxy.http.HttpRequestParser;
+import org.crazyproxy.http.HttpResponses;
+import org.crazyproxy.http2.Http2Server;
+import org.crazyproxy.http2.Http2ServerConnection;
+import org.crazyproxy.limit.ConcurrencyLimits;
+import org.crazyproxy.metrics.ProxyMetrics;
+import org.crazyproxy.metrics.TargetMetrics;
+import org.crazyproxy.nio.OutboundQueue;
+import org.crazyproxy.nio.SelectorThread;
+import org.crazyproxy.nio.TimerWheel;
+import org.crazyproxy.pool.UpstreamConnectionPool;
+import org.crazyproxy.ssl.TlsHandshaker;
+import org.crazyproxy.ssl.TlsServerSession;
+import org.crazyproxy.ssl.TlsTerminator;
+import org.crazyproxy.timeout.PortTimeouts;
+import org.crazyproxy.timeout.TimeoutPolicy;
+import org.crazyproxy.util.SocketUtil;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
 
+/**
+ * 클라이언트 커넥션 하나를 맡는 핸들러. 리액터 스레드에서 불린다.
+ * 읽은 바이트를 HttpRequestParser로 파싱해서 헤더가 다 오면 변조한 헤더로 ClientWorker를 만들고,
+ * 바디는 버퍼에서 복사 없이 잘라서(뷰) 워커에게 넘긴다. 워커가 바디 조각을 다 쓸 때까지는 클라 읽기를 멈춘다.
+ *
+ * buffer는 항상 쓰기 모드. [readIndex, position) 이 아직 처리하지 않은 바이트다.
+ * 버퍼는 읽을 게 있을 때 BufferPool에서 빌리고, 처리할 바이트도 워커도 없으면 바로 돌려준다.
+ *
+ * 클라 keep-alive: 응답이 끝나면 커넥션을 닫지 않고 다음 요청을 받는다. 요청은 한 번에 하나씩만 처리하므로
+ * 클라가 pipelining으로 몰아 보낸 요청도 응답은 요청 순서 그대로 나간다. 뒤 요청은 앞 응답이 끝날 때까지 버퍼(또는 소켓)에서 기다린다.
+ *
+ * 타임아웃은 리액터 TimerWheel에 하나씩만 걸어 둔다. TLS 핸드셰이크, 요청 헤더(accept 또는 다음 요청의 첫 바이트부터 헤더 끝까지. 넘기면 408),
+ * 응답을 끝내고 다음 요청 없이 노는 시간(idle). 워커가 도는 동안은 워커가 연결, 요청 타임아웃을 건다.
+ *
+ * 클라에게 나가는 응답은 OutboundQueue를 거친다. 클라가 느려서 못 쓴 게 쌓이면 OP_WRITE 이벤트를 워커에게 넘겨 마저 쓴다.
+ *
+ * 응답 캐시가 켜진 포트면 워커를 만들기 전에 ResponseCache를 찾아본다. 캐시에서 내보낼 수 있으면 업스트림 없이
+ * 이 리액터에서 바로 쓰고, 못 쓴 게 남으면 OP_WRITE로 마저 쓴 뒤 다음 요청을 받는다.
+ * 캐시를 놓쳤는데 같은 요청이 이미 업스트림에 가 있으면 워커 없이 그 응답을 나눠받는다(Flight.Seat).
+ * 나눠받을 수 없거나 coalesceMaxWait 안에 응답 헤더가 안 오면 요청을 직접 업스트림에 보낸다.
+ * compressPorts 포트면 요청마다 ResponseCompressor를 만들어 워커에게 넘긴다. 나눠받은 응답도 이 클라 Accept-Encoding대로 따로 압축한다.
+ *
+ * tlsPorts 포트면 처음 이벤트부터 TLS 핸드셰이크를 하고(무거운 연산은 TlsTerminator 풀에서), 그 뒤로는 TlsServerSession으로
+ * 풀어 읽고 OutboundQueue가 싸서 쓴다. 세션이 이미 읽어서 들고 있는 바이트는 셀렉터 이벤트가 안 오므로 읽기를 다시 켤 때 직접 처리한다.
+ *
+ * 클라가 h2로 오면(평문 포트에 프리페이스부터 보내거나 ALPN으로 h2를 고르면) 키를 Http2ServerConnection에 넘기고 이 핸들러는 빠진다.
+ * 스트림 하나하나는 Http2StreamExchange가 HTTP/1.x 요청처럼 처리한다.
+ */
 @Slf4j
-public class ClientHandler implements NioHandler {
+public class ClientHandler implements NioHandler, ExchangeClient {
 
     private final ClientWorkConfig clientWorkConfig = ClientWorkConfig.getInstance();
-    private final ByteBuffer buffer = ByteBuffer.allocate(clientWorkConfig.getBufferSize());
+    private final HttpRequestParser parser = new HttpRequestParser(clientWorkConfig.getMaxHeaderSize());
+    private final SelectorThread reactor;
+    private SelectionKey clientKey;
+    private OutboundQueue outbound;
+    // TLS로 받는 포트면 그 세션. 평문이면 null
+    private TlsServerSession tls;
+    // 요청마다 RoutingTable에서 다시 찾는다. 매핑을 다시 읽으면 다음 요청부터 새 타겟으로 간다
+    private TargetGroup targetGroup;
+    private TargetMetrics targetMetrics;
+    private int localPort;
+    private String clientPort;
+    private boolean cacheEnabled;
+    // 평문 포트의 첫 요청 전. 프리페이스로 시작하면 h2c로 받는다
+    private boolean h2cCandidate;
+    // 캐시에서 꺼낸 응답을 클라에게 마저 쓰는 중
+    private boolean flushingCachedResponse;
+    // 다른 요청의 응답을 나눠받는 중
+    private Flight.Seat seat;
+    private boolean seatStreaming;
+    private long seatJoinedAt;
+    // 나눠받은 응답을 이 클라 Accept-Encoding대로 압축한다. 압축 안 하면 null
+    private ResponseCompressor seatCompressor;
+    private PooledBuffer input;
+    private ByteBuffer buffer;
+    private int readIndex;
+    private ClientWorker worker;
+    private boolean closed;
+    private PortTimeouts timeouts;
+    // 지금 걸린 핸드셰이크 / 헤더 / idle 타이머와 그 종류
+    private TimerWheel.Timeout timer;
+    private TimeoutPolicy.Kind timerKind;
+    // coalesceMaxWait 타이머. 나눠받기를 끝내면 거둔다
+    private TimerWheel.Timeout seatTimer;
+
+    public ClientHandler(SelectorThread reactor) {
+        this.reactor = reactor;
+    }
+
+    /**
+     * 리액터 셀렉터에 등록된 직후. 포트에 맞춰 준비하고 첫 타임아웃(TLS면 핸드셰이크, 아니면 요청 헤더)을 건다.
+     * 아무것도 안 보내는 커넥션은 이벤트가 안 오니 여기서 걸어야 한다.
+     */
+    public void onRegistered(SelectionKey key) {
+        clientKey = key;
+        try {
+            SocketChannel clientChannel = (SocketChannel) key.channel();
+            localPort = ((InetSocketAddress) clientChannel.getLocalAddress()).getPort();
+            clientPort = String.valueOf(localPort);
+            targetGroup = findTargetGroup();
+            if (TlsTerminator.getInstance().isEnabled(clientPort)) {
+                tls = TlsTerminator.getInstance().newSession(clientChannel);
+                tls.begin();
+            }
+            outbound = new OutboundQueue(clientChannel, tls);
+            h2cCandidate = tls == null && Http2Server.getInstance().isH2c();
+            cacheEnabled = ResponseCache.getInstance().isEnabled(clientPort);
+            targetMetrics = ProxyMetrics.getInstance().forPort(clientPort);
+            targetMetrics.connectionOpened();
+            timeouts = TimeoutPolicy.getInstance().forPort(clientPort);
+            if (tls != null) {
+                armTimer(TimeoutPolicy.Kind.HANDSHAKE, timeouts.getHandshake());
+            } else {
+                armTimer(TimeoutPolicy.Kind.HEADER, timeouts.getHeader());
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("client register fail!! socket close.", e);
+            close();
+        }
+    }
 
     @Override
     public void handle(SelectionKey key) throws IOException {
-        SocketChannel clientChannel = (SocketChannel) key.channel();
+        if (tls != null && !tls.isHandshakeDone()) {
+            continueHandshake();
+            return;
+        }
+
+        if (key.isWritable()) {
+            // 응답 중에만 OP_WRITE를 건다. 응답 중에는 보통 클라를 읽지 않는다 (예외는 awaitWritable).
+            if (worker != null) {
+                worker.onClientWritable();
+            } else if (flushingCachedResponse) {
+                flushCachedResponse();
+            } else if (seat != null) {
+                if (outbound.flush()) {
+                    key.interestOps(0);
+                    pumpSeat();
+                }
+            } else if (outbound.flush()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            return;
+        }
 
-        int readBytes = clientChannel.read(buffer);
+        onReadable();
+    }
+
+    private void onReadable() throws IOException {
+        SocketChannel clientChannel = (SocketChannel) clientKey.channel();
+        if (input == null) {
+            input = BufferPool.getInstance().acquire(clientWorkConfig.getBufferSize());
+            buffer = input.getBuffer();
+        }
+
+        int readBytes = tls == null ? clientChannel.read(buffer) : tls.read(buffer, reactor.getAppBuffer());
 
         if (readBytes == -1) {
-            log.error("readBytes is -1. closing channel");
-            clientChannel.close();
+            log.debug("readBytes is -1. closing channel");
+            if (worker != null) {
+                worker.abort();
+            }
+            close();
+            return;
+        }
+
+        if (readBytes == 0) {
+            releaseIfIdle();
+            return;
+        }
+        targetMetrics.addBytesIn(readBytes);
+
+        if (worker == null) {
+            parseRequestHeader();
+        } else {
+            offerRequestBody();
+        }
+        releaseIfIdle();
+        if (!closed && clientKey.isValid() && (clientKey.interestOps() & SelectionKey.OP_READ) != 0) {
+            // 버퍼가 차서 세션에 남겨둔 평문이 있을 수 있다.
+            readBufferedTls();
+        }
+    }
+
+    /**
+     * 워커가 교환을 끝냈다. keepClient면 다음 요청을 받고, 아니면 클라 커넥션을 닫는다.
+     * 이미 버퍼에 다음 요청(pipelined)이 와 있으면 지금 워커의 콜스택 밖에서 처리하도록 리액터 작업으로 넘긴다.
+     * @param keepClient 응답이 프레이밍으로 끝났고 서버도 커넥션 유지를 허락했으면 true
+     */
+    @Override
+    public void onExchangeComplete(boolean keepClient) {
+        worker = null;
+        // 서버가 바디를 다 받기 전에 응답한 경우. 남은 바디를 건너뛸 방법이 없으니 닫는다.
+        // 매핑에서 빠진 포트면 하던 응답까지만 마치고 닫는다.
+        if (!keepClient || !parser.isPersistent() || !parser.isMessageComplete() || !clientWorkConfig.isClientKeepAlive()
+                || !clientWorkConfig.getRoutingTable().contains(localPort)) {
+            close();
+            return;
+        }
+
+        parser.reset();
+        clientKey.interestOps(SelectionKey.OP_READ);
+        if (input != null && readIndex < buffer.position()) {
+            reactor.execute(this::processPipelined);
+        } else {
+            armTimer(TimeoutPolicy.Kind.IDLE, timeouts.getIdle());
+            releaseIfIdle();
+        }
+        readBufferedTls();
+    }
+
+    private void processPipelined() {
+        if (closed || worker != null || input == null) {
+            return;
+        }
+        try {
+            parseRequestHeader();
+            releaseIfIdle();
+        } catch (IOException | RuntimeException e) {
+            log.error("pipelined request fail!! socket close. target = {}", targetGroup, e);
+            close();
+        }
+    }
+
+    /**
+     * TLS 세션이 이미 읽어 둔 바이트가 있으면 리액터 작업으로 읽는다. 소켓에 새로 온 게 없으면 OP_READ 이벤트가 안 오기 때문.
+     * 읽기를 다시 켠 직후에 부른다.
+     */
+    private void readBufferedTls() {
+        if (tls != null && tls.hasBufferedInput()) {
+            reactor.execute(this::onBufferedTlsInput);
+        }
+    }
+
+    private void onBufferedTlsInput() {
+        if (closed || !clientKey.isValid() || (clientKey.interestOps() & SelectionKey.OP_READ) == 0) {
+            return;
+        }
+        try {
+            onReadable();
+        } catch (IOException | RuntimeException e) {
+            log.error("client read fail!! socket close. target = {}", targetGroup, e);
+            onClose();
+        }
+    }
+
+    /**
+     * 핸드셰이크를 진행할 수 있는 만큼 진행하고, 막히면 필요한 이벤트에만 관심을 건다.
+     * 끝나면 핸드셰이크와 같이 온 요청 바이트부터 읽는다.
+     */
+    private void continueHandshake() throws IOException {
+        TlsHandshaker.Step step = tls.handshake();
+        switch (step) {
+            case NEED_READ:
+                clientKey.interestOps(SelectionKey.OP_READ);
+                break;
+            case NEED_WRITE:
+                clientKey.interestOps(SelectionKey.OP_WRITE);
+                break;
+            case TASK_PENDING:
+                clientKey.interestOps(0);
+                TlsTerminator.getInstance().getHandshakeExecutor()
+                        .runDelegatedTasks(tls.getSslEngine(), () -> reactor.execute(this::onHandshakeTaskDone));
+                break;
+            case DONE:
+                log.debug("client handshake done. alpn = {}", tls.getApplicationProtocol());
+                armTimer(TimeoutPolicy.Kind.HEADER, timeouts.getHeader());
+                clientKey.interestOps(SelectionKey.OP_READ);
+                if (TlsTerminator.H2.equals(tls.getApplicationProtocol())) {
+                    upgradeToH2();
+                    break;
+                }
+                onReadable();
+                break;
+            case FAILED:
+                log.debug("client handshake failed. close channel");
+                close();
+                break;
+        }
+    }
+
+    private void onHandshakeTaskDone() {
+        if (closed) {
+            return;
+        }
+        try {
+            continueHandshake();
+        } catch (IOException | RuntimeException e) {
+            log.debug("client handshake fail. socket close. {}", e.toString());
+            close();
+        }
+    }
+
+    private void armTimer(TimeoutPolicy.Kind kind, long millis) {
+        cancelTimer();
+        if (millis > 0) {
+            timerKind = kind;
+            timer = reactor.schedule(() -> onTimeout(kind), millis);
+        }
+    }
+
+    private void cancelTimer() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    /**
+     * 핸드셰이크나 idle은 그냥 닫고, 헤더가 덜 왔으면 408을 한 번 써보고 닫는다.
+     */
+    private void onTimeout(TimeoutPolicy.Kind kind) {
+        timer = null;
+        if (closed) {
+            return;
+        }
+        TimeoutPolicy.getInstance().recordExpired(kind);
+        log.debug("client {} timeout. close channel. port = {}", kind, localPort);
+        if (kind != TimeoutPolicy.Kind.HEADER) {
+            close();
+            return;
+        }
+        try {
+            reject(HttpResponses.REQUEST_TIMEOUT);
+        } catch (IOException | RuntimeException e) {
+            close();
+        }
+    }
+
+    @Override
+    public void onClose() {
+        if (worker != null) {
+            worker.abort();
+        }
+        close();
+    }
+
+    /**
+     * 클라 커넥션을 닫고 빌린 버퍼를 돌려준다. 여러 번 불려도 된다.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        cancelTimer();
+        leaveSeat();
+        releaseInput();
+        if (outbound != null) {
+            outbound.clear();
+        }
+        if (tls != null) {
+            tls.close();
+        }
+        if (targetMetrics != null) {
+            targetMetrics.connectionClosed();
+        }
+        if (clientKey != null) {
+            clientKey.cancel();
+            SocketUtil.getInstance().socketClose((SocketChannel) clientKey.channel());
+        }
+    }
+
+    /**
+     * 처리 안 한 바이트도, 버퍼를 보고 있는 워커도 없으면 버퍼를 풀에 돌려준다.
+     */
+    private void releaseIfIdle() {
+        if (input != null && worker == null && readIndex == buffer.position()) {
+            releaseInput();
+        }
+        if (tls != null && worker == null) {
+            tls.releaseIfIdle();
+        }
+    }
+
+    private void releaseInput() {
+        if (input != null) {
+            input.release();
+            input = null;
+            buffer = null;
+            readIndex = 0;
+        }
+    }
+
+    private TargetGroup findTargetGroup() throws IOException {
+        TargetGroup group = clientWorkConfig.getRoutingTable().get(localPort);
+        if (group == null) {
+            throw new IOException("Invalid port " + clientPort);
+        }
+        return group;
+    }
+
+    private void parseRequestHeader() throws IOException {
+        if (timer == null || timerKind != TimeoutPolicy.Kind.HEADER) {
+            // 다음 요청의 첫 바이트. idle을 거두고 헤더 타임아웃을 잰다
+            armTimer(TimeoutPolicy.Kind.HEADER, timeouts.getHeader());
+        }
+        if (h2cCandidate) {
+            switch (Http2Server.matchPreface(buffer, readIndex, buffer.position())) {
+                case MATCH:
+                    upgradeToH2();
+                    return;
+                case PARTIAL:
+                    return;
+                case NONE:
+                    h2cCandidate = false;
+                    break;
+            }
+        }
+        HttpRequestParser.Result result = parser.parseHeaders(buffer, readIndex, buffer.position());
+        switch (result) {
+            case NEED_MORE:
+                if (!buffer.hasRemaining()) {
+                    compact();
+                }
+                break;
+            case HEADER_TOO_LARGE:
+                log.debug("request header too large. close channel");
+                reject(HttpResponses.HEADER_TOO_LARGE);
+                break;
+            case BAD_REQUEST:
+                log.debug("bad request. close channel");
+                reject(HttpResponses.BAD_REQUEST);
+                break;
+            case HEADERS_DONE:
+                startExchange(true);
+                break;
+        }
+    }
+
+    /**
+     * 요청을 보낼 타겟을 고르고, 헤더를 변조하고 워커를 띄운다. 헤더 뒤에 같이 온 바디가 있으면 바로 넘긴다.
+     * 캐시에서 내보낼 수 있는 요청이면 워커 없이 바로 응답한다.
+     * @param coalesce 같은 요청이 업스트림에 가 있으면 그 응답을 나눠받을지. 나눠받다가 실패해서 다시 올 때는 false
+     */
+    private void startExchange(boolean coalesce) throws IOException {
+        h2cCandidate = false;
+        cancelTimer();
+        targetGroup = clientWorkConfig.getRoutingTable().get(localPort);
+        if (targetGroup == null) {
+            // keep-alive로 기다리는 사이 매핑에서 빠진 포트
+            log.debug("port removed from mapping. close channel. port = {}", localPort);
+            reject(HttpResponses.SERVICE_UNAVAILABLE);
+            return;
+        }
+        CacheLookup lookup = cacheEnabled ? ResponseCache.getInstance().lookup(clientPort, parser, buffer, readIndex) : null;
+        try {
+            if (lookup != null && lookup.isServable()) {
+                serveCached(lookup);
+                return;
+            }
+            if (coalesce && lookup != null && lookup.isCoalescable()) {
+                Flight.Seat joined = ResponseCache.getInstance().join(lookup, this::onFlightUpdate);
+                if (joined != null) {
+                    waitForFlight(joined);
+                    return;
+                }
+            }
+
+            boolean keepAlive = UpstreamConnectionPool.getInstance().isEnabled();
+            SocketInfo socketInfo = targetGroup.pick();
+            if (socketInfo == null) {
+                log.debug("no healthy target. reject. port = {}", localPort);
+                OutlierDetection.getInstance().recordRejected();
+                reject(HttpResponses.NO_HEALTHY_TARGET);
+                return;
+            }
+            if (!ConcurrencyLimits.getInstance().tryAcquire(socketInfo)) {
+                log.debug("target concurrency limit reached. reject. target = {}", socketInfo);
+                reject(HttpResponses.OVERLOADED);
+                return;
+            }
+            // 잡은 자리는 워커가 넘겨받아 finish에서 돌려준다. 워커가 생기기 전에 실패하면 여기서 돌려준다.
+            PooledBuffer requestHead = null;
+            ResponseCompressor compressor = null;
+            try {
+                byte[] conditionalHeaders = lookup == null ? null : lookup.getConditionalHeaders();
+                requestHead = HttpHeaderRewriter.rewrite(parser, buffer, readIndex, socketInfo, keepAlive, conditionalHeaders);
+                compressor = ResponseCompression.getInstance().newCompressor(clientPort, parser, buffer, readIndex, targetMetrics);
+                readIndex += parser.getHeaderLength();
+
+                // 응답이 끝날 때까지는 클라 쪽 읽기를 멈춘다. 바디가 더 와야 하면 offerRequestBody에서 다시 켠다.
+                clientKey.interestOps(0);
+                worker = new ClientWorker(this, socketInfo, requestHead, parser.isHeadRequest(), !parser.hasBody(), parser.isIdempotent(), reactor,
+                        lookup == null ? null : lookup.newFill(), compressor);
+            } catch (RuntimeException e) {
+                ConcurrencyLimits.getInstance().release(socketInfo, 0, false, true);
+                BufferPool.getInstance().release(requestHead);
+                if (compressor != null) {
+                    compressor.close();
+                }
+                throw e;
+            }
+            if (parser.hasBody()) {
+                try {
+                    offerRequestBody();
+                } catch (RuntimeException e) {
+                    // 아직 시작 안 한 워커. 자리와 버퍼는 abort에서 돌려준다
+                    worker.abort();
+                    throw e;
+                }
+            }
+            worker.start();
+        } finally {
+            if (lookup != null) {
+                lookup.release();
+            }
+        }
+    }
+
+    /**
+     * 캐시에 있는 응답을 바로 쓴다. stale이라 재검증을 맡았으면 클라 없는 워커를 띄워 뒤에서 재검증한다.
+     * 보낼 타겟이 없거나 타겟 동시 요청 한도가 찼으면 재검증은 다음 요청에 미룬다.
+     */
+    private void serveCached(CacheLookup lookup) throws IOException {
+        long startedAt = System.nanoTime();
+        SocketInfo socketInfo = lookup.hasBackgroundRevalidation() ? targetGroup.pick() : null;
+        if (lookup.hasBackgroundRevalidation()
+                && (socketInfo == null || !ConcurrencyLimits.getInstance().tryAcquire(socketInfo))) {
+            // 맡은 재검증을 내려놓는다
+            lookup.newFill().close();
+        } else if (socketInfo != null) {
+            // 요청 헤더가 아직 버퍼에 있을 때 변조해 둔다.
+            boolean keepAlive = UpstreamConnectionPool.getInstance().isEnabled();
+            ClientWorker.revalidate(socketInfo, parser, buffer, readIndex, keepAlive, lookup, reactor, targetMetrics);
+        }
+        readIndex += parser.getHeaderLength();
+
+        clientKey.interestOps(0);
+        targetMetrics.addBytesOut(lookup.serve(outbound, parser.isHeadRequest()));
+        targetMetrics.recordRequest(System.nanoTime() - startedAt, true);
+        if (outbound.isEmpty()) {
+            onExchangeComplete(true);
+            return;
+        }
+        flushingCachedResponse = true;
+        clientKey.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * 같은 요청의 응답을 기다린다. 요청 헤더는 나눠받기 시작할 때까지 버퍼에 둔다(못 나눠받으면 직접 보내야 하니까).
+     */
+    private void waitForFlight(Flight.Seat joined) {
+        seat = joined;
+        seatStreaming = false;
+        seatJoinedAt = System.nanoTime();
+        seatCompressor = ResponseCompression.getInstance().newCompressor(clientPort, parser, buffer, readIndex, targetMetrics);
+        clientKey.interestOps(0);
+        seatTimer = reactor.schedule(() -> onFlightTimeout(joined), ResponseCache.getInstance().getCoalesceMaxWait());
+        pumpSeat();
+    }
+
+    /**
+     * 리더 스레드에서 불린다. 이 리액터로 넘긴다.
+     */
+    private void onFlightUpdate() {
+        reactor.execute(this::pumpSeat);
+    }
+
+    private void onFlightTimeout(Flight.Seat timedOut) {
+        if (seat != timedOut || seatStreaming || closed) {
+            return;
+        }
+        log.debug("coalesced request timed out. send it upstream");
+        retryWithoutFlight();
+    }
+
+    /**
+     * 나눠받은 응답 조각을 클라에게 쓴다. 클라가 느려서 못 쓴 게 남으면 OP_WRITE로 마저 쓴 뒤 이어서 쓴다.
+     */
+    private void pumpSeat() {
+        if (seat == null || closed) {
+            return;
+        }
+        try {
+            switch (seat.getStatus()) {
+                case WAITING:
+                    return;
+                case RETRY:
+                    retryWithoutFlight();
+                    return;
+                case FAILED:
+                    log.debug("coalesced response failed. close channel");
+                    close();
+                    return;
+                case STREAMING:
+                    break;
+            }
+            if (!outbound.isEmpty()) {
+                return;
+            }
+            ByteBuffer chunk;
+            while ((chunk = seat.next()) != null) {
+                if (!seatStreaming) {
+                    // 첫 조각. 이제 이 요청은 나눠받은 응답으로 끝난다.
+                    seatStreaming = true;
+                    readIndex += parser.getHeaderLength();
+                }
+                if (writeSeatChunk(chunk)) {
+                    clientKey.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            if (seat.isComplete()) {
+                if (seatCompressor != null) {
+                    seatCompressor.finish(this::writeSeatBytes);
+                    if (!outbound.isEmpty()) {
+                        clientKey.interestOps(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                boolean keepAlive = seat.isKeepAlive();
+                leaveSeat();
+                targetMetrics.recordRequest(System.nanoTime() - seatJoinedAt, true);
+                onExchangeComplete(keepAlive);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("coalesced response write fail!! socket close. target = {}", targetGroup, e);
+            close();
+        }
+    }
+
+    private void retryWithoutFlight() {
+        leaveSeat();
+        ResponseCache.getInstance().recordCoalesceFallback();
+        try {
+            startExchange(false);
+        } catch (IOException | RuntimeException e) {
+            log.error("request fail!! socket close. target = {}", targetGroup, e);
+            close();
+        }
+    }
+
+    /**
+     * @return 다 못 써서 밀린 게 있으면 true
+     */
+    private boolean writeSeatChunk(ByteBuffer chunk) throws IOException {
+        if (seatCompressor == null) {
+            return writeSeatBytes(chunk);
+        }
+        seatCompressor.write(chunk, this::writeSeatBytes);
+        return !outbound.isEmpty();
+    }
+
+    private boolean writeSeatBytes(ByteBuffer bytes) throws IOException {
+        targetMetrics.addBytesOut(bytes.remaining());
+        return outbound.write(bytes);
+    }
+
+    private void leaveSeat() {
+        if (seatTimer != null) {
+            seatTimer.cancel();
+            seatTimer = null;
+        }
+        if (seatCompressor != null) {
+            seatCompressor.close();
+            seatCompressor = null;
+        }
+        if (seat != null) {
+            seat.leave();
+            seat = null;
+        }
+    }
+
+    private void flushCachedResponse() throws IOException {
+        if (outbound.flush()) {
+            flushingCachedResponse = false;
+            onExchangeComplete(true);
+        }
+    }
+
+    /**
+     * 버퍼에 있는 바디 중 이번 요청에 속하는 만큼을 잘라서 워커에게 넘긴다.
+     * 그 뒤에 남는 바이트는 다음(pipelined) 요청이므로 그대로 둔다.
+     */
+    private void offerRequestBody() {
+        int bodyBytes = parser.frameBody(buffer, readIndex, buffer.position());
+        if (bodyBytes == 0) {
+            compact();
+            clientKey.interestOps(clientKey.interestOps() | SelectionKey.OP_READ);
+            readBufferedTls();
             return;
         }
 
-        byte[] inputDataBytes = new byte[readBytes];
+        ByteBuffer chunk = buffer.duplicate().limit(readIndex + bodyBytes).position(readIndex);
+        readIndex += bodyBytes;
+        clientKey.interestOps(clientKey.interestOps() & ~SelectionKey.OP_READ);
+        worker.onRequestBody(chunk, parser.isMessageComplete());
+    }
 
+    /**
+     * 워커가 넘겨받은 바디 조각을 업스트림에 다 썼다. 이제 버퍼를 정리하고 다음 바디를 읽는다.
+     */
+    @Override
+    public void onRequestBodyConsumed() {
+        compact();
+        clientKey.interestOps(clientKey.interestOps() | SelectionKey.OP_READ);
+        readBufferedTls();
+    }
+
+    @Override
+    public OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    @Override
+    public TargetMetrics getTargetMetrics() {
+        return targetMetrics;
+    }
+
+    /**
+     * h2 업스트림이 요청 바디를 다 받기 전에 응답하면 OP_READ와 같이 걸린다. 그래서 덮어쓰지 않고 더한다.
+     */
+    @Override
+    public void awaitWritable() {
+        clientKey.interestOps(clientKey.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    @Override
+    public void cancelWritable() {
+        clientKey.interestOps(clientKey.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * 키와 이미 읽은 바이트를 Http2ServerConnection에 넘긴다. 소켓, TLS 세션, 큐는 이제 그쪽 것이라 이 핸들러는 닫힌 걸로 두고 손대지 않는다.
+     */
+    private void upgradeToH2() {
+        log.debug("client speaks h2. port = {}, tls = {}", localPort, tls != null);
+        cancelTimer();
+        SelectorThread streamReactor = reactor;
+        int port = localPort;
+        TargetMetrics metrics = targetMetrics;
+        boolean cache = cacheEnabled;
+        Http2ServerConnection connection = new Http2ServerConnection(reactor, clientKey, tls, outbound, targetMetrics,
+                stream -> new Http2StreamExchange(stream, streamReactor, port, metrics, cache).start());
+        ByteBuffer leftover = null;
+        if (input != null) {
+            leftover = buffer.duplicate().limit(buffer.position()).position(readIndex);
+        }
+        closed = true;
+        tls = null;
+        outbound = null;
+        connection.start(leftover);
+        releaseInput();
+    }
+
+    /**
+     * 처리한 바이트를 버리고 남은 바이트를 버퍼 앞으로 당긴다.
+     */
+    private void compact() {
+        if (readIndex == 0) {
+            return;
+        }
         buffer.flip();
-        buffer.get(inputDataBytes, 0, readBytes);
-        buffer.clear();
+        buffer.position(readIndex);
+        buffer.compact();
+        readIndex = 0;
+    }
 
-        new ClientWorker(inputDataBytes, key).run();
+    private void reject(byte[] response) throws IOException {
+        // 닫을 커넥션이라 한 번만 써보고 못 쓴 건 버린다(close에서 큐를 비운다).
+        outbound.write(ByteBuffer.wrap(response));
+        close();
     }
 
 }
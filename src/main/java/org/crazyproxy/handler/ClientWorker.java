@@ -1,320 +1,1022 @@
 package org.crazyproxy.handler;
 
 import lombok.extern.slf4j.Slf4j;
-import org.crazyproxy.config.ClientWorkConfig;
+import org.crazyproxy.buffer.BufferPool;
+import org.crazyproxy.buffer.PooledBuffer;
+import org.crazyproxy.cache.CacheFill;
+import org.crazyproxy.cache.CacheLookup;
+import org.crazyproxy.compress.ResponseCompressor;
 import org.crazyproxy.config.SSLConfig;
 import org.crazyproxy.config.SocketInfo;
+import org.crazyproxy.config.ClientWorkConfig;
+import org.crazyproxy.health.TargetHealth;
+import org.crazyproxy.http.HttpHeaderRewriter;
+import org.crazyproxy.http.HttpRequestParser;
+import org.crazyproxy.http.HttpResponseFramer;
+import org.crazyproxy.http.HttpResponses;
+import org.crazyproxy.http2.Http2Connection;
+import org.crazyproxy.http2.Http2ConnectionPool;
+import org.crazyproxy.http2.Http2Request;
+import org.crazyproxy.http2.Http2Stream;
+import org.crazyproxy.limit.ConcurrencyLimits;
+import org.crazyproxy.metrics.TargetMetrics;
+import org.crazyproxy.nio.Outbound;
+import org.crazyproxy.nio.SelectorThread;
+import org.crazyproxy.nio.TimerWheel;
+import org.crazyproxy.pool.PooledConnection;
+import org.crazyproxy.pool.UpstreamConnectionPool;
+import org.crazyproxy.ssl.CryptoExecutor;
+import org.crazyproxy.ssl.TlsHandshaker;
+import org.crazyproxy.timeout.PortTimeouts;
+import org.crazyproxy.timeout.TimeoutPolicy;
 import org.crazyproxy.util.SSLHandshakeUtil;
-import org.crazyproxy.util.SocketUtil;
 
 import javax.net.ssl.*;
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.nio.charset.StandardCharsets;
-import java.util.Set;
-import java.util.concurrent.Executors;
 
 /**
- * 클라이언트의 요청 서버로 요청 후 클라에게 응답을 주는 클래스
- * ClientHandle에서 스레드풀을 가지고 있었기 때문에, Runnable로 만들어서 썼었음.
- * 수정 필요.
+ * 클라이언트의 요청을 서버로 보내고 응답을 클라에게 흘려주는 클래스.
+ * 요청 하나당 하나씩 만들어지는 상태 머신이고, 클라이언트 채널을 맡은 리액터에서 이벤트로만 굴러간다.
+ * CONNECTING -> (HANDSHAKING) -> WRITING_REQUEST -> READING_RESPONSE -> (FLUSHING) -> DONE
+ * 핸드셰이크도 TlsHandshaker로 OP_READ/OP_WRITE 이벤트에 맞춰 진행하고, 무거운 연산만 CryptoExecutor로 넘긴다.
+ * 업스트림 채널도 같은 리액터 셀렉터에 등록되고, 키의 attachment가 이 객체다.
+ * 새 연결은 ConnectRace가 타겟 주소들로 경주를 붙이고, 이긴 채널의 키를 넘겨받아 이어 쓴다.
+ * 요청은 ClientHandler가 변조해 둔 헤더 슬랩을 먼저 쓰고, 바디는 ClientHandler가 넘겨주는 조각을 받는 대로 흘려보낸다.
+ * 클라 쪽(ExchangeClient)은 HTTP/1.x 커넥션(ClientHandler)이거나 클라 h2 커넥션의 스트림 하나(Http2StreamExchange)다. 어느 쪽이든 응답은 HTTP/1.1 바이트로 쓴다.
+ *
+ * 흐름 제어: 요청 쪽은 바디 조각을 업스트림에 다 쓸 때까지 클라를 읽지 않는다.
+ * 응답 쪽은 클라의 Outbound에 writeHighWaterMark 이상 쌓이면 업스트림 읽기를 멈추고 writeLowWaterMark 아래로 빠지면 다시 읽는다.
+ * 응답을 다 받았는데 클라에게 못 보낸 게 남아 있으면 FLUSHING에서 다 보낼 때까지 기다린다.
+ *
+ * 응답 캐시: cacheFill이 있으면 응답 바이트를 클라에게 쓰기 전에 보여줘서 사본을 만든다.
+ * 재검증 요청이면 응답 헤더가 다 올 때까지 클라에게 쓰지 않고, 304면 업스트림 응답 대신 갱신된 캐시 항목을 내보낸다.
+ * stale-while-revalidate 재검증은 클라 없는(headless) 워커가 맡는다. 응답은 캐시에만 담고 버린다.
+ *
+ * 응답 압축: compressor가 있으면 클라에게 쓰는 바이트를 거기로 돌린다. 캐시에는 압축 전 응답을 담는다.
+ *
+ * HTTP/2: HTTPS 타겟은 ALPN으로 h2를 먼저 묻는다. 서버가 고르면 커넥션을 Http2ConnectionPool에 맡기고, 요청은 그 위의 스트림 하나로 보낸다 (STREAMING).
+ * 스트림은 응답을 HTTP/1.1 바이트로 바꿔 주므로 응답 프레이밍, 캐시, 클라 쓰기는 HTTP/1.1과 같다. 클라가 느리면 업스트림 읽기 대신 스트림 창을 멈춘다.
+ * 스트림이 처리되지 않고 거절됐으면(REFUSED_STREAM, GOAWAY) 바디 없고 두 번 보내도 되는 요청만 한 번 다시 보낸다.
+ *
+ * 타임아웃: 연결(connect)과 업스트림 TLS 핸드셰이크는 그 단계 동안만, 요청 전체(request)는 start부터 finish까지 리액터 TimerWheel에 건다.
+ * 넘기면 실패로 끝낸다. 클라에게 아직 응답을 한 바이트도 안 썼으면 504를 쓰고 끝낸다.
+ *
+ * 동시 요청 한도: 워커를 띄우는 쪽이 ConcurrencyLimits에서 타겟 자리를 잡고, finish에서 응답 첫 바이트까지 걸린 시간과 함께 돌려준다.
+ * 타겟 회로(TargetHealth)에는 finish에서 결과를 알린다. 응답이 덜 왔거나 5xx면 실패, 클라가 먼저 끊었으면 안 알린다.
  */
 @Slf4j
-public class ClientWorker implements Runnable {
+public class ClientWorker implements NioHandler, ConnectRace.Listener, Http2Stream.Listener, Http2ConnectionPool.Waiter {
+
+    private enum State {
+        CONNECTING, HANDSHAKING, WRITING_REQUEST, READING_RESPONSE, STREAMING, FLUSHING, DONE
+    }
 
-    private final ClientWorkConfig clientWorkConfig = ClientWorkConfig.getInstance();
-    private final byte[] inputDataBytes;
-    private final StringBuilder stringBuilder = new StringBuilder();
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final ExchangeClient client;
     private final SocketInfo socketInfo;
-    private final String targetAddress;
-    private final SelectionKey clientKey;
-    private final Selector selector;
-    private final StringBuilder accumulatedData = new StringBuilder();
+    private final PooledBuffer requestHead;
+    private final boolean headRequest;
+    private final boolean hasBody;
+    // 업스트림이 응답 없이 끊었을 때 다시 보내도 되는 메서드인지
+    private final boolean idempotent;
+    private final SelectorThread reactor;
+    private final UpstreamConnectionPool connectionPool = UpstreamConnectionPool.getInstance();
+    private final Http2ConnectionPool h2Pool = Http2ConnectionPool.getInstance();
+    private final ConcurrencyLimits concurrencyLimits = ConcurrencyLimits.getInstance();
+    private final HttpResponseFramer responseFramer = new HttpResponseFramer();
+    private final Outbound clientOutbound;
+    private final TargetMetrics targetMetrics;
+    private final int writeHighWaterMark;
+    private final int writeLowWaterMark;
+    private final long connectRaceDelay;
+    private final CacheFill cacheFill;
+    private final ResponseCompressor compressor;
+    private final PortTimeouts timeouts;
+    // 연결, 핸드셰이크 중에만 걸리는 타이머
+    private TimerWheel.Timeout phaseTimer;
+    // requestTimeout. finish에서 거둔다
+    private TimerWheel.Timeout requestTimer;
+    private State state;
+    private PooledConnection upstream;
+    private SelectionKey targetKey;
+    private ConnectRace connectRace;
+    private boolean reused;
+    private long responseBytes;
+    // 지표용 System.nanoTime() 시각들
+    private long startedAt;
+    // 회로가 HALF_OPEN일 때 이 요청이 시험 요청이면 그 번호 (TargetHealth.startRequest)
+    private long probe = TargetHealth.NO_PROBE;
+    private long connectStartedAt;
+    private long handshakeStartedAt;
+    // 응답 첫 바이트를 받은 시각. 0이면 아직
+    private long firstByteAt;
+    // 클라가 느려서 업스트림 읽기를 멈춰둔 상태
+    private boolean upstreamPaused;
+    // 클라가 먼저 끊었다. 타겟 탓이 아니므로 밸런서에 실패로 알리지 않는다
+    private boolean aborted;
+    // FLUSHING이 끝나면 finish에 넘길 값
+    private boolean responseKeepAlive;
+    // 클라 쪽 버퍼의 뷰. 다 쓰면 돌려주고 다음 조각을 기다린다.
+    private ByteBuffer requestBody;
+    private boolean requestBodyDone;
+    private final ByteBuffer[] requestSources = new ByteBuffer[2];
     private SSLEngine sslEngine;
-    private String path = "/";
-    private ByteBuffer myAppData;
-    private ByteBuffer myNetData;
-    private ByteBuffer peerAppData;
-    private ByteBuffer peerNetData;
-
-    private SocketUtil socketUtil = SocketUtil.getInstance();
+    private TlsHandshaker handshaker;
+    // TLS 넷 버퍼. 업스트림과 주고받는 동안만 풀에서 빌리고 finish에서 반납한다.
+    private PooledBuffer myNetData;
+    private PooledBuffer peerNetData;
+    // HTTP/2로 보낼 수 있는 요청이면 그 헤더 목록. null이면 HTTP/1.1로만 보낸다
+    private final Http2Request h2Request;
+    private Http2Stream stream;
+    // 이 워커가 ALPN 연결을 맡았다 / 다른 워커의 연결을 기다린다. 끝날 때 풀에 알려야 한다
+    private boolean h2Connecting;
+    private boolean h2Waiting;
+    private boolean h2Retried;
 
+    /**
+     * @param requestHead 변조된 요청 헤더 (읽기 모드). 소유권을 넘겨받고 finish에서 반납한다
+     * @param bodyless 바디가 없는 요청이면 true. 바디가 있으면 onRequestBody로 받는다
+     * @param idempotent GET, HEAD처럼 두 번 보내도 되는 메서드면 true (HttpRequestParser.isIdempotent)
+     * @param cacheFill 응답을 캐시에 담을 거면 그 CacheFill. 소유권을 넘겨받는다. 아니면 null
+     * @param compressor 응답을 압축할 거면 그 ResponseCompressor. 소유권을 넘겨받는다. 아니면 null
+     */
+    ClientWorker(ExchangeClient client, SocketInfo socketInfo, PooledBuffer requestHead,
+                 boolean headRequest, boolean bodyless, boolean idempotent, SelectorThread reactor, CacheFill cacheFill,
+                 ResponseCompressor compressor) {
+        this(client, socketInfo, requestHead, headRequest, bodyless, idempotent, reactor, client.getTargetMetrics(), cacheFill,
+                compressor);
+    }
 
-    public ClientWorker(byte[] inputDataBytes, SelectionKey clientKey) throws IOException {
-        log.debug("init Worker = {}", Thread.currentThread().getName());
+    /**
+     * 클라 없이 응답을 캐시에만 담는 워커. stale-while-revalidate 재검증용.
+     */
+    private ClientWorker(SocketInfo socketInfo, PooledBuffer requestHead, SelectorThread reactor,
+                         TargetMetrics targetMetrics, CacheFill cacheFill) {
+        // 재검증은 조건부 GET이다
+        this(null, socketInfo, requestHead, false, true, true, reactor, targetMetrics, cacheFill, null);
+    }
 
-        this.inputDataBytes = inputDataBytes;
+    /**
+     * 맡은 재검증을 클라 없는 워커로 띄운다. ConcurrencyLimits.tryAcquire로 잡아 둔 자리는 워커가 넘겨받는다.
+     * 워커가 생기기 전에 실패하면 자리와 맡은 재검증을 내려놓고 다시 던진다.
+     */
+    public static void revalidate(SocketInfo socketInfo, HttpRequestParser parser, ByteBuffer buffer, int start, boolean keepAlive,
+                                  CacheLookup lookup, SelectorThread reactor, TargetMetrics targetMetrics) {
+        PooledBuffer requestHead = null;
+        CacheFill cacheFill = null;
+        ClientWorker worker;
+        try {
+            requestHead = HttpHeaderRewriter.rewrite(parser, buffer, start, socketInfo, keepAlive, lookup.getConditionalHeaders());
+            cacheFill = lookup.newFill();
+            worker = new ClientWorker(socketInfo, requestHead, reactor, targetMetrics, cacheFill);
+        } catch (RuntimeException e) {
+            ConcurrencyLimits.getInstance().release(socketInfo, 0, false, true);
+            BufferPool.getInstance().release(requestHead);
+            if (cacheFill != null) {
+                cacheFill.close();
+            }
+            throw e;
+        }
+        worker.start();
+    }
 
-        SocketChannel clientChannel = (SocketChannel) clientKey.channel();
-        InetSocketAddress clientAddress = (InetSocketAddress) clientChannel.getLocalAddress();
-        String clientPort = String.valueOf(clientAddress.getPort());
-        SocketInfo socketInfo = clientWorkConfig.getPortMap().get(clientPort);
+    private ClientWorker(ExchangeClient client, SocketInfo socketInfo, PooledBuffer requestHead,
+                         boolean headRequest, boolean bodyless, boolean idempotent, SelectorThread reactor,
+                         TargetMetrics targetMetrics, CacheFill cacheFill, ResponseCompressor compressor) {
+        this.client = client;
         this.socketInfo = socketInfo;
-        InetSocketAddress inetSocketAddress = socketInfo.getInetSocketAddress();
-        this.path = socketInfo.getPath();
-        targetAddress = socketInfo.getHost();
+        this.requestHead = requestHead;
+        this.headRequest = headRequest;
+        this.hasBody = !bodyless;
+        this.idempotent = idempotent;
+        this.requestBodyDone = bodyless;
+        this.reactor = reactor;
+        this.clientOutbound = client == null ? null : client.getOutbound();
+        this.targetMetrics = targetMetrics;
+        this.cacheFill = cacheFill;
+        this.compressor = compressor;
+        ClientWorkConfig clientWorkConfig = ClientWorkConfig.getInstance();
+        this.writeHighWaterMark = clientWorkConfig.getWriteHighWaterMark();
+        this.writeLowWaterMark = clientWorkConfig.getWriteLowWaterMark();
+        this.connectRaceDelay = clientWorkConfig.getConnectRaceDelay();
+        this.timeouts = TimeoutPolicy.getInstance().forPort(targetMetrics.getPort());
+        this.h2Request = socketInfo.isHttps() && h2Pool.isEnabled() ? Http2Request.from(requestHead.getBuffer()) : null;
+    }
 
-        SocketChannel targetChannel = SocketChannel.open();
-        targetChannel.configureBlocking(false);
-        targetChannel.socket().setTcpNoDelay(true);
-        targetChannel.connect(inetSocketAddress);
+    /**
+     * 업스트림 연결을 시작한다. 리액터 스레드에서 호출해야 함.
+     */
+    public void start() {
+        try {
+            startedAt = System.nanoTime();
+            socketInfo.getStats().onStart();
+            probe = socketInfo.getHealth().startRequest();
+            responseFramer.reset(headRequest);
+            if (timeouts.getRequest() > 0) {
+                requestTimer = reactor.schedule(() -> onTimeout(TimeoutPolicy.Kind.REQUEST), timeouts.getRequest());
+            }
+            prepareTarget(true);
+        } catch (IOException | RuntimeException e) {
+            log.error("exchange start fail!! socket close. target = {}", socketInfo, e);
+            finish(false);
+        }
+    }
 
-        if (socketInfo.isHttps()) {
-            sslEngine = SSLConfig.getInstance().getContext().createSSLEngine();
-            sslEngine.setUseClientMode(true);
+    /**
+     * 업스트림 커넥션 준비. 자리가 있는 h2 커넥션이 있으면 스트림을 열고, h2 연결 중이면 기다린다.
+     * 아니면 풀에 idle 커넥션이 있으면 그걸 쓰고 바로 요청을 쓴다. 없으면 타겟의 주소들로 새로 연결한다.
+     * @param usePool false면 풀을 거치지 않고 무조건 새로 연결
+     */
+    private void prepareTarget(boolean usePool) throws IOException {
+        if (h2Request != null && usePool) {
+            Http2Connection h2Connection = h2Pool.acquire(reactor, socketInfo);
+            if (h2Connection != null) {
+                startStream(h2Connection);
+                return;
+            }
+            if (h2Pool.await(reactor, socketInfo, this)) {
+                log.debug("\t\twait for h2 connection. target = {}", socketInfo);
+                h2Waiting = true;
+                state = State.CONNECTING;
+                return;
+            }
         }
 
-        selector = Selector.open();
-        targetChannel.register(selector, SelectionKey.OP_CONNECT);
+        PooledConnection connection = usePool ? connectionPool.checkout(socketInfo) : null;
+        if (connection != null) {
+            reused = true;
+            upstream = connection;
+            sslEngine = connection.getSslEngine();
+            registerTarget(0);
+            startWriteRequest();
+            return;
+        }
 
-        if (targetChannel == null) {
-            throw new IOException("Invalid port " + clientPort);
+        sslEngine = null;
+        if (h2Request != null) {
+            sslEngine = SSLConfig.getInstance().createClientEngine(socketInfo, Http2ConnectionPool.H2, Http2ConnectionPool.HTTP_1_1);
+            h2Connecting = true;
+            h2Pool.onConnecting(reactor, socketInfo);
+        } else if (socketInfo.isHttps()) {
+            sslEngine = SSLConfig.getInstance().createClientEngine(socketInfo);
         }
 
-        this.clientKey = clientKey;
+        reused = false;
+        upstream = null;
+        targetKey = null;
+        state = State.CONNECTING;
+        connectStartedAt = System.nanoTime();
+        connectRace = new ConnectRace(reactor, socketInfo.getAddresses(), connectRaceDelay, this);
+        // 바로 붙으면 start 안에서 onRaceWon까지 가므로 먼저 건다
+        armPhaseTimer(TimeoutPolicy.Kind.CONNECT, timeouts.getConnect());
+        connectRace.start();
     }
 
-    private void setByteBuffer() {
-        CustomeThread customeThread = getCustomeThread();
-        myAppData = customeThread.getMyAppData();
-        myNetData = customeThread.getMyNetData();
-        peerAppData = customeThread.getPeerAppData();
-        peerNetData = customeThread.getPeerNetData();
+    @Override
+    public void onRaceWon(SocketChannel channel, SelectionKey key) {
+        connectRace = null;
+        cancelPhaseTimer();
+        upstream = new PooledConnection(socketInfo, channel, sslEngine);
+        key.attach(this);
+        targetKey = key;
+        try {
+            onConnected();
+        } catch (IOException | RuntimeException e) {
+            log.error("exchange fail!! socket close. target = {}", socketInfo, e);
+            finish(false);
+        }
+    }
 
-        myNetData.clear();
-        peerNetData.clear();
-        peerAppData.clear();
-        peerNetData.clear();
+    @Override
+    public void onRaceFailed(IOException cause) {
+        connectRace = null;
+        log.error("connect fail!! target = {}", socketInfo, cause);
+        finish(false);
     }
 
-    private static CustomeThread getCustomeThread() {
-        Thread thread = Thread.currentThread();
-        if (!(thread instanceof CustomeThread)) {
-            throw new RuntimeException("Unexpected thread " + thread.getClass().getName());
+    /**
+     * 업스트림 채널을 이 리액터 셀렉터에 등록한다.
+     * 풀에서 꺼낸 채널은 예전에 이 셀렉터에 등록됐던 키가 살아있을 수 있으므로 그 키를 다시 쓴다.
+     */
+    private void registerTarget(int ops) throws IOException {
+        SocketChannel channel = upstream.getChannel();
+        SelectionKey key = channel.keyFor(reactor.getSelector());
+        if (key != null && key.isValid()) {
+            key.attach(this);
+            key.interestOps(ops);
+            targetKey = key;
+        } else {
+            targetKey = channel.register(reactor.getSelector(), ops, this);
         }
-        CustomeThread customeThread = (CustomeThread) thread;
-        return customeThread;
     }
 
     @Override
-    public void run() {
-        setByteBuffer();
-        Set<SelectionKey> keys = null;
-        byte[] modifyBytes = modifyRequestHeader();
-
-        SocketChannel clientChannel = null;
-        SocketChannel targetChannel = null;
-
-        myAppData.clear();
-        myAppData.put(modifyBytes);
-        myAppData.flip();
-        boolean keepSelect = true;
-        selector.wakeup();
+    public void handle(SelectionKey key) throws IOException {
         try {
+            switch (state) {
+                case HANDSHAKING:
+                    if (key.isReadable() || key.isWritable()) {
+                        continueHandshake();
+                    }
+                    break;
+                case WRITING_REQUEST:
+                    if (key.isWritable()) {
+                        writeRequest();
+                    }
+                    break;
+                case READING_RESPONSE:
+                    if (key.isReadable()) {
+                        readResponse();
+                    }
+                    break;
+                default:
+                    log.warn("unexpected event. state = {}", state);
+                    key.interestOps(0);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("exchange fail!! socket close. target = {}", socketInfo, e);
+            finish(false);
+        }
+    }
 
-            while (keepSelect) {
-                log.debug("[SELECT START]");
-                selector.select();
-
-                keys = selector.selectedKeys();
-                for (SelectionKey key : keys) {
-
-                    if (key.isConnectable()) {
-                        log.debug("\t[CONNECT]");
-                        SocketChannel channel = (SocketChannel) key.channel();
-                        if (channel.finishConnect()) {
-                            log.debug("\t\tConnected!!! host = {}", channel.getRemoteAddress());
-
-                            if (socketInfo.isHttps()) {
-                                if (!SSLHandshakeUtil.doHandshake(sslEngine, Executors.newSingleThreadExecutor(), channel, myAppData, myNetData, peerAppData, peerNetData)) {
-                                    log.error("\t\thandshake failed. close channel");
-                                    socketUtil.socketClose(channel);
-                                    socketUtil.socketClose(clientChannel);
-                                    continue;
-                                }
-                            }
-                            // 연결이 완료되었으므로 이제 OP_WRITE로 등록합니다.
-                            channel.register(selector, SelectionKey.OP_WRITE);
-                        }
-
-                    } else if (key.isWritable()) {
-                        log.debug("\t[START WRITABLE]");
-                        targetChannel = (SocketChannel) key.channel();
-
-                        if (socketInfo.isHttps()) {
-                            myNetData.clear();
-                            SSLEngineResult result = sslEngine.wrap(myAppData, myNetData);
-
-                            // todo. it's bothering
-                            switch (result.getStatus()) {
-                                case OK:
-                                    log.debug("\t\twrite OK");
-                                    myNetData.flip();
-                                    while (myNetData.hasRemaining()) {
-                                        targetChannel.write(myNetData);
-                                    }
-                                    break;
-                                case BUFFER_OVERFLOW:
-                                    log.debug("\t\tBuffer overflow");
-                                    myNetData = SSLHandshakeUtil.enlargeApplicationBuffer(myNetData, sslEngine);
-                                    break;
-                                case BUFFER_UNDERFLOW:
-                                    log.debug("\t\tBuffer Underflow");
-                                    break;
-                                case CLOSED:
-                                    log.debug("\t\tConnection closed");
-                                    break;
-                                default:
-                                    throw new IllegalStateException("\t\tUnexpected value: " + result.getStatus());
-                            }
-                        } else {
-                            while (myAppData.hasRemaining()) {
-                                targetChannel.write(myAppData);
-                            }
-                        }
-
-                        key.interestOps(SelectionKey.OP_READ);
-                        allBufferClear();
-
-                    } else if (key.isReadable()) {
-                        log.debug("\t[START READABLE]");
-                        targetChannel = (SocketChannel) key.channel();
-                        clientChannel = (SocketChannel) clientKey.channel();
-
-                        if (!targetChannel.isConnected()) {
-                            log.warn("\t\ttargetChannel is not connected");
-                            continue;
-                        }
-                        int readBytes = targetChannel.read(peerNetData);
-
-                        if (readBytes > 0) {
-                            peerNetData.flip();
-
-                            if (socketInfo.isHttps()) {
-
-                                SSLEngineResult result = null;
-
-                                while (peerNetData.hasRemaining()) {
-                                    log.debug("\t\tpeerNetData = {}, {}", peerNetData.limit(), peerNetData.remaining());
-                                    result = sslEngine.unwrap(peerNetData, peerAppData);
-                                    if (!result.getStatus().equals(SSLEngineResult.Status.OK)) {
-                                        break;
-                                    }
-                                }
-
-                                if (result == null) {
-                                    log.error("\t\tresult is null. WHAT THE FUCK");
-                                    throw new RuntimeException("result is null");
-                                }
-                                SSLEngineResult.Status status = result.getStatus();
-
-                                switch (status) {
-                                    case OK:
-                                        log.debug("\t\tOK");
-                                        peerAppData.flip();
-                                        clientChannel.write(peerAppData);
-                                        allBufferClear();
-                                        break;
-                                    case BUFFER_UNDERFLOW:
-                                        log.debug("\t\tbuffer underflow compact peerNetData");
-                                        peerNetData.compact();
-                                        break;
-                                    case BUFFER_OVERFLOW:
-                                        log.debug("\t\tbuffer overflow");
-                                        peerAppData = SSLHandshakeUtil.enlargeApplicationBuffer(peerAppData, sslEngine);
-                                        break;
-
-                                    case CLOSED:
-                                        log.debug("\t\tSSL Engine CLOSED");
-                                        socketUtil.socketClose(targetChannel);
-                                        socketUtil.socketClose(clientChannel);
-                                        allBufferClear();
-                                        keepSelect = false;
-                                        break;
-
-                                    default:
-                                        throw new IllegalStateException("\t\tUnexpected value: " + result.getStatus());
-                                }
-
-                            } else {
-                                while (peerNetData.hasRemaining()) {
-                                    clientChannel.write(peerNetData);
-                                }
-                                peerNetData.clear();
-                            }
-                        } else {
-                            log.debug("\t\tChannel closed");
-                            keepSelect = false;
-                            socketUtil.socketClose(targetChannel);
-                            socketUtil.socketClose(clientChannel);
-                            clientKey.cancel();
-                            allBufferClear();
-                        }
+    private void onConnected() throws IOException {
+        targetMetrics.getConnectTime().record(System.nanoTime() - connectStartedAt);
+        if (!socketInfo.isHttps()) {
+            startWriteRequest();
+            return;
+        }
+
+        state = State.HANDSHAKING;
+        handshakeStartedAt = System.nanoTime();
+        armPhaseTimer(TimeoutPolicy.Kind.HANDSHAKE, timeouts.getHandshake());
+        ensureTlsBuffers();
+        handshaker = new TlsHandshaker(sslEngine, upstream.getChannel(), myNetData, peerNetData);
+        handshaker.begin();
+        continueHandshake();
+    }
+
+    /**
+     * 핸드셰이크를 진행할 수 있는 만큼 진행하고, 막히면 필요한 이벤트에만 관심을 건다.
+     */
+    private void continueHandshake() throws IOException {
+        TlsHandshaker.Step step = handshaker.step();
+        switch (step) {
+            case NEED_READ:
+                targetKey.interestOps(SelectionKey.OP_READ);
+                break;
+            case NEED_WRITE:
+                targetKey.interestOps(SelectionKey.OP_WRITE);
+                break;
+            case TASK_PENDING:
+                targetKey.interestOps(0);
+                CryptoExecutor.getInstance().runDelegatedTasks(sslEngine, () -> reactor.execute(this::onHandshakeTaskDone));
+                break;
+            case DONE:
+                cancelPhaseTimer();
+                targetMetrics.getTlsHandshakeTime().record(System.nanoTime() - handshakeStartedAt);
+                myNetData = handshaker.getMyNetData();
+                peerNetData = handshaker.getPeerNetData();
+                handshaker.close();
+                handshaker = null;
+                if (h2Connecting) {
+                    h2Connecting = false;
+                    if (Http2ConnectionPool.H2.equals(sslEngine.getApplicationProtocol())) {
+                        adoptH2Connection();
+                        break;
                     }
+                    log.debug("\t\tupstream chose http/1.1. target = {}", socketInfo);
+                    h2Pool.connectFailed(reactor, socketInfo, true);
                 }
+                startWriteRequest();
+                break;
+            case FAILED:
+                log.error("\t\thandshake failed. close channel");
+                finish(false);
+                break;
+        }
+    }
 
-                keys.clear();
+    /**
+     * 서버가 ALPN으로 h2를 골랐다. 커넥션은 풀에 맡기고 이 요청은 그 위의 첫 스트림이 된다.
+     * 채널, 키, 엔진, 넷 버퍼는 이제 커넥션 것이다.
+     */
+    private void adoptH2Connection() {
+        Http2Connection h2Connection = h2Pool.adopt(reactor, socketInfo, upstream.getChannel(), targetKey, sslEngine,
+                myNetData, peerNetData);
+        upstream = null;
+        targetKey = null;
+        sslEngine = null;
+        myNetData = null;
+        peerNetData = null;
+        if (h2Connection.hasCapacity()) {
+            startStream(h2Connection);
+        } else {
+            log.error("h2 connection closed right after handshake. target = {}", socketInfo);
+            finish(false);
+        }
+        h2Pool.releaseWaiters(reactor, socketInfo);
+    }
+
+    /**
+     * 스트림을 열고 요청 헤더를 보낸다. 먼저 받아둔 바디 조각이 있으면 같이 보낸다.
+     */
+    private void startStream(Http2Connection h2Connection) {
+        state = State.STREAMING;
+        stream = h2Connection.newStream(h2Request, !hasBody, headRequest, this);
+        if (requestBody != null) {
+            stream.sendBody(requestBody, requestBodyDone);
+        }
+    }
+
+    @Override
+    public void onConnectionReady(Http2Connection h2Connection) {
+        h2Waiting = false;
+        if (state == State.DONE) {
+            return;
+        }
+        startStream(h2Connection);
+    }
+
+    @Override
+    public void onConnectionUnavailable() {
+        h2Waiting = false;
+        if (state == State.DONE) {
+            return;
+        }
+        try {
+            prepareTarget(true);
+        } catch (IOException | RuntimeException e) {
+            log.error("exchange start fail!! socket close. target = {}", socketInfo, e);
+            finish(false);
+        }
+    }
+
+    @Override
+    public void onResponseBytes(ByteBuffer bytes) {
+        if (state == State.DONE) {
+            return;
+        }
+        try {
+            if (firstByteAt == 0) {
+                firstByteAt = System.nanoTime();
+                targetMetrics.getTimeToFirstByte().record(firstByteAt - startedAt);
+            }
+            responseBytes += bytes.remaining();
+            responseFramer.feed(bytes);
+            writeToClient(bytes);
+        } catch (IOException | RuntimeException e) {
+            log.error("exchange fail!! socket close. target = {}", socketInfo, e);
+            finish(false);
+        }
+    }
+
+    @Override
+    public void onResponseComplete() {
+        if (state == State.DONE) {
+            return;
+        }
+        try {
+            if (!responseFramer.isComplete()) {
+                // 길이 없이 커넥션 끝으로 끝나는 응답(HTTP/1.0 클라). 스트림 끝이 그 끝이다
+                responseFramer.onEndOfStream();
+            }
+            endResponse(responseFramer.isComplete() && responseFramer.isKeepAlive());
+        } catch (IOException | RuntimeException e) {
+            log.error("exchange fail!! socket close. target = {}", socketInfo, e);
+            finish(false);
+        }
+    }
+
+    @Override
+    public void onRequestBodySent() {
+        if (state == State.DONE) {
+            return;
+        }
+        requestBody = null;
+        if (!requestBodyDone) {
+            client.onRequestBodyConsumed();
+        }
+    }
+
+    @Override
+    public void onStreamFailed(boolean unprocessed) {
+        if (state == State.DONE) {
+            return;
+        }
+        stream = null;
+        if (unprocessed && !hasBody && idempotent && responseBytes == 0 && !h2Retried) {
+            // 서버가 요청을 처리하지 않았다. 다른 커넥션으로 한 번만 다시 보낸다
+            log.debug("\t\th2 stream refused. retry. target = {}", socketInfo);
+            h2Retried = true;
+            try {
+                prepareTarget(true);
+            } catch (IOException | RuntimeException e) {
+                log.error("exchange start fail!! socket close. target = {}", socketInfo, e);
+                finish(false);
+            }
+            return;
+        }
+        log.error("h2 stream fail!! target = {}", socketInfo);
+        finish(false);
+    }
+
+    /**
+     * 클라 쪽이 요청 바디 조각을 넘긴다. 이 조각을 다 쓰기 전에는 다음 조각이 오지 않는다.
+     * @param last 요청의 마지막 바디 조각이면 true
+     */
+    void onRequestBody(ByteBuffer chunk, boolean last) {
+        requestBody = chunk;
+        requestBodyDone = last;
+        if (state == State.STREAMING) {
+            stream.sendBody(chunk, last);
+            return;
+        }
+        if (state != State.WRITING_REQUEST) {
+            // 아직 연결/핸드셰이크 중. 요청 쓰기를 시작할 때 같이 나간다.
+            return;
+        }
+        try {
+            writeRequest();
+        } catch (IOException | RuntimeException e) {
+            log.error("request body write fail!! socket close. target = {}", socketInfo, e);
+            finish(false);
+        }
+    }
+
+    /**
+     * 클라가 요청 도중에 끊었을 때.
+     */
+    void abort() {
+        aborted = true;
+        finish(false);
+    }
+
+    /**
+     * 클라 쪽이 더 보낼 수 있게 됐다. 밀린 응답을 쓰고, low water 아래로 빠졌으면 업스트림 읽기를 다시 켠다.
+     */
+    void onClientWritable() {
+        try {
+            boolean drained = clientOutbound.flush();
+            if (drained) {
+                client.cancelWritable();
+            }
+            if (state == State.FLUSHING) {
+                if (drained) {
+                    finish(responseKeepAlive);
+                }
+                return;
+            }
+            if (upstreamPaused && clientOutbound.getPendingBytes() <= writeLowWaterMark) {
+                log.debug("\t\tclient drained below low water mark. resume upstream read");
+                upstreamPaused = false;
+                if (stream != null) {
+                    stream.resume();
+                } else {
+                    targetKey.interestOps(SelectionKey.OP_READ);
+                }
             }
+        } catch (IOException | RuntimeException e) {
+            log.error("client write fail!! socket close. target = {}", socketInfo, e);
+            finish(false);
+        }
+    }
 
-            selector.close();
+    private void onHandshakeTaskDone() {
+        if (state != State.HANDSHAKING) {
+            return;
+        }
+        try {
+            continueHandshake();
+        } catch (IOException | RuntimeException e) {
+            log.error("handshake fail!! socket close. target = {}", socketInfo, e);
+            finish(false);
+        }
+    }
 
+    private void armPhaseTimer(TimeoutPolicy.Kind kind, long millis) {
+        cancelPhaseTimer();
+        if (millis > 0) {
+            phaseTimer = reactor.schedule(() -> onTimeout(kind), millis);
+        }
+    }
+
+    private void cancelPhaseTimer() {
+        if (phaseTimer != null) {
+            phaseTimer.cancel();
+            phaseTimer = null;
+        }
+    }
 
+    /**
+     * 연결, 핸드셰이크, 요청 전체 중 하나가 시간을 넘겼다. 타겟 실패로 끝낸다.
+     */
+    private void onTimeout(TimeoutPolicy.Kind kind) {
+        if (state == State.DONE) {
+            return;
+        }
+        TimeoutPolicy.getInstance().recordExpired(kind);
+        log.warn("{} timeout!! state = {}, target = {}", kind, state, socketInfo);
+        if (clientOutbound != null && responseBytes == 0) {
+            // 닫을 커넥션이라 한 번만 써보고 못 쓴 건 버린다
+            try {
+                clientOutbound.write(ByteBuffer.wrap(HttpResponses.GATEWAY_TIMEOUT));
+            } catch (IOException e) {
+                log.debug("gateway timeout response write fail. {}", e.toString());
+            }
+        }
+        finish(false);
+    }
+
+    /**
+     * 업스트림이 응답을 한 바이트도 안 주고 끊었다. 클라에게 502를 알린다.
+     */
+    private void writeBadGateway() {
+        if (clientOutbound == null) {
+            return;
+        }
+        try {
+            clientOutbound.write(ByteBuffer.wrap(HttpResponses.BAD_GATEWAY));
         } catch (IOException e) {
-            log.error("target write fail!! socket close", e);
-            socketUtil.socketClose(clientChannel);
-            socketUtil.socketClose(targetChannel);
-            throw new RuntimeException(e);
-        } finally {
-            allBufferClear();
-            if (keys != null) {
-                keys.clear();
+            log.debug("bad gateway response write fail. {}", e.toString());
+        }
+    }
+
+    private void ensureTlsBuffers() {
+        if (myNetData == null) {
+            int packetSize = sslEngine.getSession().getPacketBufferSize();
+            myNetData = BufferPool.getInstance().acquire(packetSize);
+            peerNetData = BufferPool.getInstance().acquire(packetSize);
+        }
+    }
+
+    private void startWriteRequest() throws IOException {
+        state = State.WRITING_REQUEST;
+        requestHead.getBuffer().rewind();
+        if (sslEngine != null) {
+            ensureTlsBuffers();
+            myNetData.getBuffer().clear().flip();
+        }
+        writeRequest();
+    }
+
+    /**
+     * 요청을 쓴다. 한 번에 다 안 써지면 OP_WRITE로 남은 걸 마저 쓴다.
+     */
+    private void writeRequest() throws IOException {
+        log.debug("\t[START WRITABLE]");
+        SocketChannel targetChannel = upstream.getChannel();
+
+        requestSources[0] = requestHead.getBuffer();
+        requestSources[1] = requestBody == null ? EMPTY : requestBody;
+
+        if (sslEngine == null) {
+            targetChannel.write(requestSources);
+        } else {
+            while (true) {
+                ByteBuffer myNet = myNetData.getBuffer();
+                if (myNet.hasRemaining()) {
+                    targetChannel.write(myNet);
+                    if (myNet.hasRemaining()) {
+                        break;
+                    }
+                }
+                if (!hasPendingRequest()) {
+                    break;
+                }
+
+                myNet.clear();
+                SSLEngineResult result = sslEngine.wrap(requestSources, myNet);
+                myNet.flip();
+                switch (result.getStatus()) {
+                    case OK:
+                        break;
+                    case BUFFER_OVERFLOW:
+                        log.debug("\t\tBuffer overflow");
+                        myNet.clear();
+                        myNetData = SSLHandshakeUtil.enlargePacketBuffer(myNetData, sslEngine);
+                        myNetData.getBuffer().flip();
+                        break;
+                    case CLOSED:
+                        throw new SSLException("SSLEngine closed while writing request");
+                    default:
+                        throw new IllegalStateException("\t\tUnexpected value: " + result.getStatus());
+                }
             }
-            socketUtil.socketClose(clientChannel);
-            socketUtil.socketClose(targetChannel);
+        }
+
+        boolean written = !hasPendingRequest() && (sslEngine == null || !myNetData.getBuffer().hasRemaining());
+        if (!written) {
+            targetKey.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+
+        if (!requestBodyDone) {
+            // 바디가 더 와야 한다. 다 쓴 조각은 돌려주고 다음 조각을 기다린다.
+            targetKey.interestOps(0);
+            if (requestBody != null) {
+                requestBody = null;
+                client.onRequestBodyConsumed();
+            }
+            return;
+        }
+
+        requestBody = null;
+        state = State.READING_RESPONSE;
+        targetKey.interestOps(SelectionKey.OP_READ);
+    }
+
+    private boolean hasPendingRequest() {
+        return requestHead.getBuffer().hasRemaining() || (requestBody != null && requestBody.hasRemaining());
+    }
+
+    private void readResponse() throws IOException {
+        log.debug("\t[START READABLE]");
+        SocketChannel targetChannel = upstream.getChannel();
+        ByteBuffer readBuffer = sslEngine == null ? reactor.getReadBuffer() : peerNetData.getBuffer();
+
+        int readBytes = targetChannel.read(readBuffer);
+
+        if (readBytes < 0) {
+            if (reused && responseBytes == 0 && !hasBody && idempotent) {
+                // 풀에서 꺼낸 커넥션을 서버가 그 사이에 끊은 경우. 새 커넥션으로 한 번만 다시 보낸다.
+                // 바디는 이미 흘려보내서 다시 보낼 수 없으므로 바디 없는 요청만 재시도한다.
+                // 서버가 요청을 처리하고 응답 전에 끊었을 수도 있으니 두 번 보내도 되는 메서드만 다시 보낸다.
+                log.debug("\t\tPooled connection closed by server. retry with new connection");
+                readBuffer.clear();
+                targetKey.cancel();
+                connectionPool.discard(upstream);
+                prepareTarget(false);
+                return;
+            }
+
+            log.debug("\t\tChannel closed");
+            readBuffer.clear();
+            if (responseBytes == 0) {
+                writeBadGateway();
+            }
+            responseFramer.onEndOfStream();
+            endResponse(false);
+            return;
+        }
+        if (readBytes == 0) {
+            return;
+        }
+        if (firstByteAt == 0) {
+            firstByteAt = System.nanoTime();
+            targetMetrics.getTimeToFirstByte().record(firstByteAt - startedAt);
+        }
+
+        readBuffer.flip();
+
+        if (sslEngine == null) {
+            responseBytes += readBuffer.remaining();
+            responseFramer.feed(readBuffer);
+            writeToClient(readBuffer);
+            readBuffer.clear();
+        } else if (unwrapResponse()) {
+            // close_notify. 평문에서 연결이 끊긴 것과 같다
+            if (responseBytes == 0) {
+                writeBadGateway();
+            }
+            responseFramer.onEndOfStream();
+            endResponse(false);
+            return;
+        }
+
+        // 응답이 끝났으면 keep-alive 여부에 따라 커넥션을 풀에 돌려준다.
+        if (responseFramer.isComplete()) {
+            log.debug("\t\tResponse complete. keepAlive = {}", responseFramer.isKeepAlive());
+            endResponse(responseFramer.isKeepAlive());
         }
     }
 
     /**
-     * 클라이언트가 보낸 요청을 변조한다.
-     * Host가 프록시 서버 주소로 돼 있으므로, 진짜 요청 주소로 변경
-     * 겸사겸사 Path도 변경해준다.
-     * @return 변경된 byte[]
+     * 응답 바이트를 클라에게 쓴다. 캐시에 담는 중이면 먼저 사본을 만든다.
      */
-    private byte[] modifyRequestHeader() {
-        String beforeReq = new String(inputDataBytes).trim();
-        String[] lines = beforeReq.split("\r\n");
+    private void writeToClient(ByteBuffer source) throws IOException {
+        if (cacheFill != null) {
+            boolean held = cacheFill.isRevalidating() && !cacheFill.isDecided();
+            int headBytes = cacheFill.offer(source);
+            if (cacheFill.isNotModified() || (held && !cacheFill.isDecided())) {
+                // 재검증 응답은 헤더가 다 올 때까지 들고 있고, 304면 끝까지 클라에게 안 쓴다.
+                source.position(source.limit());
+                return;
+            }
+            if (held && clientOutbound != null) {
+                // 304가 아니다. 들고 있던 헤더부터 내보낸다.
+                writeCompressed(cacheFill.getHead());
+                source.position(source.position() + headBytes);
+            }
+        }
+        if (clientOutbound == null) {
+            source.position(source.limit());
+            return;
+        }
+        writeCompressed(source);
+    }
 
-        stringBuilder.setLength(0);
+    private void writeCompressed(ByteBuffer source) throws IOException {
+        if (compressor == null) {
+            writeOut(source);
+        } else {
+            compressor.write(source, this::writeOut);
+        }
+    }
 
-        for (String line : lines) {
-            if (line.startsWith("Host")) {
-                stringBuilder.append("Host: ").append(targetAddress).append("\r\n");
-                continue;
+    /**
+     * 다 못 쓰면 OP_WRITE를 걸고, 밀린 게 high water를 넘으면 업스트림 읽기를 멈춘다.
+     */
+    private void writeOut(ByteBuffer source) throws IOException {
+        targetMetrics.addBytesOut(source.remaining());
+        if (!clientOutbound.write(source)) {
+            return;
+        }
+        client.awaitWritable();
+        if (!upstreamPaused && clientOutbound.getPendingBytes() >= writeHighWaterMark) {
+            log.debug("\t\tslow client. pending = {}, pause upstream read", clientOutbound.getPendingBytes());
+            upstreamPaused = true;
+            if (stream != null) {
+                stream.pause();
+            } else {
+                targetKey.interestOps(0);
             }
-            stringBuilder.append(line).append("\r\n");
         }
-        stringBuilder.append("\r\n");
+    }
 
-        // 첫줄의 path를 변경해준다. 디폴트는 "/"
-        int pathIndex = stringBuilder.indexOf("/");
-        if (pathIndex != -1) {
-            stringBuilder.deleteCharAt(pathIndex);
-            stringBuilder.insert(pathIndex, this.path);
+    /**
+     * 응답을 다 받았다. 클라에게 못 보낸 게 남아 있으면 다 보낸 뒤에 끝낸다.
+     */
+    private void endResponse(boolean keepAlive) throws IOException {
+        if (compressor != null && responseFramer.isComplete()) {
+            compressor.finish(this::writeOut);
+        }
+        if (cacheFill != null && !completeCacheFill(keepAlive)) {
+            keepAlive = false;
+        }
+        if (clientOutbound == null || clientOutbound.isEmpty()) {
+            finish(keepAlive);
+            return;
+        }
+        state = State.FLUSHING;
+        responseKeepAlive = keepAlive;
+        if (targetKey != null) {
+            targetKey.interestOps(0);
         }
+    }
 
-        String modifyString = stringBuilder.toString();
+    /**
+     * 응답을 캐시에 담는다. 재검증 결과가 304면 갱신된 캐시 항목을 클라에게 쓴다.
+     * @return 304를 받았는데 캐시 항목이 그 사이에 풀려서 클라에게 보낼 게 없으면 false. 클라 커넥션은 닫아야 한다
+     */
+    private boolean completeCacheFill(boolean keepAlive) throws IOException {
+        boolean notModified = cacheFill.isNotModified();
+        CacheLookup refreshed = responseFramer.isComplete() ? cacheFill.complete(keepAlive) : null;
+        cacheFill.close();
+        if (refreshed == null) {
+            return !notModified || clientOutbound == null;
+        }
+        try {
+            if (clientOutbound != null) {
+                targetMetrics.addBytesOut(refreshed.serve(clientOutbound, headRequest));
+                if (!clientOutbound.isEmpty()) {
+                    client.awaitWritable();
+                }
+            }
+        } finally {
+            refreshed.release();
+        }
+        return true;
+    }
 
-        return modifyString.getBytes(StandardCharsets.UTF_8);
+    /**
+     * 읽은 레코드를 전부 풀어서 클라에게 흘려보낸다. 덜 온 레코드 조각은 peerNetData에 남겨둔다.
+     * @return 서버가 TLS 세션을 닫았으면 true
+     */
+    private boolean unwrapResponse() throws IOException {
+        // 리액터 앱 버퍼는 TLS 레코드 하나보다 항상 크다. overflow면 지금까지 푼 걸 흘려보내고 비운다.
+        ByteBuffer peerAppData = reactor.getAppBuffer();
+        ByteBuffer peerNet = peerNetData.getBuffer();
+        peerAppData.clear();
+        boolean closed = false;
+
+        while (peerNet.hasRemaining()) {
+            log.debug("\t\tpeerNetData = {}, {}", peerNet.limit(), peerNet.remaining());
+            SSLEngineResult result = sslEngine.unwrap(peerNet, peerAppData);
+            SSLEngineResult.Status status = result.getStatus();
+
+            if (status == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                log.debug("\t\tbuffer overflow");
+                writePeerAppData(peerAppData);
+            } else if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                // 레코드가 덜 왔다. 남은 조각은 compact 해서 다음 read에 이어 붙인다.
+                log.debug("\t\tbuffer underflow compact peerNetData");
+                break;
+            } else if (status == SSLEngineResult.Status.CLOSED) {
+                log.debug("\t\tSSL Engine CLOSED");
+                closed = true;
+                break;
+            }
+        }
+
+        peerNet.compact();
+        writePeerAppData(peerAppData);
+        return closed;
     }
 
-    private void allBufferClear() {
-        myAppData.clear();
-        myNetData.clear();
+    private void writePeerAppData(ByteBuffer peerAppData) throws IOException {
+        peerAppData.flip();
+        responseBytes += peerAppData.remaining();
+        responseFramer.feed(peerAppData);
+        writeToClient(peerAppData);
         peerAppData.clear();
-        peerNetData.clear();
     }
+
+    /**
+     * 교환 종료. 빌린 버퍼는 여기서 전부 반납하고, 클라 커넥션을 이어서 쓸지는 클라 쪽(ClientHandler)에게 넘긴다.
+     * @param keepAlive 응답이 프레이밍대로 끝났고 서버가 커넥션 유지를 허락했으면 true.
+     *                  업스트림은 풀로 돌려주고 클라 커넥션도 다음 요청을 받을 수 있다. false면 둘 다 닫는다
+     */
+    private void finish(boolean keepAlive) {
+        if (state == State.DONE) {
+            return;
+        }
+        state = State.DONE;
+        long elapsed = System.nanoTime() - startedAt;
+        if (startedAt != 0) {
+            // start 전에 접힌 워커는 요청으로 세지 않는다. 잡아 둔 자리만 돌려준다
+            targetMetrics.recordRequest(elapsed, responseFramer.isComplete());
+            socketInfo.getStats().onComplete(elapsed, !responseFramer.isComplete() && !aborted);
+        }
+        concurrencyLimits.release(socketInfo, firstByteAt == 0 ? elapsed : firstByteAt - startedAt,
+                !responseFramer.isComplete(), aborted);
+        if (!aborted) {
+            socketInfo.getHealth().onResult(!responseFramer.isComplete() || responseFramer.getStatusCode() >= 500, probe);
+        }
+        if (connectRace != null) {
+            connectRace.cancel();
+            connectRace = null;
+        }
+        cancelPhaseTimer();
+        if (requestTimer != null) {
+            requestTimer.cancel();
+            requestTimer = null;
+        }
+        if (cacheFill != null) {
+            cacheFill.close();
+        }
+        if (compressor != null) {
+            compressor.close();
+        }
+
+        if (stream != null) {
+            // h2 커넥션은 다른 스트림들이 쓰고 있다. 이 스트림만 닫는다 (응답이 덜 왔으면 RST_STREAM)
+            stream.close();
+            stream = null;
+        } else if (keepAlive) {
+            // 키는 취소하지 않고 관심만 끈다. 같은 리액터가 다시 꺼내 쓰면 이 키를 재사용한다.
+            targetKey.interestOps(0);
+            targetKey.attach(null);
+            connectionPool.release(upstream);
+        } else {
+            if (targetKey != null) {
+                targetKey.cancel();
+            }
+            connectionPool.discard(upstream);
+        }
+        if (h2Waiting) {
+            h2Waiting = false;
+            h2Pool.cancelWait(reactor, socketInfo, this);
+        }
+
+        releaseBuffers();
+        if (h2Connecting) {
+            // 연결을 맡았다가 그만뒀다. 기다리던 요청들은 각자 다시 연결한다
+            h2Connecting = false;
+            h2Pool.connectFailed(reactor, socketInfo, false);
+        }
+        if (client != null) {
+            client.onExchangeComplete(keepAlive);
+        }
+    }
+
+    private void releaseBuffers() {
+        if (handshaker != null) {
+            // 핸드셰이크 도중에 끝났으면 키운 버퍼가 핸드셰이커 쪽에 있다.
+            myNetData = handshaker.getMyNetData();
+            peerNetData = handshaker.getPeerNetData();
+            handshaker.close();
+            handshaker = null;
+        }
+        BufferPool bufferPool = BufferPool.getInstance();
+        bufferPool.release(myNetData);
+        bufferPool.release(peerNetData);
+        bufferPool.release(requestHead);
+        myNetData = null;
+        peerNetData = null;
+    }
+
 }
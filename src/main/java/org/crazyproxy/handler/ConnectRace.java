@@ -0,0 +1,176 @@
+package org.crazyproxy.handler;
+
+import lombok.extern.slf4j.Slf4j;
+import org.crazyproxy.nio.SelectorThread;
+import org.crazyproxy.util.SocketUtil;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 업스트림 연결 경주(Happy Eyeballs, RFC 8305). 리액터 스레드에서만 돌아간다.
+ * 첫 주소로 연결을 걸고, raceDelay 안에 안 붙으면 다음 주소로도 같이 건다. 먼저 붙은 채널이 이기고 나머지는 닫는다.
+ * 연결이 실패한 주소가 있으면 raceDelay를 기다리지 않고 바로 다음 주소로 간다.
+ * 주소가 하나면 그냥 연결 하나다.
+ *
+ * 시도마다 채널을 리액터 셀렉터에 OP_CONNECT로 등록하고 키의 attachment는 Attempt다.
+ * 이긴 채널의 키는 그대로 Listener에게 넘기므로 attachment만 바꿔서 이어 쓰면 된다.
+ */
+@Slf4j
+class ConnectRace {
+
+    interface Listener {
+        /**
+         * @param key 이긴 채널의 키. 관심은 꺼져 있고 attachment는 아직 Attempt다
+         */
+        void onRaceWon(SocketChannel channel, SelectionKey key);
+
+        void onRaceFailed(IOException cause);
+    }
+
+    private final SelectorThread reactor;
+    private final InetSocketAddress[] addresses;
+    private final long raceDelay;
+    private final Listener listener;
+    private final List<Attempt> attempts = new ArrayList<>(2);
+    private int next;
+    private boolean done;
+    private IOException lastError;
+
+    ConnectRace(SelectorThread reactor, InetSocketAddress[] addresses, long raceDelay, Listener listener) {
+        this.reactor = reactor;
+        this.addresses = addresses;
+        this.raceDelay = raceDelay;
+        this.listener = listener;
+    }
+
+    void start() {
+        startNext();
+    }
+
+    /**
+     * 경주를 접는다. 진행 중인 시도는 전부 닫는다. 여러 번 불려도 된다.
+     */
+    void cancel() {
+        if (done) {
+            return;
+        }
+        done = true;
+        closeAttempts(null);
+    }
+
+    /**
+     * 다음 주소로 시도를 하나 건다. 바로 실패하는 주소는 건너뛴다. 더 걸 주소도 진행 중인 시도도 없으면 실패.
+     */
+    private void startNext() {
+        while (!done && next < addresses.length) {
+            InetSocketAddress address = addresses[next++];
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                Attempt attempt = new Attempt(channel, address);
+                boolean connected = channel.connect(address);
+                attempt.key = channel.register(reactor.getSelector(), connected ? 0 : SelectionKey.OP_CONNECT, attempt);
+                attempts.add(attempt);
+                if (connected) {
+                    win(attempt);
+                } else if (next < addresses.length) {
+                    int expectedNext = next;
+                    reactor.schedule(() -> onRaceDelayElapsed(expectedNext), raceDelay);
+                }
+                return;
+            } catch (IOException e) {
+                log.debug("\t\tconnect attempt failed. address = {}, {}", address, e.getMessage());
+                lastError = e;
+                if (channel != null) {
+                    SocketUtil.getInstance().socketClose(channel);
+                }
+            }
+        }
+        if (!done && attempts.isEmpty()) {
+            done = true;
+            listener.onRaceFailed(lastError != null ? lastError : new ConnectException("no address to connect"));
+        }
+    }
+
+    /**
+     * raceDelay가 지났는데 그 사이에 다음 시도가 안 걸렸으면(앞 시도가 아직 매달려 있으면) 다음 주소로도 건다.
+     */
+    private void onRaceDelayElapsed(int expectedNext) {
+        if (!done && next == expectedNext) {
+            log.debug("\t\tconnect race delay elapsed. try next address = {}", addresses[next]);
+            startNext();
+        }
+    }
+
+    private void onAttemptFailed(Attempt attempt, IOException e) {
+        log.debug("\t\tconnect attempt failed. address = {}, {}", attempt.address, e.getMessage());
+        lastError = e;
+        attempts.remove(attempt);
+        attempt.close();
+        startNext();
+    }
+
+    private void win(Attempt winner) {
+        done = true;
+        closeAttempts(winner);
+        winner.key.interestOps(0);
+        listener.onRaceWon(winner.channel, winner.key);
+    }
+
+    private void closeAttempts(Attempt except) {
+        for (Attempt attempt : attempts) {
+            if (attempt != except) {
+                attempt.close();
+            }
+        }
+        attempts.clear();
+    }
+
+    private final class Attempt implements NioHandler {
+        private final SocketChannel channel;
+        private final InetSocketAddress address;
+        private SelectionKey key;
+
+        private Attempt(SocketChannel channel, InetSocketAddress address) {
+            this.channel = channel;
+            this.address = address;
+        }
+
+        @Override
+        public void handle(SelectionKey key) {
+            if (done || !key.isConnectable()) {
+                return;
+            }
+            try {
+                if (channel.finishConnect()) {
+                    log.debug("\t\tConnected!!! address = {}", address);
+                    win(this);
+                }
+            } catch (IOException e) {
+                onAttemptFailed(this, e);
+            }
+        }
+
+        @Override
+        public void onClose() {
+            if (!done) {
+                onAttemptFailed(this, new ConnectException("connect attempt closed. address = " + address));
+            }
+        }
+
+        private void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            SocketUtil.getInstance().socketClose(channel);
+        }
+    }
+}
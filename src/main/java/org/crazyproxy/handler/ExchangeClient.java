@@ -0,0 +1,36 @@
+package org.crazyproxy.handler;
+
+import org.crazyproxy.metrics.TargetMetrics;
+import org.crazyproxy.nio.Outbound;
+
+/**
+ * ClientWorker가 응답을 돌려주는 클라 쪽. HTTP/1.x 커넥션 하나(ClientHandler)이거나 클라 h2 커넥션의 스트림 하나(Http2StreamExchange)다.
+ * 리액터 스레드에서만 불린다.
+ */
+interface ExchangeClient {
+
+    Outbound getOutbound();
+
+    TargetMetrics getTargetMetrics();
+
+    /**
+     * 응답이 밀렸다. 더 보낼 수 있게 되면 ClientWorker.onClientWritable을 불러 달라
+     */
+    void awaitWritable();
+
+    /**
+     * 밀린 응답을 다 보냈다. awaitWritable을 거둔다
+     */
+    void cancelWritable();
+
+    /**
+     * 넘겨받은 요청 바디 조각을 업스트림에 다 썼다. 다음 조각을 넘겨도 된다
+     */
+    void onRequestBodyConsumed();
+
+    /**
+     * 교환이 끝났다.
+     * @param keepAlive 응답이 프레이밍대로 끝났고 서버도 커넥션 유지를 허락했으면 true
+     */
+    void onExchangeComplete(boolean keepAlive);
+}
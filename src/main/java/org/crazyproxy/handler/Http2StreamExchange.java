@@ -0,0 +1,228 @@
+package org.crazyproxy.handler;
+
+import lombok.extern.slf4j.Slf4j;
+import org.crazyproxy.balance.TargetGroup;
+import org.crazyproxy.buffer.BufferPool;
+import org.crazyproxy.buffer.PooledBuffer;
+import org.crazyproxy.cache.CacheLookup;
+import org.crazyproxy.cache.ResponseCache;
+import org.crazyproxy.compress.ResponseCompression;
+import org.crazyproxy.compress.ResponseCompressor;
+import org.crazyproxy.config.ClientWorkConfig;
+import org.crazyproxy.config.SocketInfo;
+import org.crazyproxy.health.OutlierDetection;
+import org.crazyproxy.http.HttpHeaderRewriter;
+import org.crazyproxy.http.HttpRequestParser;
+import org.crazyproxy.http.HttpResponses;
+import org.crazyproxy.http2.Http2ServerStream;
+import org.crazyproxy.limit.ConcurrencyLimits;
+import org.crazyproxy.metrics.TargetMetrics;
+import org.crazyproxy.nio.Outbound;
+import org.crazyproxy.nio.SelectorThread;
+import org.crazyproxy.pool.UpstreamConnectionPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 클라 h2 스트림 하나를 HTTP/1.x 요청 하나처럼 처리한다. Http2ServerConnection의 리액터 스레드에서만 돈다.
+ * 스트림이 HTTP/1.1로 다시 쓴 요청 헤더를 ClientHandler와 똑같이 파싱해서 포트 매핑으로 타겟을 고르고, 캐시를 찾아보고, 헤더를 변조해 ClientWorker를 띄운다.
+ * 워커가 쓰는 응답은 스트림(Outbound)이 h2 프레임으로 바꾼다.
+ *
+ * 같은 요청 나눠받기(Flight)는 하지 않는다. 캐시에서 바로 내보내거나 직접 업스트림에 보낸다.
+ */
+@Slf4j
+final class Http2StreamExchange implements ExchangeClient, Http2ServerStream.Listener {
+
+    private final ClientWorkConfig clientWorkConfig = ClientWorkConfig.getInstance();
+    private final Http2ServerStream stream;
+    private final SelectorThread reactor;
+    private final int localPort;
+    private final String clientPort;
+    private final TargetMetrics targetMetrics;
+    private final boolean cacheEnabled;
+    private ClientWorker worker;
+    // 바디가 없는 요청이면 워커에게 바디를 안 넘긴다
+    private boolean bodyless;
+    // 캐시에서 꺼낸 응답을 마저 쓰는 중
+    private boolean flushingCachedResponse;
+
+    Http2StreamExchange(Http2ServerStream stream, SelectorThread reactor, int localPort, TargetMetrics targetMetrics,
+                        boolean cacheEnabled) {
+        this.stream = stream;
+        this.reactor = reactor;
+        this.localPort = localPort;
+        this.clientPort = String.valueOf(localPort);
+        this.targetMetrics = targetMetrics;
+        this.cacheEnabled = cacheEnabled;
+    }
+
+    /**
+     * 요청 헤더를 파싱하고 교환을 시작한다. 요청 헤더 버퍼는 여기서 돌려준다.
+     */
+    void start() {
+        stream.setListener(this);
+        HttpRequestParser parser = new HttpRequestParser(clientWorkConfig.getMaxHeaderSize());
+        ByteBuffer head = stream.getRequestHead();
+        try {
+            switch (parser.parseHeaders(head, 0, head.position())) {
+                case HEADERS_DONE:
+                    startExchange(parser, head);
+                    break;
+                case HEADER_TOO_LARGE:
+                    log.debug("h2 request header too large. stream = {}", stream.getId());
+                    reject(HttpResponses.HEADER_TOO_LARGE);
+                    break;
+                default:
+                    log.debug("bad h2 request. stream = {}", stream.getId());
+                    reject(HttpResponses.BAD_REQUEST);
+                    break;
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("h2 request fail!! reset stream. port = {}", clientPort, e);
+            if (worker != null) {
+                worker.abort();
+            } else {
+                stream.finish();
+            }
+        } finally {
+            stream.releaseRequestHead();
+        }
+    }
+
+    private void startExchange(HttpRequestParser parser, ByteBuffer head) throws IOException {
+        TargetGroup targetGroup = clientWorkConfig.getRoutingTable().get(localPort);
+        if (targetGroup == null) {
+            log.debug("port removed from mapping. port = {}", localPort);
+            reject(HttpResponses.SERVICE_UNAVAILABLE);
+            return;
+        }
+        CacheLookup lookup = cacheEnabled ? ResponseCache.getInstance().lookup(clientPort, parser, head, 0) : null;
+        try {
+            boolean keepAlive = UpstreamConnectionPool.getInstance().isEnabled();
+            if (lookup != null && lookup.isServable()) {
+                long startedAt = System.nanoTime();
+                SocketInfo revalidationTarget = lookup.hasBackgroundRevalidation() ? targetGroup.pick() : null;
+                if (lookup.hasBackgroundRevalidation()
+                        && (revalidationTarget == null || !ConcurrencyLimits.getInstance().tryAcquire(revalidationTarget))) {
+                    // 보낼 타겟이 없거나 동시 요청 한도가 찼다. 맡은 재검증은 다음 요청에 미룬다
+                    lookup.newFill().close();
+                } else if (revalidationTarget != null) {
+                    ClientWorker.revalidate(revalidationTarget, parser, head, 0, keepAlive, lookup, reactor, targetMetrics);
+                }
+                targetMetrics.addBytesOut(lookup.serve(stream, parser.isHeadRequest()));
+                targetMetrics.recordRequest(System.nanoTime() - startedAt, true);
+                if (stream.isEmpty()) {
+                    stream.finish();
+                    return;
+                }
+                flushingCachedResponse = true;
+                stream.awaitWritable();
+                return;
+            }
+
+            SocketInfo socketInfo = targetGroup.pick();
+            if (socketInfo == null) {
+                log.debug("no healthy target. reject h2 stream. port = {}", localPort);
+                OutlierDetection.getInstance().recordRejected();
+                reject(HttpResponses.NO_HEALTHY_TARGET);
+                return;
+            }
+            if (!ConcurrencyLimits.getInstance().tryAcquire(socketInfo)) {
+                log.debug("target concurrency limit reached. reject h2 stream. target = {}", socketInfo);
+                reject(HttpResponses.OVERLOADED);
+                return;
+            }
+            // 잡은 자리는 워커가 넘겨받아 finish에서 돌려준다. 워커가 생기기 전에 실패하면 여기서 돌려준다.
+            PooledBuffer requestHead = null;
+            ResponseCompressor compressor = null;
+            try {
+                byte[] conditionalHeaders = lookup == null ? null : lookup.getConditionalHeaders();
+                requestHead = HttpHeaderRewriter.rewrite(parser, head, 0, socketInfo, keepAlive, conditionalHeaders);
+                compressor = ResponseCompression.getInstance().newCompressor(clientPort, parser, head, 0, targetMetrics);
+                bodyless = !parser.hasBody();
+                worker = new ClientWorker(this, socketInfo, requestHead, parser.isHeadRequest(), bodyless, parser.isIdempotent(), reactor,
+                        lookup == null ? null : lookup.newFill(), compressor);
+            } catch (RuntimeException e) {
+                ConcurrencyLimits.getInstance().release(socketInfo, 0, false, true);
+                BufferPool.getInstance().release(requestHead);
+                if (compressor != null) {
+                    compressor.close();
+                }
+                throw e;
+            }
+            worker.start();
+        } finally {
+            if (lookup != null) {
+                lookup.release();
+            }
+        }
+    }
+
+    @Override
+    public void onRequestBody(ByteBuffer chunk, boolean last) {
+        if (worker == null || bodyless) {
+            // 바디를 안 받는 요청. 받은 만큼 창만 돌려준다
+            stream.onBodyConsumed();
+            return;
+        }
+        worker.onRequestBody(chunk, last);
+    }
+
+    @Override
+    public void onWritable() {
+        if (worker != null) {
+            worker.onClientWritable();
+        } else if (flushingCachedResponse && stream.flush()) {
+            flushingCachedResponse = false;
+            stream.cancelWritable();
+            stream.finish();
+        }
+    }
+
+    @Override
+    public void onCancel() {
+        if (worker != null) {
+            worker.abort();
+        }
+    }
+
+    @Override
+    public Outbound getOutbound() {
+        return stream;
+    }
+
+    @Override
+    public TargetMetrics getTargetMetrics() {
+        return targetMetrics;
+    }
+
+    @Override
+    public void awaitWritable() {
+        stream.awaitWritable();
+    }
+
+    @Override
+    public void cancelWritable() {
+        stream.cancelWritable();
+    }
+
+    @Override
+    public void onRequestBodyConsumed() {
+        stream.onBodyConsumed();
+    }
+
+    /**
+     * 스트림 하나가 요청 하나라 keep-alive는 따로 볼 게 없다. 응답이 덜 끝났으면 스트림이 RST_STREAM으로 끊는다.
+     */
+    @Override
+    public void onExchangeComplete(boolean keepAlive) {
+        worker = null;
+        stream.finish();
+    }
+
+    private void reject(byte[] response) throws IOException {
+        stream.write(ByteBuffer.wrap(response));
+        stream.finish();
+    }
+}
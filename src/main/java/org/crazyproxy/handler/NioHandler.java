@@ -5,4 +5,10 @@ import java.nio.channels.SelectionKey;
 
 public interface NioHandler {
     void handle(SelectionKey key) throws IOException;
+
+    /**
+     * handle에서 예외가 나서 리액터가 채널을 닫을 때 불린다. 빌린 버퍼 같은 걸 여기서 돌려준다.
+     */
+    default void onClose() {
+    }
 }
@@ -0,0 +1,154 @@
+package org.crazyproxy.health;
+
+import lombok.extern.slf4j.Slf4j;
+import org.crazyproxy.balance.TargetGroup;
+import org.crazyproxy.config.ClientWorkConfig;
+import org.crazyproxy.config.SSLConfig;
+import org.crazyproxy.config.SocketInfo;
+import org.crazyproxy.metrics.ProxyMetrics;
+
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 능동 헬스 체크. 전용 스레드(health-checker) 하나가 interval마다 지금 매핑의 타겟을 하나씩 검사한다.
+ * path가 없으면 TCP 연결만, 있으면 GET path를 보내서 상태 코드가 5xx가 아니면 통과 (https 타겟은 TLS로).
+ * 타겟 이름이 여러 주소로 풀리면 요청 때 연결 경주(ConnectRace)가 고르는 순서대로 하나씩 보고, 하나라도 통과하면 통과다.
+ * 결과는 타겟의 TargetHealth에 알린다. 실패하면 바로 빼고, 빠져 있던 타겟이 통과하면 바로 되돌린다.
+ *
+ * 검사는 블로킹 소켓으로 차례대로 한다. 타겟이 많고 timeout이 길면 한 바퀴가 interval보다 길어질 수 있다.
+ */
+@Slf4j
+public class HealthChecker {
+
+    private final long interval;
+    private final int timeout;
+    private final String path;
+    private final ScheduledExecutorService scheduler;
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * @param interval 검사 주기(ms)
+     * @param timeout 연결과 응답을 기다리는 시간(ms)
+     * @param path 비었으면 TCP 연결만 본다
+     */
+    public HealthChecker(long interval, long timeout, String path) {
+        this.interval = interval;
+        this.timeout = (int) Math.min(Integer.MAX_VALUE, Math.max(1, timeout));
+        this.path = path == null || path.isBlank() ? null : path;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "health-checker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        log.info("Active health check. interval = {}ms, timeout = {}ms, path = {}", interval, timeout, path == null ? "(tcp connect)" : path);
+        ProxyMetrics.getInstance().registerCounter("crazyproxy_health_check_failures_total", "Active health checks that failed", failures::sum);
+        scheduler.scheduleWithFixedDelay(this::checkAll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkAll() {
+        // 여러 포트가 같은 타겟을 가리킬 수 있다. 한 번만 본다
+        Set<SocketInfo> checked = Collections.newSetFromMap(new IdentityHashMap<>());
+        try {
+            for (TargetGroup targetGroup : ClientWorkConfig.getInstance().getPortMap().values()) {
+                for (SocketInfo socketInfo : targetGroup.getTargets()) {
+                    if (checked.add(socketInfo)) {
+                        check(socketInfo);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("health check error", e);
+        }
+    }
+
+    /**
+     * 타겟의 주소들(SocketInfo.getAddresses, 연결 경주와 같은 순서)을 차례로 본다.
+     * 요청은 경주에서 이긴 아무 주소로나 나가므로 하나라도 통과하면 통과로 친다. 전부 실패하면 마지막 이유로 실패를 알린다.
+     */
+    private void check(SocketInfo socketInfo) {
+        String reason = null;
+        for (InetSocketAddress address : socketInfo.getAddresses()) {
+            reason = check(socketInfo, address);
+            if (reason == null) {
+                socketInfo.getHealth().onCheck(true, null);
+                return;
+            }
+        }
+        fail(socketInfo, reason);
+    }
+
+    /**
+     * @return 통과하면 null, 아니면 실패 이유
+     */
+    private String check(SocketInfo socketInfo, InetSocketAddress address) {
+        try (Socket socket = new Socket()) {
+            socket.connect(address, timeout);
+            socket.setSoTimeout(timeout);
+            if (path != null) {
+                int statusCode = request(socketInfo, socket);
+                if (statusCode < 100 || statusCode >= 500) {
+                    return address + " status " + statusCode;
+                }
+            }
+            return null;
+        } catch (IOException e) {
+            return address + " " + e;
+        }
+    }
+
+    private int request(SocketInfo socketInfo, Socket socket) throws IOException {
+        Socket channel = socket;
+        if (socketInfo.isHttps()) {
+            SSLSocket sslSocket = (SSLSocket) SSLConfig.getInstance().getContext().getSocketFactory()
+                    .createSocket(socket, socketInfo.getHost(), socketInfo.getInetSocketAddress().getPort(), true);
+            sslSocket.startHandshake();
+            channel = sslSocket;
+        }
+        String request = "GET " + path + " HTTP/1.1\r\n"
+                + "Host: " + socketInfo.getHost() + "\r\n"
+                + "User-Agent: CrazyProxy-HealthCheck\r\n"
+                + "Connection: close\r\n"
+                + "\r\n";
+        OutputStream out = channel.getOutputStream();
+        out.write(request.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+
+        // 상태 줄 "HTTP/1.1 200" 까지만 읽는다
+        InputStream in = channel.getInputStream();
+        byte[] line = new byte[12];
+        int read = 0;
+        while (read < line.length) {
+            int n = in.read(line, read, line.length - read);
+            if (n < 0) {
+                return 0;
+            }
+            read += n;
+        }
+        if (line[0] != 'H' || line[8] != ' ') {
+            return 0;
+        }
+        return (line[9] - '0') * 100 + (line[10] - '0') * 10 + (line[11] - '0');
+    }
+
+    private void fail(SocketInfo socketInfo, String reason) {
+        failures.increment();
+        log.debug("health check failed. target = {}, reason = {}", socketInfo, reason);
+        socketInfo.getHealth().onCheck(false, reason);
+    }
+}
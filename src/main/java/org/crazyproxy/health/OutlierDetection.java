@@ -0,0 +1,71 @@
+package org.crazyproxy.health;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 타겟 회로(TargetHealth) 설정. 켜져 있으면 요청 결과를 보고 망가진 타겟을 잠시 빼고,
+ * 포트의 타겟이 전부 빠져 있으면 연결을 시도하지 않고 바로 503 + Retry-After를 돌려준다.
+ * 장애 난 타겟에 연결하느라 워커와 커넥션이 묶이지 않게 한다.
+ */
+@Slf4j
+@Getter
+public class OutlierDetection {
+
+    private static OutlierDetection instance;
+
+    private final boolean enabled;
+    private final int consecutiveFailures;
+    // 퍼센트
+    private final int errorRate;
+    private final int minRequests;
+    private final long ejectionNanos;
+    private final long maxEjectionNanos;
+    // 타겟이 전부 빠져 있어서 바로 돌려보낸 요청 수
+    private final LongAdder rejected = new LongAdder();
+
+    private OutlierDetection(boolean enabled, int consecutiveFailures, int errorRate, int minRequests,
+                             long ejectionTime, long maxEjectionTime) {
+        this.enabled = enabled;
+        this.consecutiveFailures = Math.max(1, consecutiveFailures);
+        this.errorRate = errorRate;
+        this.minRequests = Math.max(1, minRequests);
+        this.ejectionNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, ejectionTime));
+        this.maxEjectionNanos = Math.max(ejectionNanos, TimeUnit.MILLISECONDS.toNanos(maxEjectionTime));
+        if (enabled) {
+            log.info("Outlier detection. consecutiveFailures = {}, errorRate = {}%, minRequests = {}, ejectionTime = {}ms, maxEjectionTime = {}ms",
+                    this.consecutiveFailures, errorRate, this.minRequests, ejectionTime, maxEjectionTime);
+        }
+    }
+
+    /**
+     * @param enabled false면 결과를 안 보고 회로도 안 연다
+     * @param errorRate 실패율(%)이 이 이상이면 연다. 100 넘으면 실패율로는 안 연다
+     * @param ejectionTime 처음 열 때 빼 두는 시간(ms). 연달아 열릴 때마다 두 배
+     * @param maxEjectionTime 빼 두는 시간 상한(ms)
+     */
+    public static void initInstance(boolean enabled, int consecutiveFailures, int errorRate, int minRequests,
+                                    long ejectionTime, long maxEjectionTime) {
+        if (instance != null) {
+            throw new IllegalStateException("OutlierDetection has already been initialized");
+        }
+        instance = new OutlierDetection(enabled, consecutiveFailures, errorRate, minRequests, ejectionTime, maxEjectionTime);
+    }
+
+    public static OutlierDetection getInstance() {
+        if (instance == null) {
+            throw new IllegalStateException("OutlierDetection not initialized");
+        }
+        return instance;
+    }
+
+    /**
+     * 타겟이 전부 빠져 있어서 요청을 바로 돌려보냈다.
+     */
+    public void recordRejected() {
+        rejected.increment();
+    }
+}
@@ -0,0 +1,224 @@
+package org.crazyproxy.health;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 타겟 하나의 회로 상태. SocketInfo마다 하나씩 붙어 있고, TargetGroup이 고를 때 읽고 요청이 끝날 때마다 워커가 결과를 알린다.
+ * 락 없이 원자 변수만 쓴다.
+ *
+ * CLOSED: 평소. 연속 실패가 consecutiveFailures 이상이거나, 창(ERROR_WINDOW_NANOS) 안 요청이 minRequests 이상이고 실패율이 errorRate 이상이면 연다.
+ * OPEN: 이 타겟으로는 안 보낸다. 여는 시간은 ejectionTime에서 시작해 연달아 열릴 때마다 두 배 (maxEjectionTime까지).
+ * HALF_OPEN: 여는 시간이 지나면 요청 하나만 시험으로 보낸다. 성공하면 닫고, 실패하면 다시 연다.
+ * 시험 요청은 번호로 구분한다. allowRequest가 번호를 내주고, 요청이 시작할 때 startRequest로 가져가 끝날 때 onResult에 돌려준다.
+ * 열리기 전에 나간 요청이 HALF_OPEN 중에 끝나도 상태는 안 바꾼다. 시험 요청 자신의 결과만 닫거나 다시 연다.
+ * 시험 요청이 ejectionTime 안에 안 끝나면(클라가 끊었거나 한도에 걸려 못 보냈으면) 다음 요청을 다시 시험으로 보낸다. 앞 번호는 무효가 된다.
+ *
+ * 닫힌 채로 maxEjectionTime을 버티면 연달아 열린 횟수를 잊는다. 잠깐씩 흔들리는 타겟이 영영 길게 빠지지 않게.
+ * 능동 검사(HealthChecker)만 켜져 있으면 검사가 실패할 때 열고 통과할 때 닫는다. 시험 요청은 안 보낸다.
+ */
+@Slf4j
+public class TargetHealth {
+
+    public static final int CLOSED = 0;
+    public static final int OPEN = 1;
+    public static final int HALF_OPEN = 2;
+    // 시험 요청이 아님
+    public static final long NO_PROBE = 0;
+
+    private static final long ERROR_WINDOW_NANOS = 10_000_000_000L;
+
+    private final String target;
+    private final AtomicInteger state = new AtomicInteger(CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong windowStartedAt = new AtomicLong(System.nanoTime());
+    private final LongAdder windowRequests = new LongAdder();
+    private final LongAdder windowFailures = new LongAdder();
+    // OPEN이 끝나는 시각
+    private volatile long openUntil;
+    // HALF_OPEN에서 시험 요청을 내보낸 시각
+    private final AtomicLong probeStartedAt = new AtomicLong();
+    private final AtomicLong probeSequence = new AtomicLong();
+    // allowRequest가 내줬지만 아직 아무 요청도 가져가지 않은 시험 요청 번호
+    private final AtomicLong grantedProbe = new AtomicLong(NO_PROBE);
+    // 결과를 기다리는 시험 요청 번호
+    private volatile long currentProbe = NO_PROBE;
+    // 연달아 열린 횟수. 여는 시간을 늘리는 데 쓴다
+    private volatile int ejections;
+    private volatile long closedAt = System.nanoTime();
+    private final LongAdder ejectionCount = new LongAdder();
+
+    /**
+     * @param target 로그에 찍을 타겟 이름
+     */
+    public TargetHealth(String target) {
+        this.target = target;
+    }
+
+    /**
+     * 이 타겟으로 요청을 보내도 되는지. HALF_OPEN으로 넘어가면서 true를 받은 쪽이 시험 요청을 보낸다.
+     * outlierDetection도 능동 검사도 꺼져 있으면 회로가 안 열리므로 항상 true
+     */
+    public boolean allowRequest() {
+        int current = state.get();
+        if (current == CLOSED) {
+            return true;
+        }
+        long now = System.nanoTime();
+        OutlierDetection detection = OutlierDetection.getInstance();
+        if (current == OPEN) {
+            // 결과를 안 보면 시험 요청도 의미가 없다. 능동 검사가 통과해야 닫힌다
+            if (!detection.isEnabled() || now - openUntil < 0 || !state.compareAndSet(OPEN, HALF_OPEN)) {
+                return false;
+            }
+            probeStartedAt.set(now);
+            grantProbe();
+            log.info("circuit half-open. send probe request. target = {}", target);
+            return true;
+        }
+        long probedAt = probeStartedAt.get();
+        if (now - probedAt > detection.getEjectionNanos() && probeStartedAt.compareAndSet(probedAt, now)) {
+            grantProbe();
+            return true;
+        }
+        return false;
+    }
+
+    private void grantProbe() {
+        long probe = probeSequence.incrementAndGet();
+        currentProbe = probe;
+        grantedProbe.set(probe);
+    }
+
+    /**
+     * 이 타겟으로 요청을 막 보내기 시작했다. allowRequest가 시험 요청을 내줬으면 그 번호를 가져간다.
+     * HALF_OPEN에서는 시험 요청 하나만 들여보내므로 이때 시작하는 요청이 그 시험 요청이다.
+     * @return 시험 요청 번호. 끝날 때 onResult에 넘긴다. 시험 요청이 아니면 NO_PROBE
+     */
+    public long startRequest() {
+        if (state.get() != HALF_OPEN) {
+            return NO_PROBE;
+        }
+        return grantedProbe.getAndSet(NO_PROBE);
+    }
+
+    /**
+     * 요청 하나가 끝났다.
+     * @param failed 연결 실패, 타임아웃, 응답이 덜 오거나 5xx로 끝났으면 true
+     * @param probe startRequest가 돌려준 번호
+     */
+    public void onResult(boolean failed, long probe) {
+        OutlierDetection detection = OutlierDetection.getInstance();
+        if (!detection.isEnabled()) {
+            return;
+        }
+        int current = state.get();
+        if (current == HALF_OPEN) {
+            if (probe == NO_PROBE || probe != currentProbe) {
+                // 시험 요청이 아니다. 열리기 전에 나갔던 요청이거나 시간이 지나 무효가 된 시험 요청
+                return;
+            }
+            if (failed) {
+                open(HALF_OPEN, "probe failed");
+            } else {
+                close("probe succeeded");
+            }
+            return;
+        }
+        if (!failed) {
+            consecutiveFailures.set(0);
+            countInWindow(false);
+            return;
+        }
+        int consecutive = consecutiveFailures.incrementAndGet();
+        countInWindow(true);
+        if (current == CLOSED) {
+            if (consecutive >= detection.getConsecutiveFailures()) {
+                open(CLOSED, consecutive + " consecutive failures");
+            } else if (isErrorRateExceeded(detection)) {
+                open(CLOSED, "error rate " + windowFailures.sum() + "/" + windowRequests.sum());
+            }
+        }
+    }
+
+    /**
+     * 능동 검사 결과. 실패하면 바로 열고, 열려 있는데 성공하면 시험 요청을 기다리지 않고 닫는다.
+     */
+    void onCheck(boolean healthy, String reason) {
+        if (healthy) {
+            if (state.get() != CLOSED) {
+                close("health check passed");
+            }
+            return;
+        }
+        int current = state.get();
+        if (current != OPEN) {
+            open(current, "health check failed: " + reason);
+        }
+    }
+
+    private void countInWindow(boolean failed) {
+        long now = System.nanoTime();
+        long startedAt = windowStartedAt.get();
+        if (now - startedAt >= ERROR_WINDOW_NANOS && windowStartedAt.compareAndSet(startedAt, now)) {
+            windowRequests.reset();
+            windowFailures.reset();
+        }
+        windowRequests.increment();
+        if (failed) {
+            windowFailures.increment();
+        }
+    }
+
+    private boolean isErrorRateExceeded(OutlierDetection detection) {
+        long requests = windowRequests.sum();
+        return requests >= detection.getMinRequests() && windowFailures.sum() * 100 >= requests * detection.getErrorRate();
+    }
+
+    private void open(int from, String reason) {
+        if (!state.compareAndSet(from, OPEN)) {
+            return;
+        }
+        OutlierDetection detection = OutlierDetection.getInstance();
+        long now = System.nanoTime();
+        if (from == CLOSED && now - closedAt > detection.getMaxEjectionNanos()) {
+            ejections = 0;
+        }
+        currentProbe = NO_PROBE;
+        grantedProbe.set(NO_PROBE);
+        int count = ++ejections;
+        long duration = Math.min(detection.getEjectionNanos() << Math.min(count - 1, 30), detection.getMaxEjectionNanos());
+        openUntil = now + duration;
+        consecutiveFailures.set(0);
+        windowRequests.reset();
+        windowFailures.reset();
+        ejectionCount.increment();
+        log.warn("circuit open. target = {}, reason = {}, ejected for {}ms", target, reason, duration / 1_000_000);
+    }
+
+    private void close(String reason) {
+        int current = state.get();
+        if (current == CLOSED || !state.compareAndSet(current, CLOSED)) {
+            return;
+        }
+        closedAt = System.nanoTime();
+        currentProbe = NO_PROBE;
+        grantedProbe.set(NO_PROBE);
+        consecutiveFailures.set(0);
+        log.info("circuit closed. target = {}, reason = {}", target, reason);
+    }
+
+    /**
+     * CLOSED(0), OPEN(1), HALF_OPEN(2)
+     */
+    public int getState() {
+        return state.get();
+    }
+
+    public long getEjections() {
+        return ejectionCount.sum();
+    }
+}
@@ -0,0 +1,118 @@
+package org.crazyproxy.http;
+
+import org.crazyproxy.buffer.BufferPool;
+import org.crazyproxy.buffer.PooledBuffer;
+import org.crazyproxy.config.SocketInfo;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HttpRequestParser가 찾아둔 오프셋으로 요청 헤더를 변조해서 헤더 슬랩에 복사한다.
+ * Host는 진짜 타겟 주소로, 요청 라인의 첫 "/"는 타겟 path로 바꾼다. 나머지 헤더 라인은 바이트 그대로 복사.
+ * 바디는 건드리지 않으므로 바이너리 바디도 안전하다.
+ * 헤더 슬랩은 요청마다 BufferPool에서 빌리고, 요청을 다 보낸 쪽(ClientWorker)이 반납한다.
+ */
+public final class HttpHeaderRewriter {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] CONNECTION_KEEP_ALIVE = "Connection: keep-alive\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private HttpHeaderRewriter() {
+    }
+
+    /**
+     * buffer[start, start + headerLength) 의 요청 헤더를 변조한다.
+     * @param keepAlive true면 Connection 계열 헤더를 지우고 Connection: keep-alive로 바꾼다
+     * @return 읽기 모드의 헤더 슬랩
+     */
+    public static PooledBuffer rewrite(HttpRequestParser parser, ByteBuffer buffer, int start, SocketInfo socketInfo, boolean keepAlive) {
+        return rewrite(parser, buffer, start, socketInfo, keepAlive, null);
+    }
+
+    /**
+     * @param conditionalHeaders 응답 캐시가 재검증할 때 붙이는 If-None-Match / If-Modified-Since 라인들. 있으면 클라가 보낸 같은 헤더는 뺀다
+     */
+    public static PooledBuffer rewrite(HttpRequestParser parser, ByteBuffer buffer, int start, SocketInfo socketInfo, boolean keepAlive,
+                                       byte[] conditionalHeaders) {
+        byte[] pathBytes = socketInfo.getPathBytes();
+        byte[] hostHeaderBytes = socketInfo.getHostHeaderBytes();
+        int required = parser.getHeaderLength() + pathBytes.length + hostHeaderBytes.length + CONNECTION_KEEP_ALIVE.length
+                + (conditionalHeaders == null ? 0 : conditionalHeaders.length);
+        PooledBuffer pooled = BufferPool.getInstance().acquire(required);
+        ByteBuffer slab = pooled.getBuffer();
+
+        // 요청 라인. 첫 "/"를 타겟 path로 바꾼다. 디폴트 path는 "/"
+        copy(slab, buffer, start, 0, parser.getTargetStart());
+        int targetStart = parser.getTargetStart();
+        int targetEnd = parser.getTargetEnd();
+        int slash = indexOfSlash(buffer, start, targetStart, targetEnd);
+        if (slash == -1) {
+            copy(slab, buffer, start, targetStart, targetEnd);
+        } else {
+            copy(slab, buffer, start, targetStart, slash);
+            slab.put(pathBytes);
+            copy(slab, buffer, start, slash + 1, targetEnd);
+        }
+        copy(slab, buffer, start, targetEnd, parser.getVersionEnd());
+        slab.put(CRLF);
+
+        boolean hostWritten = false;
+        for (int i = 0; i < parser.getHeaderCount(); i++) {
+            if (parser.isHeader(buffer, start, i, "host")) {
+                if (!hostWritten) {
+                    slab.put(hostHeaderBytes);
+                    hostWritten = true;
+                }
+                continue;
+            }
+            if (keepAlive && isConnectionHeader(parser, buffer, start, i)) {
+                continue;
+            }
+            if (conditionalHeaders != null && isConditionalHeader(parser, buffer, start, i)) {
+                continue;
+            }
+            copy(slab, buffer, start, parser.getHeaderNameStart(i), parser.getHeaderValueEnd(i));
+            slab.put(CRLF);
+        }
+        if (!hostWritten) {
+            slab.put(hostHeaderBytes);
+        }
+        if (keepAlive) {
+            slab.put(CONNECTION_KEEP_ALIVE);
+        }
+        if (conditionalHeaders != null) {
+            slab.put(conditionalHeaders);
+        }
+        slab.put(CRLF);
+
+        slab.flip();
+        return pooled;
+    }
+
+    private static boolean isConnectionHeader(HttpRequestParser parser, ByteBuffer buffer, int start, int index) {
+        return parser.isHeader(buffer, start, index, "connection")
+                || parser.isHeader(buffer, start, index, "keep-alive")
+                || parser.isHeader(buffer, start, index, "proxy-connection");
+    }
+
+    private static boolean isConditionalHeader(HttpRequestParser parser, ByteBuffer buffer, int start, int index) {
+        return parser.isHeader(buffer, start, index, "if-none-match")
+                || parser.isHeader(buffer, start, index, "if-modified-since");
+    }
+
+    private static int indexOfSlash(ByteBuffer buffer, int start, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(start + i) == '/') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void copy(ByteBuffer slab, ByteBuffer buffer, int start, int from, int to) {
+        int length = to - from;
+        slab.put(slab.position(), buffer, start + from, length);
+        slab.position(slab.position() + length);
+    }
+}
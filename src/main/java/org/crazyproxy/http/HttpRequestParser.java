@@ -0,0 +1,446 @@
+package org.crazyproxy.http;
+
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * 바이트 단위로 도는 HTTP/1.1 요청 파서. String을 만들지 않고 ByteBuffer 위에서 오프셋만 기록한다.
+ * 헤더가 여러 read에 나뉘어 와도 이어서 파싱하고(parseHeaders), 헤더 뒤의 바디는 frameBody로
+ * Content-Length / chunked 경계까지만 잘라서 넘긴다. 경계 뒤에 남은 바이트는 다음(pipelined) 요청이다.
+ *
+ * 오프셋은 모두 메시지 시작(parseHeaders의 start) 기준 상대값이라 버퍼를 compact 해도 유효하다.
+ */
+public class HttpRequestParser {
+
+    public enum Result {
+        NEED_MORE, HEADERS_DONE, HEADER_TOO_LARGE, BAD_REQUEST
+    }
+
+    private enum BodyState {
+        NONE, LENGTH, CHUNK_SIZE, CHUNK_DATA, CHUNK_DATA_CRLF, TRAILER, DONE
+    }
+
+    private static final int MAX_HEADERS = 128;
+
+    private final int maxHeaderSize;
+
+    // 헤더 파싱 상태
+    private int scanOffset;
+    private int lineStart;
+    private boolean requestLineParsed;
+    @Getter
+    private int headerLength;
+
+    // 요청 라인
+    @Getter
+    private int methodEnd;
+    @Getter
+    private int targetStart;
+    @Getter
+    private int targetEnd;
+    @Getter
+    private int versionStart;
+    @Getter
+    private int versionEnd;
+
+    // 헤더 라인 오프셋. name: [nameStart, nameEnd), value: [valueStart, valueEnd)
+    @Getter
+    private int headerCount;
+    private final int[] nameStarts = new int[MAX_HEADERS];
+    private final int[] nameEnds = new int[MAX_HEADERS];
+    private final int[] valueStarts = new int[MAX_HEADERS];
+    private final int[] valueEnds = new int[MAX_HEADERS];
+
+    // 프레이밍 정보
+    @Getter
+    private boolean http10;
+    @Getter
+    private boolean headRequest;
+    @Getter
+    private boolean getRequest;
+    // 같은 요청을 두 번 보내도 되는 메서드 (RFC 9110 9.2.2). 업스트림이 응답 없이 끊었을 때 다시 보낼지 본다
+    @Getter
+    private boolean idempotent;
+    @Getter
+    private boolean connectionClose;
+    @Getter
+    private boolean connectionKeepAlive;
+    private long contentLength;
+    private boolean transferEncoding;
+    private boolean chunked;
+
+    // 바디 프레이밍 상태
+    private BodyState bodyState = BodyState.NONE;
+    private long remaining;
+    private boolean lineHasContent;
+    private boolean chunkSizeDone;
+
+    public HttpRequestParser(int maxHeaderSize) {
+        this.maxHeaderSize = maxHeaderSize;
+        reset();
+    }
+
+    /**
+     * 다음 요청을 파싱하기 전에 호출.
+     */
+    public void reset() {
+        scanOffset = 0;
+        lineStart = 0;
+        requestLineParsed = false;
+        headerLength = 0;
+        methodEnd = targetStart = targetEnd = versionStart = versionEnd = 0;
+        headerCount = 0;
+        http10 = false;
+        headRequest = false;
+        getRequest = false;
+        idempotent = false;
+        connectionClose = false;
+        connectionKeepAlive = false;
+        contentLength = -1;
+        transferEncoding = false;
+        chunked = false;
+        bodyState = BodyState.NONE;
+        remaining = 0;
+        lineHasContent = false;
+        chunkSizeDone = false;
+    }
+
+    /**
+     * buffer[start, end) 에서 요청 라인과 헤더를 찾는다. 이전 호출에서 본 곳부터 이어서 훑는다.
+     * buffer의 position/limit은 건드리지 않음.
+     */
+    public Result parseHeaders(ByteBuffer buffer, int start, int end) {
+        int length = end - start;
+
+        int scanLimit = Math.min(length, maxHeaderSize);
+
+        while (scanOffset < scanLimit) {
+            byte b = buffer.get(start + scanOffset++);
+            if (b != '\n') {
+                continue;
+            }
+
+            int lineEnd = scanOffset - 1;
+            if (lineEnd > lineStart && buffer.get(start + lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+
+            if (!requestLineParsed) {
+                if (lineEnd == lineStart) {
+                    // 요청 앞의 빈 줄은 무시 (RFC 9112 2.2)
+                    lineStart = scanOffset;
+                    continue;
+                }
+                if (!parseRequestLine(buffer, start, lineStart, lineEnd)) {
+                    return Result.BAD_REQUEST;
+                }
+                requestLineParsed = true;
+            } else if (lineEnd == lineStart) {
+                headerLength = scanOffset;
+                return onHeadersEnd();
+            } else if (!parseHeaderLine(buffer, start, lineStart, lineEnd)) {
+                return headerCount == MAX_HEADERS ? Result.HEADER_TOO_LARGE : Result.BAD_REQUEST;
+            }
+            lineStart = scanOffset;
+        }
+
+        if (length >= maxHeaderSize) {
+            return Result.HEADER_TOO_LARGE;
+        }
+        return Result.NEED_MORE;
+    }
+
+    private boolean parseRequestLine(ByteBuffer buffer, int start, int from, int to) {
+        int firstSpace = indexOf(buffer, start, from, to, (byte) ' ');
+        if (firstSpace <= from) {
+            return false;
+        }
+        int secondSpace = indexOf(buffer, start, firstSpace + 1, to, (byte) ' ');
+        if (secondSpace <= firstSpace + 1) {
+            return false;
+        }
+
+        methodEnd = firstSpace;
+        targetStart = firstSpace + 1;
+        targetEnd = secondSpace;
+        versionStart = secondSpace + 1;
+        versionEnd = to;
+
+        if (!regionEqualsIgnoreCase(buffer, start, versionStart, versionEnd, "HTTP/1.1")) {
+            if (!regionEqualsIgnoreCase(buffer, start, versionStart, versionEnd, "HTTP/1.0")) {
+                return false;
+            }
+            http10 = true;
+        }
+        headRequest = regionEqualsIgnoreCase(buffer, start, from, methodEnd, "HEAD");
+        getRequest = regionEqualsIgnoreCase(buffer, start, from, methodEnd, "GET");
+        idempotent = headRequest || getRequest
+                || regionEqualsIgnoreCase(buffer, start, from, methodEnd, "OPTIONS")
+                || regionEqualsIgnoreCase(buffer, start, from, methodEnd, "TRACE")
+                || regionEqualsIgnoreCase(buffer, start, from, methodEnd, "PUT")
+                || regionEqualsIgnoreCase(buffer, start, from, methodEnd, "DELETE");
+        return true;
+    }
+
+    private boolean parseHeaderLine(ByteBuffer buffer, int start, int from, int to) {
+        byte first = buffer.get(start + from);
+        if (first == ' ' || first == '\t') {
+            // obs-fold는 받지 않는다
+            return false;
+        }
+        int colon = indexOf(buffer, start, from, to, (byte) ':');
+        if (colon <= from || headerCount == MAX_HEADERS) {
+            return false;
+        }
+
+        int valueStart = colon + 1;
+        while (valueStart < to && isWhitespace(buffer.get(start + valueStart))) {
+            valueStart++;
+        }
+        int valueEnd = to;
+        while (valueEnd > valueStart && isWhitespace(buffer.get(start + valueEnd - 1))) {
+            valueEnd--;
+        }
+
+        nameStarts[headerCount] = from;
+        nameEnds[headerCount] = colon;
+        valueStarts[headerCount] = valueStart;
+        valueEnds[headerCount] = valueEnd;
+        headerCount++;
+
+        if (regionEqualsIgnoreCase(buffer, start, from, colon, "content-length")) {
+            long value = parseDecimal(buffer, start, valueStart, valueEnd);
+            if (value < 0 || (contentLength >= 0 && contentLength != value)) {
+                return false;
+            }
+            contentLength = value;
+        } else if (regionEqualsIgnoreCase(buffer, start, from, colon, "transfer-encoding")) {
+            // 마지막 코딩이 chunked여야 바디 끝을 알 수 있다
+            transferEncoding = true;
+            chunked = lastTokenEqualsIgnoreCase(buffer, start, valueStart, valueEnd, "chunked");
+        } else if (regionEqualsIgnoreCase(buffer, start, from, colon, "connection")) {
+            connectionClose |= containsIgnoreCase(buffer, start, valueStart, valueEnd, "close");
+            connectionKeepAlive |= containsIgnoreCase(buffer, start, valueStart, valueEnd, "keep-alive");
+        }
+        return true;
+    }
+
+    private Result onHeadersEnd() {
+        if (transferEncoding) {
+            // 마지막이 chunked가 아니거나 Content-Length와 같이 오면 업스트림이 바디 끝을 다르게 볼 수 있다 (request smuggling).
+            // 프록시는 고쳐서 넘기지 않고 거절한다 (RFC 9112 6.3)
+            if (!chunked || contentLength >= 0) {
+                return Result.BAD_REQUEST;
+            }
+            bodyState = BodyState.CHUNK_SIZE;
+        } else if (contentLength > 0) {
+            bodyState = BodyState.LENGTH;
+            remaining = contentLength;
+        } else {
+            bodyState = BodyState.DONE;
+        }
+        return Result.HEADERS_DONE;
+    }
+
+    public boolean hasBody() {
+        return chunked || contentLength > 0;
+    }
+
+    /**
+     * 클라가 이 요청 뒤에도 커넥션을 계속 쓰겠다는 건지. HTTP/1.1은 close가 없으면 유지, 1.0은 keep-alive를 명시해야 유지.
+     */
+    public boolean isPersistent() {
+        if (connectionClose) {
+            return false;
+        }
+        return !http10 || connectionKeepAlive;
+    }
+
+    /**
+     * 메시지(헤더+바디)가 끝났는지. 끝났으면 버퍼에 남은 건 다음 요청이다.
+     */
+    public boolean isMessageComplete() {
+        return bodyState == BodyState.DONE;
+    }
+
+    /**
+     * 헤더 뒤에 온 buffer[from, to) 중 이 요청의 바디에 속하는 바이트 수를 돌려준다.
+     * chunked는 청크 포맷 그대로 넘기므로 경계만 찾는다.
+     */
+    public int frameBody(ByteBuffer buffer, int from, int to) {
+        int index = from;
+        while (index < to && bodyState != BodyState.DONE) {
+            switch (bodyState) {
+                case LENGTH:
+                case CHUNK_DATA: {
+                    int skip = (int) Math.min(remaining, to - index);
+                    index += skip;
+                    remaining -= skip;
+                    if (remaining == 0) {
+                        bodyState = bodyState == BodyState.LENGTH ? BodyState.DONE : BodyState.CHUNK_DATA_CRLF;
+                    }
+                    break;
+                }
+                case CHUNK_SIZE: {
+                    byte b = buffer.get(index++);
+                    if (b == '\n') {
+                        if (!lineHasContent) {
+                            throw new IllegalStateException("missing chunk size");
+                        }
+                        bodyState = remaining == 0 ? BodyState.TRAILER : BodyState.CHUNK_DATA;
+                        chunkSizeDone = false;
+                        lineHasContent = false;
+                    } else if (!chunkSizeDone) {
+                        int digit = Character.digit(b, 16);
+                        if (digit < 0) {
+                            // chunk extension(;) 이나 \r
+                            chunkSizeDone = true;
+                        } else if (remaining > Long.MAX_VALUE >>> 4) {
+                            throw new IllegalStateException("chunk size too large");
+                        } else {
+                            // 청크 크기 줄에서는 숫자가 나왔는지를 lineHasContent로 본다
+                            remaining = (remaining << 4) | digit;
+                            lineHasContent = true;
+                        }
+                    }
+                    break;
+                }
+                case CHUNK_DATA_CRLF: {
+                    if (buffer.get(index++) == '\n') {
+                        bodyState = BodyState.CHUNK_SIZE;
+                        remaining = 0;
+                    }
+                    break;
+                }
+                case TRAILER: {
+                    byte b = buffer.get(index++);
+                    if (b == '\n') {
+                        if (!lineHasContent) {
+                            bodyState = BodyState.DONE;
+                        }
+                        lineHasContent = false;
+                    } else if (b != '\r') {
+                        lineHasContent = true;
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unexpected body state: " + bodyState);
+            }
+        }
+        return index - from;
+    }
+
+    public int getHeaderNameStart(int index) {
+        return nameStarts[index];
+    }
+
+    public int getHeaderNameEnd(int index) {
+        return nameEnds[index];
+    }
+
+    public int getHeaderValueStart(int index) {
+        return valueStarts[index];
+    }
+
+    public int getHeaderValueEnd(int index) {
+        return valueEnds[index];
+    }
+
+    /**
+     * 요청 라인의 target을 문자열로. 아래 문자열 메서드들은 매번 String을 만드므로 응답 캐시처럼 꼭 필요한 쪽만 쓴다.
+     */
+    public String getTarget(ByteBuffer buffer, int start) {
+        return readAscii(buffer, start, targetStart, targetEnd);
+    }
+
+    /**
+     * index 번째 헤더 이름 (소문자)
+     */
+    public String getHeaderName(ByteBuffer buffer, int start, int index) {
+        return readAscii(buffer, start, nameStarts[index], nameEnds[index]).toLowerCase(Locale.ROOT);
+    }
+
+    public String getHeaderValue(ByteBuffer buffer, int start, int index) {
+        return readAscii(buffer, start, valueStarts[index], valueEnds[index]);
+    }
+
+    /**
+     * index 번째 헤더 이름이 name 인지 (대소문자 무시). name은 소문자로 넘긴다.
+     */
+    public boolean isHeader(ByteBuffer buffer, int start, int index, String name) {
+        return regionEqualsIgnoreCase(buffer, start, nameStarts[index], nameEnds[index], name);
+    }
+
+    private static String readAscii(ByteBuffer buffer, int start, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        buffer.get(start + from, bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static int indexOf(ByteBuffer buffer, int start, int from, int to, byte target) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(start + i) == target) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long parseDecimal(ByteBuffer buffer, int start, int from, int to) {
+        if (from == to) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            byte b = buffer.get(start + i);
+            if (b < '0' || b > '9' || value > (Long.MAX_VALUE - 9) / 10) {
+                return -1;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    static boolean regionEqualsIgnoreCase(ByteBuffer buffer, int start, int from, int to, String target) {
+        if (to - from != target.length()) {
+            return false;
+        }
+        for (int i = 0; i < target.length(); i++) {
+            if (Character.toLowerCase(buffer.get(start + from + i)) != Character.toLowerCase(target.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 쉼표로 나뉜 목록의 마지막 항목이 token 인지 (대소문자 무시).
+     */
+    private static boolean lastTokenEqualsIgnoreCase(ByteBuffer buffer, int start, int from, int to, String token) {
+        int tokenStart = to;
+        while (tokenStart > from && buffer.get(start + tokenStart - 1) != ',') {
+            tokenStart--;
+        }
+        while (tokenStart < to && isWhitespace(buffer.get(start + tokenStart))) {
+            tokenStart++;
+        }
+        return regionEqualsIgnoreCase(buffer, start, tokenStart, to, token);
+    }
+
+    private static boolean containsIgnoreCase(ByteBuffer buffer, int start, int from, int to, String token) {
+        for (int i = from; i + token.length() <= to; i++) {
+            if (regionEqualsIgnoreCase(buffer, start, i, i + token.length(), token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
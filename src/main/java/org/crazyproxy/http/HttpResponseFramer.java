@@ -0,0 +1,311 @@
+package org.crazyproxy.http;
+
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 업스트림 응답의 끝을 찾기 위한 HTTP/1.1 응답 프레이머.
+ * 버퍼의 position/limit은 건드리지 않고 바이트만 훑어서 상태를 갱신한다.
+ * Content-Length, chunked, close-delimited 응답을 모두 처리함.
+ */
+public class HttpResponseFramer {
+
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+
+    private enum State {
+        STATUS_LINE, HEADER_LINE, BODY_LENGTH, CHUNK_SIZE, CHUNK_DATA, CHUNK_DATA_CRLF, TRAILER_LINE, BODY_UNTIL_CLOSE, DONE
+    }
+
+    private final byte[] line = new byte[MAX_LINE_LENGTH];
+    private int lineLength;
+
+    private State state = State.STATUS_LINE;
+    private boolean headRequest;
+    private long remaining;
+
+    @Getter
+    private int statusCode;
+    private boolean http10;
+    private long contentLength;
+    private boolean transferEncoding;
+    private boolean chunked;
+    private boolean connectionClose;
+    private boolean connectionKeepAlive;
+
+    /**
+     * 새 요청을 보내기 전에 호출한다.
+     * @param headRequest HEAD 요청이면 바디가 없으므로 헤더까지만 본다.
+     */
+    public void reset(boolean headRequest) {
+        this.headRequest = headRequest;
+        state = State.STATUS_LINE;
+        lineLength = 0;
+        remaining = 0;
+        resetHeaders();
+    }
+
+    private void resetHeaders() {
+        statusCode = 0;
+        http10 = false;
+        contentLength = -1;
+        transferEncoding = false;
+        chunked = false;
+        connectionClose = false;
+        connectionKeepAlive = false;
+    }
+
+    /**
+     * position ~ limit 사이의 응답 바이트를 훑는다.
+     * @return 응답이 끝났으면 true
+     */
+    public boolean feed(ByteBuffer buffer) {
+        int index = buffer.position();
+        int limit = buffer.limit();
+
+        while (index < limit && state != State.DONE) {
+            switch (state) {
+                case BODY_LENGTH:
+                case CHUNK_DATA: {
+                    int skip = (int) Math.min(remaining, limit - index);
+                    index += skip;
+                    remaining -= skip;
+                    if (remaining == 0) {
+                        state = state == State.BODY_LENGTH ? State.DONE : State.CHUNK_DATA_CRLF;
+                    }
+                    break;
+                }
+                case BODY_UNTIL_CLOSE:
+                    index = limit;
+                    break;
+                default: {
+                    byte b = buffer.get(index++);
+                    if (b == '\n') {
+                        onLine();
+                        lineLength = 0;
+                    } else if (b != '\r') {
+                        if (lineLength == MAX_LINE_LENGTH) {
+                            throw new IllegalStateException("response line too long");
+                        }
+                        line[lineLength++] = b;
+                    }
+                }
+            }
+        }
+        return state == State.DONE;
+    }
+
+    /**
+     * 업스트림이 연결을 끊었을 때 호출. close-delimited 응답이면 이 시점이 응답의 끝이다.
+     * @return 응답이 정상적으로 끝났으면 true
+     */
+    public boolean onEndOfStream() {
+        if (state == State.BODY_UNTIL_CLOSE) {
+            state = State.DONE;
+        }
+        return state == State.DONE;
+    }
+
+    public boolean isComplete() {
+        return state == State.DONE;
+    }
+
+    /**
+     * 응답이 끝난 뒤 업스트림 연결을 재사용해도 되는지 여부.
+     */
+    public boolean isKeepAlive() {
+        if (state != State.DONE || connectionClose) {
+            return false;
+        }
+        return !http10 || connectionKeepAlive;
+    }
+
+    private void onLine() {
+        switch (state) {
+            case STATUS_LINE:
+                if (lineLength == 0) {
+                    return;
+                }
+                parseStatusLine();
+                state = State.HEADER_LINE;
+                break;
+            case HEADER_LINE:
+                if (lineLength == 0) {
+                    onHeadersEnd();
+                } else {
+                    parseHeaderLine();
+                }
+                break;
+            case CHUNK_SIZE:
+                remaining = parseChunkSize();
+                state = remaining == 0 ? State.TRAILER_LINE : State.CHUNK_DATA;
+                break;
+            case CHUNK_DATA_CRLF:
+                state = State.CHUNK_SIZE;
+                break;
+            case TRAILER_LINE:
+                if (lineLength == 0) {
+                    state = State.DONE;
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unexpected state: " + state);
+        }
+    }
+
+    private void parseStatusLine() {
+        // HTTP/1.x SSS reason
+        if (lineLength < 12 || !startsWithIgnoreCase("HTTP/1.")) {
+            throw new IllegalStateException("Invalid status line");
+        }
+        http10 = line[7] == '0';
+        statusCode = (line[9] - '0') * 100 + (line[10] - '0') * 10 + (line[11] - '0');
+    }
+
+    private void parseHeaderLine() {
+        int colon = indexOf((byte) ':');
+        if (colon <= 0) {
+            return;
+        }
+        int valueStart = colon + 1;
+        while (valueStart < lineLength && line[valueStart] == ' ') {
+            valueStart++;
+        }
+
+        if (nameEquals("content-length", colon)) {
+            // 값이 다른 Content-Length가 여럿이면 응답 끝을 알 수 없다 (RFC 9112 6.3)
+            long value = parseDecimal(valueStart);
+            if (contentLength >= 0 && contentLength != value) {
+                throw new IllegalStateException("conflicting Content-Length");
+            }
+            contentLength = value;
+        } else if (nameEquals("transfer-encoding", colon)) {
+            transferEncoding = true;
+            chunked = lastTokenEquals("chunked", valueStart);
+        } else if (nameEquals("connection", colon)) {
+            connectionClose |= valueContains("close", valueStart);
+            connectionKeepAlive |= valueContains("keep-alive", valueStart);
+        }
+    }
+
+    private void onHeadersEnd() {
+        // 1xx는 중간 응답. 진짜 응답이 뒤따라 온다.
+        if (statusCode >= 100 && statusCode < 200 && statusCode != 101) {
+            resetHeaders();
+            state = State.STATUS_LINE;
+            return;
+        }
+
+        if (headRequest || statusCode == 204 || statusCode == 304) {
+            state = State.DONE;
+        } else if (chunked) {
+            state = State.CHUNK_SIZE;
+        } else if (transferEncoding) {
+            // 마지막 코딩이 chunked가 아니면 Content-Length가 있어도 끊길 때까지 읽는다 (RFC 9112 6.3)
+            connectionClose = true;
+            state = State.BODY_UNTIL_CLOSE;
+        } else if (contentLength >= 0) {
+            remaining = contentLength;
+            state = remaining == 0 ? State.DONE : State.BODY_LENGTH;
+        } else {
+            // 길이 정보가 없으면 연결이 끊길 때까지 읽어야 한다.
+            connectionClose = true;
+            state = State.BODY_UNTIL_CLOSE;
+        }
+    }
+
+    private long parseChunkSize() {
+        long size = 0;
+        int i = 0;
+        for (; i < lineLength; i++) {
+            int digit = Character.digit(line[i], 16);
+            if (digit < 0) {
+                // chunk extension(;) 이후는 무시
+                break;
+            }
+            if (size > Long.MAX_VALUE >>> 4) {
+                throw new IllegalStateException("chunk size too large");
+            }
+            size = (size << 4) | digit;
+        }
+        if (i == 0) {
+            throw new IllegalStateException("missing chunk size");
+        }
+        return size;
+    }
+
+    private long parseDecimal(int from) {
+        int to = lineLength;
+        while (to > from && (line[to - 1] == ' ' || line[to - 1] == '\t')) {
+            to--;
+        }
+        if (from == to) {
+            throw new IllegalStateException("invalid Content-Length");
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            byte b = line[i];
+            if (b < '0' || b > '9' || value > (Long.MAX_VALUE - 9) / 10) {
+                throw new IllegalStateException("invalid Content-Length");
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    private int indexOf(byte target) {
+        for (int i = 0; i < lineLength; i++) {
+            if (line[i] == target) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean startsWithIgnoreCase(String prefix) {
+        return regionEqualsIgnoreCase(0, prefix);
+    }
+
+    private boolean nameEquals(String name, int nameLength) {
+        return nameLength == name.length() && regionEqualsIgnoreCase(0, name);
+    }
+
+    /**
+     * 쉼표로 나뉜 값 목록의 마지막 항목이 token 인지 (대소문자 무시).
+     */
+    private boolean lastTokenEquals(String token, int from) {
+        int tokenStart = lineLength;
+        while (tokenStart > from && line[tokenStart - 1] != ',') {
+            tokenStart--;
+        }
+        while (tokenStart < lineLength && line[tokenStart] == ' ') {
+            tokenStart++;
+        }
+        int tokenEnd = lineLength;
+        while (tokenEnd > tokenStart && line[tokenEnd - 1] == ' ') {
+            tokenEnd--;
+        }
+        return tokenEnd - tokenStart == token.length() && regionEqualsIgnoreCase(tokenStart, token);
+    }
+
+    private boolean valueContains(String token, int from) {
+        for (int i = from; i + token.length() <= lineLength; i++) {
+            if (regionEqualsIgnoreCase(i, token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean regionEqualsIgnoreCase(int offset, String target) {
+        if (offset + target.length() > lineLength) {
+            return false;
+        }
+        for (int i = 0; i < target.length(); i++) {
+            if (Character.toLowerCase(line[offset + i]) != Character.toLowerCase(target.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
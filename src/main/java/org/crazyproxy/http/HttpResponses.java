@@ -0,0 +1,74 @@
+package org.crazyproxy.http;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 프록시가 직접 돌려주는 고정 응답들. 바디 없이 상태만 알리고 커넥션을 닫는다.
+ */
+public final class HttpResponses {
+
+    public static final byte[] BAD_REQUEST = simple(400, "Bad Request");
+    public static final byte[] REQUEST_TIMEOUT = simple(408, "Request Timeout");
+    public static final byte[] HEADER_TOO_LARGE = simple(431, "Request Header Fields Too Large");
+    public static final byte[] BAD_GATEWAY = simple(502, "Bad Gateway");
+    public static final byte[] SERVICE_UNAVAILABLE = simple(503, "Service Unavailable");
+    // 타겟 동시 요청 한도가 찼다. 잠깐 뒤에 다시 오라고 알린다
+    public static final byte[] OVERLOADED = simple(503, "Service Unavailable", "Retry-After: 1\r\n");
+    // 포트의 타겟 회로가 전부 열려 있다
+    public static final byte[] NO_HEALTHY_TARGET = simple(503, "Service Unavailable", "Retry-After: 5\r\n");
+    public static final byte[] GATEWAY_TIMEOUT = simple(504, "Gateway Timeout");
+
+    private HttpResponses() {
+    }
+
+    /**
+     * 상태 코드의 사유 문구. HTTP/2 응답처럼 사유 문구 없이 온 응답을 HTTP/1.1 상태 줄로 바꿀 때 쓴다.
+     * 모르는 코드는 빈 문자열 (RFC 9112 4: 사유 문구는 비어도 된다)
+     */
+    public static String reason(int statusCode) {
+        switch (statusCode) {
+            case 200: return "OK";
+            case 201: return "Created";
+            case 202: return "Accepted";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 301: return "Moved Permanently";
+            case 302: return "Found";
+            case 303: return "See Other";
+            case 304: return "Not Modified";
+            case 307: return "Temporary Redirect";
+            case 308: return "Permanent Redirect";
+            case 400: return "Bad Request";
+            case 401: return "Unauthorized";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 408: return "Request Timeout";
+            case 409: return "Conflict";
+            case 410: return "Gone";
+            case 412: return "Precondition Failed";
+            case 413: return "Content Too Large";
+            case 416: return "Range Not Satisfiable";
+            case 429: return "Too Many Requests";
+            case 500: return "Internal Server Error";
+            case 501: return "Not Implemented";
+            case 502: return "Bad Gateway";
+            case 503: return "Service Unavailable";
+            case 504: return "Gateway Timeout";
+            default: return "";
+        }
+    }
+
+    private static byte[] simple(int statusCode, String reason) {
+        return simple(statusCode, reason, "");
+    }
+
+    private static byte[] simple(int statusCode, String reason, String extraHeaders) {
+        String response = "HTTP/1.1 " + statusCode + " " + reason + "\r\n"
+                + extraHeaders
+                + "Content-Length: 0\r\n"
+                + "Connection: close\r\n"
+                + "\r\n";
+        return response.getBytes(StandardCharsets.US_ASCII);
+    }
+}
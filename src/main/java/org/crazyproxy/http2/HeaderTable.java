@@ -0,0 +1,172 @@
+package org.crazyproxy.http2;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * HPACK 헤더 테이블. 정적 테이블(1~61) 뒤에 동적 테이블이 붙는다 (RFC 7541 2.3).
+ * 동적 테이블은 새 항목이 앞(62번)에 오는 링 버퍼이고, 크기(이름 + 값 + 32)가 maxSize를 넘으면 오래된 것부터 버린다.
+ * 인코더와 디코더가 각자 하나씩 가진다. 커넥션의 리액터 스레드에서만 쓴다.
+ */
+final class HeaderTable {
+
+    static final int DEFAULT_SIZE = 4096;
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private static final String[][] STATIC_ENTRIES = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"}, {":path", "/index.html"},
+            {":scheme", "http"}, {":scheme", "https"}, {":status", "200"}, {":status", "204"}, {":status", "206"},
+            {":status", "304"}, {":status", "400"}, {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""},
+            {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+            {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+            {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""}, {"date", ""},
+            {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""}, {"if-match", ""},
+            {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""},
+            {"last-modified", ""}, {"link", ""}, {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""},
+            {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""}, {"retry-after", ""},
+            {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""}, {"transfer-encoding", ""},
+            {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""}
+    };
+    static final int STATIC_LENGTH = STATIC_ENTRIES.length;
+    private static final byte[][] STATIC_NAMES = new byte[STATIC_LENGTH][];
+    private static final byte[][] STATIC_VALUES = new byte[STATIC_LENGTH][];
+
+    static {
+        for (int i = 0; i < STATIC_LENGTH; i++) {
+            STATIC_NAMES[i] = STATIC_ENTRIES[i][0].getBytes(StandardCharsets.US_ASCII);
+            STATIC_VALUES[i] = STATIC_ENTRIES[i][1].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    // 동적 테이블 링 버퍼. head가 가장 최근 항목
+    private byte[][] names = new byte[16][];
+    private byte[][] values = new byte[16][];
+    private int head;
+    private int count;
+    private int size;
+    private int maxSize = DEFAULT_SIZE;
+
+    int length() {
+        return STATIC_LENGTH + count;
+    }
+
+    /**
+     * @param index 1부터 시작하는 HPACK 인덱스
+     */
+    byte[] name(int index) throws Http2Exception {
+        if (index <= STATIC_LENGTH) {
+            return STATIC_NAMES[checkIndex(index) - 1];
+        }
+        return names[slot(index)];
+    }
+
+    byte[] value(int index) throws Http2Exception {
+        if (index <= STATIC_LENGTH) {
+            return STATIC_VALUES[checkIndex(index) - 1];
+        }
+        return values[slot(index)];
+    }
+
+    void add(byte[] name, byte[] value) {
+        int entrySize = name.length + value.length + ENTRY_OVERHEAD;
+        if (entrySize > maxSize) {
+            // 테이블보다 큰 항목은 테이블을 비우기만 한다 (RFC 7541 4.4)
+            clear();
+            return;
+        }
+        while (size + entrySize > maxSize) {
+            evictOldest();
+        }
+        if (count == names.length) {
+            grow();
+        }
+        head = (head - 1 + names.length) % names.length;
+        names[head] = name;
+        values[head] = value;
+        count++;
+        size += entrySize;
+    }
+
+    void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        while (size > maxSize) {
+            evictOldest();
+        }
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 인코더용. 이름과 값이 같은 항목의 인덱스, 없으면 이름만 같은 항목의 음수 인덱스, 둘 다 없으면 0
+     */
+    int find(byte[] name, byte[] value) {
+        int nameIndex = 0;
+        for (int i = 0; i < STATIC_LENGTH; i++) {
+            if (Arrays.equals(STATIC_NAMES[i], name)) {
+                if (Arrays.equals(STATIC_VALUES[i], value)) {
+                    return i + 1;
+                }
+                if (nameIndex == 0) {
+                    nameIndex = -(i + 1);
+                }
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            int slot = (head + i) % names.length;
+            if (Arrays.equals(names[slot], name)) {
+                if (Arrays.equals(values[slot], value)) {
+                    return STATIC_LENGTH + i + 1;
+                }
+                if (nameIndex == 0) {
+                    nameIndex = -(STATIC_LENGTH + i + 1);
+                }
+            }
+        }
+        return nameIndex;
+    }
+
+    private int checkIndex(int index) throws Http2Exception {
+        if (index < 1) {
+            throw new Http2Exception(Http2Frame.COMPRESSION_ERROR, "invalid header index " + index);
+        }
+        return index;
+    }
+
+    private int slot(int index) throws Http2Exception {
+        int dynamicIndex = index - STATIC_LENGTH - 1;
+        if (dynamicIndex >= count) {
+            throw new Http2Exception(Http2Frame.COMPRESSION_ERROR, "invalid header index " + index);
+        }
+        return (head + dynamicIndex) % names.length;
+    }
+
+    private void evictOldest() {
+        int tail = (head + count - 1) % names.length;
+        size -= names[tail].length + values[tail].length + ENTRY_OVERHEAD;
+        names[tail] = null;
+        values[tail] = null;
+        count--;
+    }
+
+    private void clear() {
+        while (count > 0) {
+            evictOldest();
+        }
+    }
+
+    private void grow() {
+        byte[][] newNames = new byte[names.length * 2][];
+        byte[][] newValues = new byte[values.length * 2][];
+        for (int i = 0; i < count; i++) {
+            int slot = (head + i) % names.length;
+            newNames[i] = names[slot];
+            newValues[i] = values[slot];
+        }
+        names = newNames;
+        values = newValues;
+        head = 0;
+    }
+}
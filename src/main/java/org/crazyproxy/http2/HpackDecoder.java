@@ -0,0 +1,116 @@
+package org.crazyproxy.http2;
+
+import java.nio.ByteBuffer;
+
+/**
+ * HPACK 헤더 블록 디코더 (RFC 7541). 커넥션마다 하나. 헤더 블록은 받은 순서대로 넣어야 동적 테이블이 맞는다.
+ */
+final class HpackDecoder {
+
+    /**
+     * 풀린 헤더 하나씩 받는다. 이름은 소문자 그대로 온다.
+     */
+    interface Listener {
+        void onHeader(byte[] name, byte[] value) throws Http2Exception;
+    }
+
+    private final HeaderTable table = new HeaderTable();
+    // 우리가 SETTINGS_HEADER_TABLE_SIZE로 알린 크기. 상대가 이보다 크게 바꾸면 에러
+    private final int maxTableSize;
+    // 헤더 블록 하나에서 풀어낼 수 있는 최대 크기(이름 + 값 + 32의 합). 압축 폭탄 방어
+    private final int maxHeaderListSize;
+
+    HpackDecoder(int maxTableSize, int maxHeaderListSize) {
+        this.maxTableSize = maxTableSize;
+        this.maxHeaderListSize = maxHeaderListSize;
+        table.setMaxSize(maxTableSize);
+    }
+
+    /**
+     * block의 position ~ limit을 전부 푼다.
+     */
+    void decode(ByteBuffer block, Listener listener) throws Http2Exception {
+        int listSize = 0;
+        boolean headerSeen = false;
+        while (block.hasRemaining()) {
+            int first = block.get(block.position()) & 0xff;
+            byte[] name;
+            byte[] value;
+            if ((first & 0x80) != 0) {
+                // 인덱스 헤더
+                int index = readInt(block, 7);
+                name = table.name(index);
+                value = table.value(index);
+            } else if ((first & 0x40) != 0) {
+                // 리터럴, 동적 테이블에 추가
+                int index = readInt(block, 6);
+                name = index == 0 ? readString(block) : table.name(index);
+                value = readString(block);
+                table.add(name, value);
+            } else if ((first & 0x20) != 0) {
+                // 동적 테이블 크기 변경. 블록 맨 앞에만 올 수 있다
+                int size = readInt(block, 5);
+                if (headerSeen || size > maxTableSize) {
+                    throw new Http2Exception(Http2Frame.COMPRESSION_ERROR, "invalid table size update " + size);
+                }
+                table.setMaxSize(size);
+                continue;
+            } else {
+                // 리터럴, 테이블에 안 넣음(0000) / 절대 넣지 않음(0001). 받는 쪽에선 같다
+                int index = readInt(block, 4);
+                name = index == 0 ? readString(block) : table.name(index);
+                value = readString(block);
+            }
+            headerSeen = true;
+            listSize += name.length + value.length + 32;
+            if (listSize > maxHeaderListSize) {
+                throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "header list too large");
+            }
+            listener.onHeader(name, value);
+        }
+    }
+
+    private static int readInt(ByteBuffer block, int prefixBits) throws Http2Exception {
+        int max = (1 << prefixBits) - 1;
+        int value = block.get() & max;
+        if (value < max) {
+            return value;
+        }
+        int shift = 0;
+        while (true) {
+            if (!block.hasRemaining()) {
+                throw new Http2Exception(Http2Frame.COMPRESSION_ERROR, "truncated integer");
+            }
+            int b = block.get() & 0xff;
+            value += (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+            if (shift > 21) {
+                throw new Http2Exception(Http2Frame.COMPRESSION_ERROR, "integer overflow");
+            }
+        }
+        if (value < 0) {
+            throw new Http2Exception(Http2Frame.COMPRESSION_ERROR, "integer overflow");
+        }
+        return value;
+    }
+
+    private byte[] readString(ByteBuffer block) throws Http2Exception {
+        if (!block.hasRemaining()) {
+            throw new Http2Exception(Http2Frame.COMPRESSION_ERROR, "truncated string");
+        }
+        boolean huffman = (block.get(block.position()) & 0x80) != 0;
+        int length = readInt(block, 7);
+        if (length > block.remaining() || length > maxHeaderListSize) {
+            throw new Http2Exception(Http2Frame.COMPRESSION_ERROR, "truncated string");
+        }
+        if (huffman) {
+            return Huffman.decode(block, length);
+        }
+        byte[] value = new byte[length];
+        block.get(value);
+        return value;
+    }
+}
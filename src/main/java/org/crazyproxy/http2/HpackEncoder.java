@@ -0,0 +1,118 @@
+package org.crazyproxy.http2;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * HPACK 헤더 블록 인코더 (RFC 7541). 커넥션마다 하나. 인코딩한 순서대로 보내야 상대 동적 테이블과 맞는다.
+ * 요청마다 거의 같은 헤더(:authority, user-agent, accept 등)는 동적 테이블에 넣어 두 번째부터 1~2바이트로 보낸다.
+ * 매번 바뀌는 값(:path, content-length, 조건부 헤더, 응답의 date/etag 등)은 테이블을 흔들기만 하니 넣지 않는다.
+ * 여러 클라 요청이 커넥션 하나를 나눠 쓰므로 인증 정보와 쿠키는 테이블에 넣지 않고 never-indexed로 보낸다 (압축으로 남의 값을 떠보는 공격 방지).
+ * 클라 h2 커넥션에 응답 헤더를 쓸 때도 같은 인코더를 쓴다.
+ */
+final class HpackEncoder {
+
+    private static final byte[][] NOT_INDEXED = names(":path", "content-length", "if-none-match", "if-modified-since", "range",
+            "date", "age", "etag", "last-modified", "expires");
+    private static final byte[][] NEVER_INDEXED = names("authorization", "proxy-authorization", "cookie", "set-cookie");
+
+    private final HeaderTable table = new HeaderTable();
+    // 상대가 테이블 크기를 줄였다. 다음 헤더 블록 맨 앞에 알려야 한다
+    private int pendingSizeUpdate = -1;
+
+    /**
+     * 상대가 SETTINGS_HEADER_TABLE_SIZE를 보냈다. 우리 기본값(4096)보다 크게 쓰지는 않는다.
+     */
+    void setMaxTableSize(int size) {
+        int next = Math.min(size, HeaderTable.DEFAULT_SIZE);
+        if (next != table.getMaxSize()) {
+            table.setMaxSize(next);
+            pendingSizeUpdate = next;
+        }
+    }
+
+    /**
+     * 헤더 블록 하나를 시작한다. 테이블 크기 변경이 밀려 있으면 여기서 쓴다.
+     */
+    void beginBlock(ByteBuffer dst) {
+        if (pendingSizeUpdate >= 0) {
+            writeInt(dst, 0x20, 5, pendingSizeUpdate);
+            pendingSizeUpdate = -1;
+        }
+    }
+
+    /**
+     * @param name 소문자 헤더 이름
+     */
+    void encode(byte[] name, byte[] value, ByteBuffer dst) {
+        int index = table.find(name, value);
+        if (index > 0) {
+            writeInt(dst, 0x80, 7, index);
+            return;
+        }
+        int nameIndex = -index;
+        if (contains(NEVER_INDEXED, name)) {
+            writeInt(dst, 0x10, 4, nameIndex);
+        } else if (contains(NOT_INDEXED, name)) {
+            writeInt(dst, 0x00, 4, nameIndex);
+        } else {
+            writeInt(dst, 0x40, 6, nameIndex);
+            table.add(name, value);
+        }
+        if (nameIndex == 0) {
+            writeString(dst, name);
+        }
+        writeString(dst, value);
+    }
+
+    /**
+     * encode가 쓸 수 있는 최대 바이트 수. 버퍼 크기 잡을 때 쓴다
+     */
+    static int maxEncodedLength(byte[] name, byte[] value) {
+        return name.length + value.length + 16;
+    }
+
+    private static void writeString(ByteBuffer dst, byte[] value) {
+        int huffmanLength = Huffman.encodedLength(value);
+        if (huffmanLength < value.length) {
+            writeInt(dst, 0x80, 7, huffmanLength);
+            Huffman.encode(value, dst);
+        } else {
+            writeInt(dst, 0x00, 7, value.length);
+            dst.put(value);
+        }
+    }
+
+    private static void writeInt(ByteBuffer dst, int pattern, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            dst.put((byte) (pattern | value));
+            return;
+        }
+        dst.put((byte) (pattern | max));
+        value -= max;
+        while (value >= 0x80) {
+            dst.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+
+    private static boolean contains(byte[][] names, byte[] name) {
+        for (byte[] candidate : names) {
+            if (Arrays.equals(candidate, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[][] names(String... names) {
+        byte[][] bytes = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            bytes[i] = names[i].getBytes(StandardCharsets.US_ASCII);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,902 @@
+package org.crazyproxy.http2;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.crazyproxy.buffer.BufferPool;
+import org.crazyproxy.buffer.PooledBuffer;
+import org.crazyproxy.config.SocketInfo;
+import org.crazyproxy.handler.NioHandler;
+import org.crazyproxy.nio.SelectorThread;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ALPN으로 h2가 잡힌 업스트림 TLS 커넥션 하나. 요청 여러 개가 스트림으로 나눠 쓴다.
+ * 커넥션을 연 ClientWorker의 리액터가 맡고, 그 리액터의 워커들만 스트림을 연다. 그래서 락이 없다.
+ * 키의 attachment가 이 객체다. 소켓 이벤트는 여기서 프레임으로 풀고 스트림 id로 Http2Stream에 나눠준다.
+ *
+ * 보내기: HEADERS는 스트림을 열 때 바로 frameOut에 쓴다 (HPACK 상태 순서 때문).
+ * DATA는 스트림들을 돌아가며 보내기 창(스트림, 커넥션)과 MAX_FRAME_SIZE 만큼씩 잘라서 쓴다.
+ * frameOut에 쌓인 평문은 flush에서 TLS 레코드로 싸서 한 번에 내보낸다. 같은 루프에서 여러 번 flush를 부탁해도 한 번만 돈다.
+ *
+ * 받기 창: 스트림은 writeHighWaterMark, 커넥션은 그 × 동시 스트림 수. 클라가 느린 스트림은 창을 안 돌려받아서 서버가 그 스트림만 멈춘다.
+ *
+ * 끝: 서버가 GOAWAY를 보내거나 maxLifetime이 지나면 새 스트림을 받지 않고, 남은 스트림이 끝나면 닫는다.
+ * 스트림이 하나도 없이 maxIdleTime이 지나도 닫는다.
+ */
+@Slf4j
+public final class Http2Connection implements NioHandler {
+
+    private static final int FRAME_IN_SIZE = 64 * 1024;
+    private static final int FRAME_OUT_SIZE = 16 * 1024;
+    // frameOut에 이만큼 쌓이면 DATA를 더 만들지 않고 먼저 내보낸다
+    private static final int FRAME_OUT_TARGET = 64 * 1024;
+    private static final int MAX_HEADER_LIST_SIZE = 64 * 1024;
+
+    private final Http2ConnectionPool pool;
+    @Getter
+    private final SelectorThread reactor;
+    @Getter
+    private final SocketInfo socketInfo;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final SSLEngine sslEngine;
+    private final long createdAt = System.currentTimeMillis();
+
+    // peerNetData, frameIn, frameOut은 쓰기 모드, netOut은 읽기 모드로 들고 다닌다
+    private PooledBuffer peerNetData;
+    private PooledBuffer netOut;
+    private PooledBuffer frameIn;
+    private PooledBuffer frameOut;
+
+    private final HpackEncoder encoder = new HpackEncoder();
+    private final HpackDecoder decoder = new HpackDecoder(HeaderTable.DEFAULT_SIZE, MAX_HEADER_LIST_SIZE);
+    private final Map<Integer, Http2Stream> streams = new HashMap<>();
+    // DATA를 보낼 게 있는 스트림들. 하나씩 꺼내 한 프레임 쓰고 남았으면 뒤에 다시 넣는다
+    private final ArrayDeque<Http2Stream> sendQueue = new ArrayDeque<>();
+
+    @Getter
+    private final int streamWindow;
+    private final int connectionWindow;
+    private int connectionUnacknowledged;
+    // 커넥션 보내기 창
+    private int sendWindow = Http2Frame.DEFAULT_WINDOW_SIZE;
+    private int peerInitialWindowSize = Http2Frame.DEFAULT_WINDOW_SIZE;
+    private int peerMaxFrameSize = Http2Frame.DEFAULT_MAX_FRAME_SIZE;
+    private int peerMaxConcurrentStreams = Integer.MAX_VALUE;
+    private int nextStreamId = 1;
+
+    // CONTINUATION으로 이어지는 헤더 블록
+    private ByteBuffer headerBlock;
+    private int headerBlockStreamId;
+    private boolean headerBlockEndStream;
+
+    private boolean draining;
+    private boolean closed;
+    private boolean flushScheduled;
+    // handle/start 안에서 닫혔으면 버퍼 반납을 빠져나갈 때로 미룬다. 프레임을 읽는 중에 버퍼가 풀로 돌아가면 안 된다
+    private boolean dispatching;
+    private long idleSince;
+
+    Http2Connection(Http2ConnectionPool pool, SelectorThread reactor, SocketInfo socketInfo, SocketChannel channel,
+                    SelectionKey key, SSLEngine sslEngine, PooledBuffer peerNetData) {
+        this.pool = pool;
+        this.reactor = reactor;
+        this.socketInfo = socketInfo;
+        this.channel = channel;
+        this.key = key;
+        this.sslEngine = sslEngine;
+        this.peerNetData = peerNetData;
+        this.streamWindow = pool.getStreamWindow();
+        this.connectionWindow = (int) Math.min((long) streamWindow * pool.getMaxConcurrentStreams(), Http2Frame.MAX_WINDOW_SIZE);
+
+        BufferPool bufferPool = BufferPool.getInstance();
+        this.netOut = bufferPool.acquire(sslEngine.getSession().getPacketBufferSize() * 4);
+        this.netOut.getBuffer().flip();
+        this.frameIn = bufferPool.acquire(FRAME_IN_SIZE);
+        this.frameOut = bufferPool.acquire(FRAME_OUT_SIZE);
+    }
+
+    /**
+     * 프리페이스와 SETTINGS를 보내고 키를 넘겨받는다. 핸드셰이크 뒤에 peerNetData에 남은 바이트도 여기서 푼다.
+     */
+    void start() {
+        key.attach(this);
+        runGuarded(() -> {
+            ensureFrameOut(Http2Frame.PREFACE.length + Http2Frame.HEADER_LENGTH * 2 + 6 * 3 + 4);
+            ByteBuffer out = frameOut.getBuffer();
+            out.put(Http2Frame.PREFACE);
+            Http2Frame.writeHeader(out, 6 * 3, Http2Frame.SETTINGS, 0, 0);
+            out.putShort((short) Http2Frame.SETTINGS_ENABLE_PUSH).putInt(0);
+            out.putShort((short) Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE).putInt(streamWindow);
+            out.putShort((short) Http2Frame.SETTINGS_MAX_HEADER_LIST_SIZE).putInt(MAX_HEADER_LIST_SIZE);
+            if (connectionWindow > Http2Frame.DEFAULT_WINDOW_SIZE) {
+                Http2Frame.writeHeader(out, 4, Http2Frame.WINDOW_UPDATE, 0, 0);
+                out.putInt(connectionWindow - Http2Frame.DEFAULT_WINDOW_SIZE);
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            unwrap();
+            flush();
+        });
+    }
+
+    /**
+     * 새 스트림을 더 열 수 있나. maxLifetime이 지났으면 여기서 drain으로 돌린다.
+     */
+    public boolean hasCapacity() {
+        if (closed || draining) {
+            return false;
+        }
+        if (System.currentTimeMillis() - createdAt > pool.getMaxLifetime()) {
+            // 풀이 커넥션 목록을 도는 중일 수 있으니 닫는 건 다음 루프로 미룬다
+            log.debug("h2 connection reached max lifetime. drain. target = {}", socketInfo);
+            draining = true;
+            reactor.execute(() -> runGuarded(this::onStreamsChanged));
+            return false;
+        }
+        return nextStreamId > 0 && streams.size() < Math.min(peerMaxConcurrentStreams, pool.getMaxConcurrentStreams());
+    }
+
+    /**
+     * 새 스트림을 받지 않고, 남은 스트림이 끝나면 닫는다. 리액터 스레드에서만.
+     */
+    void drain() {
+        draining = true;
+        runGuarded(this::onStreamsChanged);
+    }
+
+    /**
+     * 닫혔거나 drain 중. 풀 목록에서 빼도 된다
+     */
+    boolean isRetired() {
+        return closed || draining;
+    }
+
+    /**
+     * 스트림을 열고 요청 헤더를 바로 쓴다. hasCapacity()를 먼저 봐야 한다.
+     * @param endStream 바디 없는 요청이면 true. HEADERS에 END_STREAM이 붙는다
+     */
+    public Http2Stream newStream(Http2Request request, boolean endStream, boolean headRequest, Http2Stream.Listener listener) {
+        Http2Stream stream = new Http2Stream(this, nextStreamId, listener, headRequest, request.isHttp10(),
+                peerInitialWindowSize, streamWindow);
+        nextStreamId += 2;
+        streams.put(stream.getId(), stream);
+        pool.onStreamOpened();
+        writeHeaders(stream.getId(), request, endStream);
+        stream.localClosed = endStream;
+        requestFlush();
+        return stream;
+    }
+
+    @Override
+    public void handle(SelectionKey key) {
+        runGuarded(() -> {
+            if (key.isWritable()) {
+                flush();
+            }
+            if (!closed && key.isReadable()) {
+                read();
+            }
+        });
+    }
+
+    @Override
+    public void onClose() {
+        shutdown();
+    }
+
+    private interface Task {
+        void run() throws IOException;
+    }
+
+    /**
+     * 커넥션에 들어오는 입구(소켓 이벤트, flush, 타이머)는 전부 여기로 감싼다.
+     * 에러는 여기서 커넥션을 닫는 걸로 끝내고, 도는 중에 닫혔으면 버퍼 반납은 빠져나갈 때 한다.
+     */
+    private void runGuarded(Task task) {
+        if (closed) {
+            return;
+        }
+        boolean nested = dispatching;
+        dispatching = true;
+        try {
+            task.run();
+        } catch (Http2Exception e) {
+            log.warn("h2 protocol error. target = {}, {}", socketInfo, e.getMessage());
+            goAway(e.getErrorCode());
+        } catch (IOException | RuntimeException e) {
+            log.debug("h2 connection fail. target = {}", socketInfo, e);
+            shutdown();
+        } finally {
+            if (!nested) {
+                dispatching = false;
+                if (closed) {
+                    releaseBuffers();
+                }
+            }
+        }
+    }
+
+    private void read() throws IOException {
+        int readBytes = channel.read(peerNetData.getBuffer());
+        if (readBytes < 0) {
+            log.debug("h2 connection closed by server. target = {}", socketInfo);
+            shutdown();
+            return;
+        }
+        if (readBytes > 0) {
+            unwrap();
+            flush();
+        }
+    }
+
+    /**
+     * 읽은 TLS 레코드를 frameIn으로 풀고, 다 온 프레임을 처리한다.
+     */
+    private void unwrap() throws IOException {
+        ByteBuffer peerNet = peerNetData.getBuffer();
+        peerNet.flip();
+        try {
+            while (peerNet.hasRemaining() && !closed) {
+                SSLEngineResult result = sslEngine.unwrap(peerNet, frameIn.getBuffer());
+                if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    // 핸드셰이크 뒤 메시지(세션 티켓, 키 업데이트). 가벼우니 여기서 돌린다
+                    Runnable task;
+                    while ((task = sslEngine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                }
+                switch (result.getStatus()) {
+                    case OK:
+                        processFrames();
+                        break;
+                    case BUFFER_OVERFLOW:
+                        // 다 못 푼 프레임이 frameIn을 차지하고 있다. 프레임 크기 제한이 있으니 생기면 안 된다
+                        throw new Http2Exception(Http2Frame.INTERNAL_ERROR, "frame buffer overflow");
+                    case BUFFER_UNDERFLOW:
+                        if (peerNet.limit() == peerNet.capacity() && peerNet.position() == 0) {
+                            peerNet.position(peerNet.limit());
+                            peerNetData = BufferPool.getInstance().grow(peerNetData, sslEngine.getSession().getPacketBufferSize());
+                            peerNet = peerNetData.getBuffer();
+                            peerNet.flip();
+                        }
+                        return;
+                    case CLOSED:
+                        log.debug("h2 connection TLS closed by server. target = {}", socketInfo);
+                        shutdown();
+                        return;
+                }
+            }
+        } finally {
+            if (!closed) {
+                peerNet.compact();
+            }
+        }
+    }
+
+    /**
+     * TLS를 거치지 않고 평문 프레임 바이트를 받은 것처럼 처리한다. 프레임 검증 테스트용.
+     * 커넥션 에러는 runGuarded를 거치지 않고 그대로 던진다.
+     */
+    void receive(ByteBuffer frames) throws IOException {
+        frameIn.getBuffer().put(frames);
+        processFrames();
+    }
+
+    private void processFrames() throws IOException {
+        ByteBuffer in = frameIn.getBuffer();
+        in.flip();
+        try {
+            while (in.remaining() >= Http2Frame.HEADER_LENGTH && !closed) {
+                int start = in.position();
+                int length = (in.get(start) & 0xff) << 16 | (in.get(start + 1) & 0xff) << 8 | (in.get(start + 2) & 0xff);
+                if (length > Http2Frame.DEFAULT_MAX_FRAME_SIZE) {
+                    throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "frame too large: " + length);
+                }
+                if (in.remaining() < Http2Frame.HEADER_LENGTH + length) {
+                    break;
+                }
+                int type = in.get(start + 3) & 0xff;
+                int flags = in.get(start + 4) & 0xff;
+                int streamId = in.getInt(start + 5) & Integer.MAX_VALUE;
+                int payloadStart = start + Http2Frame.HEADER_LENGTH;
+                ByteBuffer payload = in.duplicate();
+                payload.limit(payloadStart + length).position(payloadStart);
+                in.position(payloadStart + length);
+                onFrame(type, flags, streamId, payload.slice());
+            }
+        } finally {
+            if (!closed) {
+                in.compact();
+            }
+        }
+    }
+
+    private void onFrame(int type, int flags, int streamId, ByteBuffer payload) throws IOException {
+        if (headerBlock != null && (type != Http2Frame.CONTINUATION || streamId != headerBlockStreamId)) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "expected CONTINUATION");
+        }
+        switch (type) {
+            case Http2Frame.DATA:
+                onData(flags, streamId, payload);
+                break;
+            case Http2Frame.HEADERS:
+                onHeaders(flags, streamId, payload);
+                break;
+            case Http2Frame.CONTINUATION:
+                onContinuation(flags, streamId, payload);
+                break;
+            case Http2Frame.RST_STREAM:
+                onRstStream(streamId, payload);
+                break;
+            case Http2Frame.SETTINGS:
+                onSettings(flags, streamId, payload);
+                break;
+            case Http2Frame.PING:
+                onPing(flags, streamId, payload);
+                break;
+            case Http2Frame.GOAWAY:
+                onGoAway(streamId, payload);
+                break;
+            case Http2Frame.WINDOW_UPDATE:
+                onWindowUpdate(streamId, payload);
+                break;
+            case Http2Frame.PUSH_PROMISE:
+                throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "push disabled");
+            default:
+                // PRIORITY와 모르는 프레임은 무시한다
+                break;
+        }
+    }
+
+    private void onData(int flags, int streamId, ByteBuffer payload) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        int flowControlled = payload.remaining();
+        ByteBuffer data = removePadding(flags, payload);
+
+        // 커넥션 창은 스트림이 이미 닫혔어도 돌려준다
+        connectionUnacknowledged += flowControlled;
+        if (connectionUnacknowledged >= connectionWindow / 2) {
+            writeWindowUpdate(0, connectionUnacknowledged);
+            connectionUnacknowledged = 0;
+        }
+
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null) {
+            checkClosedStream(streamId);
+            return;
+        }
+        if (stream.remoteClosed) {
+            resetStream(stream, Http2Frame.STREAM_CLOSED);
+            return;
+        }
+        stream.receiveWindow -= flowControlled;
+        if (stream.receiveWindow < 0) {
+            resetStream(stream, Http2Frame.FLOW_CONTROL_ERROR);
+            return;
+        }
+        boolean endStream = (flags & Http2Frame.FLAG_END_STREAM) != 0;
+        if (!stream.onData(data, flowControlled, endStream, reactor.getReadBuffer())) {
+            resetStream(stream, Http2Frame.PROTOCOL_ERROR);
+        }
+    }
+
+    private void onHeaders(int flags, int streamId, ByteBuffer payload) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "HEADERS on stream 0");
+        }
+        ByteBuffer block = removePadding(flags, payload);
+        if ((flags & Http2Frame.FLAG_PRIORITY) != 0) {
+            if (block.remaining() < 5) {
+                throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "short HEADERS");
+            }
+            block.position(block.position() + 5);
+        }
+        boolean endStream = (flags & Http2Frame.FLAG_END_STREAM) != 0;
+        if ((flags & Http2Frame.FLAG_END_HEADERS) != 0) {
+            onHeaderBlock(streamId, block, endStream);
+            return;
+        }
+        headerBlock = ByteBuffer.allocate(Math.max(block.remaining() * 2, 1024)).put(block);
+        headerBlockStreamId = streamId;
+        headerBlockEndStream = endStream;
+    }
+
+    private void onContinuation(int flags, int streamId, ByteBuffer payload) throws IOException {
+        if (headerBlock == null) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "unexpected CONTINUATION");
+        }
+        if (headerBlock.remaining() < payload.remaining()) {
+            if (headerBlock.position() + payload.remaining() > MAX_HEADER_LIST_SIZE * 2) {
+                throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "header block too large");
+            }
+            ByteBuffer bigger = ByteBuffer.allocate((headerBlock.position() + payload.remaining()) * 2);
+            headerBlock.flip();
+            headerBlock = bigger.put(headerBlock);
+        }
+        headerBlock.put(payload);
+        if ((flags & Http2Frame.FLAG_END_HEADERS) != 0) {
+            ByteBuffer block = headerBlock.flip();
+            headerBlock = null;
+            onHeaderBlock(headerBlockStreamId, block, headerBlockEndStream);
+        }
+    }
+
+    /**
+     * 헤더 블록은 받을 스트림이 없어도 끝까지 풀어야 HPACK 테이블이 서버와 맞는다.
+     */
+    private void onHeaderBlock(int streamId, ByteBuffer block, boolean endStream) throws IOException {
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null) {
+            checkClosedStream(streamId);
+            decoder.decode(block, (name, value) -> {
+            });
+            return;
+        }
+        decoder.decode(block, stream::onHeader);
+        if (stream.remoteClosed) {
+            resetStream(stream, Http2Frame.STREAM_CLOSED);
+            return;
+        }
+        if (!stream.onHeadersEnd(endStream)) {
+            log.warn("malformed h2 response headers. target = {}, stream = {}", socketInfo, streamId);
+            resetStream(stream, Http2Frame.PROTOCOL_ERROR);
+        }
+    }
+
+    private void onRstStream(int streamId, ByteBuffer payload) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "RST_STREAM on stream 0");
+        }
+        if (payload.remaining() != 4) {
+            throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "bad RST_STREAM length");
+        }
+        int errorCode = payload.getInt();
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null) {
+            checkClosedStream(streamId);
+            return;
+        }
+        log.debug("h2 stream reset by server. target = {}, stream = {}, error = {}", socketInfo, streamId, errorCode);
+        detach(stream);
+        stream.fail(errorCode == Http2Frame.REFUSED_STREAM && !stream.isResponseStarted());
+    }
+
+    private void onSettings(int flags, int streamId, ByteBuffer payload) throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "SETTINGS on a stream");
+        }
+        if ((flags & Http2Frame.FLAG_ACK) != 0) {
+            if (payload.hasRemaining()) {
+                throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "SETTINGS ACK with payload");
+            }
+            return;
+        }
+        if (payload.remaining() % 6 != 0) {
+            throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "bad SETTINGS length");
+        }
+        while (payload.hasRemaining()) {
+            int id = payload.getShort() & 0xffff;
+            int value = payload.getInt();
+            switch (id) {
+                case Http2Frame.SETTINGS_HEADER_TABLE_SIZE:
+                    encoder.setMaxTableSize(value);
+                    break;
+                case Http2Frame.SETTINGS_MAX_CONCURRENT_STREAMS:
+                    peerMaxConcurrentStreams = value < 0 ? Integer.MAX_VALUE : value;
+                    break;
+                case Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) {
+                        throw new Http2Exception(Http2Frame.FLOW_CONTROL_ERROR, "initial window too large");
+                    }
+                    applyInitialWindowSize(value);
+                    break;
+                case Http2Frame.SETTINGS_MAX_FRAME_SIZE:
+                    if (value < Http2Frame.DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) {
+                        throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "bad max frame size " + value);
+                    }
+                    peerMaxFrameSize = value;
+                    break;
+                default:
+                    break;
+            }
+        }
+        ensureFrameOut(Http2Frame.HEADER_LENGTH);
+        Http2Frame.writeHeader(frameOut.getBuffer(), 0, Http2Frame.SETTINGS, Http2Frame.FLAG_ACK, 0);
+    }
+
+    /**
+     * INITIAL_WINDOW_SIZE가 바뀌면 열린 스트림들의 보내기 창도 그 차이만큼 바뀐다 (RFC 9113 6.9.2).
+     */
+    private void applyInitialWindowSize(int value) throws Http2Exception {
+        int delta = value - peerInitialWindowSize;
+        peerInitialWindowSize = value;
+        for (Http2Stream stream : streams.values()) {
+            long window = (long) stream.sendWindow + delta;
+            if (window > Http2Frame.MAX_WINDOW_SIZE) {
+                throw new Http2Exception(Http2Frame.FLOW_CONTROL_ERROR, "stream window overflow");
+            }
+            stream.sendWindow = (int) window;
+            if (delta > 0 && stream.body != null && !stream.queued) {
+                stream.queued = true;
+                sendQueue.add(stream);
+            }
+        }
+    }
+
+    private void onPing(int flags, int streamId, ByteBuffer payload) throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "PING on a stream");
+        }
+        if (payload.remaining() != 8) {
+            throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "bad PING length");
+        }
+        if ((flags & Http2Frame.FLAG_ACK) != 0) {
+            return;
+        }
+        ensureFrameOut(Http2Frame.HEADER_LENGTH + 8);
+        ByteBuffer out = frameOut.getBuffer();
+        Http2Frame.writeHeader(out, 8, Http2Frame.PING, Http2Frame.FLAG_ACK, 0);
+        out.put(payload);
+    }
+
+    /**
+     * 서버가 커넥션을 닫는다. lastStreamId 뒤의 스트림은 처리되지 않았으니 다른 커넥션으로 다시 보내도 된다.
+     */
+    private void onGoAway(int streamId, ByteBuffer payload) throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "GOAWAY on a stream");
+        }
+        if (payload.remaining() < 8) {
+            throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "bad GOAWAY length");
+        }
+        int lastStreamId = payload.getInt() & Integer.MAX_VALUE;
+        int errorCode = payload.getInt();
+        log.debug("h2 GOAWAY from server. target = {}, lastStreamId = {}, error = {}", socketInfo, lastStreamId, errorCode);
+        draining = true;
+        List<Http2Stream> refused = new ArrayList<>();
+        for (Http2Stream stream : streams.values()) {
+            if (stream.getId() > lastStreamId) {
+                refused.add(stream);
+            }
+        }
+        for (Http2Stream stream : refused) {
+            detach(stream);
+            stream.fail(true);
+        }
+        onStreamsChanged();
+    }
+
+    private void onWindowUpdate(int streamId, ByteBuffer payload) throws IOException {
+        if (payload.remaining() != 4) {
+            throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "bad WINDOW_UPDATE length");
+        }
+        int increment = payload.getInt() & Integer.MAX_VALUE;
+        if (streamId == 0) {
+            if (increment == 0) {
+                throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "zero window increment");
+            }
+            if ((long) sendWindow + increment > Http2Frame.MAX_WINDOW_SIZE) {
+                throw new Http2Exception(Http2Frame.FLOW_CONTROL_ERROR, "connection window overflow");
+            }
+            sendWindow += increment;
+            return;
+        }
+        Http2Stream stream = streams.get(streamId);
+        if (stream == null) {
+            return;
+        }
+        if (increment == 0 || (long) stream.sendWindow + increment > Http2Frame.MAX_WINDOW_SIZE) {
+            resetStream(stream, increment == 0 ? Http2Frame.PROTOCOL_ERROR : Http2Frame.FLOW_CONTROL_ERROR);
+            return;
+        }
+        stream.sendWindow += increment;
+        if (stream.body != null && !stream.queued) {
+            stream.queued = true;
+            sendQueue.add(stream);
+        }
+    }
+
+    /**
+     * 우리가 연 적 없는 스트림(짝수 = 서버 푸시, 아직 안 쓴 번호)에 온 프레임은 커넥션 에러다.
+     * 이미 닫은 스트림이면 닫기 전에 서버가 보낸 것이니 버린다.
+     */
+    private void checkClosedStream(int streamId) throws Http2Exception {
+        if ((streamId & 1) == 0 || streamId >= nextStreamId) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "frame on idle stream " + streamId);
+        }
+    }
+
+    private ByteBuffer removePadding(int flags, ByteBuffer payload) throws Http2Exception {
+        if ((flags & Http2Frame.FLAG_PADDED) == 0) {
+            return payload;
+        }
+        if (!payload.hasRemaining()) {
+            throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "missing pad length");
+        }
+        int padLength = payload.get() & 0xff;
+        if (padLength > payload.remaining()) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "padding exceeds payload");
+        }
+        payload.limit(payload.limit() - padLength);
+        return payload;
+    }
+
+    /**
+     * Http2Stream.sendBody에서 부른다.
+     */
+    void queueData(Http2Stream stream) {
+        if (!stream.queued) {
+            stream.queued = true;
+            sendQueue.add(stream);
+        }
+        requestFlush();
+    }
+
+    /**
+     * 받기 창을 돌려준다. 스트림 창이면 Http2Stream이 클라 상태를 보고 부른다.
+     */
+    void writeWindowUpdate(int streamId, int increment) {
+        if (closed) {
+            return;
+        }
+        ensureFrameOut(Http2Frame.HEADER_LENGTH + 4);
+        ByteBuffer out = frameOut.getBuffer();
+        Http2Frame.writeHeader(out, 4, Http2Frame.WINDOW_UPDATE, 0, streamId);
+        out.putInt(increment);
+        requestFlush();
+    }
+
+    /**
+     * 스트림을 커넥션에서 뗀다. Http2Stream.close와 양쪽이 다 끝났을 때 불린다.
+     * @param reset 아직 안 끝난 스트림이면 true. RST_STREAM(CANCEL)을 보낸다
+     */
+    void removeStream(Http2Stream stream, boolean reset) {
+        if (!detach(stream)) {
+            return;
+        }
+        if (reset && !closed) {
+            writeRstStream(stream.getId(), Http2Frame.CANCEL);
+            requestFlush();
+        }
+        onStreamsChanged();
+    }
+
+    /**
+     * 스트림 하나만 에러로 닫는다. 커넥션은 계속 쓴다.
+     */
+    private void resetStream(Http2Stream stream, int errorCode) {
+        detach(stream);
+        writeRstStream(stream.getId(), errorCode);
+        stream.fail(false);
+        onStreamsChanged();
+    }
+
+    private boolean detach(Http2Stream stream) {
+        if (streams.remove(stream.getId()) == null) {
+            return false;
+        }
+        pool.onStreamClosed();
+        return true;
+    }
+
+    private void writeRstStream(int streamId, int errorCode) {
+        ensureFrameOut(Http2Frame.HEADER_LENGTH + 4);
+        ByteBuffer out = frameOut.getBuffer();
+        Http2Frame.writeHeader(out, 4, Http2Frame.RST_STREAM, 0, streamId);
+        out.putInt(errorCode);
+    }
+
+    /**
+     * 스트림이 다 빠졌을 때. drain 중이면 닫고, 아니면 idle 타이머를 건다.
+     */
+    private void onStreamsChanged() {
+        if (closed || !streams.isEmpty()) {
+            return;
+        }
+        if (draining) {
+            goAway(Http2Frame.NO_ERROR);
+            return;
+        }
+        long idleTime = pool.getMaxIdleTime();
+        idleSince = System.currentTimeMillis();
+        long scheduledIdleSince = idleSince;
+        reactor.schedule(() -> runGuarded(() -> {
+            if (streams.isEmpty() && idleSince == scheduledIdleSince) {
+                log.debug("h2 connection idle. close. target = {}", socketInfo);
+                goAway(Http2Frame.NO_ERROR);
+            }
+        }), idleTime);
+    }
+
+    /**
+     * HEADERS(+CONTINUATION)를 쓴다. 블록이 MAX_FRAME_SIZE보다 크면 잘라서 CONTINUATION으로 잇는다.
+     */
+    private void writeHeaders(int streamId, Http2Request request, boolean endStream) {
+        ByteBuffer block = ByteBuffer.allocate(request.maxEncodedLength() + 8);
+        encoder.beginBlock(block);
+        for (int i = 0; i < request.size(); i++) {
+            encoder.encode(request.name(i), request.value(i), block);
+        }
+        block.flip();
+
+        int frames = Math.max(1, (block.remaining() + peerMaxFrameSize - 1) / peerMaxFrameSize);
+        ensureFrameOut(block.remaining() + frames * Http2Frame.HEADER_LENGTH);
+        ByteBuffer out = frameOut.getBuffer();
+        int type = Http2Frame.HEADERS;
+        int flags = endStream ? Http2Frame.FLAG_END_STREAM : 0;
+        do {
+            int length = Math.min(block.remaining(), peerMaxFrameSize);
+            boolean last = length == block.remaining();
+            Http2Frame.writeHeader(out, length, type, flags | (last ? Http2Frame.FLAG_END_HEADERS : 0), streamId);
+            int limit = block.limit();
+            block.limit(block.position() + length);
+            out.put(block);
+            block.limit(limit);
+            type = Http2Frame.CONTINUATION;
+            flags = 0;
+        } while (block.hasRemaining());
+    }
+
+    /**
+     * 보낼 스트림들을 돌아가며 DATA 프레임을 만든다. 창이 없는 스트림은 WINDOW_UPDATE가 올 때까지 큐에서 빠진다.
+     */
+    private void pumpData() {
+        while (!sendQueue.isEmpty() && sendWindow > 0 && frameOut.getBuffer().position() < FRAME_OUT_TARGET && !closed) {
+            Http2Stream stream = sendQueue.poll();
+            stream.queued = false;
+            ByteBuffer body = stream.body;
+            if (stream.isClosed() || body == null) {
+                continue;
+            }
+            int length = Math.min(Math.min(body.remaining(), peerMaxFrameSize), Math.min(stream.sendWindow, sendWindow));
+            if (length <= 0 && body.hasRemaining()) {
+                continue;
+            }
+            boolean endStream = stream.bodyLast && length == body.remaining();
+            ensureFrameOut(Http2Frame.HEADER_LENGTH + length);
+            ByteBuffer out = frameOut.getBuffer();
+            Http2Frame.writeHeader(out, length, Http2Frame.DATA, endStream ? Http2Frame.FLAG_END_STREAM : 0, stream.getId());
+            int limit = body.limit();
+            body.limit(body.position() + length);
+            out.put(body);
+            body.limit(limit);
+            stream.sendWindow -= length;
+            sendWindow -= length;
+
+            if (body.hasRemaining()) {
+                stream.queued = true;
+                sendQueue.add(stream);
+                continue;
+            }
+            stream.onBodyWritten(endStream);
+        }
+    }
+
+    private void requestFlush() {
+        if (flushScheduled || closed) {
+            return;
+        }
+        flushScheduled = true;
+        reactor.execute(() -> {
+            flushScheduled = false;
+            runGuarded(this::flush);
+        });
+    }
+
+    /**
+     * frameOut을 TLS 레코드로 싸서 보낸다. 소켓이 다 못 받으면 OP_WRITE를 걸고 빠진다.
+     */
+    private void flush() throws IOException {
+        while (!closed) {
+            ByteBuffer net = netOut.getBuffer();
+            if (net.hasRemaining()) {
+                channel.write(net);
+                if (net.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            pumpData();
+            ByteBuffer plain = frameOut.getBuffer();
+            if (plain.position() == 0 && sslEngine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            int packetSize = sslEngine.getSession().getPacketBufferSize();
+            plain.flip();
+            net.clear();
+            try {
+                do {
+                    SSLEngineResult result = sslEngine.wrap(plain, net);
+                    if (result.getStatus() != SSLEngineResult.Status.OK) {
+                        throw new SSLException("unexpected wrap status: " + result.getStatus());
+                    }
+                } while (plain.hasRemaining() && net.remaining() >= packetSize);
+            } finally {
+                plain.compact();
+                net.flip();
+            }
+        }
+    }
+
+    private void ensureFrameOut(int bytes) {
+        if (frameOut.getBuffer().remaining() < bytes) {
+            frameOut = BufferPool.getInstance().grow(frameOut, Math.max(frameOut.capacity() * 2, frameOut.getBuffer().position() + bytes));
+        }
+    }
+
+    /**
+     * GOAWAY를 보내고 닫는다. 소켓이 다 못 받아도 기다리지 않는다.
+     */
+    private void goAway(int errorCode) {
+        if (closed) {
+            return;
+        }
+        try {
+            ensureFrameOut(Http2Frame.HEADER_LENGTH + 8);
+            ByteBuffer out = frameOut.getBuffer();
+            Http2Frame.writeHeader(out, 8, Http2Frame.GOAWAY, 0, 0);
+            out.putInt(0).putInt(errorCode);
+            flush();
+        } catch (IOException | RuntimeException e) {
+            log.debug("h2 GOAWAY write fail. target = {}", socketInfo, e);
+        }
+        shutdown();
+    }
+
+    /**
+     * 커넥션을 닫고 남은 스트림을 전부 실패시킨다.
+     * 끊기거나 I/O 에러로 닫힌 커넥션에서는 서버가 요청을 처리했는지 알 수 없다. 그래서 처리 안 됐다고 보지 않는다.
+     * 다시 보내도 되는 건 REFUSED_STREAM과 GOAWAY의 lastStreamId 뒤 스트림뿐이다 (RFC 9113 8.7).
+     */
+    private void shutdown() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        pool.remove(this);
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.debug("h2 channel close fail", e);
+        }
+        List<Http2Stream> remaining = new ArrayList<>(streams.values());
+        for (Http2Stream stream : remaining) {
+            detach(stream);
+        }
+        sendQueue.clear();
+        for (Http2Stream stream : remaining) {
+            stream.fail(false);
+        }
+        if (!dispatching) {
+            releaseBuffers();
+        }
+    }
+
+    private void releaseBuffers() {
+        BufferPool bufferPool = BufferPool.getInstance();
+        bufferPool.release(peerNetData);
+        bufferPool.release(netOut);
+        bufferPool.release(frameIn);
+        bufferPool.release(frameOut);
+        peerNetData = null;
+        netOut = null;
+        frameIn = null;
+        frameOut = null;
+    }
+}
@@ -0,0 +1,316 @@
+package org.crazyproxy.http2;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.crazyproxy.buffer.BufferPool;
+import org.crazyproxy.buffer.PooledBuffer;
+import org.crazyproxy.config.SocketInfo;
+import org.crazyproxy.nio.SelectorThread;
+
+import javax.net.ssl.SSLEngine;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HTTPS 타겟별 업스트림 HTTP/2 커넥션 풀. 리액터마다 따로 둔다.
+ * 커넥션은 그걸 연 리액터에서만 쓰므로 리액터별 맵은 그 리액터 스레드만 만진다 (락 없음).
+ *
+ * 타겟에 커넥션이 없으면 첫 요청이 ALPN(h2, http/1.1)으로 새로 연결하고, 서버가 h2를 고르면 커넥션을 여기 맡긴다.
+ * 한 번 h2로 붙은 타겟이면 연결하는 동안 온 요청은 새로 연결하지 않고 기다렸다가 같은 커넥션에 스트림으로 얹는다.
+ * 서버가 http/1.1을 고르면 그 타겟은 h2 타겟에서 빼고 기존 HTTP/1.1 경로(UpstreamConnectionPool)를 쓴다.
+ */
+@Slf4j
+public class Http2ConnectionPool {
+
+    public static final String H2 = "h2";
+    public static final String HTTP_1_1 = "http/1.1";
+
+    private static Http2ConnectionPool instance;
+
+    /**
+     * 커넥션이 생기길 기다리는 요청.
+     */
+    public interface Waiter {
+        /**
+         * 스트림을 열 수 있는 커넥션이 생겼다. 바로 newStream 해야 한다
+         */
+        void onConnectionReady(Http2Connection connection);
+
+        /**
+         * 기다리던 연결이 실패했거나 h2가 아니거나 자리가 없다. 처음부터 다시 커넥션을 찾는다
+         */
+        void onConnectionUnavailable();
+    }
+
+    private static final class Target {
+        private final List<Http2Connection> connections = new ArrayList<>();
+        private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+        // 이 타겟으로 ALPN 연결을 하고 있는 워커가 있다
+        private boolean connecting;
+    }
+
+    private final boolean enabled;
+    @Getter
+    private final int maxConcurrentStreams;
+    @Getter
+    private final int streamWindow;
+    @Getter
+    private final long maxIdleTime;
+    @Getter
+    private final long maxLifetime;
+    private final Map<SelectorThread, Map<SocketInfo, Target>> reactors = new ConcurrentHashMap<>();
+    // 서버가 ALPN으로 h2를 고른 적 있는 타겟
+    private final Set<SocketInfo> h2Targets = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    private final LongAdder streams = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+
+    private Http2ConnectionPool(boolean enabled, int maxConcurrentStreams, int streamWindow, long maxIdleTime, long maxLifetime) {
+        this.enabled = enabled;
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        this.streamWindow = Math.max(streamWindow, Http2Frame.DEFAULT_WINDOW_SIZE);
+        this.maxIdleTime = maxIdleTime;
+        this.maxLifetime = maxLifetime;
+    }
+
+    /**
+     * @param maxConcurrentStreams 커넥션 하나에 동시에 여는 스트림 수. 서버가 더 작게 알리면 그걸 따른다
+     * @param streamWindow 스트림 받기 창. 클라에게 못 쓰고 쌓아둘 수 있는 양과 맞춘다 (writeHighWaterMark)
+     */
+    public static void initInstance(boolean enabled, int maxConcurrentStreams, int streamWindow, long maxIdleTime, long maxLifetime) {
+        if (instance != null) {
+            throw new IllegalStateException("Http2ConnectionPool has already been initialized");
+        }
+        instance = new Http2ConnectionPool(enabled, maxConcurrentStreams, streamWindow, maxIdleTime, maxLifetime);
+    }
+
+    public static Http2ConnectionPool getInstance() {
+        if (instance == null) {
+            throw new IllegalStateException("Http2ConnectionPool not initialized");
+        }
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return enabled && maxConcurrentStreams > 0;
+    }
+
+    /**
+     * 스트림을 더 열 수 있는 커넥션을 꺼낸다. 리액터 스레드에서만.
+     * @return 없으면 null
+     */
+    public Http2Connection acquire(SelectorThread reactor, SocketInfo socketInfo) {
+        Target target = target(reactor, socketInfo, false);
+        if (target == null) {
+            return null;
+        }
+        Iterator<Http2Connection> iterator = target.connections.iterator();
+        while (iterator.hasNext()) {
+            Http2Connection connection = iterator.next();
+            if (connection.hasCapacity()) {
+                return connection;
+            }
+            if (connection.isRetired()) {
+                iterator.remove();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * h2 타겟으로 연결하는 중이면 기다리는 줄에 선다.
+     * @return 줄을 섰으면 true. 결과는 Waiter로 온다. false면 직접 연결해야 한다
+     */
+    public boolean await(SelectorThread reactor, SocketInfo socketInfo, Waiter waiter) {
+        if (!h2Targets.contains(socketInfo)) {
+            return false;
+        }
+        Target target = target(reactor, socketInfo, true);
+        if (!target.connecting) {
+            return false;
+        }
+        target.waiters.add(waiter);
+        return true;
+    }
+
+    public void cancelWait(SelectorThread reactor, SocketInfo socketInfo, Waiter waiter) {
+        Target target = target(reactor, socketInfo, false);
+        if (target != null) {
+            target.waiters.remove(waiter);
+        }
+    }
+
+    /**
+     * ALPN 연결을 시작했다. 끝나면 adopt나 connectFailed 중 하나를 꼭 불러야 한다.
+     */
+    public void onConnecting(SelectorThread reactor, SocketInfo socketInfo) {
+        target(reactor, socketInfo, true).connecting = true;
+    }
+
+    /**
+     * 서버가 h2를 골랐다. 핸드셰이크가 끝난 채널, 키, 엔진과 넷 버퍼를 넘겨받는다.
+     * myNetData는 비어 있어야 하고 여기서 반납한다. peerNetData(쓰기 모드)에 남은 바이트는 커넥션이 이어서 푼다.
+     * 연 워커가 스트림을 연 다음 releaseWaiters를 불러야 기다리던 요청들이 붙는다.
+     */
+    public Http2Connection adopt(SelectorThread reactor, SocketInfo socketInfo, SocketChannel channel, SelectionKey key,
+                                 SSLEngine sslEngine, PooledBuffer myNetData, PooledBuffer peerNetData) {
+        BufferPool.getInstance().release(myNetData);
+        if (h2Targets.add(socketInfo)) {
+            log.info("upstream speaks h2. target = {}", socketInfo);
+        }
+        Http2Connection connection = new Http2Connection(this, reactor, socketInfo, channel, key, sslEngine, peerNetData);
+        Target target = target(reactor, socketInfo, true);
+        target.connecting = false;
+        target.connections.add(connection);
+        connections.incrementAndGet();
+        connection.start();
+        return connection;
+    }
+
+    /**
+     * 기다리던 요청들을 새 커넥션에 붙인다. 자리가 모자라면 나머지는 다시 커넥션을 찾게 한다.
+     */
+    public void releaseWaiters(SelectorThread reactor, SocketInfo socketInfo) {
+        Target target = target(reactor, socketInfo, false);
+        if (target == null || target.waiters.isEmpty()) {
+            return;
+        }
+        List<Waiter> waiters = new ArrayList<>(target.waiters);
+        target.waiters.clear();
+        for (Waiter waiter : waiters) {
+            Http2Connection connection = acquire(reactor, socketInfo);
+            if (connection != null) {
+                waiter.onConnectionReady(connection);
+            } else {
+                waiter.onConnectionUnavailable();
+            }
+        }
+    }
+
+    /**
+     * ALPN 연결이 h2로 안 됐다.
+     * @param http11 서버가 h2를 고르지 않았다. 이 타겟은 이제 HTTP/1.1로만 보낸다
+     */
+    public void connectFailed(SelectorThread reactor, SocketInfo socketInfo, boolean http11) {
+        if (http11) {
+            fallbacks.increment();
+            if (h2Targets.remove(socketInfo)) {
+                log.info("upstream no longer speaks h2. target = {}", socketInfo);
+            }
+        }
+        Target target = target(reactor, socketInfo, false);
+        if (target == null) {
+            return;
+        }
+        target.connecting = false;
+        List<Waiter> waiters = new ArrayList<>(target.waiters);
+        target.waiters.clear();
+        for (Waiter waiter : waiters) {
+            waiter.onConnectionUnavailable();
+        }
+    }
+
+    /**
+     * 매핑에서 빠진 타겟. 리액터마다 그 리액터 스레드에서 타겟을 지우고, 커넥션은 남은 스트림이 끝나면 닫는다.
+     * 기다리던 요청은 다시 커넥션을 찾게 한다.
+     */
+    public void retire(SocketInfo socketInfo) {
+        h2Targets.remove(socketInfo);
+        for (Map.Entry<SelectorThread, Map<SocketInfo, Target>> entry : reactors.entrySet()) {
+            Map<SocketInfo, Target> targets = entry.getValue();
+            entry.getKey().execute(() -> {
+                Target target = targets.remove(socketInfo);
+                if (target == null) {
+                    return;
+                }
+                for (Http2Connection connection : new ArrayList<>(target.connections)) {
+                    connection.drain();
+                }
+                for (Waiter waiter : new ArrayList<>(target.waiters)) {
+                    waiter.onConnectionUnavailable();
+                }
+            });
+        }
+    }
+
+    /**
+     * 커넥션이 닫혔다. 커넥션마다 한 번만 불린다
+     */
+    void remove(Http2Connection connection) {
+        Map<SocketInfo, Target> targets = reactors.get(connection.getReactor());
+        Target target = targets == null ? null : targets.get(connection.getSocketInfo());
+        if (target != null) {
+            target.connections.remove(connection);
+            if (target.connections.isEmpty() && target.waiters.isEmpty() && !target.connecting) {
+                // 빈 타겟은 지운다. retire 뒤에 다시 생긴 타겟도 여기서 빠진다
+                targets.remove(connection.getSocketInfo());
+            }
+        }
+        connections.decrementAndGet();
+    }
+
+    void onStreamOpened() {
+        streams.increment();
+        activeStreams.incrementAndGet();
+    }
+
+    void onStreamClosed() {
+        activeStreams.decrementAndGet();
+    }
+
+    private Target target(SelectorThread reactor, SocketInfo socketInfo, boolean create) {
+        Map<SocketInfo, Target> targets = reactors.get(reactor);
+        if (targets == null) {
+            if (!create) {
+                return null;
+            }
+            targets = reactors.computeIfAbsent(reactor, key -> new HashMap<>());
+        }
+        Target target = targets.get(socketInfo);
+        if (target == null && create) {
+            target = new Target();
+            targets.put(socketInfo, target);
+        }
+        return target;
+    }
+
+    /**
+     * 열린 h2 커넥션 수
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * 지금 열려 있는 스트림 수
+     */
+    public int getActiveStreams() {
+        return activeStreams.get();
+    }
+
+    /**
+     * 지금까지 연 스트림 수
+     */
+    public long getStreams() {
+        return streams.sum();
+    }
+
+    /**
+     * ALPN으로 h2를 물었는데 서버가 http/1.1을 고른 횟수
+     */
+    public long getFallbacks() {
+        return fallbacks.sum();
+    }
+}
@@ -0,0 +1,19 @@
+package org.crazyproxy.http2;
+
+import lombok.Getter;
+
+import java.io.IOException;
+
+/**
+ * 커넥션 전체를 닫아야 하는 HTTP/2 에러. GOAWAY에 errorCode를 실어 보낸다.
+ */
+@Getter
+public class Http2Exception extends IOException {
+
+    private final int errorCode;
+
+    public Http2Exception(int errorCode, String message) {
+        super(message);
+        this.errorCode = errorCode;
+    }
+}
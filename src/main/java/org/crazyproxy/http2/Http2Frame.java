@@ -0,0 +1,68 @@
+package org.crazyproxy.http2;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HTTP/2 프레임 상수들과 프레임 헤더 쓰기 (RFC 9113 4.1, 6, 7).
+ * 프레임 헤더는 9바이트: length(3) type(1) flags(1) stream id(4, 첫 비트는 예약)
+ */
+public final class Http2Frame {
+
+    public static final int HEADER_LENGTH = 9;
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16_384;
+    public static final int DEFAULT_WINDOW_SIZE = 65_535;
+    public static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    // 프레임 타입
+    static final int DATA = 0x0;
+    static final int HEADERS = 0x1;
+    static final int PRIORITY = 0x2;
+    static final int RST_STREAM = 0x3;
+    static final int SETTINGS = 0x4;
+    static final int PUSH_PROMISE = 0x5;
+    static final int PING = 0x6;
+    static final int GOAWAY = 0x7;
+    static final int WINDOW_UPDATE = 0x8;
+    static final int CONTINUATION = 0x9;
+
+    // 플래그
+    static final int FLAG_END_STREAM = 0x1;
+    static final int FLAG_ACK = 0x1;
+    static final int FLAG_END_HEADERS = 0x4;
+    static final int FLAG_PADDED = 0x8;
+    static final int FLAG_PRIORITY = 0x20;
+
+    // SETTINGS 항목
+    static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    static final int SETTINGS_ENABLE_PUSH = 0x2;
+    static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    // 에러 코드
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int INTERNAL_ERROR = 0x2;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+
+    private Http2Frame() {
+    }
+
+    static void writeHeader(ByteBuffer dst, int length, int type, int flags, int streamId) {
+        dst.put((byte) (length >>> 16));
+        dst.put((byte) (length >>> 8));
+        dst.put((byte) length);
+        dst.put((byte) type);
+        dst.put((byte) flags);
+        dst.putInt(streamId & Integer.MAX_VALUE);
+    }
+}
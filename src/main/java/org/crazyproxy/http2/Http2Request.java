@@ -0,0 +1,246 @@
+package org.crazyproxy.http2;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * HttpHeaderRewriter가 만든 HTTP/1.1 요청 헤더를 HTTP/2 헤더 목록으로 옮긴다 (RFC 9113 8.2.2, 8.3.1).
+ * 요청 라인은 :method / :path로, Host는 :authority로 바뀌고 커넥션 전용 헤더(Connection, Keep-Alive, TE 등)는 뺀다.
+ * 헤더 이름은 소문자로 바꾼다. 값은 바이트 그대로 둔다.
+ *
+ * HTTP/2로 옮길 수 없는 요청은 from이 null을 준다. 그 요청은 HTTP/1.1 커넥션으로 보낸다.
+ * CONNECT, Upgrade(웹소켓 등), OPTIONS *, chunked 요청 바디(청크 포맷 그대로 흘려보내므로 DATA로 풀 수 없다)가 그렇다.
+ */
+public final class Http2Request {
+
+    private static final byte[] METHOD = bytes(":method");
+    private static final byte[] SCHEME = bytes(":scheme");
+    private static final byte[] AUTHORITY = bytes(":authority");
+    private static final byte[] PATH = bytes(":path");
+    private static final byte[] HTTPS = bytes("https");
+    private static final byte[] TRAILERS = bytes("trailers");
+    private static final byte[] CONNECT = bytes("CONNECT");
+
+    private final List<byte[]> names;
+    private final List<byte[]> values;
+    // HTTP/1.0 클라. 길이 모르는 응답을 chunked로 보낼 수 없다
+    private final boolean http10;
+
+    private Http2Request(List<byte[]> names, List<byte[]> values, boolean http10) {
+        this.names = names;
+        this.values = values;
+        this.http10 = http10;
+    }
+
+    /**
+     * @param head 읽기 모드의 요청 헤더. position/limit은 건드리지 않는다
+     * @return HTTP/2로 보낼 수 없는 요청이면 null
+     */
+    public static Http2Request from(ByteBuffer head) {
+        int index = head.position();
+        int limit = head.limit();
+
+        int lineEnd = indexOf(head, index, limit, (byte) '\n');
+        if (lineEnd < 0) {
+            return null;
+        }
+        int methodEnd = indexOf(head, index, lineEnd, (byte) ' ');
+        int targetEnd = methodEnd < 0 ? -1 : indexOf(head, methodEnd + 1, lineEnd, (byte) ' ');
+        if (targetEnd < 0) {
+            return null;
+        }
+        byte[] method = copy(head, index, methodEnd);
+        byte[] target = copy(head, methodEnd + 1, targetEnd);
+        byte[] path = originForm(target);
+        if (path == null || Arrays.equals(method, CONNECT)) {
+            return null;
+        }
+        boolean http10 = startsWith(head, targetEnd + 1, lineEnd, "HTTP/1.0");
+
+        List<byte[]> names = new ArrayList<>();
+        List<byte[]> values = new ArrayList<>();
+        names.add(METHOD);
+        values.add(method);
+        names.add(SCHEME);
+        values.add(HTTPS);
+        names.add(AUTHORITY);
+        values.add(null);
+        names.add(PATH);
+        values.add(path);
+
+        index = lineEnd + 1;
+        while (index < limit) {
+            int end = indexOf(head, index, limit, (byte) '\n');
+            if (end < 0) {
+                return null;
+            }
+            int valueEnd = end > index && head.get(end - 1) == '\r' ? end - 1 : end;
+            if (valueEnd == index) {
+                // 헤더 끝 빈 줄
+                break;
+            }
+            int colon = indexOf(head, index, valueEnd, (byte) ':');
+            if (colon <= index) {
+                return null;
+            }
+            byte[] name = lowerCase(head, index, colon);
+            int valueStart = colon + 1;
+            while (valueStart < valueEnd && isWhitespace(head.get(valueStart))) {
+                valueStart++;
+            }
+            int trimmedEnd = valueEnd;
+            while (trimmedEnd > valueStart && isWhitespace(head.get(trimmedEnd - 1))) {
+                trimmedEnd--;
+            }
+            byte[] value = copy(head, valueStart, trimmedEnd);
+            index = end + 1;
+
+            switch (new String(name, StandardCharsets.US_ASCII)) {
+                case "host":
+                    values.set(2, value);
+                    continue;
+                case "transfer-encoding":
+                case "upgrade":
+                    return null;
+                case "connection":
+                case "keep-alive":
+                case "proxy-connection":
+                    continue;
+                case "expect":
+                    // 서버가 100 Continue를 보내고 바디를 기다리지 않게 뺀다. 바디는 오는 대로 흘려보낸다
+                    continue;
+                case "te":
+                    if (!Arrays.equals(lowerCase(value), TRAILERS)) {
+                        continue;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            names.add(name);
+            values.add(value);
+        }
+        if (values.get(2) == null) {
+            return null;
+        }
+        return new Http2Request(names, values, http10);
+    }
+
+    public boolean isHttp10() {
+        return http10;
+    }
+
+    int size() {
+        return names.size();
+    }
+
+    byte[] name(int index) {
+        return names.get(index);
+    }
+
+    byte[] value(int index) {
+        return values.get(index);
+    }
+
+    /**
+     * 헤더 블록을 담을 버퍼 크기. HPACK 인코딩 결과는 이보다 크지 않다
+     */
+    int maxEncodedLength() {
+        int length = 0;
+        for (int i = 0; i < names.size(); i++) {
+            length += HpackEncoder.maxEncodedLength(names.get(i), values.get(i));
+        }
+        return length;
+    }
+
+    /**
+     * 절대 형식(http://host/path)이면 path만 남긴다. "*"는 HTTP/2로 못 보낸다.
+     */
+    private static byte[] originForm(byte[] target) {
+        if (target.length > 0 && target[0] == '/') {
+            return target;
+        }
+        int scheme = indexOf(target, "://");
+        if (scheme < 0) {
+            return null;
+        }
+        for (int i = scheme + 3; i < target.length; i++) {
+            if (target[i] == '/' || target[i] == '?') {
+                byte[] path = Arrays.copyOfRange(target, i, target.length);
+                return path[0] == '/' ? path : concat(bytes("/"), path);
+            }
+        }
+        return bytes("/");
+    }
+
+    private static int indexOf(ByteBuffer buffer, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] value, String token) {
+        outer:
+        for (int i = 0; i + token.length() <= value.length; i++) {
+            for (int j = 0; j < token.length(); j++) {
+                if (value[i + j] != token.charAt(j)) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int from, int to, String prefix) {
+        if (to - from < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buffer.get(from + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static byte[] copy(ByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        buffer.get(from, bytes);
+        return bytes;
+    }
+
+    private static byte[] lowerCase(ByteBuffer buffer, int from, int to) {
+        byte[] bytes = copy(buffer, from, to);
+        return lowerCase(bytes);
+    }
+
+    private static byte[] lowerCase(byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] >= 'A' && bytes[i] <= 'Z') {
+                bytes[i] += 'a' - 'A';
+            }
+        }
+        return bytes;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] joined = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, joined, first.length, second.length);
+        return joined;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,133 @@
+package org.crazyproxy.http2;
+
+import lombok.Getter;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 클라 쪽 HTTP/2 설정과 지표.
+ * 평문 포트로 프리페이스부터 보내는 커넥션(prior knowledge h2c)과 tlsPorts에서 ALPN으로 h2를 고른 커넥션을
+ * ClientHandler가 Http2ServerConnection으로 넘긴다.
+ */
+public class Http2Server {
+
+    public enum Preface {
+        // 프리페이스가 다 왔다
+        MATCH,
+        // 온 만큼은 프리페이스와 같다. 더 와야 안다
+        PARTIAL,
+        NONE
+    }
+
+    private static Http2Server instance;
+
+    private final boolean h2c;
+    @Getter
+    private final int maxConcurrentStreams;
+    @Getter
+    private final int streamWindow;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    private final LongAdder streams = new LongAdder();
+    private final LongAdder refusedStreams = new LongAdder();
+
+    private Http2Server(boolean h2c, int maxConcurrentStreams, int streamWindow) {
+        this.h2c = h2c;
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        this.streamWindow = Math.max(streamWindow, Http2Frame.DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * @param maxConcurrentStreams 클라 커넥션 하나에 동시에 받는 스트림 수. 0이면 클라 쪽 h2를 안 쓴다
+     * @param streamWindow 스트림 받기 창. 요청 바디를 스트림마다 이만큼까지 받아 둔다 (bufferSize)
+     */
+    public static void initInstance(boolean h2c, int maxConcurrentStreams, int streamWindow) {
+        if (instance != null) {
+            throw new IllegalStateException("Http2Server has already been initialized");
+        }
+        instance = new Http2Server(h2c, maxConcurrentStreams, streamWindow);
+    }
+
+    public static Http2Server getInstance() {
+        if (instance == null) {
+            throw new IllegalStateException("Http2Server not initialized");
+        }
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return maxConcurrentStreams > 0;
+    }
+
+    /**
+     * 평문 포트에서 프리페이스로 시작하는 커넥션을 h2로 받을지
+     */
+    public boolean isH2c() {
+        return h2c && isEnabled();
+    }
+
+    /**
+     * buffer[from, to)가 클라 프리페이스로 시작하는지 본다. buffer의 position/limit은 건드리지 않는다.
+     */
+    public static Preface matchPreface(ByteBuffer buffer, int from, int to) {
+        int length = Math.min(to - from, Http2Frame.PREFACE.length);
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(from + i) != Http2Frame.PREFACE[i]) {
+                return Preface.NONE;
+            }
+        }
+        return length == Http2Frame.PREFACE.length ? Preface.MATCH : Preface.PARTIAL;
+    }
+
+    void onConnectionOpened() {
+        connections.incrementAndGet();
+    }
+
+    void onConnectionClosed() {
+        connections.decrementAndGet();
+    }
+
+    void onStreamOpened() {
+        streams.increment();
+        activeStreams.incrementAndGet();
+    }
+
+    void onStreamClosed() {
+        activeStreams.decrementAndGet();
+    }
+
+    void onStreamRefused() {
+        refusedStreams.increment();
+    }
+
+    /**
+     * 열린 클라 h2 커넥션 수
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * 지금 처리 중인 클라 스트림 수
+     */
+    public int getActiveStreams() {
+        return activeStreams.get();
+    }
+
+    /**
+     * 지금까지 받은 클라 스트림 수
+     */
+    public long getStreams() {
+        return streams.sum();
+    }
+
+    /**
+     * 동시 스트림 수를 넘거나 커넥션을 닫는 중이라 REFUSED_STREAM으로 돌려보낸 스트림 수
+     */
+    public long getRefusedStreams() {
+        return refusedStreams.sum();
+    }
+}
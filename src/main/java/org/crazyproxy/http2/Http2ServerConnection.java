@@ -0,0 +1,903 @@
+package org.crazyproxy.http2;
+
+import lombok.extern.slf4j.Slf4j;
+import org.crazyproxy.buffer.BufferPool;
+import org.crazyproxy.buffer.PooledBuffer;
+import org.crazyproxy.handler.NioHandler;
+import org.crazyproxy.metrics.TargetMetrics;
+import org.crazyproxy.nio.OutboundQueue;
+import org.crazyproxy.nio.SelectorThread;
+import org.crazyproxy.nio.TimerWheel;
+import org.crazyproxy.ssl.TlsServerSession;
+import org.crazyproxy.timeout.TimeoutPolicy;
+import org.crazyproxy.util.SocketUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * 클라 h2 커넥션 하나. ClientHandler가 프리페이스(h2c)나 ALPN h2를 보고 키를 넘겨준다. 그 리액터 스레드에서만 돈다.
+ * 키의 attachment가 이 객체다. 소켓 바이트를 프레임으로 풀고, 새 스트림은 acceptor에게 넘겨 요청 하나처럼 처리하게 한다.
+ *
+ * 보내기: HEADERS는 응답 헤더가 오는 대로 frameOut에 쓴다 (HPACK 상태 순서 때문).
+ * DATA는 응답 바디가 있는 스트림들을 돌아가며 보내기 창(스트림, 커넥션)과 MAX_FRAME_SIZE 만큼씩 잘라서 쓴다.
+ * frameOut은 OutboundQueue로 내보낸다(TLS면 거기서 레코드로 싼다). 큐가 비어야 DATA를 더 만들어서, 느린 클라의 바디는 스트림 쪽에 밀린다.
+ *
+ * 받기 창: 스트림은 streamWindow(bufferSize), 커넥션은 그 × 동시 스트림 수. 스트림 창은 업스트림에 바디를 다 쓴 만큼만 돌려준다.
+ *
+ * 끝: 클라가 GOAWAY를 보내면 새 스트림을 받지 않고, 남은 스트림이 끝나면 닫는다.
+ * 스트림이 하나도 없이 idle 타임아웃(clientKeepAliveTimeout, portTimeouts의 idle) 넘게 놀면 GOAWAY를 보내고 닫는다. 타이머는 리액터 TimerWheel에 건다.
+ */
+@Slf4j
+public final class Http2ServerConnection implements NioHandler {
+
+    private static final int FRAME_IN_SIZE = 64 * 1024;
+    private static final int FRAME_OUT_SIZE = 16 * 1024;
+    // frameOut에 이만큼 쌓이면 DATA를 더 만들지 않고 먼저 내보낸다
+    private static final int FRAME_OUT_TARGET = 64 * 1024;
+    private static final int MAX_HEADER_LIST_SIZE = 64 * 1024;
+    private static final byte[] STATUS = ":status".getBytes(StandardCharsets.US_ASCII);
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final Http2Server server = Http2Server.getInstance();
+    private final SelectorThread reactor;
+    private final SelectionKey key;
+    private final SocketChannel channel;
+    private final TlsServerSession tls;
+    private final OutboundQueue outbound;
+    private final TargetMetrics targetMetrics;
+    private final Consumer<Http2ServerStream> acceptor;
+
+    // frameIn, frameOut은 쓰기 모드로 들고 다닌다
+    private PooledBuffer frameIn;
+    private PooledBuffer frameOut;
+
+    private final HpackEncoder encoder = new HpackEncoder();
+    private final HpackDecoder decoder = new HpackDecoder(HeaderTable.DEFAULT_SIZE, MAX_HEADER_LIST_SIZE);
+    private final Map<Integer, Http2ServerStream> streams = new HashMap<>();
+    // DATA를 보낼 게 있는 스트림들. 하나씩 꺼내 한 프레임 쓰고 남았으면 뒤에 다시 넣는다
+    private final ArrayDeque<Http2ServerStream> sendQueue = new ArrayDeque<>();
+    // 밀린 바디가 다 나가서 awaitWritable을 깨워야 할 스트림들
+    private final ArrayDeque<Http2ServerStream> writable = new ArrayDeque<>();
+
+    private final int streamWindow;
+    private final int connectionWindow;
+    private int connectionUnacknowledged;
+    // 커넥션 보내기 창
+    private int sendWindow = Http2Frame.DEFAULT_WINDOW_SIZE;
+    private int peerInitialWindowSize = Http2Frame.DEFAULT_WINDOW_SIZE;
+    private int peerMaxFrameSize = Http2Frame.DEFAULT_MAX_FRAME_SIZE;
+    // 클라가 연 마지막 스트림. GOAWAY에 싣는다
+    private int lastStreamId;
+    private boolean prefaceReceived;
+    private boolean settingsReceived;
+
+    // CONTINUATION으로 이어지는 헤더 블록
+    private ByteBuffer headerBlock;
+    private int headerBlockStreamId;
+    private boolean headerBlockEndStream;
+
+    private boolean draining;
+    private boolean closed;
+    private boolean flushScheduled;
+    // handle/start 안에서 닫혔으면 버퍼 반납을 빠져나갈 때로 미룬다. 프레임을 읽는 중에 버퍼가 풀로 돌아가면 안 된다
+    private boolean dispatching;
+    private final long idleTimeout;
+    // 스트림이 다 빠지면 걸고 새 스트림이 열리면 거둔다
+    private TimerWheel.Timeout idleTimer;
+
+    /**
+     * @param tls TLS로 받은 커넥션이면 그 세션. h2c면 null
+     * @param outbound ClientHandler가 쓰던 큐. tls로 싸서 쓴다
+     * @param acceptor 새 스트림을 받아 처리를 시작한다. 리액터 스레드에서 불린다
+     */
+    public Http2ServerConnection(SelectorThread reactor, SelectionKey key, TlsServerSession tls, OutboundQueue outbound,
+                                 TargetMetrics targetMetrics, Consumer<Http2ServerStream> acceptor) {
+        this.reactor = reactor;
+        this.key = key;
+        this.channel = (SocketChannel) key.channel();
+        this.tls = tls;
+        this.outbound = outbound;
+        this.targetMetrics = targetMetrics;
+        this.acceptor = acceptor;
+        this.streamWindow = server.getStreamWindow();
+        this.connectionWindow = (int) Math.min((long) streamWindow * server.getMaxConcurrentStreams(), Http2Frame.MAX_WINDOW_SIZE);
+        this.frameOut = BufferPool.getInstance().acquire(FRAME_OUT_SIZE);
+        this.idleTimeout = TimeoutPolicy.getInstance().forPort(targetMetrics.getPort()).getIdle();
+    }
+
+    /**
+     * 키를 넘겨받고 SETTINGS를 보낸다. ClientHandler가 이미 읽은 바이트(프리페이스부터)는 여기서 푼다.
+     * @param leftover 이미 읽은 바이트 (읽기 모드). 없으면 null
+     */
+    public void start(ByteBuffer leftover) {
+        key.attach(this);
+        server.onConnectionOpened();
+        armIdleTimer();
+        frameIn = BufferPool.getInstance().acquire(Math.max(FRAME_IN_SIZE, leftover == null ? 0 : leftover.remaining()));
+        if (leftover != null) {
+            frameIn.getBuffer().put(leftover);
+        }
+        runGuarded(() -> {
+            ensureFrameOut(Http2Frame.HEADER_LENGTH * 2 + 6 * 3 + 4);
+            ByteBuffer out = frameOut.getBuffer();
+            Http2Frame.writeHeader(out, 6 * 3, Http2Frame.SETTINGS, 0, 0);
+            out.putShort((short) Http2Frame.SETTINGS_MAX_CONCURRENT_STREAMS).putInt(server.getMaxConcurrentStreams());
+            out.putShort((short) Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE).putInt(streamWindow);
+            out.putShort((short) Http2Frame.SETTINGS_MAX_HEADER_LIST_SIZE).putInt(MAX_HEADER_LIST_SIZE);
+            if (connectionWindow > Http2Frame.DEFAULT_WINDOW_SIZE) {
+                Http2Frame.writeHeader(out, 4, Http2Frame.WINDOW_UPDATE, 0, 0);
+                out.putInt(connectionWindow - Http2Frame.DEFAULT_WINDOW_SIZE);
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            processFrames();
+            if (tls != null && tls.hasBufferedInput()) {
+                read();
+            }
+            flush();
+        });
+    }
+
+    @Override
+    public void handle(SelectionKey key) {
+        runGuarded(() -> {
+            if (key.isWritable()) {
+                flush();
+            }
+            if (!closed && key.isReadable()) {
+                read();
+            }
+        });
+    }
+
+    private void armIdleTimer() {
+        if (idleTimeout > 0) {
+            idleTimer = reactor.schedule(this::onIdleTimeout, idleTimeout);
+        }
+    }
+
+    private void cancelIdleTimer() {
+        if (idleTimer != null) {
+            idleTimer.cancel();
+            idleTimer = null;
+        }
+    }
+
+    /**
+     * 스트림 없이 idle 타임아웃을 넘겼다. 스트림이 열려 있으면 타이머가 거둬져 있다.
+     */
+    private void onIdleTimeout() {
+        idleTimer = null;
+        if (closed || !streams.isEmpty()) {
+            return;
+        }
+        TimeoutPolicy.getInstance().recordExpired(TimeoutPolicy.Kind.IDLE);
+        log.debug("h2 client connection idle. close");
+        goAway(Http2Frame.NO_ERROR);
+    }
+
+    @Override
+    public void onClose() {
+        goAway(Http2Frame.NO_ERROR);
+    }
+
+    private interface Task {
+        void run() throws IOException;
+    }
+
+    /**
+     * 커넥션에 들어오는 입구(소켓 이벤트, flush)는 전부 여기로 감싼다.
+     * 에러는 여기서 커넥션을 닫는 걸로 끝내고, 도는 중에 닫혔으면 버퍼 반납은 빠져나갈 때 한다.
+     */
+    private void runGuarded(Task task) {
+        if (closed) {
+            return;
+        }
+        boolean nested = dispatching;
+        dispatching = true;
+        try {
+            task.run();
+        } catch (Http2Exception e) {
+            log.debug("client h2 protocol error. {}", e.getMessage());
+            goAway(e.getErrorCode());
+        } catch (IOException | RuntimeException e) {
+            log.debug("client h2 connection fail.", e);
+            shutdown();
+        } finally {
+            if (!nested) {
+                dispatching = false;
+                if (closed) {
+                    releaseBuffers();
+                }
+            }
+        }
+    }
+
+    /**
+     * 소켓에서 읽고 다 온 프레임을 처리한다. TLS 세션이 레코드를 더 들고 있으면 이벤트가 안 오니 여기서 마저 읽는다.
+     */
+    private void read() throws IOException {
+        while (!closed) {
+            int readBytes = tls == null ? channel.read(frameIn.getBuffer()) : tls.read(frameIn.getBuffer(), reactor.getAppBuffer());
+            if (readBytes < 0) {
+                log.debug("client h2 connection closed by client");
+                shutdown();
+                return;
+            }
+            if (readBytes == 0) {
+                break;
+            }
+            targetMetrics.addBytesIn(readBytes);
+            processFrames();
+            if (tls == null || !tls.hasBufferedInput()) {
+                break;
+            }
+        }
+        flush();
+    }
+
+    private void processFrames() throws IOException {
+        ByteBuffer in = frameIn.getBuffer();
+        in.flip();
+        try {
+            if (!prefaceReceived) {
+                Http2Server.Preface preface = Http2Server.matchPreface(in, in.position(), in.limit());
+                if (preface == Http2Server.Preface.NONE) {
+                    throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "invalid connection preface");
+                }
+                if (preface == Http2Server.Preface.PARTIAL) {
+                    return;
+                }
+                in.position(in.position() + Http2Frame.PREFACE.length);
+                prefaceReceived = true;
+            }
+            while (in.remaining() >= Http2Frame.HEADER_LENGTH && !closed) {
+                int start = in.position();
+                int length = (in.get(start) & 0xff) << 16 | (in.get(start + 1) & 0xff) << 8 | (in.get(start + 2) & 0xff);
+                if (length > Http2Frame.DEFAULT_MAX_FRAME_SIZE) {
+                    throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "frame too large: " + length);
+                }
+                if (in.remaining() < Http2Frame.HEADER_LENGTH + length) {
+                    break;
+                }
+                int type = in.get(start + 3) & 0xff;
+                int flags = in.get(start + 4) & 0xff;
+                int streamId = in.getInt(start + 5) & Integer.MAX_VALUE;
+                int payloadStart = start + Http2Frame.HEADER_LENGTH;
+                ByteBuffer payload = in.duplicate();
+                payload.limit(payloadStart + length).position(payloadStart);
+                in.position(payloadStart + length);
+                onFrame(type, flags, streamId, payload.slice());
+            }
+        } finally {
+            if (!closed) {
+                in.compact();
+            }
+        }
+    }
+
+    private void onFrame(int type, int flags, int streamId, ByteBuffer payload) throws IOException {
+        if (!settingsReceived && type != Http2Frame.SETTINGS) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "first frame is not SETTINGS");
+        }
+        if (headerBlock != null && (type != Http2Frame.CONTINUATION || streamId != headerBlockStreamId)) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "expected CONTINUATION");
+        }
+        switch (type) {
+            case Http2Frame.DATA:
+                onData(flags, streamId, payload);
+                break;
+            case Http2Frame.HEADERS:
+                onHeaders(flags, streamId, payload);
+                break;
+            case Http2Frame.CONTINUATION:
+                onContinuation(flags, streamId, payload);
+                break;
+            case Http2Frame.RST_STREAM:
+                onRstStream(streamId, payload);
+                break;
+            case Http2Frame.SETTINGS:
+                onSettings(flags, streamId, payload);
+                break;
+            case Http2Frame.PING:
+                onPing(flags, streamId, payload);
+                break;
+            case Http2Frame.GOAWAY:
+                onGoAway(streamId, payload);
+                break;
+            case Http2Frame.WINDOW_UPDATE:
+                onWindowUpdate(streamId, payload);
+                break;
+            case Http2Frame.PUSH_PROMISE:
+                throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "PUSH_PROMISE from client");
+            default:
+                // PRIORITY와 모르는 프레임은 무시한다
+                break;
+        }
+    }
+
+    private void onData(int flags, int streamId, ByteBuffer payload) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        int flowControlled = payload.remaining();
+        ByteBuffer data = removePadding(flags, payload);
+
+        // 커넥션 창은 스트림이 이미 닫혔어도 돌려준다. 바디는 스트림 창으로 막는다
+        connectionUnacknowledged += flowControlled;
+        if (connectionUnacknowledged >= connectionWindow / 2) {
+            writeWindowUpdate(0, connectionUnacknowledged);
+            connectionUnacknowledged = 0;
+        }
+
+        Http2ServerStream stream = streams.get(streamId);
+        if (stream == null) {
+            checkClosedStream(streamId);
+            return;
+        }
+        if (stream.remoteClosed) {
+            resetStream(stream, Http2Frame.STREAM_CLOSED);
+            return;
+        }
+        stream.receiveWindow -= flowControlled;
+        if (stream.receiveWindow < 0) {
+            resetStream(stream, Http2Frame.FLOW_CONTROL_ERROR);
+            return;
+        }
+        stream.onData(data, flowControlled - data.remaining(), (flags & Http2Frame.FLAG_END_STREAM) != 0);
+    }
+
+    private void onHeaders(int flags, int streamId, ByteBuffer payload) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "HEADERS on stream 0");
+        }
+        ByteBuffer block = removePadding(flags, payload);
+        if ((flags & Http2Frame.FLAG_PRIORITY) != 0) {
+            if (block.remaining() < 5) {
+                throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "short HEADERS");
+            }
+            block.position(block.position() + 5);
+        }
+        boolean endStream = (flags & Http2Frame.FLAG_END_STREAM) != 0;
+        if ((flags & Http2Frame.FLAG_END_HEADERS) != 0) {
+            onHeaderBlock(streamId, block, endStream);
+            return;
+        }
+        headerBlock = ByteBuffer.allocate(Math.max(block.remaining() * 2, 1024)).put(block);
+        headerBlockStreamId = streamId;
+        headerBlockEndStream = endStream;
+    }
+
+    private void onContinuation(int flags, int streamId, ByteBuffer payload) throws IOException {
+        if (headerBlock == null) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "unexpected CONTINUATION");
+        }
+        if (headerBlock.remaining() < payload.remaining()) {
+            if (headerBlock.position() + payload.remaining() > MAX_HEADER_LIST_SIZE * 2) {
+                throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "header block too large");
+            }
+            ByteBuffer bigger = ByteBuffer.allocate((headerBlock.position() + payload.remaining()) * 2);
+            headerBlock.flip();
+            headerBlock = bigger.put(headerBlock);
+        }
+        headerBlock.put(payload);
+        if ((flags & Http2Frame.FLAG_END_HEADERS) != 0) {
+            ByteBuffer block = headerBlock.flip();
+            headerBlock = null;
+            onHeaderBlock(headerBlockStreamId, block, headerBlockEndStream);
+        }
+    }
+
+    /**
+     * 새 스트림의 요청 헤더, 또는 열린 스트림의 트레일러. 헤더 블록은 받을 스트림이 없어도 끝까지 풀어야 HPACK 테이블이 클라와 맞는다.
+     */
+    private void onHeaderBlock(int streamId, ByteBuffer block, boolean endStream) throws IOException {
+        Http2ServerStream stream = streams.get(streamId);
+        if (stream != null) {
+            // 트레일러는 업스트림에 안 보낸다. 요청 바디의 끝으로만 쓴다
+            decoder.decode(block, (name, value) -> {
+            });
+            if (stream.remoteClosed || !endStream) {
+                resetStream(stream, Http2Frame.PROTOCOL_ERROR);
+                return;
+            }
+            stream.onData(EMPTY, 0, true);
+            return;
+        }
+        if ((streamId & 1) == 0) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "HEADERS on even stream " + streamId);
+        }
+        if (streamId <= lastStreamId) {
+            // 이미 닫은 스트림. 닫기 전에 클라가 보낸 트레일러일 수 있으니 버린다
+            decoder.decode(block, (name, value) -> {
+            });
+            return;
+        }
+        lastStreamId = streamId;
+        if (draining || streams.size() >= server.getMaxConcurrentStreams()) {
+            decoder.decode(block, (name, value) -> {
+            });
+            server.onStreamRefused();
+            writeRstStream(streamId, Http2Frame.REFUSED_STREAM);
+            return;
+        }
+
+        Http2ServerStream newStream = new Http2ServerStream(this, streamId, peerInitialWindowSize, streamWindow);
+        decoder.decode(block, newStream::onHeader);
+        if (!newStream.onHeadersEnd(endStream)) {
+            log.debug("malformed h2 request headers. stream = {}", streamId);
+            writeRstStream(streamId, Http2Frame.PROTOCOL_ERROR);
+            newStream.cancel();
+            return;
+        }
+        streams.put(streamId, newStream);
+        cancelIdleTimer();
+        server.onStreamOpened();
+        try {
+            acceptor.accept(newStream);
+        } catch (RuntimeException e) {
+            log.error("h2 stream start fail!! reset stream. stream = {}", streamId, e);
+            if (!newStream.isClosed()) {
+                resetStream(newStream, Http2Frame.INTERNAL_ERROR);
+            }
+        }
+    }
+
+    private void onRstStream(int streamId, ByteBuffer payload) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "RST_STREAM on stream 0");
+        }
+        if (payload.remaining() != 4) {
+            throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "bad RST_STREAM length");
+        }
+        int errorCode = payload.getInt();
+        Http2ServerStream stream = streams.get(streamId);
+        if (stream == null) {
+            checkClosedStream(streamId);
+            return;
+        }
+        log.debug("h2 stream reset by client. stream = {}, error = {}", streamId, errorCode);
+        detach(stream);
+        stream.cancel();
+        onStreamsChanged();
+    }
+
+    private void onSettings(int flags, int streamId, ByteBuffer payload) throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "SETTINGS on a stream");
+        }
+        if ((flags & Http2Frame.FLAG_ACK) != 0) {
+            if (payload.hasRemaining()) {
+                throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "SETTINGS ACK with payload");
+            }
+            return;
+        }
+        if (payload.remaining() % 6 != 0) {
+            throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "bad SETTINGS length");
+        }
+        settingsReceived = true;
+        while (payload.hasRemaining()) {
+            int id = payload.getShort() & 0xffff;
+            int value = payload.getInt();
+            switch (id) {
+                case Http2Frame.SETTINGS_HEADER_TABLE_SIZE:
+                    encoder.setMaxTableSize(value);
+                    break;
+                case Http2Frame.SETTINGS_ENABLE_PUSH:
+                    if (value != 0 && value != 1) {
+                        throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "bad ENABLE_PUSH " + value);
+                    }
+                    break;
+                case Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) {
+                        throw new Http2Exception(Http2Frame.FLOW_CONTROL_ERROR, "initial window too large");
+                    }
+                    applyInitialWindowSize(value);
+                    break;
+                case Http2Frame.SETTINGS_MAX_FRAME_SIZE:
+                    if (value < Http2Frame.DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) {
+                        throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "bad max frame size " + value);
+                    }
+                    peerMaxFrameSize = value;
+                    break;
+                default:
+                    break;
+            }
+        }
+        ensureFrameOut(Http2Frame.HEADER_LENGTH);
+        Http2Frame.writeHeader(frameOut.getBuffer(), 0, Http2Frame.SETTINGS, Http2Frame.FLAG_ACK, 0);
+    }
+
+    /**
+     * INITIAL_WINDOW_SIZE가 바뀌면 열린 스트림들의 보내기 창도 그 차이만큼 바뀐다 (RFC 9113 6.9.2).
+     */
+    private void applyInitialWindowSize(int value) throws Http2Exception {
+        int delta = value - peerInitialWindowSize;
+        peerInitialWindowSize = value;
+        for (Http2ServerStream stream : streams.values()) {
+            long window = (long) stream.sendWindow + delta;
+            if (window > Http2Frame.MAX_WINDOW_SIZE) {
+                throw new Http2Exception(Http2Frame.FLOW_CONTROL_ERROR, "stream window overflow");
+            }
+            stream.sendWindow = (int) window;
+            if (delta > 0 && stream.dataRemaining() > 0 && !stream.queued) {
+                stream.queued = true;
+                sendQueue.add(stream);
+            }
+        }
+    }
+
+    private void onPing(int flags, int streamId, ByteBuffer payload) throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "PING on a stream");
+        }
+        if (payload.remaining() != 8) {
+            throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "bad PING length");
+        }
+        if ((flags & Http2Frame.FLAG_ACK) != 0) {
+            return;
+        }
+        ensureFrameOut(Http2Frame.HEADER_LENGTH + 8);
+        ByteBuffer out = frameOut.getBuffer();
+        Http2Frame.writeHeader(out, 8, Http2Frame.PING, Http2Frame.FLAG_ACK, 0);
+        out.put(payload);
+    }
+
+    /**
+     * 클라가 커넥션을 그만 쓴다. 처리 중인 스트림은 마저 응답하고 닫는다.
+     */
+    private void onGoAway(int streamId, ByteBuffer payload) throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "GOAWAY on a stream");
+        }
+        if (payload.remaining() < 8) {
+            throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "bad GOAWAY length");
+        }
+        payload.getInt();
+        int errorCode = payload.getInt();
+        log.debug("h2 GOAWAY from client. error = {}", errorCode);
+        draining = true;
+        onStreamsChanged();
+    }
+
+    private void onWindowUpdate(int streamId, ByteBuffer payload) throws IOException {
+        if (payload.remaining() != 4) {
+            throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "bad WINDOW_UPDATE length");
+        }
+        int increment = payload.getInt() & Integer.MAX_VALUE;
+        if (streamId == 0) {
+            if (increment == 0) {
+                throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "zero window increment");
+            }
+            if ((long) sendWindow + increment > Http2Frame.MAX_WINDOW_SIZE) {
+                throw new Http2Exception(Http2Frame.FLOW_CONTROL_ERROR, "connection window overflow");
+            }
+            sendWindow += increment;
+            return;
+        }
+        Http2ServerStream stream = streams.get(streamId);
+        if (stream == null) {
+            checkClosedStream(streamId);
+            return;
+        }
+        if (increment == 0 || (long) stream.sendWindow + increment > Http2Frame.MAX_WINDOW_SIZE) {
+            resetStream(stream, increment == 0 ? Http2Frame.PROTOCOL_ERROR : Http2Frame.FLOW_CONTROL_ERROR);
+            return;
+        }
+        stream.sendWindow += increment;
+        if (stream.dataRemaining() > 0 && !stream.queued) {
+            stream.queued = true;
+            sendQueue.add(stream);
+        }
+    }
+
+    /**
+     * 클라가 열 수 없는 스트림(짝수)이나 아직 안 연 번호에 온 프레임은 커넥션 에러다.
+     * 이미 닫은 스트림이면 닫기 전에 클라가 보낸 것이니 버린다.
+     */
+    private void checkClosedStream(int streamId) throws Http2Exception {
+        if ((streamId & 1) == 0 || streamId > lastStreamId) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "frame on idle stream " + streamId);
+        }
+    }
+
+    private ByteBuffer removePadding(int flags, ByteBuffer payload) throws Http2Exception {
+        if ((flags & Http2Frame.FLAG_PADDED) == 0) {
+            return payload;
+        }
+        if (!payload.hasRemaining()) {
+            throw new Http2Exception(Http2Frame.FRAME_SIZE_ERROR, "missing pad length");
+        }
+        int padLength = payload.get() & 0xff;
+        if (padLength > payload.remaining()) {
+            throw new Http2Exception(Http2Frame.PROTOCOL_ERROR, "padding exceeds payload");
+        }
+        payload.limit(payload.limit() - padLength);
+        return payload;
+    }
+
+    /**
+     * Http2ServerStream.write/finish에서 부른다. 보낼 바디나 END_STREAM이 생겼다.
+     */
+    void queueData(Http2ServerStream stream) {
+        if (!stream.queued) {
+            stream.queued = true;
+            sendQueue.add(stream);
+        }
+        requestFlush();
+    }
+
+    /**
+     * 받기 창을 돌려준다. 스트림 창이면 Http2ServerStream이 업스트림에 바디를 다 쓴 뒤 부른다.
+     */
+    void writeWindowUpdate(int streamId, int increment) {
+        if (closed) {
+            return;
+        }
+        ensureFrameOut(Http2Frame.HEADER_LENGTH + 4);
+        ByteBuffer out = frameOut.getBuffer();
+        Http2Frame.writeHeader(out, 4, Http2Frame.WINDOW_UPDATE, 0, streamId);
+        out.putInt(increment);
+        requestFlush();
+    }
+
+    /**
+     * 응답 헤더를 HEADERS(+CONTINUATION)로 쓴다. 블록이 MAX_FRAME_SIZE보다 크면 잘라서 CONTINUATION으로 잇는다.
+     * @param names 소문자 헤더 이름. 커넥션 전용 헤더는 스트림이 이미 뺐다
+     */
+    void writeHeaders(int streamId, int status, List<byte[]> names, List<byte[]> values, boolean endStream) {
+        if (closed) {
+            return;
+        }
+        byte[] statusValue = Integer.toString(status).getBytes(StandardCharsets.US_ASCII);
+        int size = HpackEncoder.maxEncodedLength(STATUS, statusValue) + 8;
+        for (int i = 0; i < names.size(); i++) {
+            size += HpackEncoder.maxEncodedLength(names.get(i), values.get(i));
+        }
+        ByteBuffer block = ByteBuffer.allocate(size);
+        encoder.beginBlock(block);
+        encoder.encode(STATUS, statusValue, block);
+        for (int i = 0; i < names.size(); i++) {
+            encoder.encode(names.get(i), values.get(i), block);
+        }
+        block.flip();
+
+        int frames = Math.max(1, (block.remaining() + peerMaxFrameSize - 1) / peerMaxFrameSize);
+        ensureFrameOut(block.remaining() + frames * Http2Frame.HEADER_LENGTH);
+        ByteBuffer out = frameOut.getBuffer();
+        int type = Http2Frame.HEADERS;
+        int flags = endStream ? Http2Frame.FLAG_END_STREAM : 0;
+        do {
+            int length = Math.min(block.remaining(), peerMaxFrameSize);
+            boolean last = length == block.remaining();
+            Http2Frame.writeHeader(out, length, type, flags | (last ? Http2Frame.FLAG_END_HEADERS : 0), streamId);
+            int limit = block.limit();
+            block.limit(block.position() + length);
+            out.put(block);
+            block.limit(limit);
+            type = Http2Frame.CONTINUATION;
+            flags = 0;
+        } while (block.hasRemaining());
+        requestFlush();
+    }
+
+    /**
+     * 스트림을 커넥션에서 뗀다. 응답을 다 보냈고 위도 교환을 끝냈을 때 불린다.
+     * @param reset 클라가 아직 요청 바디를 보내는 중이면 true. RST_STREAM(NO_ERROR)으로 그만 보내라고 한다 (RFC 9113 8.1)
+     */
+    void removeStream(Http2ServerStream stream, boolean reset) {
+        if (!detach(stream)) {
+            return;
+        }
+        if (reset && !closed) {
+            writeRstStream(stream.getId(), Http2Frame.NO_ERROR);
+            requestFlush();
+        }
+        onStreamsChanged();
+    }
+
+    /**
+     * 스트림 하나만 에러로 닫는다. 커넥션은 계속 쓴다.
+     */
+    void resetStream(Http2ServerStream stream, int errorCode) {
+        detach(stream);
+        if (!closed) {
+            writeRstStream(stream.getId(), errorCode);
+            requestFlush();
+        }
+        stream.cancel();
+        onStreamsChanged();
+    }
+
+    private boolean detach(Http2ServerStream stream) {
+        if (streams.remove(stream.getId()) == null) {
+            return false;
+        }
+        server.onStreamClosed();
+        return true;
+    }
+
+    private void writeRstStream(int streamId, int errorCode) {
+        ensureFrameOut(Http2Frame.HEADER_LENGTH + 4);
+        ByteBuffer out = frameOut.getBuffer();
+        Http2Frame.writeHeader(out, 4, Http2Frame.RST_STREAM, 0, streamId);
+        out.putInt(errorCode);
+    }
+
+    /**
+     * 스트림이 다 빠졌을 때. 클라가 GOAWAY를 보냈으면 닫고, 아니면 idle 타이머를 건다.
+     */
+    private void onStreamsChanged() {
+        if (closed || !streams.isEmpty()) {
+            return;
+        }
+        if (draining) {
+            goAway(Http2Frame.NO_ERROR);
+            return;
+        }
+        cancelIdleTimer();
+        armIdleTimer();
+    }
+
+    /**
+     * 보낼 스트림들을 돌아가며 DATA 프레임을 만든다. 창이 없는 스트림은 WINDOW_UPDATE가 올 때까지 큐에서 빠진다.
+     * 밀린 바디를 다 보낸 스트림 중 기다리는 쪽이 있으면 writable에 모아 flush 끝에 깨운다.
+     */
+    private void pumpData() {
+        while (!sendQueue.isEmpty() && frameOut.getBuffer().position() < FRAME_OUT_TARGET && !closed) {
+            Http2ServerStream stream = sendQueue.poll();
+            stream.queued = false;
+            if (stream.isClosed() || stream.localClosed) {
+                continue;
+            }
+            int remaining = stream.dataRemaining();
+            int length = Math.min(Math.min(remaining, peerMaxFrameSize), Math.min(stream.sendWindow, sendWindow));
+            if (length <= 0 && remaining > 0) {
+                // 창이 없다. 커넥션 창이면 WINDOW_UPDATE가 와서 다시 넣을 때까지 기다린다
+                if (sendWindow <= 0) {
+                    stream.queued = true;
+                    sendQueue.addFirst(stream);
+                    break;
+                }
+                continue;
+            }
+            boolean endStream = stream.bodyLast && length == remaining;
+            if (length == 0 && !endStream) {
+                continue;
+            }
+            ensureFrameOut(Http2Frame.HEADER_LENGTH + length);
+            ByteBuffer out = frameOut.getBuffer();
+            Http2Frame.writeHeader(out, length, Http2Frame.DATA, endStream ? Http2Frame.FLAG_END_STREAM : 0, stream.getId());
+            stream.takeData(out, length);
+            stream.sendWindow -= length;
+            sendWindow -= length;
+
+            if (stream.dataRemaining() > 0) {
+                stream.queued = true;
+                sendQueue.add(stream);
+                continue;
+            }
+            if (stream.isWriteWaiting() && !stream.writableQueued) {
+                stream.writableQueued = true;
+                writable.add(stream);
+            }
+            if (endStream) {
+                stream.onEndStreamSent();
+            }
+        }
+    }
+
+    private void requestFlush() {
+        if (flushScheduled || closed) {
+            return;
+        }
+        flushScheduled = true;
+        reactor.execute(() -> {
+            flushScheduled = false;
+            runGuarded(this::flush);
+        });
+    }
+
+    /**
+     * frameOut을 OutboundQueue로 내보낸다. 큐가 밀려 있으면 OP_WRITE를 걸고 빠진다.
+     * 나간 뒤에는 바디를 다 보낸 스트림들을 깨운다. 깨운 쪽이 또 쓰면 requestFlush로 다음 루프에 돈다.
+     */
+    private void flush() throws IOException {
+        while (!closed) {
+            if (!outbound.flush()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                break;
+            }
+            pumpData();
+            ByteBuffer out = frameOut.getBuffer();
+            if (out.position() == 0) {
+                key.interestOps(SelectionKey.OP_READ);
+                break;
+            }
+            out.flip();
+            try {
+                outbound.write(out);
+            } finally {
+                out.clear();
+            }
+        }
+        Http2ServerStream stream;
+        while (!closed && (stream = writable.poll()) != null) {
+            stream.writableQueued = false;
+            stream.notifyWritable();
+        }
+    }
+
+    private void ensureFrameOut(int bytes) {
+        if (frameOut.getBuffer().remaining() < bytes) {
+            frameOut = BufferPool.getInstance().grow(frameOut, Math.max(frameOut.capacity() * 2, frameOut.getBuffer().position() + bytes));
+        }
+    }
+
+    /**
+     * GOAWAY를 보내고 닫는다. 소켓이 다 못 받아도 기다리지 않는다.
+     */
+    private void goAway(int errorCode) {
+        if (closed) {
+            return;
+        }
+        try {
+            ensureFrameOut(Http2Frame.HEADER_LENGTH + 8);
+            ByteBuffer out = frameOut.getBuffer();
+            Http2Frame.writeHeader(out, 8, Http2Frame.GOAWAY, 0, 0);
+            out.putInt(lastStreamId).putInt(errorCode);
+            flush();
+        } catch (IOException | RuntimeException e) {
+            log.debug("h2 GOAWAY write fail.", e);
+        }
+        shutdown();
+    }
+
+    /**
+     * 커넥션을 닫고 남은 스트림을 전부 취소한다. 스트림을 처리하던 워커들은 Listener.onCancel로 업스트림을 정리한다.
+     */
+    private void shutdown() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        cancelIdleTimer();
+        server.onConnectionClosed();
+        targetMetrics.connectionClosed();
+        List<Http2ServerStream> remaining = new ArrayList<>(streams.values());
+        for (Http2ServerStream stream : remaining) {
+            detach(stream);
+        }
+        sendQueue.clear();
+        writable.clear();
+        for (Http2ServerStream stream : remaining) {
+            stream.cancel();
+        }
+        outbound.clear();
+        if (tls != null) {
+            tls.close();
+        }
+        key.cancel();
+        SocketUtil.getInstance().socketClose(channel);
+        if (!dispatching) {
+            releaseBuffers();
+        }
+    }
+
+    private void releaseBuffers() {
+        BufferPool bufferPool = BufferPool.getInstance();
+        bufferPool.release(frameIn);
+        bufferPool.release(frameOut);
+        frameIn = null;
+        frameOut = null;
+    }
+}
@@ -0,0 +1,738 @@
+package org.crazyproxy.http2;
+
+import lombok.Getter;
+import org.crazyproxy.buffer.BufferPool;
+import org.crazyproxy.buffer.PooledBuffer;
+import org.crazyproxy.nio.Outbound;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 클라 h2 커넥션 위의 스트림 하나 (요청 하나와 그 응답). Http2ServerConnection이 만들고, 그 리액터 스레드에서만 쓴다.
+ *
+ * 요청: 받은 헤더를 HTTP/1.1 요청 헤더로 다시 써 둔다(getRequestHead). 위(Http2StreamExchange)는 그걸로 HTTP/1.x 요청과 똑같이
+ * 파싱, 캐시 조회, 헤더 변조를 하고 ClientWorker를 띄운다. content-length 없이 바디가 오면 Transfer-Encoding: chunked로 바꿔 청크로 싸서 넘긴다.
+ * 바디는 DATA가 오는 대로 모아 뒀다가 한 조각씩 넘기고, 다 썼다고 하면(onBodyConsumed) 그만큼 받기 창을 돌려준다.
+ *
+ * 응답: ClientWorker가 HTTP/1.1 응답 바이트를 Outbound로 쓰면 헤더는 바로 HEADERS 프레임으로 쓰고, 바디는 chunked를 풀어 모아 둔다.
+ * 모아 둔 바디는 커넥션이 보내기 창만큼씩 DATA로 내보낸다. 아직 못 보낸 바디가 밀린 바이트라서 ClientWorker의 high/low water mark가 그대로 먹힌다.
+ */
+public final class Http2ServerStream implements Outbound {
+
+    /**
+     * 스트림 소식을 받는 쪽. 커넥션의 리액터 스레드에서 불린다. 자기 에러는 스스로 처리하고 던지지 않는다.
+     */
+    public interface Listener {
+        /**
+         * 요청 바디 조각 (읽기 모드). onBodyConsumed를 부르기 전에는 다음 조각이 오지 않는다.
+         * @param last 요청의 마지막 조각이면 true
+         */
+        void onRequestBody(ByteBuffer chunk, boolean last);
+
+        /**
+         * awaitWritable 뒤에 밀린 응답 바디가 프레임으로 나갔다
+         */
+        void onWritable();
+
+        /**
+         * 클라가 스트림을 취소했거나 커넥션이 닫혔다. 응답은 더 못 보낸다
+         */
+        void onCancel();
+    }
+
+    private enum Phase {
+        HEAD, LENGTH, CHUNK_SIZE, CHUNK_DATA, CHUNK_CRLF, TRAILERS, UNTIL_CLOSE, DONE
+    }
+
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+    private static final int MAX_RESPONSE_HEAD = 64 * 1024;
+    private static final int MIN_DATA_BUFFER = 16 * 1024;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = bytes("0\r\n\r\n");
+    private static final byte[] REQUEST_VERSION = bytes(" HTTP/1.1\r\n");
+    private static final byte[] HOST_LINE = bytes("Host: ");
+    private static final byte[] COOKIE_LINE = bytes("Cookie: ");
+    private static final byte[] COOKIE_SEPARATOR = bytes("; ");
+    private static final byte[] CHUNKED_LINE = bytes("Transfer-Encoding: chunked\r\n");
+    private static final byte[] METHOD = bytes(":method");
+    private static final byte[] SCHEME = bytes(":scheme");
+    private static final byte[] AUTHORITY = bytes(":authority");
+    private static final byte[] PATH = bytes(":path");
+    private static final byte[] HOST = bytes("host");
+    private static final byte[] COOKIE = bytes("cookie");
+    private static final byte[] CONTENT_LENGTH = bytes("content-length");
+    private static final byte[] TRANSFER_ENCODING = bytes("transfer-encoding");
+    private static final byte[] TE = bytes("te");
+    private static final byte[] TRAILERS = bytes("trailers");
+    private static final byte[] HEAD = bytes("HEAD");
+    private static final byte[] CONNECT = bytes("CONNECT");
+    private static final byte[][] CONNECTION_HEADERS = {
+            bytes("connection"), bytes("keep-alive"), bytes("proxy-connection"), TRANSFER_ENCODING, bytes("upgrade")
+    };
+
+    private final Http2ServerConnection connection;
+    @Getter
+    private final int id;
+    private final int bodyCapacity;
+    private Listener listener;
+
+    // 요청 헤더를 모으고, HTTP/1.1로 다 쓴 뒤에는 응답 헤더를 모은다
+    private final List<byte[]> names = new ArrayList<>();
+    private final List<byte[]> values = new ArrayList<>();
+    private byte[] method;
+    private byte[] scheme;
+    private byte[] authority;
+    private byte[] path;
+    private boolean regularHeaderSeen;
+    private boolean malformed;
+    private boolean headRequest;
+    private boolean chunkedRequest;
+    private PooledBuffer requestHead;
+
+    // 받기 창. 클라가 이 이상 보내면 FLOW_CONTROL_ERROR
+    int receiveWindow;
+    // END_STREAM을 받았다
+    boolean remoteClosed;
+    // 받았지만 아직 안 넘긴 요청 바디 (쓰기 모드)
+    private PooledBuffer bodyIn;
+    // 넘겨준 조각과 그 조각이 돌려줄 창
+    private PooledBuffer bodyOut;
+    private int bodyOutCredit;
+    private boolean bodyDelivered;
+
+    // 보내기 창. 상대 SETTINGS_INITIAL_WINDOW_SIZE에서 시작하고 WINDOW_UPDATE로 늘어난다
+    int sendWindow;
+    // 커넥션 sendQueue / writable 목록에 들어가 있다
+    boolean queued;
+    boolean writableQueued;
+    // END_STREAM을 보냈다
+    boolean localClosed;
+    // 남은 바디가 응답의 끝이다. 다 보내면 END_STREAM
+    boolean bodyLast;
+
+    private Phase phase = Phase.HEAD;
+    private byte[] line;
+    private int lineLength;
+    private int status;
+    private int headBytes;
+    private long contentLength = -1;
+    private boolean chunkedResponse;
+    private long remaining;
+    // 아직 프레임으로 못 보낸 응답 바디 [dataIndex, position)
+    private PooledBuffer data;
+    private int dataIndex;
+    private boolean writeWaiting;
+    // 위에서 교환을 끝냈다
+    private boolean finished;
+    private boolean closed;
+
+    Http2ServerStream(Http2ServerConnection connection, int id, int sendWindow, int receiveWindow) {
+        this.connection = connection;
+        this.id = id;
+        this.sendWindow = sendWindow;
+        this.receiveWindow = receiveWindow;
+        this.bodyCapacity = receiveWindow;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+        deliverBody();
+    }
+
+    /**
+     * HTTP/1.1로 다시 쓴 요청 헤더. 쓰기 모드라 [0, position) 이 헤더다. releaseRequestHead 전까지만 유효하다
+     */
+    public ByteBuffer getRequestHead() {
+        return requestHead.getBuffer();
+    }
+
+    public void releaseRequestHead() {
+        BufferPool.getInstance().release(requestHead);
+        requestHead = null;
+    }
+
+    /**
+     * HPACK으로 풀린 요청 헤더 하나. HTTP/1.1로 옮길 때 요청을 쪼개거나 끼워 넣을 수 있는 바이트(CR, LF, NUL)가 있으면 malformed다 (RFC 9113 8.2.1).
+     */
+    void onHeader(byte[] name, byte[] value) {
+        if (name.length > 0 && name[0] == ':') {
+            if (regularHeaderSeen || !isToken(value, Arrays.equals(name, AUTHORITY) || Arrays.equals(name, PATH))) {
+                malformed = true;
+            } else if (Arrays.equals(name, METHOD) && method == null) {
+                method = value;
+            } else if (Arrays.equals(name, SCHEME) && scheme == null) {
+                scheme = value;
+            } else if (Arrays.equals(name, AUTHORITY) && authority == null) {
+                authority = value;
+            } else if (Arrays.equals(name, PATH) && path == null) {
+                path = value;
+            } else {
+                malformed = true;
+            }
+            return;
+        }
+        regularHeaderSeen = true;
+        if (!isFieldName(name) || !isFieldValue(value) || contains(CONNECTION_HEADERS, name)
+                || (Arrays.equals(name, TE) && !Arrays.equals(value, TRAILERS))) {
+            malformed = true;
+            return;
+        }
+        if (!Arrays.equals(name, TE)) {
+            names.add(name);
+            values.add(value);
+        }
+    }
+
+    /**
+     * 요청 헤더가 다 왔다. HTTP/1.1 요청 헤더로 옮겨 쓴다. CONNECT는 받지 않는다.
+     * @return malformed면 false. 커넥션이 RST_STREAM(PROTOCOL_ERROR)을 보낸다
+     */
+    boolean onHeadersEnd(boolean endStream) {
+        if (malformed || method == null || scheme == null || path == null || path.length == 0 || Arrays.equals(method, CONNECT)) {
+            return false;
+        }
+        headRequest = Arrays.equals(method, HEAD);
+        remoteClosed = endStream;
+        bodyDelivered = endStream;
+
+        boolean hasHost = false;
+        boolean hasContentLength = false;
+        int size = method.length + 1 + path.length + REQUEST_VERSION.length + CHUNKED_LINE.length + CRLF.length
+                + HOST_LINE.length + (authority == null ? 0 : authority.length) + CRLF.length;
+        for (int i = 0; i < names.size(); i++) {
+            hasHost |= Arrays.equals(names.get(i), HOST);
+            hasContentLength |= Arrays.equals(names.get(i), CONTENT_LENGTH);
+            size += names.get(i).length + 2 + values.get(i).length + CRLF.length;
+        }
+        chunkedRequest = !endStream && !hasContentLength;
+
+        requestHead = BufferPool.getInstance().acquire(size);
+        ByteBuffer out = requestHead.getBuffer();
+        out.put(method).put((byte) ' ').put(path).put(REQUEST_VERSION);
+        if (!hasHost && authority != null) {
+            out.put(HOST_LINE).put(authority).put(CRLF);
+        }
+        // h2는 cookie를 여러 필드로 쪼개 보낼 수 있다. HTTP/1.1로는 한 줄로 합친다 (RFC 9113 8.2.3)
+        boolean cookieWritten = false;
+        for (int i = 0; i < names.size(); i++) {
+            if (!Arrays.equals(names.get(i), COOKIE)) {
+                out.put(names.get(i)).put((byte) ':').put((byte) ' ').put(values.get(i)).put(CRLF);
+                continue;
+            }
+            out.put(cookieWritten ? COOKIE_SEPARATOR : COOKIE_LINE).put(values.get(i));
+            cookieWritten = true;
+        }
+        if (cookieWritten) {
+            out.put(CRLF);
+        }
+        if (chunkedRequest) {
+            out.put(CHUNKED_LINE);
+        }
+        out.put(CRLF);
+        names.clear();
+        values.clear();
+        return true;
+    }
+
+    /**
+     * DATA 하나 (또는 요청을 끝내는 트레일러). 창은 커넥션이 이미 깎았다.
+     * @param padding 패딩 바이트. 모아 두지 않으니 바로 창을 돌려준다
+     */
+    void onData(ByteBuffer bytes, int padding, boolean endStream) {
+        if (endStream) {
+            remoteClosed = true;
+        } else if (padding > 0) {
+            receiveWindow += padding;
+            connection.writeWindowUpdate(id, padding);
+        }
+        if (bytes.hasRemaining() && !finished) {
+            if (bodyIn == null) {
+                bodyIn = BufferPool.getInstance().acquire(bodyCapacity);
+            }
+            bodyIn.getBuffer().put(bytes);
+        }
+        deliverBody();
+    }
+
+    /**
+     * 모아 둔 바디를 한 조각으로 넘긴다. 넘긴 조각을 다 쓰기 전에는 다음 조각을 안 넘긴다.
+     * 넘기는 조각은 따로 복사해 두므로 그 사이 오는 DATA는 bodyIn에 계속 모인다.
+     */
+    private void deliverBody() {
+        if (listener == null || bodyOut != null || bodyDelivered || finished || closed) {
+            return;
+        }
+        int available = bodyIn == null ? 0 : bodyIn.getBuffer().position();
+        boolean last = remoteClosed;
+        if (available == 0 && !last) {
+            return;
+        }
+        bodyOut = BufferPool.getInstance().acquire(available + (chunkedRequest ? 16 + LAST_CHUNK.length : 0));
+        ByteBuffer out = bodyOut.getBuffer();
+        if (chunkedRequest && available > 0) {
+            out.put(Integer.toHexString(available).getBytes(StandardCharsets.US_ASCII)).put(CRLF);
+        }
+        if (available > 0) {
+            ByteBuffer in = bodyIn.getBuffer();
+            in.flip();
+            out.put(in);
+            bodyIn.release();
+            bodyIn = null;
+        }
+        if (chunkedRequest && available > 0) {
+            out.put(CRLF);
+        }
+        if (chunkedRequest && last) {
+            out.put(LAST_CHUNK);
+        }
+        out.flip();
+        bodyOutCredit = available;
+        bodyDelivered = last;
+        listener.onRequestBody(out, last);
+    }
+
+    /**
+     * 넘겨받은 바디 조각을 다 썼다. 그만큼 받기 창을 돌려주고 다음 조각을 넘긴다
+     */
+    public void onBodyConsumed() {
+        if (bodyOut == null) {
+            return;
+        }
+        bodyOut.release();
+        bodyOut = null;
+        if (bodyOutCredit > 0 && !remoteClosed && !closed) {
+            receiveWindow += bodyOutCredit;
+            connection.writeWindowUpdate(id, bodyOutCredit);
+        }
+        bodyOutCredit = 0;
+        deliverBody();
+    }
+
+    /**
+     * HTTP/1.1 응답 바이트를 받아 헤더는 HEADERS로 쓰고 바디는 모아 둔다. 응답이 끝난 뒤에 오는 바이트는 버린다.
+     * @return 아직 DATA로 못 보낸 바디가 남아 있으면 true
+     */
+    @Override
+    public boolean write(ByteBuffer src) throws IOException {
+        if (closed) {
+            src.position(src.limit());
+            return false;
+        }
+        while (src.hasRemaining() && phase != Phase.DONE) {
+            switch (phase) {
+                case LENGTH:
+                case CHUNK_DATA: {
+                    int length = (int) Math.min(remaining, src.remaining());
+                    appendData(src, length);
+                    remaining -= length;
+                    if (remaining == 0) {
+                        if (phase == Phase.LENGTH) {
+                            endBody();
+                        } else {
+                            phase = Phase.CHUNK_CRLF;
+                        }
+                    }
+                    break;
+                }
+                case UNTIL_CLOSE:
+                    appendData(src, src.remaining());
+                    break;
+                default:
+                    if (readLine(src)) {
+                        onLine();
+                    }
+            }
+        }
+        src.position(src.limit());
+        if (!closed && (data != null || (bodyLast && !localClosed))) {
+            connection.queueData(this);
+        }
+        return !isEmpty();
+    }
+
+    @Override
+    public boolean flush() {
+        return isEmpty();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return closed || (dataRemaining() == 0 && !(bodyLast && !localClosed));
+    }
+
+    @Override
+    public long getPendingBytes() {
+        return dataRemaining();
+    }
+
+    @Override
+    public void clear() {
+        BufferPool.getInstance().release(data);
+        data = null;
+        dataIndex = 0;
+    }
+
+    /**
+     * 밀린 바디가 DATA로 나가면 Listener.onWritable로 알려 달라
+     */
+    public void awaitWritable() {
+        writeWaiting = true;
+    }
+
+    public void cancelWritable() {
+        writeWaiting = false;
+    }
+
+    /**
+     * 위에서 교환을 끝냈다. 응답이 다 왔으면 남은 바디를 다 보낸 뒤 스트림을 닫고, 덜 왔으면 RST_STREAM(INTERNAL_ERROR)으로 끊는다.
+     * 길이 없이 끝까지 읽는 응답은 여기가 바디의 끝이다.
+     */
+    public void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (closed) {
+            return;
+        }
+        if (phase == Phase.UNTIL_CLOSE) {
+            endBody();
+            connection.queueData(this);
+        } else if (phase != Phase.DONE) {
+            connection.resetStream(this, Http2Frame.INTERNAL_ERROR);
+            return;
+        }
+        tryClose();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    boolean isWriteWaiting() {
+        return writeWaiting;
+    }
+
+    void notifyWritable() {
+        if (!closed && writeWaiting && listener != null) {
+            listener.onWritable();
+        }
+    }
+
+    int dataRemaining() {
+        return data == null ? 0 : data.getBuffer().position() - dataIndex;
+    }
+
+    /**
+     * 모아 둔 바디 length 바이트를 dst로 옮긴다. 다 비면 버퍼를 돌려준다
+     */
+    void takeData(ByteBuffer dst, int length) {
+        if (length == 0) {
+            return;
+        }
+        ByteBuffer buffer = data.getBuffer();
+        dst.put(dst.position(), buffer, dataIndex, length);
+        dst.position(dst.position() + length);
+        dataIndex += length;
+        if (dataIndex == buffer.position()) {
+            clear();
+        }
+    }
+
+    /**
+     * END_STREAM을 실은 프레임을 썼다
+     */
+    void onEndStreamSent() {
+        localClosed = true;
+        tryClose();
+    }
+
+    /**
+     * 클라가 RST_STREAM을 보냈거나, 스트림 에러로 끊었거나, 커넥션이 닫혔다. 커넥션은 이미 스트림을 뗐다.
+     */
+    void cancel() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (!finished && listener != null) {
+            finished = true;
+            listener.onCancel();
+        }
+        releaseBuffers();
+    }
+
+    /**
+     * 응답을 다 보냈고 위도 끝났으면 닫는다. 클라가 아직 요청 바디를 보내는 중이면 그만 보내라고 RST_STREAM(NO_ERROR)을 보낸다.
+     */
+    private void tryClose() {
+        if (closed || !finished || !localClosed) {
+            return;
+        }
+        closed = true;
+        connection.removeStream(this, !remoteClosed);
+        releaseBuffers();
+    }
+
+    private void releaseBuffers() {
+        BufferPool bufferPool = BufferPool.getInstance();
+        bufferPool.release(requestHead);
+        bufferPool.release(bodyIn);
+        bufferPool.release(bodyOut);
+        requestHead = null;
+        bodyIn = null;
+        bodyOut = null;
+        clear();
+        line = null;
+    }
+
+    private void appendData(ByteBuffer src, int length) {
+        if (length == 0) {
+            return;
+        }
+        BufferPool bufferPool = BufferPool.getInstance();
+        if (data == null) {
+            data = bufferPool.acquire(Math.max(length, MIN_DATA_BUFFER));
+            dataIndex = 0;
+        }
+        ByteBuffer buffer = data.getBuffer();
+        if (buffer.remaining() < length && dataIndex > 0) {
+            buffer.flip();
+            buffer.position(dataIndex);
+            buffer.compact();
+            dataIndex = 0;
+        }
+        if (buffer.remaining() < length) {
+            data = bufferPool.grow(data, buffer.position() + length);
+            buffer = data.getBuffer();
+        }
+        buffer.put(buffer.position(), src, src.position(), length);
+        buffer.position(buffer.position() + length);
+        src.position(src.position() + length);
+    }
+
+    private void endBody() {
+        phase = Phase.DONE;
+        bodyLast = true;
+        line = null;
+    }
+
+    private boolean readLine(ByteBuffer src) throws IOException {
+        if (line == null) {
+            line = new byte[MAX_LINE_LENGTH];
+        }
+        while (src.hasRemaining()) {
+            byte b = src.get();
+            if (b == '\n') {
+                return true;
+            }
+            if (b == '\r') {
+                continue;
+            }
+            if (lineLength == MAX_LINE_LENGTH) {
+                throw new IOException("response line too long");
+            }
+            line[lineLength++] = b;
+        }
+        return false;
+    }
+
+    private void onLine() throws IOException {
+        int length = lineLength;
+        lineLength = 0;
+        switch (phase) {
+            case HEAD:
+                if (status == 0) {
+                    if (length > 0) {
+                        parseStatusLine(length);
+                    }
+                } else if (length > 0) {
+                    addResponseHeader(length);
+                } else {
+                    onResponseHeadersEnd();
+                }
+                break;
+            case CHUNK_SIZE:
+                remaining = parseChunkSize(length);
+                phase = remaining == 0 ? Phase.TRAILERS : Phase.CHUNK_DATA;
+                break;
+            case CHUNK_CRLF:
+                phase = Phase.CHUNK_SIZE;
+                break;
+            case TRAILERS:
+                // 트레일러는 버린다
+                if (length == 0) {
+                    endBody();
+                }
+                break;
+            default:
+                throw new IllegalStateException("Unexpected phase: " + phase);
+        }
+    }
+
+    private void parseStatusLine(int length) throws IOException {
+        // HTTP/1.x SSS reason
+        if (length < 12 || line[0] != 'H' || line[8] != ' ') {
+            throw new IOException("invalid status line");
+        }
+        status = (line[9] - '0') * 100 + (line[10] - '0') * 10 + (line[11] - '0');
+        if (status < 100 || status > 999) {
+            throw new IOException("invalid status code");
+        }
+    }
+
+    private void addResponseHeader(int length) throws IOException {
+        headBytes += length;
+        if (headBytes > MAX_RESPONSE_HEAD) {
+            throw new IOException("response header too large");
+        }
+        int colon = 0;
+        while (colon < length && line[colon] != ':') {
+            colon++;
+        }
+        if (colon == 0 || colon == length) {
+            return;
+        }
+        byte[] name = new byte[colon];
+        for (int i = 0; i < colon; i++) {
+            byte b = line[i];
+            name[i] = b >= 'A' && b <= 'Z' ? (byte) (b + 32) : b;
+        }
+        int valueStart = colon + 1;
+        int valueEnd = length;
+        while (valueStart < valueEnd && (line[valueStart] == ' ' || line[valueStart] == '\t')) {
+            valueStart++;
+        }
+        while (valueEnd > valueStart && (line[valueEnd - 1] == ' ' || line[valueEnd - 1] == '\t')) {
+            valueEnd--;
+        }
+        byte[] value = Arrays.copyOfRange(line, valueStart, valueEnd);
+
+        if (Arrays.equals(name, CONTENT_LENGTH)) {
+            contentLength = parseContentLength(value);
+        } else if (Arrays.equals(name, TRANSFER_ENCODING)) {
+            chunkedResponse = new String(value, StandardCharsets.US_ASCII).toLowerCase().contains("chunked");
+        }
+        if (!contains(CONNECTION_HEADERS, name)) {
+            names.add(name);
+            values.add(value);
+        }
+    }
+
+    private void onResponseHeadersEnd() {
+        if (status < 200) {
+            // 100 Continue 같은 중간 응답은 h2 클라에게 안 보낸다. 진짜 응답이 뒤따라 온다
+            status = 0;
+            headBytes = 0;
+            contentLength = -1;
+            chunkedResponse = false;
+            names.clear();
+            values.clear();
+            return;
+        }
+        Phase next;
+        if (headRequest || status == 204 || status == 304) {
+            next = Phase.DONE;
+        } else if (chunkedResponse) {
+            next = Phase.CHUNK_SIZE;
+        } else if (contentLength >= 0) {
+            remaining = contentLength;
+            next = contentLength == 0 ? Phase.DONE : Phase.LENGTH;
+        } else {
+            next = Phase.UNTIL_CLOSE;
+        }
+        boolean endStream = next == Phase.DONE;
+        connection.writeHeaders(id, status, names, values, endStream);
+        names.clear();
+        values.clear();
+        phase = next;
+        if (endStream) {
+            line = null;
+            onEndStreamSent();
+        }
+    }
+
+    private long parseChunkSize(int length) throws IOException {
+        long size = 0;
+        for (int i = 0; i < length; i++) {
+            int digit = Character.digit(line[i], 16);
+            if (digit < 0) {
+                // chunk extension(;) 이후는 무시
+                break;
+            }
+            size = (size << 4) | digit;
+            if (size < 0) {
+                throw new IOException("chunk size overflow");
+            }
+        }
+        return size;
+    }
+
+    private static long parseContentLength(byte[] value) {
+        long length = 0;
+        for (byte b : value) {
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            length = length * 10 + (b - '0');
+        }
+        return value.length == 0 ? -1 : length;
+    }
+
+    /**
+     * h2 필드 이름은 소문자여야 하고, HTTP/1.1 헤더 줄로 옮길 수 있는 토큰 문자만 받는다
+     */
+    private static boolean isFieldName(byte[] name) {
+        if (name.length == 0) {
+            return false;
+        }
+        for (byte b : name) {
+            if (b <= ' ' || b == ':' || b >= 0x7f || (b >= 'A' && b <= 'Z')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isFieldValue(byte[] value) {
+        for (byte b : value) {
+            if (b == '\r' || b == '\n' || b == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 요청 줄에 들어갈 값(:method, :path)과 Host로 옮길 :authority. 공백과 제어 문자가 있으면 요청 줄이 깨진다
+     */
+    private static boolean isToken(byte[] value, boolean allowEmpty) {
+        if (value.length == 0) {
+            return allowEmpty;
+        }
+        for (byte b : value) {
+            if (b <= ' ' || b == 0x7f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean contains(byte[][] names, byte[] name) {
+        for (byte[] candidate : names) {
+            if (Arrays.equals(candidate, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
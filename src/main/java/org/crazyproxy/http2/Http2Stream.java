@@ -0,0 +1,352 @@
+package org.crazyproxy.http2;
+
+import org.crazyproxy.http.HttpResponses;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 업스트림 HTTP/2 커넥션 위의 요청 하나. Http2Connection이 만들고, 커넥션의 리액터 스레드에서만 쓴다.
+ * 응답은 HTTP/1.1 바이트로 바꿔서 Listener에 흘려준다. 그래서 위(ClientWorker)에서는 응답 프레이밍, 캐시, 클라 쓰기를 HTTP/1.1과 똑같이 한다.
+ * 응답에 Content-Length가 있으면 그대로 쓰고, 없으면 DATA를 chunked로 싸서 보낸다. HTTP/1.0 클라에게는 Connection: close로 끝을 알린다.
+ *
+ * 흐름 제어: 받은 DATA는 바로 Listener에 넘기고, 그만큼을 WINDOW_UPDATE로 서버에 돌려준다.
+ * 클라가 느려서 pause 된 동안은 돌려주지 않는다. 서버는 창이 다 차면 이 스트림만 멈추고, 같은 커넥션의 다른 스트림은 계속 받는다.
+ */
+public final class Http2Stream {
+
+    /**
+     * 스트림 소식을 받는 쪽. 커넥션의 리액터 스레드에서 불린다. 자기 에러는 스스로 처리하고 던지지 않는다.
+     */
+    public interface Listener {
+        /**
+         * HTTP/1.1로 바꾼 응답 바이트(헤더 또는 바디 조각). 콜백 안에서만 유효하다
+         */
+        void onResponseBytes(ByteBuffer bytes);
+
+        /**
+         * 응답이 끝났다 (END_STREAM)
+         */
+        void onResponseComplete();
+
+        /**
+         * sendBody로 넘긴 바디 조각을 다 프레임으로 옮겼다. 조각 버퍼는 이제 돌려줘도 된다
+         */
+        void onRequestBodySent();
+
+        /**
+         * 스트림이 깨졌다.
+         * @param unprocessed 서버가 요청을 처리하지 않았다 (REFUSED_STREAM, GOAWAY 범위 밖). 다시 보내도 된다
+         */
+        void onStreamFailed(boolean unprocessed);
+    }
+
+    private enum BodyMode {
+        NONE, LENGTH, CHUNKED, UNTIL_CLOSE
+    }
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] STATUS = ":status".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[][] CONNECTION_HEADERS = {
+            "connection".getBytes(StandardCharsets.US_ASCII), "keep-alive".getBytes(StandardCharsets.US_ASCII),
+            "proxy-connection".getBytes(StandardCharsets.US_ASCII), "transfer-encoding".getBytes(StandardCharsets.US_ASCII),
+            "upgrade".getBytes(StandardCharsets.US_ASCII)
+    };
+
+    private final Http2Connection connection;
+    private final int id;
+    private final Listener listener;
+    private final boolean headRequest;
+    private final boolean http10;
+
+    // 보내기 창. 상대 SETTINGS_INITIAL_WINDOW_SIZE에서 시작하고 WINDOW_UPDATE로 늘어난다
+    int sendWindow;
+    // 받기 창. 서버가 이 이상 보내면 FLOW_CONTROL_ERROR
+    int receiveWindow;
+    // 받아서 넘겼지만 아직 WINDOW_UPDATE로 돌려주지 않은 바이트
+    private int unacknowledged;
+    private boolean paused;
+
+    // 보낼 요청 바디 조각. 다 보내면 비운다
+    ByteBuffer body;
+    boolean bodyLast;
+    // 커넥션 sendQueue에 들어가 있다
+    boolean queued;
+    // END_STREAM을 보냈다 / 받았다
+    boolean localClosed;
+    boolean remoteClosed;
+    private boolean closed;
+
+    // 응답 헤더 변환
+    private ByteArrayOutputStream head;
+    private int status;
+    private boolean hasContentLength;
+    private boolean responseStarted;
+    private boolean malformed;
+    private BodyMode bodyMode = BodyMode.NONE;
+
+    Http2Stream(Http2Connection connection, int id, Listener listener, boolean headRequest, boolean http10,
+                int sendWindow, int receiveWindow) {
+        this.connection = connection;
+        this.id = id;
+        this.listener = listener;
+        this.headRequest = headRequest;
+        this.http10 = http10;
+        this.sendWindow = sendWindow;
+        this.receiveWindow = receiveWindow;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    boolean isResponseStarted() {
+        return responseStarted;
+    }
+
+    /**
+     * 요청 바디 조각을 보낸다. 조각은 onRequestBodySent가 올 때까지 건드리면 안 된다.
+     * @param last 마지막 조각이면 true. 이 조각과 함께 END_STREAM이 나간다
+     */
+    public void sendBody(ByteBuffer chunk, boolean last) {
+        if (closed) {
+            return;
+        }
+        body = chunk;
+        bodyLast = last;
+        connection.queueData(this);
+    }
+
+    /**
+     * 클라가 못 따라온다. 받은 만큼 창을 돌려주지 않아서 서버가 이 스트림을 멈추게 한다.
+     */
+    public void pause() {
+        paused = true;
+    }
+
+    public void resume() {
+        paused = false;
+        if (unacknowledged > 0 && !remoteClosed && !closed) {
+            acknowledge();
+        }
+    }
+
+    /**
+     * 요청을 그만둔다. 응답을 다 받기 전이면 RST_STREAM(CANCEL)을 보낸다. 여러 번 불려도 된다.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        body = null;
+        connection.removeStream(this, !(localClosed && remoteClosed));
+    }
+
+    /**
+     * 응답 헤더 블록의 헤더 하나
+     */
+    void onHeader(byte[] name, byte[] value) {
+        if (head == null) {
+            head = new ByteArrayOutputStream(256);
+            status = 0;
+            hasContentLength = false;
+            malformed = false;
+        }
+        if (name.length > 0 && name[0] == ':') {
+            if (Arrays.equals(name, STATUS) && status == 0 && head.size() == 0) {
+                status = parseStatus(value);
+            } else {
+                malformed = true;
+            }
+            return;
+        }
+        if (responseStarted) {
+            // 트레일러. HTTP/1.1 쪽으로는 안 넘긴다
+            return;
+        }
+        for (byte[] connectionHeader : CONNECTION_HEADERS) {
+            if (Arrays.equals(name, connectionHeader)) {
+                return;
+            }
+        }
+        if (Arrays.equals(name, CONTENT_LENGTH)) {
+            hasContentLength = true;
+        }
+        head.write(name, 0, name.length);
+        head.write(':');
+        head.write(' ');
+        head.write(value, 0, value.length);
+        head.write(CRLF, 0, CRLF.length);
+    }
+
+    /**
+     * 헤더 블록이 끝났다.
+     * @return 응답 헤더가 잘못됐으면 false. 스트림을 리셋해야 한다
+     */
+    boolean onHeadersEnd(boolean endStream) {
+        ByteArrayOutputStream headers = head;
+        head = null;
+        if (responseStarted) {
+            // 트레일러는 END_STREAM과 같이 와야 한다
+            if (!endStream) {
+                return false;
+            }
+            onRemoteEnd();
+            return true;
+        }
+        if (headers == null || malformed || status < 100 || status > 999) {
+            return false;
+        }
+        if (status < 200) {
+            // 1xx 중간 응답은 넘기지 않는다. Expect는 요청에서 뺐다
+            return !endStream;
+        }
+        responseStarted = true;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(headers.size() + 64);
+        byte[] statusLine = ("HTTP/1.1 " + status + " " + HttpResponses.reason(status) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        out.write(statusLine, 0, statusLine.length);
+        out.writeBytes(headers.toByteArray());
+        boolean bodyless = headRequest || status == 204 || status == 304;
+        if (hasContentLength) {
+            bodyMode = bodyless ? BodyMode.NONE : BodyMode.LENGTH;
+        } else if (bodyless) {
+            bodyMode = BodyMode.NONE;
+        } else if (endStream) {
+            bodyMode = BodyMode.NONE;
+            writeAscii(out, "content-length: 0\r\n");
+        } else if (http10) {
+            bodyMode = BodyMode.UNTIL_CLOSE;
+            writeAscii(out, "connection: close\r\n");
+        } else {
+            bodyMode = BodyMode.CHUNKED;
+            writeAscii(out, "transfer-encoding: chunked\r\n");
+        }
+        out.write(CRLF, 0, CRLF.length);
+        listener.onResponseBytes(ByteBuffer.wrap(out.toByteArray()));
+        if (endStream) {
+            onRemoteEnd();
+        }
+        return true;
+    }
+
+    /**
+     * @param data DATA 페이로드(패딩 뺀 것)
+     * @param flowControlled 창에서 빠질 바이트 수(패딩 포함)
+     * @param scratch 청크 헤더를 붙여 한 번에 넘길 때 쓰는 리액터 임시 버퍼
+     * @return 응답 헤더 전에 DATA가 왔으면 false
+     */
+    boolean onData(ByteBuffer data, int flowControlled, boolean endStream, ByteBuffer scratch) {
+        if (!responseStarted) {
+            return false;
+        }
+        if (data.hasRemaining()) {
+            switch (bodyMode) {
+                case LENGTH:
+                case UNTIL_CLOSE:
+                    listener.onResponseBytes(data);
+                    break;
+                case CHUNKED:
+                    writeChunk(data, scratch);
+                    break;
+                default:
+                    // HEAD, 204, 304에 온 바디는 버린다
+                    break;
+            }
+        }
+        if (endStream) {
+            onRemoteEnd();
+        } else {
+            unacknowledged += flowControlled;
+            if (!paused && !closed && unacknowledged >= connection.getStreamWindow() / 2) {
+                acknowledge();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * sendBody로 받은 조각을 다 DATA 프레임으로 옮겼다.
+     */
+    void onBodyWritten(boolean endStream) {
+        body = null;
+        localClosed = endStream;
+        listener.onRequestBodySent();
+    }
+
+    /**
+     * 서버가 RST_STREAM을 보냈거나 커넥션이 끊겼다.
+     */
+    void fail(boolean unprocessed) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        body = null;
+        listener.onStreamFailed(unprocessed);
+    }
+
+    private void onRemoteEnd() {
+        remoteClosed = true;
+        if (bodyMode == BodyMode.CHUNKED) {
+            listener.onResponseBytes(ByteBuffer.wrap(LAST_CHUNK));
+        }
+        if (localClosed && !closed) {
+            // 양쪽 다 끝났다. 클라에게 다 쓰기 전이라도 커넥션 자리는 바로 비워준다
+            closed = true;
+            connection.removeStream(this, false);
+        }
+        listener.onResponseComplete();
+    }
+
+    private void acknowledge() {
+        connection.writeWindowUpdate(id, unacknowledged);
+        receiveWindow += unacknowledged;
+        unacknowledged = 0;
+    }
+
+    private void writeChunk(ByteBuffer data, ByteBuffer scratch) {
+        byte[] size = Integer.toHexString(data.remaining()).getBytes(StandardCharsets.US_ASCII);
+        scratch.clear();
+        if (scratch.remaining() >= size.length + data.remaining() + CRLF.length * 2) {
+            scratch.put(size).put(CRLF).put(data).put(CRLF);
+            scratch.flip();
+            listener.onResponseBytes(scratch);
+            scratch.clear();
+            return;
+        }
+        ByteBuffer chunkHead = ByteBuffer.allocate(size.length + CRLF.length);
+        chunkHead.put(size).put(CRLF).flip();
+        listener.onResponseBytes(chunkHead);
+        listener.onResponseBytes(data);
+        listener.onResponseBytes(ByteBuffer.wrap(CRLF));
+    }
+
+    private static int parseStatus(byte[] value) {
+        if (value.length != 3) {
+            return -1;
+        }
+        int status = 0;
+        for (byte b : value) {
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            status = status * 10 + (b - '0');
+        }
+        return status;
+    }
+
+    private static void writeAscii(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        out.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,156 @@
+package org.crazyproxy.limit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 타겟 하나에 동시에 보낼 요청 수 한도. 응답 시간(RTT)을 보고 한도를 스스로 맞춘다 (gradient 방식).
+ * 리액터/블로킹 스레드 여럿이 같이 부르므로 락 없이 원자 변수만 쓴다.
+ *
+ * 요청이 끝날 때마다 RTT를 창(WINDOW_NANOS)에 모으고, 창이 끝나면 그 창을 닫은 스레드 하나만 한도를 다시 잰다.
+ * 창 평균 RTT(short)를 오래 본 RTT(long, EWMA)와 비교해서 gradient = long x TOLERANCE / short 를 0.5 ~ 1 로 자르고
+ * 새 한도 = 한도 x gradient + √한도. 서버가 느려지면 줄고, 그대로면 √한도만큼 늘려 본다. 튀지 않게 SMOOTHING만큼만 섞는다.
+ * 창 동안 한도의 절반도 안 썼으면 한도를 믿을 근거가 없으니 그대로 둔다 (안 쓰는 한도가 끝없이 늘지 않게).
+ * 연결 실패, 타임아웃처럼 응답을 못 받은 요청이 창에 있으면 RTT와 상관없이 DROP_BACKOFF만큼 바로 줄인다.
+ */
+public class ConcurrencyLimiter {
+
+    private static final long WINDOW_NANOS = 100_000_000L;
+    // short RTT가 long RTT의 이 배수 안이면 줄이지 않는다
+    private static final double TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+    // long RTT EWMA 가중치. 창 600개(1분) 정도를 본다. 부하로 늘어난 RTT를 금방 평소로 받아들이지 않게 길게 잡는다
+    private static final double LONG_RTT_WEIGHT = 2.0 / 601;
+    private static final double DROP_BACKOFF = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile double limit;
+
+    // 지금 창에 모은 값들
+    private final LongAdder rttSum = new LongAdder();
+    private final LongAdder rttCount = new LongAdder();
+    private final LongAdder drops = new LongAdder();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final AtomicLong windowStartedAt = new AtomicLong(System.nanoTime());
+    // 창을 닫은 스레드만 쓴다
+    private volatile double longRttNanos;
+
+    private final LongAdder rejected = new LongAdder();
+
+    ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * 자리가 있으면 하나 잡는다. 잡았으면 요청이 끝날 때 onSuccess, onDropped, onIgnore 중 하나로 돌려줘야 한다.
+     * @return 한도가 찼으면 false. 요청을 보내지 말고 바로 돌려보낸다
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) {
+                rejected.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 한도와 상관없이 잡는다. 이미 응답을 내보낸 뒤에 도는 백그라운드 요청처럼 돌려보낼 수 없는 것들
+     */
+    public void acquire() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * 응답을 받았다.
+     * @param rttNanos 요청 시작부터 응답 첫 바이트까지. 바디가 긴 응답이 RTT를 부풀리지 않게
+     */
+    public void onSuccess(long rttNanos) {
+        release();
+        rttSum.add(rttNanos);
+        rttCount.increment();
+        maybeUpdate();
+    }
+
+    /**
+     * 연결 실패, 타임아웃 등으로 응답을 못 받았다.
+     */
+    public void onDropped() {
+        release();
+        drops.increment();
+        maybeUpdate();
+    }
+
+    /**
+     * 클라가 먼저 끊은 것처럼 타겟과 상관없이 끝났다. 자리만 돌려준다.
+     */
+    public void onIgnore() {
+        release();
+    }
+
+    private void release() {
+        int before = inFlight.getAndDecrement();
+        if (before > peakInFlight.get()) {
+            peakInFlight.accumulateAndGet(before, Math::max);
+        }
+    }
+
+    private void maybeUpdate() {
+        long now = System.nanoTime();
+        long startedAt = windowStartedAt.get();
+        if (now - startedAt >= WINDOW_NANOS && windowStartedAt.compareAndSet(startedAt, now)) {
+            update();
+        }
+    }
+
+    private void update() {
+        long sum = rttSum.sumThenReset();
+        long count = rttCount.sumThenReset();
+        long dropCount = drops.sumThenReset();
+        int peak = peakInFlight.getAndSet(inFlight.get());
+        double current = limit;
+
+        if (dropCount > 0) {
+            limit = Math.max(minLimit, current * DROP_BACKOFF);
+            return;
+        }
+        if (count == 0) {
+            return;
+        }
+        double shortRtt = (double) sum / count;
+        double longRtt = longRttNanos == 0 ? shortRtt : longRttNanos * (1 - LONG_RTT_WEIGHT) + shortRtt * LONG_RTT_WEIGHT;
+        if (longRtt / shortRtt > 2) {
+            // 서버가 확 빨라졌다. 느리던 시절 기준으로 한도를 부풀리지 않게 기준을 빨리 내린다
+            longRtt *= 0.95;
+        }
+        longRttNanos = longRtt;
+        if (peak < current / 2) {
+            return;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longRtt / shortRtt));
+        double next = current * gradient + Math.sqrt(current);
+        next = current * (1 - SMOOTHING) + next * SMOOTHING;
+        limit = Math.max(minLimit, Math.min(maxLimit, next));
+    }
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,118 @@
+package org.crazyproxy.limit;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.crazyproxy.config.SocketInfo;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 타겟별 동시 요청 한도(ConcurrencyLimiter)들. 켜져 있으면 요청을 업스트림에 보내기 전에 타겟의 자리를 잡고,
+ * 못 잡으면 503 + Retry-After로 바로 돌려보낸다. 느려진 타겟 앞에 요청이 쌓여서 다른 포트까지 느려지는 걸 막는다.
+ * 캐시에서 내보내거나 같은 요청을 나눠받는 요청은 업스트림에 안 가므로 자리를 안 잡는다.
+ */
+@Slf4j
+public class ConcurrencyLimits {
+
+    private static ConcurrencyLimits instance;
+
+    @Getter
+    private final boolean enabled;
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final Map<SocketInfo, ConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
+    private final LongAdder rejected = new LongAdder();
+
+    private ConcurrencyLimits(boolean enabled, int initialLimit, int minLimit, int maxLimit) {
+        this.enabled = enabled;
+        this.initialLimit = initialLimit;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        if (enabled) {
+            log.info("Adaptive concurrency limit. initial = {}, min = {}, max = {}", initialLimit, this.minLimit, this.maxLimit);
+        }
+    }
+
+    /**
+     * @param enabled false면 forTarget이 null을 돌려주고 한도를 보지 않는다
+     * @param initialLimit 타겟마다 처음 한도. RTT를 재면서 min ~ max 사이로 움직인다
+     */
+    public static void initInstance(boolean enabled, int initialLimit, int minLimit, int maxLimit) {
+        if (instance != null) {
+            throw new IllegalStateException("ConcurrencyLimits has already been initialized");
+        }
+        instance = new ConcurrencyLimits(enabled, initialLimit, minLimit, maxLimit);
+    }
+
+    public static ConcurrencyLimits getInstance() {
+        if (instance == null) {
+            throw new IllegalStateException("ConcurrencyLimits not initialized");
+        }
+        return instance;
+    }
+
+    /**
+     * @return 타겟의 한도. 꺼져 있으면 null
+     */
+    public ConcurrencyLimiter forTarget(SocketInfo socketInfo) {
+        if (!enabled) {
+            return null;
+        }
+        ConcurrencyLimiter limiter = limiters.get(socketInfo);
+        if (limiter == null) {
+            limiter = limiters.computeIfAbsent(socketInfo, key -> new ConcurrencyLimiter(initialLimit, minLimit, maxLimit));
+        }
+        return limiter;
+    }
+
+    /**
+     * 타겟에 자리를 잡는다. 꺼져 있으면 항상 true
+     * @return 한도가 차서 돌려보내야 하면 false
+     */
+    public boolean tryAcquire(SocketInfo socketInfo) {
+        ConcurrencyLimiter limiter = forTarget(socketInfo);
+        if (limiter == null || limiter.tryAcquire()) {
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * tryAcquire, acquire로 잡은 자리를 돌려준다. 꺼져 있으면 아무것도 안 한다
+     * @param rttNanos 요청 시작부터 응답 첫 바이트까지
+     * @param failed 응답을 다 못 받았으면 true
+     * @param ignored 클라가 먼저 끊는 등 타겟과 상관없이 끝났으면 true. RTT를 안 본다
+     */
+    public void release(SocketInfo socketInfo, long rttNanos, boolean failed, boolean ignored) {
+        // 자리를 잡을 때 한도가 생기므로 없으면 그 사이 retire된 타겟이다
+        ConcurrencyLimiter limiter = limiters.get(socketInfo);
+        if (limiter == null) {
+            return;
+        }
+        if (ignored) {
+            limiter.onIgnore();
+        } else if (failed) {
+            limiter.onDropped();
+        } else {
+            limiter.onSuccess(rttNanos);
+        }
+    }
+
+    /**
+     * 매핑에서 빠진 타겟의 한도를 지운다. 아직 도는 요청의 release는 아무것도 안 한다.
+     */
+    public void retire(SocketInfo socketInfo) {
+        limiters.remove(socketInfo);
+    }
+
+    /**
+     * 한도가 차서 돌려보낸 요청 수 (전체 타겟)
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,58 @@
+package org.crazyproxy.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 고정 버킷 지연 시간 히스토그램. 버킷 경계는 Prometheus 기본 버킷과 비슷하게 0.5ms ~ 10s.
+ * 버킷마다 LongAdder라 여러 스레드가 동시에 기록해도 락이 없고, 기록할 때 객체를 만들지 않는다.
+ */
+public class LatencyHistogram {
+
+    // 버킷 상한(나노초). 마지막 버킷 뒤는 +Inf
+    static final long[] BOUNDS_NANOS = {
+            500_000L, 1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L,
+            100_000_000L, 250_000_000L, 500_000_000L, 1_000_000_000L, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L
+    };
+    static final String[] BOUND_LABELS = {
+            "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05",
+            "0.1", "0.25", "0.5", "1", "2.5", "5", "10"
+    };
+
+    // 마지막 칸이 +Inf. 누적이 아니라 버킷별 개수로 들고 있다가 내보낼 때 누적한다.
+    private final LongAdder[] buckets = new LongAdder[BOUNDS_NANOS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        int index = 0;
+        while (index < BOUNDS_NANOS.length && nanos > BOUNDS_NANOS[index]) {
+            index++;
+        }
+        buckets[index].increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * 상한이 BOUNDS_NANOS[index] 이하인 기록 수 (누적). index가 BOUNDS_NANOS.length면 전체 개수
+     */
+    long getCumulativeCount(int index) {
+        long count = 0;
+        for (int i = 0; i <= index; i++) {
+            count += buckets[i].sum();
+        }
+        return count;
+    }
+
+    public long getCount() {
+        return getCumulativeCount(BOUNDS_NANOS.length);
+    }
+
+    public long getSumNanos() {
+        return sumNanos.sum();
+    }
+}
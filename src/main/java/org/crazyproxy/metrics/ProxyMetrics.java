@@ -0,0 +1,277 @@
+package org.crazyproxy.metrics;
+
+import org.crazyproxy.balance.TargetGroup;
+import org.crazyproxy.config.SocketInfo;
+import org.crazyproxy.limit.ConcurrencyLimits;
+import org.crazyproxy.pool.UpstreamConnectionPool;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * 지표 레지스트리. 포트별 TargetMetrics와, 다른 컴포넌트가 등록한 전역 게이지/카운터를 들고 있다.
+ * 포트에 타겟이 여러 개면 TargetMetrics의 target 라벨은 타겟들을 콤마로 이은 값이고,
+ * 업스트림 풀과 밸런서 지표는 타겟 하나마다 따로 나간다.
+ * 기록은 각 TargetMetrics에 직접 하고, 여기서는 긁어갈 때(scrape) Prometheus 텍스트 포맷으로 모아서 내보내기만 한다.
+ * 내보낼 때만 문자열을 만들고 기록하는 쪽은 객체를 만들지 않는다.
+ */
+public class ProxyMetrics {
+
+    private static ProxyMetrics instance;
+
+    // 매핑을 다시 읽으면 updatePortMap으로 갈아끼운다
+    private volatile Map<String, TargetGroup> portMap;
+    private final Map<String, TargetMetrics> targets = new ConcurrentHashMap<>();
+    private final List<Sample> samples = new CopyOnWriteArrayList<>();
+
+    private ProxyMetrics(Map<String, TargetGroup> portMap) {
+        this.portMap = portMap;
+        for (Map.Entry<String, TargetGroup> entry : portMap.entrySet()) {
+            targets.put(entry.getKey(), new TargetMetrics(entry.getKey(), groupLabel(entry.getValue())));
+        }
+    }
+
+    public static void initInstance(Map<String, TargetGroup> portMap) {
+        if (instance != null) {
+            throw new IllegalStateException("ProxyMetrics has already been initialized");
+        }
+        instance = new ProxyMetrics(portMap);
+    }
+
+    public static ProxyMetrics getInstance() {
+        if (instance == null) {
+            throw new IllegalStateException("ProxyMetrics not initialized");
+        }
+        return instance;
+    }
+
+    /**
+     * 포트의 지표. 커넥션마다 한 번만 부르고 들고 다닌다.
+     */
+    public TargetMetrics forPort(String port) {
+        TargetMetrics metrics = targets.get(port);
+        if (metrics == null) {
+            TargetGroup group = portMap.get(port);
+            metrics = targets.computeIfAbsent(port, p -> new TargetMetrics(p, group == null ? "unknown" : groupLabel(group)));
+        }
+        return metrics;
+    }
+
+    /**
+     * 매핑 파일을 다시 읽었다. 새 포트의 지표를 만들고, 타겟이 바뀐 포트는 라벨을 바꾼다.
+     * 빠진 포트의 카운터는 남겨둔다(이미 긁어간 값이 갑자기 사라지지 않게).
+     */
+    public void updatePortMap(Map<String, TargetGroup> portMap) {
+        for (Map.Entry<String, TargetGroup> entry : portMap.entrySet()) {
+            String label = groupLabel(entry.getValue());
+            targets.computeIfAbsent(entry.getKey(), port -> new TargetMetrics(port, label)).setTarget(label);
+        }
+        this.portMap = portMap;
+    }
+
+    public void registerGauge(String name, String help, LongSupplier supplier) {
+        samples.add(new Sample(name, help, "gauge", supplier));
+    }
+
+    public void registerCounter(String name, String help, LongSupplier supplier) {
+        samples.add(new Sample(name, help, "counter", supplier));
+    }
+
+    /**
+     * Prometheus text exposition format (version 0.0.4)
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(8 * 1024);
+
+        writeTargetFamily(out, "crazyproxy_active_connections", "Client connections currently open", "gauge",
+                m -> m.getActiveConnections().sum());
+        writeTargetFamily(out, "crazyproxy_connections_total", "Client connections accepted", "counter",
+                m -> m.getConnections().sum());
+        writeTargetFamily(out, "crazyproxy_requests_total", "Requests handled", "counter",
+                m -> m.getRequests().sum());
+        writeTargetFamily(out, "crazyproxy_request_failures_total", "Requests that ended without a complete response", "counter",
+                m -> m.getFailedRequests().sum());
+        writeTargetFamily(out, "crazyproxy_bytes_in_total", "Bytes received from clients", "counter",
+                m -> m.getBytesIn().sum());
+        writeTargetFamily(out, "crazyproxy_bytes_out_total", "Bytes sent to clients", "counter",
+                m -> m.getBytesOut().sum());
+        // 압축률은 out / in 으로 본다
+        writeTargetFamily(out, "crazyproxy_compress_responses_total", "Responses compressed on the fly", "counter",
+                m -> m.getCompressedResponses().sum());
+        writeTargetFamily(out, "crazyproxy_compress_in_bytes_total", "Response body bytes fed to the compressor", "counter",
+                m -> m.getCompressInBytes().sum());
+        writeTargetFamily(out, "crazyproxy_compress_out_bytes_total", "Compressed response body bytes", "counter",
+                m -> m.getCompressOutBytes().sum());
+        writeHeader(out, "crazyproxy_compress_cpu_seconds_total", "Time spent in the deflater", "counter");
+        for (TargetMetrics metrics : targets.values()) {
+            out.append("crazyproxy_compress_cpu_seconds_total");
+            appendLabels(out, metrics, null);
+            out.append(' ').append(metrics.getCompressNanos().sum() / 1e9).append('\n');
+        }
+
+        writeHistogramFamily(out, "crazyproxy_upstream_connect_seconds", "Upstream TCP connect time", TargetMetrics::getConnectTime);
+        writeHistogramFamily(out, "crazyproxy_upstream_tls_handshake_seconds", "Upstream TLS handshake time", TargetMetrics::getTlsHandshakeTime);
+        writeHistogramFamily(out, "crazyproxy_time_to_first_byte_seconds", "Time from request start to first upstream response byte", TargetMetrics::getTimeToFirstByte);
+        writeHistogramFamily(out, "crazyproxy_request_duration_seconds", "Time from request start to last response byte", TargetMetrics::getTotalLatency);
+
+        UpstreamConnectionPool pool = UpstreamConnectionPool.getInstance();
+        writeUpstreamFamily(out, "crazyproxy_upstream_pool_idle", "Idle keep-alive upstream connections", "gauge",
+                pool::getIdleCount);
+        writeUpstreamFamily(out, "crazyproxy_upstream_pool_hits_total", "Requests served by a pooled upstream connection", "counter",
+                socketInfo -> pool.getStats(socketInfo).getHits());
+        writeUpstreamFamily(out, "crazyproxy_upstream_pool_misses_total", "Requests that opened a new upstream connection", "counter",
+                socketInfo -> pool.getStats(socketInfo).getMisses());
+        writeUpstreamFamily(out, "crazyproxy_upstream_pool_expired_total", "Pooled connections closed by idle time or lifetime", "counter",
+                socketInfo -> pool.getStats(socketInfo).getExpired());
+        writeUpstreamFamily(out, "crazyproxy_upstream_pool_unhealthy_total", "Pooled connections found closed on checkout", "counter",
+                socketInfo -> pool.getStats(socketInfo).getUnhealthy());
+
+        writeUpstreamFamily(out, "crazyproxy_upstream_requests_total", "Requests sent to the target by the load balancer", "counter",
+                socketInfo -> socketInfo.getStats().getRequests());
+        writeUpstreamFamily(out, "crazyproxy_upstream_failures_total", "Requests to the target that ended without a complete response", "counter",
+                socketInfo -> socketInfo.getStats().getFailures());
+        writeUpstreamFamily(out, "crazyproxy_upstream_outstanding_requests", "Requests in flight to the target", "gauge",
+                socketInfo -> socketInfo.getStats().getOutstanding());
+        writeHeader(out, "crazyproxy_upstream_peak_ewma_seconds", "Peak EWMA of target response time", "gauge");
+        forEachTarget((port, socketInfo) -> {
+            out.append("crazyproxy_upstream_peak_ewma_seconds");
+            appendLabels(out, port, targetLabel(socketInfo), null);
+            out.append(' ').append(socketInfo.getStats().getEwmaNanos() / 1e9).append('\n');
+        });
+
+        writeUpstreamFamily(out, "crazyproxy_upstream_circuit_state", "Target circuit state. 0 closed, 1 open, 2 half-open", "gauge",
+                socketInfo -> socketInfo.getHealth().getState());
+        writeUpstreamFamily(out, "crazyproxy_upstream_ejections_total", "Times the target circuit was opened", "counter",
+                socketInfo -> socketInfo.getHealth().getEjections());
+
+        ConcurrencyLimits limits = ConcurrencyLimits.getInstance();
+        if (limits.isEnabled()) {
+            writeUpstreamFamily(out, "crazyproxy_upstream_concurrency_limit", "Current adaptive concurrency limit of the target", "gauge",
+                    socketInfo -> limits.forTarget(socketInfo).getLimit());
+            writeUpstreamFamily(out, "crazyproxy_upstream_limit_rejections_total", "Requests rejected with 503 because the target concurrency limit was reached", "counter",
+                    socketInfo -> limits.forTarget(socketInfo).getRejected());
+        }
+
+        for (Sample sample : samples) {
+            writeHeader(out, sample.name, sample.help, sample.type);
+            out.append(sample.name).append(' ').append(sample.supplier.getAsLong()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private void writeTargetFamily(StringBuilder out, String name, String help, String type, ToLongFunction<TargetMetrics> value) {
+        writeHeader(out, name, help, type);
+        for (TargetMetrics metrics : targets.values()) {
+            out.append(name);
+            appendLabels(out, metrics, null);
+            out.append(' ').append(value.applyAsLong(metrics)).append('\n');
+        }
+    }
+
+    private void writeHistogramFamily(StringBuilder out, String name, String help, Function<TargetMetrics, LatencyHistogram> histogramOf) {
+        writeHeader(out, name, help, "histogram");
+        for (TargetMetrics metrics : targets.values()) {
+            LatencyHistogram histogram = histogramOf.apply(metrics);
+            for (int i = 0; i <= LatencyHistogram.BOUNDS_NANOS.length; i++) {
+                String le = i < LatencyHistogram.BOUNDS_NANOS.length ? LatencyHistogram.BOUND_LABELS[i] : "+Inf";
+                out.append(name).append("_bucket");
+                appendLabels(out, metrics, le);
+                out.append(' ').append(histogram.getCumulativeCount(i)).append('\n');
+            }
+            out.append(name).append("_sum");
+            appendLabels(out, metrics, null);
+            out.append(' ').append(histogram.getSumNanos() / 1e9).append('\n');
+            out.append(name).append("_count");
+            appendLabels(out, metrics, null);
+            out.append(' ').append(histogram.getCount()).append('\n');
+        }
+    }
+
+    /**
+     * 타겟 하나마다 한 줄. 라벨은 포트와 그 타겟.
+     */
+    private void writeUpstreamFamily(StringBuilder out, String name, String help, String type, ToLongFunction<SocketInfo> value) {
+        writeHeader(out, name, help, type);
+        forEachTarget((port, socketInfo) -> {
+            out.append(name);
+            appendLabels(out, port, targetLabel(socketInfo), null);
+            out.append(' ').append(value.applyAsLong(socketInfo)).append('\n');
+        });
+    }
+
+    private void forEachTarget(BiConsumer<String, SocketInfo> action) {
+        for (Map.Entry<String, TargetGroup> entry : portMap.entrySet()) {
+            for (SocketInfo socketInfo : entry.getValue().getTargets()) {
+                action.accept(entry.getKey(), socketInfo);
+            }
+        }
+    }
+
+    private static void writeHeader(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void appendLabels(StringBuilder out, TargetMetrics metrics, String le) {
+        appendLabels(out, metrics.getPort(), metrics.getTarget(), le);
+    }
+
+    private static void appendLabels(StringBuilder out, String port, String target, String le) {
+        out.append("{port=\"").append(port).append("\",target=\"");
+        appendEscaped(out, target);
+        out.append('"');
+        if (le != null) {
+            out.append(",le=\"").append(le).append('"');
+        }
+        out.append('}');
+    }
+
+    private static void appendEscaped(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    private static String groupLabel(TargetGroup group) {
+        StringBuilder label = new StringBuilder();
+        for (SocketInfo socketInfo : group.getTargets()) {
+            if (label.length() > 0) {
+                label.append(',');
+            }
+            label.append(targetLabel(socketInfo));
+        }
+        return label.toString();
+    }
+
+    private static String targetLabel(SocketInfo socketInfo) {
+        return (socketInfo.isHttps() ? "https://" : "http://") + socketInfo.getInetSocketAddress().getHostString()
+                + ":" + socketInfo.getInetSocketAddress().getPort() + socketInfo.getPath();
+    }
+
+    private static final class Sample {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final LongSupplier supplier;
+
+        private Sample(String name, String help, String type, LongSupplier supplier) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.supplier = supplier;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.crazyproxy.metrics;
+
+import lombok.Getter;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 매핑된 포트(= 타겟) 하나의 지표. 커넥션을 처리하는 쪽이 커넥션 시작할 때 한 번 찾아서 들고 다니며 기록한다.
+ * 카운터는 전부 LongAdder(스트라이프 카운터)라 리액터/블로킹 스레드가 동시에 기록해도 경합이 적다.
+ * 초당 요청 수는 requests 카운터를 Prometheus에서 rate()로 본다.
+ */
+@Getter
+public class TargetMetrics {
+
+    private final String port;
+    // 매핑을 다시 읽어서 포트의 타겟이 바뀌면 라벨만 바꾸고 카운터는 이어서 센다
+    private volatile String target;
+
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failedRequests = new LongAdder();
+    // 클라에게서 받은 바이트 / 클라에게 보낸 바이트
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    // 압축해서 보낸 응답 수, 압축 전 / 후 바디 바이트, Deflater에서 쓴 시간
+    private final LongAdder compressedResponses = new LongAdder();
+    private final LongAdder compressInBytes = new LongAdder();
+    private final LongAdder compressOutBytes = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+
+    private final LatencyHistogram connectTime = new LatencyHistogram();
+    private final LatencyHistogram tlsHandshakeTime = new LatencyHistogram();
+    private final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+    private final LatencyHistogram totalLatency = new LatencyHistogram();
+
+    TargetMetrics(String port, String target) {
+        this.port = port;
+        this.target = target;
+    }
+
+    void setTarget(String target) {
+        this.target = target;
+    }
+
+    public void connectionOpened() {
+        connections.increment();
+        activeConnections.increment();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    /**
+     * 요청 하나가 끝났다.
+     * @param completed 응답을 끝까지 받았으면 true. 중간에 실패했으면 false
+     */
+    public void recordRequest(long elapsedNanos, boolean completed) {
+        requests.increment();
+        if (completed) {
+            totalLatency.record(elapsedNanos);
+        } else {
+            failedRequests.increment();
+        }
+    }
+
+    public void addBytesIn(long bytes) {
+        bytesIn.add(bytes);
+    }
+
+    public void addBytesOut(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    public void responseCompressed() {
+        compressedResponses.increment();
+    }
+
+    public void addCompressed(long inBytes, long outBytes, long elapsedNanos) {
+        compressInBytes.add(inBytes);
+        compressOutBytes.add(outBytes);
+        compressNanos.add(elapsedNanos);
+    }
+}
@@ -0,0 +1,152 @@
+package org.crazyproxy.nio;
+
+import lombok.extern.slf4j.Slf4j;
+import org.crazyproxy.balance.TargetGroup;
+import org.crazyproxy.config.ClientWorkConfig;
+import org.crazyproxy.handler.AcceptHandler;
+import org.crazyproxy.handler.NioHandler;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 리스닝 포트만 담당하는 boss 스레드. accept만 하고 채널은 ConnectionDispatcher에 넘긴다.
+ * 매핑을 다시 읽으면 reconcilePorts로 깨워서 RoutingTable에 새로 생긴 포트는 열고 빠진 포트는 닫는다.
+ * 포트를 닫아도 이미 받은 커넥션은 그대로 두고, 하던 응답이 끝나면 각 핸들러가 닫는다.
+ */
+@Slf4j
+public class AcceptorThread extends Thread {
+
+    boolean bStop = false;
+    private volatile Selector selector;
+    private final ConnectionDispatcher dispatcher;
+    private final ClientWorkConfig clientWorkConfig = ClientWorkConfig.getInstance();
+    // 열어둔 포트. 이 스레드에서만 만진다
+    private final Map<String, ServerSocketChannel> listening = new HashMap<>();
+    private final AtomicBoolean portsChanged = new AtomicBoolean();
+    private AcceptHandler acceptHandler;
+
+    public AcceptorThread(ConnectionDispatcher dispatcher) {
+        super("acceptor");
+        this.dispatcher = dispatcher;
+    }
+
+    public void run() {
+
+        try {
+            selector = Selector.open();
+
+            // 지정된 포트로 서버 열기
+            openPorts();
+
+        } catch (IOException e) {
+            log.error("port accept IOException. please check portMap configuration",e);
+            throw new RuntimeException(e);
+        }
+
+        while (!bStop) {
+
+            Set<SelectionKey> selectionKeys = null;
+
+            try {
+                selector.select();
+
+                if (portsChanged.getAndSet(false)) {
+                    syncPorts();
+                }
+
+                selectionKeys = selector.selectedKeys();
+
+                for (SelectionKey selectionKey : selectionKeys) {
+                    if (selectionKey.isValid() && selectionKey.isAcceptable()) {
+                        NioHandler socketHandler = (NioHandler) selectionKey.attachment();
+                        socketHandler.handle(selectionKey);
+                    }
+                }
+
+                selectionKeys.clear();
+
+            } catch (IOException e) {
+                if (selectionKeys != null) {
+                    selectionKeys.clear();
+                }
+                log.error("accept error!", e);
+            }
+
+        }
+
+    }
+
+    /**
+     * RoutingTable이 바뀌었다. 아무 스레드에서나 불러도 된다. 실제로 열고 닫는 건 acceptor 스레드가 한다.
+     */
+    public void reconcilePorts() {
+        portsChanged.set(true);
+        Selector current = selector;
+        if (current != null) {
+            current.wakeup();
+        }
+    }
+
+    private void openPorts() throws IOException {
+        log.info("Listening port setting start");
+        Map<String, TargetGroup> portMap = clientWorkConfig.getPortMap();
+        acceptHandler = new AcceptHandler(dispatcher);
+        for (String port : portMap.keySet()) {
+            openPort(port);
+            log.info("Listening on port = {}, {}", port, portMap.get(port));
+        }
+        log.info("Listening on all ports and targets");
+    }
+
+    private void openPort(String port) throws IOException {
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        try {
+            serverSocketChannel.socket().bind(new InetSocketAddress(Integer.parseInt(port)));
+            serverSocketChannel.configureBlocking(false);
+            SelectionKey register = serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+            register.attach(acceptHandler);
+        } catch (IOException e) {
+            serverSocketChannel.close();
+            throw e;
+        }
+        listening.put(port, serverSocketChannel);
+    }
+
+    /**
+     * 열어둔 포트를 지금 RoutingTable에 맞춘다. 여는 데 실패한 포트는 로그만 남기고 다음 reload 때 다시 시도한다.
+     */
+    private void syncPorts() {
+        Map<String, TargetGroup> portMap = clientWorkConfig.getPortMap();
+        listening.entrySet().removeIf(entry -> {
+            if (portMap.containsKey(entry.getKey())) {
+                return false;
+            }
+            try {
+                entry.getValue().close();
+                log.info("Stop listening on port = {}. accepted connections drain", entry.getKey());
+            } catch (IOException e) {
+                log.warn("listening port close fail. port = {}", entry.getKey(), e);
+            }
+            return true;
+        });
+        for (Map.Entry<String, TargetGroup> entry : portMap.entrySet()) {
+            if (listening.containsKey(entry.getKey())) {
+                continue;
+            }
+            try {
+                openPort(entry.getKey());
+                log.info("Listening on port = {}, {}", entry.getKey(), entry.getValue());
+            } catch (IOException | RuntimeException e) {
+                log.error("port open fail. port = {}", entry.getKey(), e);
+            }
+        }
+    }
+}
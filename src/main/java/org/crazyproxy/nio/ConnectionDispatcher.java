@@ -0,0 +1,39 @@
+package org.crazyproxy.nio;
+
+import org.crazyproxy.blocking.BlockingConnectionGroup;
+import org.crazyproxy.config.MainConfig;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * AcceptorThread가 받은 클라 채널을 어디서 처리할지 정하는 곳.
+ * executionMode 설정에 따라 리액터(ReactorGroup)나 커넥션당 스레드(BlockingConnectionGroup)로 나뉜다.
+ */
+public interface ConnectionDispatcher {
+
+    String REACTOR = "reactor";
+    String PLATFORM = "platform";
+    String VIRTUAL = "virtual";
+
+    void start();
+
+    /**
+     * acceptor 스레드에서 불린다. 오래 걸리는 일을 하면 안 됨.
+     */
+    void dispatch(SocketChannel channel) throws IOException;
+
+    static ConnectionDispatcher create(MainConfig mainConfig) throws IOException {
+        String executionMode = mainConfig.getExecutionMode();
+        if (executionMode == null || REACTOR.equalsIgnoreCase(executionMode)) {
+            return new ReactorGroup(mainConfig.getReactorCount(), mainConfig.getReactorBalance());
+        }
+        if (PLATFORM.equalsIgnoreCase(executionMode)) {
+            return BlockingConnectionGroup.platform(mainConfig.getWorkerCount(), mainConfig.getWorkerQueueSize());
+        }
+        if (VIRTUAL.equalsIgnoreCase(executionMode)) {
+            return BlockingConnectionGroup.virtual();
+        }
+        throw new IllegalArgumentException("Unknown executionMode: " + executionMode);
+    }
+}
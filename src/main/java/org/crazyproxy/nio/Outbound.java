@@ -0,0 +1,32 @@
+package org.crazyproxy.nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 클라에게 나갈 응답 바이트를 받는 쪽. 리액터 스레드에서만 쓴다.
+ * HTTP/1.x 커넥션이면 채널에 바로 쓰는 OutboundQueue, 클라 h2 커넥션이면 스트림 하나(Http2ServerStream)다.
+ */
+public interface Outbound {
+
+    /**
+     * src를 쓴다. 어느 경우든 src는 다 소비된다.
+     * @return 못 보내고 밀린 게 남아 있으면 true
+     */
+    boolean write(ByteBuffer src) throws IOException;
+
+    /**
+     * 밀린 바이트를 보낼 수 있는 만큼 보낸다.
+     * @return 밀린 게 없으면 true
+     */
+    boolean flush() throws IOException;
+
+    boolean isEmpty();
+
+    long getPendingBytes();
+
+    /**
+     * 못 보낸 바이트는 버리고 버퍼를 돌려준다.
+     */
+    void clear();
+}
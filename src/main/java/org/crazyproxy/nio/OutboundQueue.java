@@ -0,0 +1,144 @@
+package org.crazyproxy.nio;
+
+import org.crazyproxy.buffer.BufferPool;
+import org.crazyproxy.buffer.PooledBuffer;
+import org.crazyproxy.ssl.TlsServerSession;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * 논블로킹 채널 하나로 나갈 바이트 큐. 리액터 스레드에서만 쓴다.
+ * 바로 써보고 커널 버퍼가 차서 못 쓴 나머지만 BufferPool 버퍼에 옮겨 담아 두었다가 OP_WRITE가 오면 flush로 마저 쓴다.
+ * 쓰기를 못 끝냈다고 스레드가 write를 반복 호출하며 도는 일은 없다.
+ *
+ * 쌓인 바이트가 highWaterMark 이상이면 반대편 읽기를 멈추고, lowWaterMark 이하로 빠지면 다시 읽는다. 판단은 쓰는 쪽(ClientWorker)이 한다.
+ *
+ * TLS로 받은 클라 커넥션이면 write에서 레코드로 싸서 쓴다. 큐에 쌓이는 건 암호화된 바이트다.
+ */
+public class OutboundQueue implements Outbound {
+
+    // 큐 버퍼 하나의 최대 크기. 넘으면 여러 개로 나눠 담는다.
+    private static final int MAX_CHUNK_SIZE = 256 * 1024;
+    // TLS 레코드를 한 번에 몇 개까지 싸서 쓸지. 평문 16KB씩
+    private static final int MAX_RECORDS_PER_WRITE = 4;
+    private static final int MAX_RECORD_PLAINTEXT = 16 * 1024;
+
+    private final SocketChannel channel;
+    private final TlsServerSession tls;
+    private final ArrayDeque<PooledBuffer> pending = new ArrayDeque<>();
+    private long pendingBytes;
+
+    public OutboundQueue(SocketChannel channel) {
+        this(channel, null);
+    }
+
+    /**
+     * @param tls 클라 쪽 TLS 세션. 평문 커넥션이면 null
+     */
+    public OutboundQueue(SocketChannel channel, TlsServerSession tls) {
+        this.channel = channel;
+        this.tls = tls;
+    }
+
+    /**
+     * src를 쓴다. 앞에 밀린 게 없으면 채널에 바로 쓰고, 못 쓴 나머지는 큐에 복사해 둔다.
+     * 어느 경우든 src는 다 소비된다.
+     * @return 큐에 밀린 게 남아 있으면 true. OP_WRITE를 걸어야 한다
+     */
+    @Override
+    public boolean write(ByteBuffer src) throws IOException {
+        if (tls != null) {
+            writeEncrypted(src);
+            return !pending.isEmpty();
+        }
+        if (pending.isEmpty()) {
+            channel.write(src);
+        }
+        while (src.hasRemaining()) {
+            int length = Math.min(src.remaining(), MAX_CHUNK_SIZE);
+            PooledBuffer chunk = BufferPool.getInstance().acquire(length);
+            ByteBuffer chunkBuffer = chunk.getBuffer();
+            chunkBuffer.put(chunkBuffer.position(), src, src.position(), length);
+            chunkBuffer.limit(length);
+            src.position(src.position() + length);
+            pending.addLast(chunk);
+            pendingBytes += length;
+        }
+        return !pending.isEmpty();
+    }
+
+    /**
+     * 레코드 몇 개씩 풀 버퍼에 싸서 바로 써보고, 못 쓴 버퍼는 복사 없이 그대로 큐에 붙인다.
+     */
+    private void writeEncrypted(ByteBuffer src) throws IOException {
+        int packetSize = tls.getPacketBufferSize();
+        do {
+            int records = Math.max(1, Math.min(MAX_RECORDS_PER_WRITE, (src.remaining() + MAX_RECORD_PLAINTEXT - 1) / MAX_RECORD_PLAINTEXT));
+            PooledBuffer chunk = BufferPool.getInstance().acquire(packetSize * records);
+            ByteBuffer chunkBuffer = chunk.getBuffer();
+            try {
+                do {
+                    tls.wrap(src, chunkBuffer);
+                } while ((src.hasRemaining() || tls.needsWrap()) && chunkBuffer.remaining() >= packetSize);
+            } catch (IOException | RuntimeException e) {
+                chunk.release();
+                throw e;
+            }
+            chunkBuffer.flip();
+            if (pending.isEmpty()) {
+                channel.write(chunkBuffer);
+            }
+            if (chunkBuffer.hasRemaining()) {
+                pending.addLast(chunk);
+                pendingBytes += chunkBuffer.remaining();
+            } else {
+                chunk.release();
+            }
+        } while (src.hasRemaining() || tls.needsWrap());
+    }
+
+    /**
+     * 밀린 바이트를 쓸 수 있는 만큼 쓴다. 다 쓴 버퍼는 바로 풀에 돌려준다.
+     * @return 큐가 비었으면 true
+     */
+    @Override
+    public boolean flush() throws IOException {
+        while (!pending.isEmpty()) {
+            PooledBuffer head = pending.peekFirst();
+            ByteBuffer headBuffer = head.getBuffer();
+            int written = channel.write(headBuffer);
+            pendingBytes -= written;
+            if (headBuffer.hasRemaining()) {
+                return false;
+            }
+            pending.pollFirst();
+            head.release();
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    @Override
+    public long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * 커넥션을 닫을 때. 못 쓴 바이트는 버리고 버퍼를 돌려준다.
+     */
+    @Override
+    public void clear() {
+        PooledBuffer chunk;
+        while ((chunk = pending.pollFirst()) != null) {
+            chunk.release();
+        }
+        pendingBytes = 0;
+    }
+}
@@ -0,0 +1,74 @@
+package org.crazyproxy.nio;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * I/O 리액터(SelectorThread) 묶음. acceptor가 받은 채널을 어느 리액터에 줄지 정한다.
+ * round-robin: 순서대로 돌아가며 분배
+ * least-load: 채널을 가장 적게 들고 있는 리액터에 분배
+ */
+@Slf4j
+public class ReactorGroup implements ConnectionDispatcher {
+
+    public static final String ROUND_ROBIN = "round-robin";
+    public static final String LEAST_LOAD = "least-load";
+
+    private final SelectorThread[] reactors;
+    private final boolean leastLoad;
+    private final AtomicInteger nextIndex = new AtomicInteger();
+
+    public ReactorGroup(int reactorCount, String balance) throws IOException {
+        if (reactorCount <= 0) {
+            reactorCount = Runtime.getRuntime().availableProcessors();
+        }
+        reactors = new SelectorThread[reactorCount];
+        for (int i = 0; i < reactorCount; i++) {
+            reactors[i] = new SelectorThread("reactor-" + i);
+        }
+
+        if (LEAST_LOAD.equalsIgnoreCase(balance)) {
+            leastLoad = true;
+        } else if (balance == null || ROUND_ROBIN.equalsIgnoreCase(balance)) {
+            leastLoad = false;
+        } else {
+            throw new IllegalArgumentException("Unknown reactorBalance: " + balance);
+        }
+        log.info("Reactor group. reactors = {}, balance = {}", reactorCount, leastLoad ? LEAST_LOAD : ROUND_ROBIN);
+    }
+
+    @Override
+    public void start() {
+        for (SelectorThread reactor : reactors) {
+            reactor.start();
+        }
+    }
+
+    @Override
+    public void dispatch(SocketChannel channel) {
+        next().register(channel);
+    }
+
+    /**
+     * 새 커넥션을 맡을 리액터를 고른다.
+     */
+    public SelectorThread next() {
+        int start = Math.floorMod(nextIndex.getAndIncrement(), reactors.length);
+        if (!leastLoad) {
+            return reactors[start];
+        }
+
+        // 동점이면 round-robin 순서상 앞에 있는 리액터로. 한 리액터에 몰리지 않게 시작점을 돌린다.
+        SelectorThread selected = reactors[start];
+        for (int i = 1; i < reactors.length; i++) {
+            SelectorThread candidate = reactors[(start + i) % reactors.length];
+            if (candidate.getLoad() < selected.getLoad()) {
+                selected = candidate;
+            }
+        }
+        return selected;
+    }
+}
@@ -1,91 +1,121 @@
 package org.crazyproxy.nio;
 
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.crazyproxy.config.ClientWorkConfig;
-import org.crazyproxy.config.SocketInfo;
-import org.crazyproxy.handler.AcceptHandler;
-import org.crazyproxy.handler.CustomeThread;
+import org.crazyproxy.handler.ClientHandler;
 import org.crazyproxy.handler.NioHandler;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
-import java.nio.channels.ServerSocketChannel;
-import java.util.Map;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Client와 직접 통신하는 서버 스레드
+ * Client와 직접 통신하는 I/O 리액터 스레드. ReactorGroup이 코어 수만큼 띄운다.
+ * AcceptorThread가 accept한 채널을 넘겨받아 자기 셀렉터에 등록하고,
+ * 한 번 등록된 커넥션은 끝날 때까지 이 리액터에서만 처리된다.
+ * 클라 채널과 그 요청의 업스트림 채널이 같은 셀렉터에 있고, 키 이벤트는 attachment(NioHandler)가 이 스레드에서 바로 처리한다.
+ * 연결, 핸드셰이크, 헤더, idle, 요청 타임아웃은 전부 이 리액터의 TimerWheel에 건다. 리액터마다 바퀴가 따로라 락이 없다.
  */
 @Slf4j
 public class SelectorThread extends Thread {
 
+    private static final int MIN_APP_BUFFER_SIZE = 64 * 1024;
+    // 걸린 타이머가 없어도 이만큼마다는 깨어난다
+    private static final long MAX_SELECT_TIMEOUT = 1000;
+    private static final long TIMER_TICK = 10;
+
     boolean bStop = false;
-    private Selector selector;
-    private final ExecutorService executor;
-    private final ClientWorkConfig clientWorkConfig = ClientWorkConfig.getInstance();
-
-    public SelectorThread() {
-        ThreadFactory threadFactory = new ThreadFactory() {
-
-            @Override
-            public Thread newThread(Runnable r) {
-                Thread thread = new CustomeThread(r);
-                thread.setDaemon(true);
-                return thread;
-            }
-        };
-        executor = Executors.newFixedThreadPool(clientWorkConfig.getWorkerCount(), threadFactory);
+    @Getter
+    private final Selector selector;
+    private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // schedule로 건 지연 작업. 리액터 스레드에서만 만진다.
+    private final TimerWheel timerWheel = new TimerWheel(TIMER_TICK);
+    private final AtomicInteger load = new AtomicInteger();
+
+    // 리액터 스레드 전용 임시 다이렉트 버퍼. 이벤트 하나 처리하는 동안만 쓰고 비운다.
+    // appBuffer는 TLS 레코드 하나(평문 최대 16KB)가 항상 풀려야 하므로 최소 크기를 보장한다.
+    @Getter
+    private final ByteBuffer readBuffer;
+    @Getter
+    private final ByteBuffer appBuffer;
+
+    public SelectorThread(String name) throws IOException {
+        super(name);
+        this.selector = Selector.open();
+        ClientWorkConfig clientWorkConfig = ClientWorkConfig.getInstance();
+        int bufferSize = clientWorkConfig.getBufferSize();
+        this.readBuffer = ByteBuffer.allocateDirect(bufferSize);
+        this.appBuffer = ByteBuffer.allocateDirect(Math.max(bufferSize, MIN_APP_BUFFER_SIZE));
     }
 
-    public void run() {
+    /**
+     * 다른 스레드(acceptor)에서 호출된다. 셀렉터 등록은 리액터 스레드에서 해야 하므로 큐에 넣고 깨운다.
+     */
+    public void register(SocketChannel channel) {
+        load.incrementAndGet();
+        pendingChannels.offer(channel);
+        selector.wakeup();
+    }
 
-        try {
-            selector = Selector.open();
+    /**
+     * 다른 스레드에서 이 리액터 스레드로 작업을 넘긴다. 다음 루프에서 실행된다.
+     */
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    /**
+     * delayMillis 뒤에 이 리액터 스레드에서 작업을 돌린다. 리액터 스레드에서만 불러야 한다.
+     * 만기는 TIMER_TICK 단위로 올림한다. 필요 없어지면 돌려받은 Timeout을 cancel 한다.
+     */
+    public TimerWheel.Timeout schedule(Runnable task, long delayMillis) {
+        return timerWheel.schedule(task, delayMillis);
+    }
 
-            // 지정된 포트로 서버 열기
-            openPorts();
+    /**
+     * 이 리액터가 맡고 있는 채널 수(대략). least-load 분배에 쓴다.
+     */
+    public int getLoad() {
+        return load.get();
+    }
 
-        } catch (IOException e) {
-            log.error("port accept IOException. please check portMap configuration",e);
-            throw new RuntimeException(e);
-        }
+    public void run() {
 
         while (!bStop) {
 
             Set<SelectionKey> selectionKeys = null;
 
             try {
-                selector.select();
+                long timeout = selectTimeout();
+                if (timeout > 0) {
+                    selector.select(timeout);
+                } else {
+                    selector.selectNow();
+                }
 
-                selectionKeys = selector.selectedKeys();
+                registerPendingChannels();
+                runTasks();
+                timerWheel.advance(System.nanoTime());
 
+                selectionKeys = selector.selectedKeys();
 
                 for (SelectionKey selectionKey : selectionKeys) {
-
-                    if (selectionKey.isValid() && selectionKey.isAcceptable()) {
-                        NioHandler socketHandler = (NioHandler) selectionKey.attachment();
-                        socketHandler.handle(selectionKey);
-                    } else if (selectionKey.isValid() && selectionKey.isReadable()) {
-                        NioHandler socketHandler = (NioHandler) selectionKey.attachment();
-
-                        executor.execute(() -> {
-                            try {
-                                if (selectionKey.channel().isOpen()){
-                                    socketHandler.handle(selectionKey);
-                                }
-                            } catch (IOException e) {
-                                throw new RuntimeException(e);
-                            }
-                        });
+                    if (selectionKey.isValid()) {
+                        dispatch(selectionKey);
                     }
                 }
 
                 selectionKeys.clear();
+                load.set(selector.keys().size() + pendingChannels.size());
 
             } catch (IOException e) {
                 if (selectionKeys != null) {
@@ -99,19 +129,52 @@ public class SelectorThread extends Thread {
 
     }
 
-    private void openPorts() throws IOException {
-        log.info("Listening port setting start");
-        Map<String, SocketInfo> portMap = clientWorkConfig.getPortMap();
-        for (String port : clientWorkConfig.getPortMapKeySet()) {
-            ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
-            serverSocketChannel.socket().bind(new InetSocketAddress(Integer.parseInt(port)));
-            serverSocketChannel.configureBlocking(false);
-            SelectionKey register = serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
-            register.attach(new AcceptHandler());
-            SocketInfo socketInfo = portMap.get(port);
-            log.info("Listening on port = {}, target = {}, path = {}", port, socketInfo.getInetSocketAddress().toString(), socketInfo.getPath());
+    private void dispatch(SelectionKey selectionKey) {
+        NioHandler socketHandler = (NioHandler) selectionKey.attachment();
+        if (socketHandler == null) {
+            // 풀에 반납된 업스트림 커넥션의 키. 관심이 꺼져 있어야 정상이다.
+            selectionKey.interestOps(0);
+            return;
+        }
+        try {
+            socketHandler.handle(selectionKey);
+        } catch (IOException | RuntimeException e) {
+            log.error("handler error. close channel", e);
+            selectionKey.cancel();
+            socketHandler.onClose();
+            try {
+                selectionKey.channel().close();
+            } catch (IOException ignored) {
+                // 닫는 중 에러는 무시
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("reactor task error", e);
+            }
+        }
+    }
+
+    /**
+     * 가장 빠른 타이머 만기까지 남은 시간(ms). 없으면 MAX_SELECT_TIMEOUT만큼 기다린다.
+     */
+    private long selectTimeout() {
+        return timerWheel.millisUntilNext(System.nanoTime(), MAX_SELECT_TIMEOUT);
+    }
 
+    private void registerPendingChannels() throws IOException {
+        SocketChannel channel;
+        while ((channel = pendingChannels.poll()) != null) {
+            SelectionKey clientKey = channel.register(selector, SelectionKey.OP_READ);
+            ClientHandler handler = new ClientHandler(this);
+            clientKey.attach(handler);
+            handler.onRegistered(clientKey);
         }
-        log.info("Listening on all ports and targets");
     }
 }
@@ -0,0 +1,194 @@
+package org.crazyproxy.nio;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 리액터 하나의 타이머 (hashed timing wheel). 리액터 스레드에서만 만진다.
+ * 슬롯 WHEEL_SIZE 개짜리 바퀴를 tick마다 한 칸씩 돌리고, 지나간 칸에 걸린 Timeout 중 만기가 된 것을 돌린다.
+ * 바퀴 한 바퀴보다 먼 만기는 같은 칸에 걸어 두고 칸을 지날 때마다 만기 tick만 비교해서 넘긴다.
+ *
+ * 걸기와 취소는 칸의 이중 연결 리스트에 넣고 빼는 것뿐이라 O(1)이다. 커넥션마다 거는 타임아웃은 대부분 만기 전에 취소되므로 이게 중요하다.
+ * 대신 만기는 tick 단위로 올림한다. 늦으면 tick 만큼 늦고 빠르지는 않다.
+ */
+@Slf4j
+public final class TimerWheel {
+
+    private static final int WHEEL_SIZE = 512;
+    private static final int MASK = WHEEL_SIZE - 1;
+
+    private final long tickNanos;
+    private final long startedAt = System.nanoTime();
+    private final Slot[] slots = new Slot[WHEEL_SIZE];
+    // 만기가 된 것들을 모아 두고 돌린다. 돌리는 중에 다른 Timeout을 취소하거나 새로 걸어도 되게
+    private final List<Timeout> expired = new ArrayList<>();
+    // 아직 처리하지 않은 첫 tick
+    private long tick;
+    private int size;
+
+    public TimerWheel(long tickMillis) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    /**
+     * delayMillis 뒤에 task를 돌린다.
+     * @return 필요 없어지면 cancel 할 수 있는 핸들
+     */
+    public Timeout schedule(Runnable task, long delayMillis) {
+        long deadline = System.nanoTime() - startedAt + TimeUnit.MILLISECONDS.toNanos(Math.max(delayMillis, 0));
+        long expireTick = Math.max((deadline + tickNanos - 1) / tickNanos, tick);
+        Timeout timeout = new Timeout(this, task, expireTick);
+        slots[(int) (expireTick & MASK)].add(timeout);
+        size++;
+        return timeout;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 지금까지 지난 tick을 전부 처리한다. 만기가 된 Timeout을 돌리고 개수를 돌려준다.
+     */
+    public int advance(long nowNanos) {
+        long target = (nowNanos - startedAt) / tickNanos;
+        if (target < tick) {
+            return 0;
+        }
+        // 한 바퀴 넘게 못 돌았으면 칸마다 한 번씩만 보면 된다
+        long last = Math.min(target, tick + MASK);
+        for (long t = tick; t <= last; t++) {
+            slots[(int) (t & MASK)].collect(target, expired);
+        }
+        tick = target + 1;
+
+        int count = expired.size();
+        for (int i = 0; i < count; i++) {
+            Timeout timeout = expired.get(i);
+            if (timeout.state != Timeout.EXPIRED) {
+                // 앞에서 돈 작업이 취소했다
+                continue;
+            }
+            try {
+                timeout.task.run();
+            } catch (RuntimeException e) {
+                log.error("reactor timer task error", e);
+            }
+        }
+        expired.clear();
+        return count;
+    }
+
+    /**
+     * 다음 만기까지 남은 시간(ms). 걸린 게 없거나 maxMillis 안에 없으면 maxMillis.
+     * 칸에는 다음 바퀴 것도 섞여 있으므로 이르게 나올 수는 있다. 그때는 깨어나서 advance 하고 다시 잰다.
+     */
+    public long millisUntilNext(long nowNanos, long maxMillis) {
+        if (size == 0) {
+            return maxMillis;
+        }
+        long maxTicks = Math.min(TimeUnit.MILLISECONDS.toNanos(maxMillis) / tickNanos + 1, WHEEL_SIZE);
+        for (long t = tick; t < tick + maxTicks; t++) {
+            if (!slots[(int) (t & MASK)].isEmpty()) {
+                long remaining = startedAt + t * tickNanos - nowNanos;
+                return Math.min(maxMillis, Math.max(0, TimeUnit.NANOSECONDS.toMillis(remaining + 999_999)));
+            }
+        }
+        return maxMillis;
+    }
+
+    /**
+     * 건 타이머 하나. cancel은 몇 번 불려도 되고, 이미 돈 뒤에 불려도 된다.
+     */
+    public static final class Timeout {
+
+        private static final int PENDING = 0;
+        private static final int EXPIRED = 1;
+        private static final int CANCELLED = 2;
+
+        private final TimerWheel wheel;
+        private final Runnable task;
+        private final long expireTick;
+        private int state = PENDING;
+        private Slot slot;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(TimerWheel wheel, Runnable task, long expireTick) {
+            this.wheel = wheel;
+            this.task = task;
+            this.expireTick = expireTick;
+        }
+
+        public void cancel() {
+            if (state == PENDING) {
+                slot.remove(this);
+                wheel.size--;
+            }
+            state = CANCELLED;
+        }
+
+        public boolean isPending() {
+            return state == PENDING;
+        }
+    }
+
+    private static final class Slot {
+        private Timeout head;
+        private Timeout tail;
+
+        boolean isEmpty() {
+            return head == null;
+        }
+
+        void add(Timeout timeout) {
+            timeout.slot = this;
+            timeout.prev = tail;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev == null) {
+                head = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.prev;
+            } else {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.slot = null;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+
+        /**
+         * 만기 tick이 nowTick 이하인 것을 빼서 expired에 담는다. 다음 바퀴 것은 남긴다.
+         */
+        void collect(long nowTick, List<Timeout> expired) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.expireTick <= nowTick) {
+                    remove(timeout);
+                    timeout.wheel.size--;
+                    timeout.state = Timeout.EXPIRED;
+                    expired.add(timeout);
+                }
+                timeout = next;
+            }
+        }
+    }
+}
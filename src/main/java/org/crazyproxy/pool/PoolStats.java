@@ -0,0 +1,52 @@
+package org.crazyproxy.pool;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 커넥션 풀 통계. 타겟별로 하나씩 있다.
+ */
+public class PoolStats {
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder released = new LongAdder();
+    final LongAdder expired = new LongAdder();
+    final LongAdder unhealthy = new LongAdder();
+    final LongAdder overflow = new LongAdder();
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getReleased() {
+        return released.sum();
+    }
+
+    public long getExpired() {
+        return expired.sum();
+    }
+
+    public long getUnhealthy() {
+        return unhealthy.sum();
+    }
+
+    public long getOverflow() {
+        return overflow.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "PoolStats{" +
+                "hits=" + getHits() +
+                ", misses=" + getMisses() +
+                ", released=" + getReleased() +
+                ", expired=" + getExpired() +
+                ", unhealthy=" + getUnhealthy() +
+                ", overflow=" + getOverflow() +
+                '}';
+    }
+}
@@ -0,0 +1,146 @@
+package org.crazyproxy.pool;
+
+import lombok.Getter;
+import org.crazyproxy.config.SocketInfo;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 업스트림 커넥션 한 개. https 타겟이면 핸드셰이크가 끝난 SSLEngine도 같이 들고 있는다.
+ * 풀에서 꺼낼 때 isHealthy로 본다. TLS 커넥션이 노는 동안 받은 세션 티켓 같은 레코드는 엔진에 먹여서 버리지 않는다.
+ */
+@Getter
+public class PooledConnection {
+
+    // 헬스체크용 1바이트 버퍼. 체크아웃은 리액터 스레드에서 하므로 스레드마다 하나씩 둔다.
+    private static final ThreadLocal<ByteBuffer> PROBE = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(1));
+
+    private final SocketInfo socketInfo;
+    private final SocketChannel channel;
+    private final SSLEngine sslEngine;
+    private final long createdAt;
+    private long lastUsedAt;
+
+    public PooledConnection(SocketInfo socketInfo, SocketChannel channel, SSLEngine sslEngine) {
+        this.socketInfo = socketInfo;
+        this.channel = channel;
+        this.sslEngine = sslEngine;
+        this.createdAt = System.currentTimeMillis();
+        this.lastUsedAt = createdAt;
+    }
+
+    void touch() {
+        lastUsedAt = System.currentTimeMillis();
+    }
+
+    boolean isExpired(long now, long maxIdleTime, long maxLifetime) {
+        return now - lastUsedAt > maxIdleTime || now - createdAt > maxLifetime;
+    }
+
+    /**
+     * 체크아웃 직전 헬스체크. 놀고 있는 커넥션에서 읽히는 게 있으면 안 된다.
+     * -1이면 서버가 끊은 것이고, 데이터가 있으면 앞 응답의 찌꺼기라 재사용하면 응답이 꼬인다.
+     * TLS 커넥션은 읽힌 바이트를 probeTls에서 SSLEngine에 먹여 보고 판단한다.
+     * 블로킹 실행 방식의 채널은 잠깐 논블로킹으로 바꿔서 본다. 셀렉터에 등록된 적이 없으므로 바꿀 수 있다.
+     */
+    boolean isHealthy() {
+        if (!channel.isOpen() || !channel.isConnected()) {
+            return false;
+        }
+        if (sslEngine != null && (sslEngine.isInboundDone() || sslEngine.isOutboundDone())) {
+            return false;
+        }
+        try {
+            if (!channel.isBlocking()) {
+                return probe();
+            }
+            channel.configureBlocking(false);
+            try {
+                return probe();
+            } finally {
+                channel.configureBlocking(true);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private boolean probe() throws IOException {
+        ByteBuffer probe = PROBE.get();
+        probe.clear();
+        int read = channel.read(probe);
+        if (read == 0) {
+            return true;
+        }
+        if (read < 0 || sslEngine == null) {
+            return false;
+        }
+        probe.flip();
+        return probeTls(probe);
+    }
+
+    /**
+     * TLS 커넥션은 놀고 있는 동안에도 서버가 레코드를 보낼 수 있다 (TLS 1.3 NewSessionTicket 등).
+     * 소켓에서 읽은 바이트는 되돌릴 수 없으므로, 버리면 다음 unwrap이 깨진다. 그래서 읽을 수 있는 만큼 읽어 SSLEngine에 먹인다.
+     * 레코드가 전부 응용 데이터 없이 끝나면 엔진 상태까지 맞춰진 멀쩡한 커넥션이다.
+     * 응용 데이터가 나오거나, 레코드가 중간에 끊겨 있거나(읽은 반쪽을 돌려줄 곳이 없다), 엔진이 답을 써야 하면(KeyUpdate 요청) 버린다.
+     * 드문 경우라 버퍼는 그때그때 만든다.
+     * @param first probe로 읽은 첫 바이트 (읽기 모드)
+     */
+    private boolean probeTls(ByteBuffer first) throws IOException {
+        ByteBuffer netData = ByteBuffer.allocate(sslEngine.getSession().getPacketBufferSize());
+        ByteBuffer appData = ByteBuffer.allocate(sslEngine.getSession().getApplicationBufferSize());
+        netData.put(first);
+        while (true) {
+            int read = channel.read(netData);
+            if (read < 0) {
+                return false;
+            }
+            netData.flip();
+            while (netData.hasRemaining()) {
+                appData.clear();
+                SSLEngineResult result = sslEngine.unwrap(netData, appData);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW && read > 0) {
+                    // 레코드 나머지가 더 와 있을 수 있다. 더 읽어 본다
+                    break;
+                }
+                if (result.getStatus() != SSLEngineResult.Status.OK || result.bytesProduced() > 0 || result.bytesConsumed() == 0) {
+                    return false;
+                }
+                HandshakeStatus handshakeStatus = result.getHandshakeStatus();
+                if (handshakeStatus == HandshakeStatus.NEED_TASK) {
+                    Runnable task;
+                    while ((task = sslEngine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    handshakeStatus = sslEngine.getHandshakeStatus();
+                }
+                if (handshakeStatus != HandshakeStatus.NOT_HANDSHAKING && handshakeStatus != HandshakeStatus.FINISHED) {
+                    return false;
+                }
+            }
+            boolean drained = !netData.hasRemaining();
+            netData.compact();
+            if (drained && read == 0) {
+                return true;
+            }
+            if (read == 0) {
+                // 반쪽 레코드만 와 있다
+                return false;
+            }
+        }
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // 어차피 버리는 커넥션
+        }
+    }
+}
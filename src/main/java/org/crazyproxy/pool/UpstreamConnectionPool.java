@@ -0,0 +1,182 @@
+package org.crazyproxy.pool;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.crazyproxy.config.SocketInfo;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 타겟(SocketInfo)별 keep-alive 업스트림 커넥션 풀.
+ * 요청마다 TCP/TLS 핸드셰이크를 새로 하지 않도록 응답이 끝난 커넥션을 idle로 보관했다가 재사용한다.
+ * idle 커넥션 수는 타겟별로 maxIdlePerTarget 까지만 보관하고, 넘치면 그냥 닫는다.
+ */
+@Slf4j
+public class UpstreamConnectionPool {
+
+    private static UpstreamConnectionPool instance;
+
+    private final Map<SocketInfo, TargetPool> pools = new ConcurrentHashMap<>();
+    @Getter
+    private final int maxIdlePerTarget;
+    @Getter
+    private final long maxIdleTime;
+    @Getter
+    private final long maxLifetime;
+    private final ScheduledExecutorService reaper;
+
+    private UpstreamConnectionPool(int maxIdlePerTarget, long maxIdleTime, long maxLifetime) {
+        this.maxIdlePerTarget = maxIdlePerTarget;
+        this.maxIdleTime = maxIdleTime;
+        this.maxLifetime = maxLifetime;
+
+        reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "upstream-pool-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1000, maxIdleTime / 2);
+        reaper.scheduleWithFixedDelay(this::evictExpired, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public static void initInstance(int maxIdlePerTarget, long maxIdleTime, long maxLifetime) {
+        if (instance != null) {
+            throw new IllegalStateException("UpstreamConnectionPool has already been initialized");
+        }
+        instance = new UpstreamConnectionPool(maxIdlePerTarget, maxIdleTime, maxLifetime);
+    }
+
+    public static UpstreamConnectionPool getInstance() {
+        if (instance == null) {
+            throw new IllegalStateException("UpstreamConnectionPool not initialized");
+        }
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return maxIdlePerTarget > 0;
+    }
+
+    /**
+     * idle 커넥션을 하나 꺼낸다. 가장 최근에 반납된 것부터 꺼내고, 만료되었거나 헬스체크에 실패한 건 닫고 버린다.
+     * @return 쓸 수 있는 커넥션이 없으면 null. 호출한 쪽에서 새로 연결해야 함.
+     */
+    public PooledConnection checkout(SocketInfo socketInfo) {
+        TargetPool pool = pools.get(socketInfo);
+        if (pool == null) {
+            pool = pools.computeIfAbsent(socketInfo, key -> new TargetPool());
+        }
+
+        long now = System.currentTimeMillis();
+        PooledConnection connection;
+        while ((connection = pool.idle.pollFirst()) != null) {
+            pool.idleCount.decrementAndGet();
+
+            if (connection.isExpired(now, maxIdleTime, maxLifetime)) {
+                pool.stats.expired.increment();
+                connection.close();
+                continue;
+            }
+            if (!connection.isHealthy()) {
+                pool.stats.unhealthy.increment();
+                connection.close();
+                continue;
+            }
+
+            pool.stats.hits.increment();
+            log.debug("reuse upstream connection. target = {}", socketInfo);
+            return connection;
+        }
+
+        pool.stats.misses.increment();
+        return null;
+    }
+
+    /**
+     * 응답이 끝나고 keep-alive 가능한 커넥션을 반납한다. 꺼낼 때 풀이 생기므로 풀이 없으면 그 사이 retire된 타겟이다.
+     */
+    public void release(PooledConnection connection) {
+        TargetPool pool = pools.get(connection.getSocketInfo());
+        connection.touch();
+
+        if (pool == null || !isEnabled() || connection.isExpired(connection.getLastUsedAt(), maxIdleTime, maxLifetime)) {
+            connection.close();
+            return;
+        }
+        if (pool.idleCount.incrementAndGet() > maxIdlePerTarget) {
+            pool.idleCount.decrementAndGet();
+            pool.stats.overflow.increment();
+            connection.close();
+            return;
+        }
+
+        pool.idle.offerFirst(connection);
+        pool.stats.released.increment();
+    }
+
+    /**
+     * 재사용할 수 없는 커넥션을 닫는다.
+     */
+    public void discard(PooledConnection connection) {
+        if (connection != null) {
+            connection.close();
+        }
+    }
+
+    /**
+     * 매핑에서 빠진 타겟. idle 커넥션을 닫고 풀을 지운다. 쓰는 중인 커넥션은 반납할 때 닫힌다.
+     */
+    public void retire(SocketInfo socketInfo) {
+        TargetPool pool = pools.remove(socketInfo);
+        if (pool == null) {
+            return;
+        }
+        PooledConnection connection;
+        while ((connection = pool.idle.pollFirst()) != null) {
+            pool.idleCount.decrementAndGet();
+            connection.close();
+        }
+        log.debug("upstream pool retired. target = {}, {}", socketInfo, pool.stats);
+    }
+
+    public PoolStats getStats(SocketInfo socketInfo) {
+        // 지표 수집이 retire된 타겟의 풀을 다시 만들지 않게 없으면 빈 통계를 준다
+        TargetPool pool = pools.get(socketInfo);
+        return pool == null ? new PoolStats() : pool.stats;
+    }
+
+    public int getIdleCount(SocketInfo socketInfo) {
+        TargetPool pool = pools.get(socketInfo);
+        return pool == null ? 0 : pool.idleCount.get();
+    }
+
+    private void evictExpired() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<SocketInfo, TargetPool> entry : pools.entrySet()) {
+            TargetPool pool = entry.getValue();
+            Iterator<PooledConnection> iterator = pool.idle.descendingIterator();
+            while (iterator.hasNext()) {
+                PooledConnection connection = iterator.next();
+                if (connection.isExpired(now, maxIdleTime, maxLifetime) && pool.idle.removeFirstOccurrence(connection)) {
+                    pool.idleCount.decrementAndGet();
+                    pool.stats.expired.increment();
+                    connection.close();
+                }
+            }
+            log.debug("pool target = {}, idle = {}, {}", entry.getKey(), pool.idleCount.get(), pool.stats);
+        }
+    }
+
+    private static class TargetPool {
+        private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+        private final AtomicInteger idleCount = new AtomicInteger();
+        private final PoolStats stats = new PoolStats();
+    }
+}
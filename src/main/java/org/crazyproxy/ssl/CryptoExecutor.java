@@ -0,0 +1,85 @@
+package org.crazyproxy.ssl;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.net.ssl.SSLEngine;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * SSLEngine delegated task(키 교환, 인증서 검증 같은 무거운 연산)를 돌리는 공용 스레드 풀.
+ * 리액터 스레드에서 돌리면 다른 커넥션이 다 멈추므로 여기로 넘긴다.
+ * 큐가 꽉 차면 호출한 스레드(리액터)에서 그냥 돌려서 자연스럽게 속도를 늦춘다.
+ * 클라 쪽 TLS 종료용 풀은 TlsTerminator가 따로 하나 만든다. 클라 핸드셰이크가 몰려도 업스트림 핸드셰이크가 밀리지 않게.
+ */
+@Slf4j
+public class CryptoExecutor {
+
+    private static CryptoExecutor instance;
+
+    private final ThreadPoolExecutor executor;
+    private final LongAdder callerRuns = new LongAdder();
+
+    CryptoExecutor(String threadNamePrefix, int threads, int queueSize) {
+        AtomicInteger threadIndex = new AtomicInteger();
+        ThreadFactory threadFactory = r -> {
+            Thread thread = new Thread(r, threadNamePrefix + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), threadFactory,
+                (task, pool) -> {
+                    callerRuns.increment();
+                    task.run();
+                });
+        log.info("Crypto executor. name = {}, threads = {}, queueSize = {}", threadNamePrefix, threads, queueSize);
+    }
+
+    public static void initInstance(int threads, int queueSize) {
+        if (instance != null) {
+            throw new IllegalStateException("CryptoExecutor has already been initialized");
+        }
+        instance = new CryptoExecutor("crypto-", threads, queueSize);
+    }
+
+    public static CryptoExecutor getInstance() {
+        if (instance == null) {
+            throw new IllegalStateException("CryptoExecutor not initialized");
+        }
+        return instance;
+    }
+
+    /**
+     * 엔진에 쌓인 delegated task를 전부 풀에서 돌리고 onComplete를 부른다.
+     * onComplete는 풀 스레드에서 불리므로 리액터로 다시 넘기는 건 호출한 쪽 몫이다.
+     */
+    public void runDelegatedTasks(SSLEngine sslEngine, Runnable onComplete) {
+        executor.execute(() -> {
+            try {
+                Runnable task;
+                while ((task = sslEngine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+            } finally {
+                onComplete.run();
+            }
+        });
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public long getCallerRuns() {
+        return callerRuns.sum();
+    }
+}
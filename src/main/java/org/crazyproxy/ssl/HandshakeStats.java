@@ -0,0 +1,91 @@
+package org.crazyproxy.ssl;
+
+import javax.net.ssl.SSLSession;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TLS 핸드셰이크 통계. 세션 재개(resumption)가 얼마나 먹히는지 보려고 만듦.
+ * 업스트림 쪽(getInstance)과 클라 쪽 TLS 종료(getServerInstance)를 따로 센다.
+ */
+public class HandshakeStats {
+
+    private static final HandshakeStats instance = new HandshakeStats();
+    private static final HandshakeStats serverInstance = new HandshakeStats();
+
+    private final LongAdder fullHandshakes = new LongAdder();
+    private final LongAdder resumedHandshakes = new LongAdder();
+    private final LongAdder failedHandshakes = new LongAdder();
+    private final LongAdder totalHandshakeNanos = new LongAdder();
+    private final LongAccumulator maxHandshakeNanos = new LongAccumulator(Math::max, 0);
+
+    public static HandshakeStats getInstance() {
+        return instance;
+    }
+
+    public static HandshakeStats getServerInstance() {
+        return serverInstance;
+    }
+
+    private HandshakeStats() {
+    }
+
+    /**
+     * 핸드셰이크가 끝난 세션을 기록한다.
+     * 재개된 세션은 이전 핸드셰이크 때 만들어진 세션이라 생성 시각이 이번 핸드셰이크 시작보다 앞선다.
+     * TLS 1.2 session id, TLS 1.3 PSK(ticket) 모두 같은 방식으로 판별된다.
+     * @param handshakeStartedAt beginHandshake 직전의 System.currentTimeMillis()
+     * @param elapsedNanos 핸드셰이크에 걸린 시간
+     * @return 재개된 세션이면 true
+     */
+    public boolean recordCompleted(SSLSession session, long handshakeStartedAt, long elapsedNanos) {
+        totalHandshakeNanos.add(elapsedNanos);
+        maxHandshakeNanos.accumulate(elapsedNanos);
+        boolean resumed = session.getCreationTime() < handshakeStartedAt;
+        if (resumed) {
+            resumedHandshakes.increment();
+        } else {
+            fullHandshakes.increment();
+        }
+        return resumed;
+    }
+
+    public void recordFailed() {
+        failedHandshakes.increment();
+    }
+
+    public long getFullHandshakes() {
+        return fullHandshakes.sum();
+    }
+
+    public long getResumedHandshakes() {
+        return resumedHandshakes.sum();
+    }
+
+    public long getFailedHandshakes() {
+        return failedHandshakes.sum();
+    }
+
+    /**
+     * 성공한 핸드셰이크의 평균 소요 시간(마이크로초)
+     */
+    public long getAverageHandshakeMicros() {
+        long count = getFullHandshakes() + getResumedHandshakes();
+        return count == 0 ? 0 : totalHandshakeNanos.sum() / count / 1000;
+    }
+
+    public long getMaxHandshakeMicros() {
+        return maxHandshakeNanos.get() / 1000;
+    }
+
+    @Override
+    public String toString() {
+        return "HandshakeStats{" +
+                "full=" + getFullHandshakes() +
+                ", resumed=" + getResumedHandshakes() +
+                ", failed=" + getFailedHandshakes() +
+                ", avgMicros=" + getAverageHandshakeMicros() +
+                ", maxMicros=" + getMaxHandshakeMicros() +
+                '}';
+    }
+}
@@ -0,0 +1,192 @@
+package org.crazyproxy.ssl;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.crazyproxy.buffer.BufferPool;
+import org.crazyproxy.buffer.PooledBuffer;
+import org.crazyproxy.util.SSLHandshakeUtil;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 논블로킹 TLS 핸드셰이크. 커넥션마다 하나씩 만들고, 셀렉터 이벤트가 올 때마다 step()을 부른다.
+ * 읽을 게 없으면 NEED_READ, 덜 써졌으면 NEED_WRITE를 돌려주고 바로 빠진다. 절대 채널 앞에서 돌면서 기다리지 않음.
+ * delegated task는 TASK_PENDING을 돌려주고 CryptoExecutor에서 돌린다.
+ * 넷 버퍼는 호출한 쪽 것을 빌려 쓰고(키우면 바뀔 수 있으니 끝나고 getter로 돌려받는다), 앱 버퍼는 여기서 빌려서 close()에서 반납한다.
+ */
+@Slf4j
+public class TlsHandshaker {
+
+    public enum Step {
+        NEED_READ, NEED_WRITE, TASK_PENDING, DONE, FAILED
+    }
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLEngine sslEngine;
+    private final SocketChannel channel;
+    private final HandshakeStats stats;
+    private long startedAtMillis;
+    private long startedAtNanos;
+
+    // peerNetData는 쓰기 모드로 들고 다닌다. 핸드셰이크 뒤에 남은 바이트는 호출한 쪽이 이어서 unwrap 한다.
+    @Getter
+    private PooledBuffer myNetData;
+    @Getter
+    private PooledBuffer peerNetData;
+    private PooledBuffer peerAppData;
+
+    public TlsHandshaker(SSLEngine sslEngine, SocketChannel channel, PooledBuffer myNetData, PooledBuffer peerNetData) {
+        this(sslEngine, channel, myNetData, peerNetData, HandshakeStats.getInstance());
+    }
+
+    /**
+     * @param stats 결과를 기록할 곳. 클라 쪽 TLS 종료면 HandshakeStats.getServerInstance()
+     */
+    public TlsHandshaker(SSLEngine sslEngine, SocketChannel channel, PooledBuffer myNetData, PooledBuffer peerNetData,
+                         HandshakeStats stats) {
+        this.sslEngine = sslEngine;
+        this.channel = channel;
+        this.stats = stats;
+        this.myNetData = myNetData;
+        this.peerNetData = peerNetData;
+        this.peerAppData = BufferPool.getInstance().acquire(sslEngine.getSession().getApplicationBufferSize());
+    }
+
+    public void begin() throws SSLException {
+        startedAtMillis = System.currentTimeMillis();
+        startedAtNanos = System.nanoTime();
+        myNetData.getBuffer().clear().flip();
+        sslEngine.beginHandshake();
+    }
+
+    /**
+     * 핸드셰이크용으로 빌린 앱 버퍼를 반납한다. 끝났든 중간에 그만뒀든 한 번은 불러야 함.
+     */
+    public void close() {
+        if (peerAppData != null) {
+            peerAppData.release();
+            peerAppData = null;
+        }
+    }
+
+    /**
+     * 핸드셰이크를 진행할 수 있는 만큼 진행한다.
+     */
+    public Step step() throws IOException {
+        while (true) {
+            ByteBuffer myNet = myNetData.getBuffer();
+            if (myNet.hasRemaining()) {
+                channel.write(myNet);
+                if (myNet.hasRemaining()) {
+                    return Step.NEED_WRITE;
+                }
+            }
+
+            SSLEngineResult.HandshakeStatus handshakeStatus = sslEngine.getHandshakeStatus();
+            switch (handshakeStatus) {
+                case NEED_WRAP:
+                    if (!wrap()) {
+                        return fail();
+                    }
+                    break;
+
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    Step unwrapStep = unwrap();
+                    if (unwrapStep != null) {
+                        return unwrapStep;
+                    }
+                    break;
+
+                case NEED_TASK:
+                    return Step.TASK_PENDING;
+
+                case FINISHED:
+                case NOT_HANDSHAKING:
+                    return complete();
+
+                default:
+                    throw new IllegalStateException("Invalid SSL status: " + handshakeStatus);
+            }
+        }
+    }
+
+    private boolean wrap() throws SSLException {
+        ByteBuffer myNet = myNetData.getBuffer();
+        myNet.clear();
+        SSLEngineResult result = sslEngine.wrap(EMPTY, myNet);
+        myNet.flip();
+
+        switch (result.getStatus()) {
+            case OK:
+                return true;
+            case BUFFER_OVERFLOW:
+                myNet.clear();
+                myNetData = SSLHandshakeUtil.enlargePacketBuffer(myNetData, sslEngine);
+                myNetData.getBuffer().flip();
+                return true;
+            case CLOSED:
+                // close_notify가 만들어졌을 수 있다. 보내고 끝낸다.
+                return myNet.hasRemaining();
+            default:
+                throw new SSLException("Unexpected wrap status during handshake: " + result.getStatus());
+        }
+    }
+
+    /**
+     * @return 더 진행할 수 있으면 null, 아니면 멈춰야 하는 이유
+     */
+    private Step unwrap() throws IOException {
+        ByteBuffer peerNet = peerNetData.getBuffer();
+        peerNet.flip();
+        SSLEngineResult result;
+        try {
+            result = sslEngine.unwrap(peerNet, peerAppData.getBuffer());
+        } finally {
+            peerNet.compact();
+        }
+
+        switch (result.getStatus()) {
+            case OK:
+                return null;
+            case BUFFER_OVERFLOW:
+                peerAppData = SSLHandshakeUtil.enlargeApplicationBuffer(peerAppData, sslEngine);
+                return null;
+            case BUFFER_UNDERFLOW:
+                if (!peerNet.hasRemaining()) {
+                    peerNetData = SSLHandshakeUtil.enlargePacketBuffer(peerNetData, sslEngine);
+                }
+                int readBytes = channel.read(peerNetData.getBuffer());
+                if (readBytes < 0) {
+                    log.debug("channel closed during handshake");
+                    return fail();
+                }
+                return readBytes == 0 ? Step.NEED_READ : null;
+            case CLOSED:
+                return fail();
+            default:
+                throw new SSLException("Unexpected unwrap status during handshake: " + result.getStatus());
+        }
+    }
+
+    private Step complete() {
+        if (myNetData.getBuffer().hasRemaining()) {
+            return Step.NEED_WRITE;
+        }
+        long elapsedNanos = System.nanoTime() - startedAtNanos;
+        boolean resumed = stats.recordCompleted(sslEngine.getSession(), startedAtMillis, elapsedNanos);
+        log.debug("Handshake completed. resumed: {}, {}us", resumed, elapsedNanos / 1000);
+        return Step.DONE;
+    }
+
+    private Step fail() {
+        stats.recordFailed();
+        return Step.FAILED;
+    }
+}
@@ -0,0 +1,281 @@
+package org.crazyproxy.ssl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.crazyproxy.buffer.BufferPool;
+import org.crazyproxy.buffer.PooledBuffer;
+import org.crazyproxy.util.SSLHandshakeUtil;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 클라 커넥션 하나의 TLS 종료(서버 모드 SSLEngine). 리액터 스레드에서만 쓴다.
+ * 핸드셰이크는 TlsHandshaker로 하고, 끝나면 read로 받은 레코드를 풀어 평문을 주고 wrap으로 평문을 레코드로 싼다(OutboundQueue가 쓴다).
+ *
+ * 받다 만 레코드(peerNetData)와 dst에 다 못 넣은 평문(pendingPlain)은 커넥션이 들고 있어야 하지만 비면 풀에 돌려준다.
+ * 그래서 노는 keep-alive 커넥션은 버퍼를 안 잡는다.
+ * 이미 읽어서 들고 있는 바이트로는 셀렉터 이벤트가 다시 안 오므로, 읽기를 다시 켤 때 hasBufferedInput을 보고 호출한 쪽이 read를 불러야 한다.
+ */
+@Slf4j
+public class TlsServerSession {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SSLEngine sslEngine;
+    private final SocketChannel channel;
+    private TlsHandshaker handshaker;
+    private boolean handshakeDone;
+    // 받은 레코드. 쓰기 모드
+    private PooledBuffer peerNetData;
+    // 풀었지만 dst에 못 넣은 평문. 읽기 모드
+    private PooledBuffer pendingPlain;
+    private boolean inboundClosed;
+    private boolean closed;
+
+    TlsServerSession(SSLEngine sslEngine, SocketChannel channel) {
+        this.sslEngine = sslEngine;
+        this.channel = channel;
+    }
+
+    public void begin() throws SSLException {
+        int packetSize = sslEngine.getSession().getPacketBufferSize();
+        BufferPool bufferPool = BufferPool.getInstance();
+        handshaker = new TlsHandshaker(sslEngine, channel, bufferPool.acquire(packetSize), bufferPool.acquire(packetSize),
+                HandshakeStats.getServerInstance());
+        handshaker.begin();
+    }
+
+    public boolean isHandshakeDone() {
+        return handshakeDone;
+    }
+
+    /**
+     * 핸드셰이크를 진행할 수 있는 만큼 진행한다. DONE이면 핸드셰이크 버퍼를 정리한다.
+     * 클라가 Finished 뒤에 바로 보낸 요청 바이트는 peerNetData에 남아 있으니 이어서 read를 불러야 한다.
+     * 클라가 TLS가 아닌 걸 보내거나 핸드셰이크를 깨면 FAILED. 클라 탓이라 에러 로그는 안 남긴다.
+     */
+    public TlsHandshaker.Step handshake() throws IOException {
+        TlsHandshaker.Step step;
+        try {
+            step = handshaker.step();
+        } catch (SSLException e) {
+            log.debug("client handshake rejected. {}", e.getMessage());
+            HandshakeStats.getServerInstance().recordFailed();
+            return TlsHandshaker.Step.FAILED;
+        }
+        if (step == TlsHandshaker.Step.DONE) {
+            handshakeDone = true;
+            handshaker.getMyNetData().release();
+            peerNetData = handshaker.getPeerNetData();
+            handshaker.close();
+            handshaker = null;
+        }
+        return step;
+    }
+
+    public SSLEngine getSslEngine() {
+        return sslEngine;
+    }
+
+    /**
+     * ALPN으로 정한 프로토콜. 안 정했으면 null
+     */
+    public String getApplicationProtocol() {
+        String protocol = sslEngine.getApplicationProtocol();
+        return protocol == null || protocol.isEmpty() ? null : protocol;
+    }
+
+    /**
+     * 지금 풀 수 있는 평문을 dst에 담는다. channel.read처럼 쓴다. 채널은 한 번만 읽는다.
+     * @param scratch 레코드 하나가 다 풀리는 크기의 임시 버퍼(리액터 appBuffer). 이번 호출 안에서만 쓴다
+     * @return 담은 바이트 수. 클라가 끊었거나 close_notify를 보냈고 더 줄 게 없으면 -1
+     */
+    public int read(ByteBuffer dst, ByteBuffer scratch) throws IOException {
+        int total = drainPendingPlain(dst);
+        boolean channelRead = false;
+        while (dst.hasRemaining() && pendingPlain == null) {
+            if (inboundClosed) {
+                return total > 0 ? total : -1;
+            }
+            if (peerNetData == null) {
+                peerNetData = BufferPool.getInstance().acquire(sslEngine.getSession().getPacketBufferSize());
+            }
+            ByteBuffer peerNet = peerNetData.getBuffer();
+            peerNet.flip();
+            scratch.clear();
+            SSLEngineResult result;
+            try {
+                result = sslEngine.unwrap(peerNet, scratch);
+            } finally {
+                peerNet.compact();
+            }
+            if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                // 핸드셰이크 뒤에 오는 메시지(KeyUpdate 등)는 가벼우니 그냥 여기서 돌린다.
+                Runnable task;
+                while ((task = sslEngine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+            }
+
+            switch (result.getStatus()) {
+                case OK:
+                    scratch.flip();
+                    total += copyOrKeep(scratch, dst);
+                    if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                        return total;
+                    }
+                    break;
+                case BUFFER_UNDERFLOW:
+                    if (channelRead) {
+                        return total;
+                    }
+                    if (!peerNet.hasRemaining()) {
+                        peerNetData = SSLHandshakeUtil.enlargePacketBuffer(peerNetData, sslEngine);
+                    }
+                    int readBytes = channel.read(peerNetData.getBuffer());
+                    channelRead = true;
+                    if (readBytes < 0) {
+                        log.debug("client channel closed without close_notify");
+                        inboundClosed = true;
+                    } else if (readBytes == 0) {
+                        return total;
+                    }
+                    break;
+                case CLOSED:
+                    log.debug("client sent close_notify");
+                    inboundClosed = true;
+                    break;
+                default:
+                    // scratch는 레코드 하나보다 항상 크다.
+                    throw new SSLException("Unexpected unwrap status: " + result.getStatus());
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 이미 읽어서 들고 있는 평문이나 다 받은 레코드가 있다. 셀렉터 이벤트 없이 read를 불러야 한다.
+     * 받다 만 레코드만 있으면 false. 나머지는 소켓 이벤트로 온다.
+     */
+    public boolean hasBufferedInput() {
+        if (pendingPlain != null) {
+            return true;
+        }
+        if (peerNetData == null) {
+            return false;
+        }
+        // 레코드 헤더 5바이트: type(1) version(2) length(2)
+        ByteBuffer peerNet = peerNetData.getBuffer();
+        if (peerNet.position() < 5) {
+            return false;
+        }
+        int length = ((peerNet.get(3) & 0xff) << 8) | (peerNet.get(4) & 0xff);
+        return peerNet.position() >= 5 + length;
+    }
+
+    /**
+     * 평문 src를 레코드로 싸서 dst(쓰기 모드)에 담는다. dst는 getPacketBufferSize 이상 남아 있어야 한다.
+     * 핸드셰이크 뒤에 엔진이 보낼 게 있으면(KeyUpdate 응답 등) src가 비어 있어도 레코드가 나온다.
+     */
+    public void wrap(ByteBuffer src, ByteBuffer dst) throws SSLException {
+        SSLEngineResult result = sslEngine.wrap(src, dst);
+        if (result.getStatus() != SSLEngineResult.Status.OK) {
+            throw new SSLException("Unexpected wrap status: " + result.getStatus());
+        }
+    }
+
+    /**
+     * 엔진이 핸드셰이크 뒤에 보낼 레코드가 있다
+     */
+    public boolean needsWrap() {
+        return handshakeDone && sslEngine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP;
+    }
+
+    public int getPacketBufferSize() {
+        return sslEngine.getSession().getPacketBufferSize();
+    }
+
+    /**
+     * 들고 있는 바이트가 없으면 버퍼를 풀에 돌려준다. 다음 read 때 다시 빌린다.
+     */
+    public void releaseIfIdle() {
+        if (peerNetData != null && peerNetData.getBuffer().position() == 0) {
+            peerNetData.release();
+            peerNetData = null;
+        }
+    }
+
+    /**
+     * close_notify를 한 번만 써보고(못 쓴 건 버린다) 버퍼를 전부 돌려준다. 여러 번 불려도 된다.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (handshakeDone && channel.isOpen()) {
+            sslEngine.closeOutbound();
+            PooledBuffer closeNotify = BufferPool.getInstance().acquire(getPacketBufferSize());
+            try {
+                ByteBuffer buffer = closeNotify.getBuffer();
+                buffer.clear();
+                sslEngine.wrap(EMPTY, buffer);
+                buffer.flip();
+                channel.write(buffer);
+            } catch (IOException e) {
+                log.debug("close_notify write fail. {}", e.getMessage());
+            } finally {
+                closeNotify.release();
+            }
+        }
+        if (handshaker != null) {
+            handshaker.getMyNetData().release();
+            handshaker.getPeerNetData().release();
+            handshaker.close();
+            handshaker = null;
+        }
+        BufferPool bufferPool = BufferPool.getInstance();
+        bufferPool.release(peerNetData);
+        bufferPool.release(pendingPlain);
+        peerNetData = null;
+        pendingPlain = null;
+    }
+
+    private int drainPendingPlain(ByteBuffer dst) {
+        if (pendingPlain == null) {
+            return 0;
+        }
+        ByteBuffer pending = pendingPlain.getBuffer();
+        int length = Math.min(pending.remaining(), dst.remaining());
+        dst.put(dst.position(), pending, pending.position(), length);
+        dst.position(dst.position() + length);
+        pending.position(pending.position() + length);
+        if (!pending.hasRemaining()) {
+            pendingPlain.release();
+            pendingPlain = null;
+        }
+        return length;
+    }
+
+    /**
+     * 풀린 평문을 dst에 넣고, 안 들어가는 나머지는 pendingPlain에 옮겨 둔다.
+     */
+    private int copyOrKeep(ByteBuffer plain, ByteBuffer dst) {
+        int length = Math.min(plain.remaining(), dst.remaining());
+        dst.put(dst.position(), plain, plain.position(), length);
+        dst.position(dst.position() + length);
+        plain.position(plain.position() + length);
+        if (plain.hasRemaining()) {
+            pendingPlain = BufferPool.getInstance().acquire(plain.remaining());
+            ByteBuffer pending = pendingPlain.getBuffer();
+            pending.clear();
+            pending.put(plain);
+            pending.flip();
+        }
+        return length;
+    }
+}
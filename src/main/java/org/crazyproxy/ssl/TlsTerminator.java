@@ -0,0 +1,113 @@
+package org.crazyproxy.ssl;
+
+import lombok.extern.slf4j.Slf4j;
+import org.crazyproxy.http2.Http2Server;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 클라 쪽 TLS 종료. tlsPorts 포트로 들어온 커넥션은 ClientHandler가 TlsServerSession을 거쳐 읽고 쓴다.
+ * 인증서는 keyFilePath 키스토어(SSLContext에 올린 KeyManager)를 쓴다.
+ * 다시 온 클라는 서버 세션 캐시(TLS 1.2 session id)나 session ticket(TLS 1.3 PSK 포함)으로 핸드셰이크를 재개한다.
+ * ALPN은 tlsAlpn 순서대로 클라가 보낸 것 중 처음 맞는 걸 고른다. 맞는 게 없으면 ALPN 없이 http/1.1로 간다.
+ * h2를 고르면 ClientHandler가 커넥션을 Http2ServerConnection으로 넘긴다.
+ * 클라 핸드셰이크의 delegated task는 업스트림용과 따로 둔 풀(tls-accept-N)에서 돌린다.
+ */
+@Slf4j
+public class TlsTerminator {
+
+    public static final String H2 = "h2";
+    public static final String HTTP_1_1 = "http/1.1";
+    // 프록시가 클라 쪽에서 말할 수 있는 프로토콜. 이 밖의 tlsAlpn 값은 고르지 않는다
+    private static final Set<String> SUPPORTED_PROTOCOLS = Set.of(H2, HTTP_1_1);
+
+    private static TlsTerminator instance;
+
+    private final Set<String> ports;
+    private final SSLContext context;
+    private final List<String> applicationProtocols;
+    private final CryptoExecutor handshakeExecutor;
+
+    private TlsTerminator(Set<String> ports, SSLContext context, List<String> applicationProtocols,
+                          int handshakeThreads, int queueSize) {
+        this.ports = Set.copyOf(ports);
+        this.context = context;
+        this.applicationProtocols = List.copyOf(applicationProtocols);
+        this.handshakeExecutor = ports.isEmpty() ? null : new CryptoExecutor("tls-accept-", handshakeThreads, queueSize);
+    }
+
+    /**
+     * @param ports TLS로 받을 리슨 포트. 비어 있으면 TLS 종료를 안 한다
+     * @param context init이 끝난 SSLContext. 포트가 있으면 KeyManager가 있어야 하고, 없으면 null이어도 된다
+     * @param applicationProtocols ALPN으로 받아줄 프로토콜. 앞에 있을수록 우선
+     * @param sessionCacheSize 서버 세션 캐시 크기. 0이면 무제한
+     * @param sessionTimeoutSeconds 캐시된 세션(티켓 포함) 유효 시간(초)
+     */
+    public static void initInstance(Set<String> ports, SSLContext context, List<String> applicationProtocols,
+                                    int handshakeThreads, int queueSize, int sessionCacheSize, int sessionTimeoutSeconds) {
+        if (instance != null) {
+            throw new IllegalStateException("TlsTerminator has already been initialized");
+        }
+        List<String> supported = new ArrayList<>();
+        for (String protocol : applicationProtocols) {
+            if (H2.equals(protocol) && !Http2Server.getInstance().isEnabled()) {
+                log.warn("client h2 disabled (h2ListenerMaxConcurrentStreams = 0). ignore ALPN protocol h2");
+            } else if (SUPPORTED_PROTOCOLS.contains(protocol)) {
+                supported.add(protocol);
+            } else {
+                log.warn("unsupported ALPN protocol. ignore. protocol = {}", protocol);
+            }
+        }
+        if (!ports.isEmpty()) {
+            SSLSessionContext sessionContext = context.getServerSessionContext();
+            sessionContext.setSessionCacheSize(sessionCacheSize);
+            sessionContext.setSessionTimeout(sessionTimeoutSeconds);
+            log.info("TLS termination on ports = {}, alpn = {}, session cache size: {}, timeout: {}s",
+                    ports, supported, sessionCacheSize, sessionTimeoutSeconds);
+        }
+        instance = new TlsTerminator(ports, context, supported, handshakeThreads, queueSize);
+    }
+
+    public static TlsTerminator getInstance() {
+        if (instance == null) {
+            throw new IllegalStateException("TlsTerminator not initialized");
+        }
+        return instance;
+    }
+
+    public boolean isEnabled(String port) {
+        return ports.contains(port);
+    }
+
+    /**
+     * accept한 클라 채널 하나의 TLS 세션. begin은 리액터에서 부른다.
+     */
+    public TlsServerSession newSession(SocketChannel channel) {
+        SSLEngine sslEngine = context.createSSLEngine();
+        sslEngine.setUseClientMode(false);
+        sslEngine.setHandshakeApplicationProtocolSelector((engine, offered) -> selectProtocol(offered));
+        return new TlsServerSession(sslEngine, channel);
+    }
+
+    public CryptoExecutor getHandshakeExecutor() {
+        return handshakeExecutor;
+    }
+
+    /**
+     * 빈 문자열이면 ALPN 응답 없이 핸드셰이크를 계속한다(클라가 ALPN을 안 보냈거나 맞는 게 없을 때).
+     */
+    private String selectProtocol(List<String> offered) {
+        for (String protocol : applicationProtocols) {
+            if (offered.contains(protocol)) {
+                return protocol;
+            }
+        }
+        return "";
+    }
+}
@@ -0,0 +1,54 @@
+package org.crazyproxy.timeout;
+
+import lombok.Getter;
+
+/**
+ * 포트 하나에 거는 타임아웃들(ms). 0이면 그 타임아웃은 걸지 않는다.
+ */
+@Getter
+public class PortTimeouts {
+
+    // 업스트림 TCP 연결 (주소 경주 전체)
+    private final long connect;
+    // TLS 핸드셰이크. 클라 쪽(tlsPorts)과 업스트림 쪽 둘 다
+    private final long handshake;
+    // 요청 헤더를 다 받을 때까지. 새 커넥션이면 accept부터, keep-alive면 다음 요청의 첫 바이트부터
+    private final long header;
+    // 다음 요청 없이 놀 수 있는 시간
+    private final long idle;
+    // 요청 하나의 시작부터 응답을 다 보낼 때까지
+    private final long request;
+
+    public PortTimeouts(long connect, long handshake, long header, long idle, long request) {
+        this.connect = connect;
+        this.handshake = handshake;
+        this.header = header;
+        this.idle = idle;
+        this.request = request;
+    }
+
+    /**
+     * 키 하나만 바꾼 사본. 키는 connect, handshake, header, idle, request
+     */
+    public PortTimeouts with(String key, long millis) {
+        switch (key) {
+            case "connect":
+                return new PortTimeouts(millis, handshake, header, idle, request);
+            case "handshake":
+                return new PortTimeouts(connect, millis, header, idle, request);
+            case "header":
+                return new PortTimeouts(connect, handshake, millis, idle, request);
+            case "idle":
+                return new PortTimeouts(connect, handshake, header, millis, request);
+            case "request":
+                return new PortTimeouts(connect, handshake, header, idle, millis);
+            default:
+                throw new IllegalArgumentException("Unknown timeout: " + key);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "connect=" + connect + ", handshake=" + handshake + ", header=" + header + ", idle=" + idle + ", request=" + request;
+    }
+}
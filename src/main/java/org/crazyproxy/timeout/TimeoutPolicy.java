@@ -0,0 +1,68 @@
+package org.crazyproxy.timeout;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 타임아웃 설정과 종류별로 걸린(만기가 된) 횟수.
+ * 타이머 자체는 리액터마다 있는 TimerWheel에 걸고(블로킹 모드는 BlockingConnectionGroup의 감시 스레드), 여기서는 포트별로 몇 ms를 걸지만 알려준다.
+ * portTimeouts에 없는 포트는 defaults를 쓴다.
+ */
+@Slf4j
+public class TimeoutPolicy {
+
+    public enum Kind {
+        CONNECT, HANDSHAKE, HEADER, IDLE, REQUEST
+    }
+
+    private static TimeoutPolicy instance;
+
+    private final PortTimeouts defaults;
+    private final Map<String, PortTimeouts> ports;
+    private final LongAdder[] expired = new LongAdder[Kind.values().length];
+
+    private TimeoutPolicy(PortTimeouts defaults, Map<String, PortTimeouts> ports) {
+        this.defaults = defaults;
+        this.ports = ports;
+        for (int i = 0; i < expired.length; i++) {
+            expired[i] = new LongAdder();
+        }
+        log.info("Timeouts. default = {}", defaults);
+        for (Map.Entry<String, PortTimeouts> entry : ports.entrySet()) {
+            log.info("Timeouts. port = {}, {}", entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @param defaults 포트별 설정이 없을 때 쓰는 타임아웃
+     * @param ports 포트 -> 그 포트의 타임아웃 (defaults에 덮어쓴 것)
+     */
+    public static void initInstance(PortTimeouts defaults, Map<String, PortTimeouts> ports) {
+        if (instance != null) {
+            throw new IllegalStateException("TimeoutPolicy has already been initialized");
+        }
+        instance = new TimeoutPolicy(defaults, ports);
+    }
+
+    public static TimeoutPolicy getInstance() {
+        if (instance == null) {
+            throw new IllegalStateException("TimeoutPolicy not initialized");
+        }
+        return instance;
+    }
+
+    public PortTimeouts forPort(String port) {
+        PortTimeouts timeouts = ports.get(port);
+        return timeouts == null ? defaults : timeouts;
+    }
+
+    public void recordExpired(Kind kind) {
+        expired[kind.ordinal()].increment();
+    }
+
+    public long getExpired(Kind kind) {
+        return expired[kind.ordinal()].sum();
+    }
+}
@@ -2,10 +2,12 @@ package org.crazyproxy.util;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import lombok.extern.slf4j.Slf4j;
+import org.crazyproxy.balance.TargetGroup;
 import org.crazyproxy.config.MainConfig;
 import org.crazyproxy.config.SSLKeyInfo;
 import org.crazyproxy.config.SocketInfo;
 import org.crazyproxy.ssl.AllTrustManager;
+import org.crazyproxy.timeout.PortTimeouts;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
@@ -18,9 +20,15 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
+import java.util.function.Function;
 
 @Slf4j
 public class Initiator {
@@ -33,9 +41,75 @@ public class Initiator {
         return value == null ? defaultValue : Integer.parseInt(value.toString());
     }
 
-    private MainConfig buildMainConfig(MainConfig.MainConfigBuilder builder, int bufferSize) {
+    private boolean getBooleanValue(Object value, boolean defaultValue) {
+        return value == null ? defaultValue : Boolean.parseBoolean(value.toString());
+    }
+
+    /**
+     * 설정 파일 형식과 상관없는 공통 옵션들은 여기서 채운다.
+     * @param valueReader 키로 설정값(String)을 꺼내는 함수. 값이 없으면 null
+     */
+    private MainConfig buildMainConfig(MainConfig.MainConfigBuilder builder, int bufferSize, Function<String, String> valueReader) {
         return builder
                 .bufferSize(bufferSize)
+                .mappingWatch(getBooleanValue(valueReader.apply("mappingWatch"), true))
+                .maxHeaderSize(parseSize(valueReader.apply("maxHeaderSize"), 8 * 1024))
+                .bufferPoolMaxSize(parseSize(valueReader.apply("bufferPoolMaxSize"), 256 * 1024 * 1024))
+                .bufferLeakDetection(getBooleanValue(valueReader.apply("bufferLeakDetection"), false))
+                .bufferLeakTimeout(parseDuration(valueReader.apply("bufferLeakTimeout"), 300_000))
+                .workerQueueSize(getIntValue(valueReader.apply("workerQueueSize"), 1024))
+                .reactorCount(getIntValue(valueReader.apply("reactorCount"), Runtime.getRuntime().availableProcessors()))
+                .reactorBalance(Objects.requireNonNullElse(valueReader.apply("reactorBalance"), "round-robin"))
+                .loadBalancer(Objects.requireNonNullElse(valueReader.apply("loadBalancer"), TargetGroup.ROUND_ROBIN))
+                .dnsRefreshInterval(parseDuration(valueReader.apply("dnsRefreshInterval"), 30_000))
+                .connectRaceDelay(parseDuration(valueReader.apply("connectRaceDelay"), 250))
+                .cachePorts(Objects.requireNonNullElse(valueReader.apply("cachePorts"), ""))
+                .cacheMaxSize(parseSize(valueReader.apply("cacheMaxSize"), 64 * 1024 * 1024))
+                .cacheMaxObjectSize(parseSize(valueReader.apply("cacheMaxObjectSize"), 1024 * 1024))
+                .coalesceMaxWait(parseDuration(valueReader.apply("coalesceMaxWait"), 5_000))
+                .coalesceMaxFanOut(getIntValue(valueReader.apply("coalesceMaxFanOut"), 100))
+                .compressPorts(Objects.requireNonNullElse(valueReader.apply("compressPorts"), ""))
+                .compressTypes(Objects.requireNonNullElse(valueReader.apply("compressTypes"),
+                        "text/html,text/plain,text/css,text/xml,application/json,application/javascript,application/xml,image/svg+xml"))
+                .compressMinLength(parseSize(valueReader.apply("compressMinLength"), 1024))
+                .compressLevel(getIntValue(valueReader.apply("compressLevel"), 6))
+                .compressPoolSize(getIntValue(valueReader.apply("compressPoolSize"), 64))
+                .executionMode(Objects.requireNonNullElse(valueReader.apply("executionMode"), "reactor"))
+                .clientKeepAliveTimeout(parseDuration(valueReader.apply("clientKeepAliveTimeout"), 60_000))
+                .connectTimeout(parseDuration(valueReader.apply("connectTimeout"), 10_000))
+                .tlsHandshakeTimeout(parseDuration(valueReader.apply("tlsHandshakeTimeout"), 10_000))
+                .requestHeaderTimeout(parseDuration(valueReader.apply("requestHeaderTimeout"), 30_000))
+                .requestTimeout(parseDuration(valueReader.apply("requestTimeout"), 0))
+                .portTimeouts(Objects.requireNonNullElse(valueReader.apply("portTimeouts"), ""))
+                .adaptiveLimit(getBooleanValue(valueReader.apply("adaptiveLimit"), false))
+                .adaptiveLimitInitial(getIntValue(valueReader.apply("adaptiveLimitInitial"), 20))
+                .adaptiveLimitMin(getIntValue(valueReader.apply("adaptiveLimitMin"), 4))
+                .adaptiveLimitMax(getIntValue(valueReader.apply("adaptiveLimitMax"), 1000))
+                .outlierDetection(getBooleanValue(valueReader.apply("outlierDetection"), false))
+                .outlierConsecutiveFailures(getIntValue(valueReader.apply("outlierConsecutiveFailures"), 5))
+                .outlierErrorRate(getIntValue(valueReader.apply("outlierErrorRate"), 50))
+                .outlierMinRequests(getIntValue(valueReader.apply("outlierMinRequests"), 20))
+                .outlierEjectionTime(parseDuration(valueReader.apply("outlierEjectionTime"), 5_000))
+                .outlierMaxEjectionTime(parseDuration(valueReader.apply("outlierMaxEjectionTime"), 300_000))
+                .healthCheckInterval(parseDuration(valueReader.apply("healthCheckInterval"), 0))
+                .healthCheckTimeout(parseDuration(valueReader.apply("healthCheckTimeout"), 2_000))
+                .healthCheckPath(Objects.requireNonNullElse(valueReader.apply("healthCheckPath"), ""))
+                .writeHighWaterMark(parseSize(valueReader.apply("writeHighWaterMark"), 256 * 1024))
+                .writeLowWaterMark(parseSize(valueReader.apply("writeLowWaterMark"), 64 * 1024))
+                .adminPort(getIntValue(valueReader.apply("adminPort"), 0))
+                .poolMaxIdlePerTarget(getIntValue(valueReader.apply("poolMaxIdlePerTarget"), 8))
+                .poolMaxIdleTime(parseDuration(valueReader.apply("poolMaxIdleTime"), 30_000))
+                .poolMaxLifetime(parseDuration(valueReader.apply("poolMaxLifetime"), 300_000))
+                .sslSessionCacheSize(getIntValue(valueReader.apply("sslSessionCacheSize"), 1000))
+                .sslSessionTimeout(parseDuration(valueReader.apply("sslSessionTimeout"), 86_400_000))
+                .sslSessionTicket(getBooleanValue(valueReader.apply("sslSessionTicket"), true))
+                .tlsPorts(Objects.requireNonNullElse(valueReader.apply("tlsPorts"), ""))
+                .tlsAlpn(Objects.requireNonNullElse(valueReader.apply("tlsAlpn"), "h2,http/1.1"))
+                .tlsHandshakeThreads(getIntValue(valueReader.apply("tlsHandshakeThreads"), Runtime.getRuntime().availableProcessors()))
+                .h2Upstream(getBooleanValue(valueReader.apply("h2Upstream"), true))
+                .h2MaxConcurrentStreams(getIntValue(valueReader.apply("h2MaxConcurrentStreams"), 100))
+                .h2c(getBooleanValue(valueReader.apply("h2c"), true))
+                .h2ListenerMaxConcurrentStreams(getIntValue(valueReader.apply("h2ListenerMaxConcurrentStreams"), 100))
                 .build();
     }
 
@@ -49,7 +123,7 @@ public class Initiator {
                 .mappingFilePath(configMap.get("mappingFilePath").toString())
                 .workerCount(getIntValue(configMap.get("workerCount"), 50));
 
-        return buildMainConfig(builder, bufferSize);
+        return buildMainConfig(builder, bufferSize, key -> getStringValue(configMap.get(key)));
     }
 
     public MainConfig getMainConfig(Properties prop, int bufferSize) {
@@ -62,7 +136,7 @@ public class Initiator {
                 .mappingFilePath(prop.getProperty("mappingFilePath"))
                 .workerCount(Integer.parseInt(prop.getProperty("workerCount", "50")));
 
-        return buildMainConfig(builder, bufferSize);
+        return buildMainConfig(builder, bufferSize, prop::getProperty);
     }
 
     public MainConfig getMainConfig(JsonNode jsonNode, int bufferSize) {
@@ -75,12 +149,19 @@ public class Initiator {
                 .mappingFilePath(jsonNode.get("mappingFilePath").asText())
                 .workerCount(jsonNode.has("workerCount") ? jsonNode.get("workerCount").asInt() : 50);
 
-        return buildMainConfig(builder, bufferSize);
+        return buildMainConfig(builder, bufferSize, key -> jsonNode.has(key) ? jsonNode.get(key).asText() : null);
     }
 
     public int parseBufferSize(String bufferSizeStr) {
+        return parseSize(bufferSizeStr, 1024 * 100); // 기본값 100KB
+    }
+
+    /**
+     * "8kb", "1mb" 같은 크기 문자열을 byte로 바꾼다. 단위가 없으면 byte로 처리
+     */
+    public int parseSize(String bufferSizeStr, int defaultSize) {
         if (bufferSizeStr == null || bufferSizeStr.isEmpty()) {
-            return 1024 * 100; // 기본값 100KB
+            return defaultSize;
         }
 
         bufferSizeStr = bufferSizeStr.trim().toLowerCase();
@@ -99,6 +180,92 @@ public class Initiator {
         }
     }
 
+    /**
+     * "30s", "500ms", "5m", "1h" 같은 시간 문자열을 밀리초로 바꾼다. 단위가 없으면 밀리초로 처리
+     */
+    public long parseDuration(String durationStr, long defaultMillis) {
+        if (durationStr == null || durationStr.isEmpty()) {
+            return defaultMillis;
+        }
+
+        durationStr = durationStr.trim().toLowerCase();
+
+        try {
+            if (durationStr.endsWith("ms")) {
+                return Long.parseLong(durationStr.replace("ms", "").trim());
+            } else if (durationStr.endsWith("s")) {
+                return Long.parseLong(durationStr.replace("s", "").trim()) * 1000;
+            } else if (durationStr.endsWith("m")) {
+                return Long.parseLong(durationStr.replace("m", "").trim()) * 60 * 1000;
+            } else if (durationStr.endsWith("h")) {
+                return Long.parseLong(durationStr.replace("h", "").trim()) * 60 * 60 * 1000;
+            } else {
+                return Long.parseLong(durationStr);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid duration format: " + durationStr, e);
+        }
+    }
+
+    /**
+     * "8080, 8443" 같은 콤마로 나눈 포트 목록. 비었으면 빈 Set
+     */
+    public Set<String> parsePorts(String portsStr) {
+        Set<String> ports = new HashSet<>();
+        if (portsStr == null) {
+            return ports;
+        }
+        for (String port : portsStr.split(",")) {
+            if (!port.isBlank()) {
+                ports.add(port.trim());
+            }
+        }
+        return ports;
+    }
+
+    /**
+     * 콤마로 나눈 값들. 순서를 지킨다 (ALPN처럼 앞이 우선인 설정용)
+     */
+    public List<String> parseList(String valuesStr) {
+        List<String> values = new ArrayList<>();
+        if (valuesStr == null) {
+            return values;
+        }
+        for (String value : valuesStr.split(",")) {
+            if (!value.isBlank()) {
+                values.add(value.trim());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * "8080 connect=2s request=30s, 8443 header=5s" 같은 포트별 타임아웃. 적지 않은 키는 defaults 값을 쓴다.
+     * @return 포트 -> 그 포트의 타임아웃. 비었으면 빈 Map
+     */
+    public Map<String, PortTimeouts> parsePortTimeouts(String portTimeoutsStr, PortTimeouts defaults) {
+        Map<String, PortTimeouts> portTimeouts = new HashMap<>();
+        if (portTimeoutsStr == null) {
+            return portTimeouts;
+        }
+        for (String entry : portTimeoutsStr.split(",")) {
+            if (entry.isBlank()) {
+                continue;
+            }
+            String[] tokens = entry.trim().split("\\s+");
+            PortTimeouts timeouts = defaults;
+            for (int i = 1; i < tokens.length; i++) {
+                int eq = tokens[i].indexOf('=');
+                if (eq < 0) {
+                    throw new IllegalArgumentException("Unknown timeout option: " + tokens[i] + " in " + entry);
+                }
+                timeouts = timeouts.with(tokens[i].substring(0, eq), parseDuration(tokens[i].substring(eq + 1), 0));
+            }
+            portTimeouts.put(tokens[0], timeouts);
+        }
+        return portTimeouts;
+    }
+
     /**
      * Create SSL KeyManager. if -D option org.crazyproxy.keyFilePath is null then keymanager is null
      * @return KeyManager[] for SSLContext
@@ -202,10 +369,13 @@ public class Initiator {
 
     /**
      * Initiate for Port forwarding HashMap. you must set mapping.properties file.
+     * 값은 타겟 URL 하나, 또는 콤마로 나눈 여러 개. 타겟 뒤에 weight=N 을 붙이면 가중치(기본 1).
+     * 예) 8001=http://10.0.0.1:8080 weight=3, http://10.0.0.2:8080
      * todo. URI 클래스를 활용해도 괜찮을 듯.
+     * @param loadBalancer 포트에 타겟이 여러 개일 때 고르는 방식. TargetGroup 참고
      */
-    public Map<String, SocketInfo> initSocketInfoHashMap(String mappingFilePath) {
-        final Map<String, SocketInfo> portMap = new HashMap<>();
+    public Map<String, TargetGroup> initTargetGroupMap(String mappingFilePath, String loadBalancer) {
+        final Map<String, TargetGroup> portMap = new HashMap<>();
 
         FileInputStream fis;
         try {
@@ -217,50 +387,71 @@ public class Initiator {
 
             for (Object key : properties.keySet()) {
                 String port = (String) key;
-                String host = properties.get(port).toString();
-                String path = "/";
-                boolean isHttps = false;
-                int targetPort = 80;
-
-                // 일단 https, http 여부 부터 체크.
-                if (host.startsWith("https://")) {
-                    targetPort = 443;
-                    isHttps = true;
+                String[] entries = properties.get(port).toString().split(",");
+                SocketInfo[] targets = new SocketInfo[entries.length];
+                for (int i = 0; i < entries.length; i++) {
+                    targets[i] = parseTarget(entries[i].trim());
                 }
+                portMap.put(port, new TargetGroup(targets, loadBalancer));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
 
-                // 체크 후에 없애준다. 그래야 inet이 먹음
-                host = host.replace("https://", "");
-                host = host.replace("http://", "");
+        return portMap;
+    }
 
-                // 포트 정보 있는지 체크. http:를 없앴기 때문에 동작함.
-                int portIdx = host.lastIndexOf(":");
-                if (portIdx != -1) {
-                    int pathIndex = host.indexOf("/");
+    /**
+     * "https://host:port/path weight=3" 하나를 SocketInfo로.
+     */
+    private SocketInfo parseTarget(String entry) {
+        String[] tokens = entry.split("\\s+");
+        String host = tokens[0];
+        int weight = 1;
+        for (int i = 1; i < tokens.length; i++) {
+            if (tokens[i].startsWith("weight=")) {
+                weight = Integer.parseInt(tokens[i].substring("weight=".length()));
+            } else {
+                throw new IllegalArgumentException("Unknown target option: " + tokens[i] + " in " + entry);
+            }
+        }
 
-                    // pathIndex가 있으면, pathIndex까지 뜯고, 없으면 끝까지 뜯는다.
-                    String portInfo = host.substring(portIdx + 1, pathIndex == -1 ? host.length() : pathIndex);
+        String path = "/";
+        boolean isHttps = false;
+        int targetPort = 80;
 
-                    // 잘못뜯기면 여기서 예외 터짐. 숫자만 들어와야함.
-                    targetPort = Integer.parseInt(portInfo);
+        // 일단 https, http 여부 부터 체크.
+        if (host.startsWith("https://")) {
+            targetPort = 443;
+            isHttps = true;
+        }
 
-                    // path 정보가 있는지 확인 후 뜯어준다.
-                    if (pathIndex != -1) {
-                        path = host.substring(pathIndex);
-                        host = host.substring(0, portIdx);
-                    } else {
-                        host = host.substring(0, portIdx);
-                    }
-                }
-                host = host.replace("/", "");
+        // 체크 후에 없애준다. 그래야 inet이 먹음
+        host = host.replace("https://", "");
+        host = host.replace("http://", "");
+
+        // 포트 정보 있는지 체크. http:를 없앴기 때문에 동작함.
+        int portIdx = host.lastIndexOf(":");
+        if (portIdx != -1) {
+            int pathIndex = host.indexOf("/");
 
-                InetSocketAddress address = new InetSocketAddress(host, targetPort);
-                portMap.put(port, new SocketInfo(address, host, path, isHttps));
+            // pathIndex가 있으면, pathIndex까지 뜯고, 없으면 끝까지 뜯는다.
+            String portInfo = host.substring(portIdx + 1, pathIndex == -1 ? host.length() : pathIndex);
 
+            // 잘못뜯기면 여기서 예외 터짐. 숫자만 들어와야함.
+            targetPort = Integer.parseInt(portInfo);
+
+            // path 정보가 있는지 확인 후 뜯어준다.
+            if (pathIndex != -1) {
+                path = host.substring(pathIndex);
+                host = host.substring(0, portIdx);
+            } else {
+                host = host.substring(0, portIdx);
             }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
         }
+        host = host.replace("/", "");
 
-        return portMap;
+        InetSocketAddress address = new InetSocketAddress(host, targetPort);
+        return new SocketInfo(address, host, path, isHttps, weight);
     }
 }
@@ -0,0 +1,119 @@
+package org.crazyproxy.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CachePolicyTest {
+
+    private static final byte[] HEAD = "HTTP/1.1 200 OK\r\nContent-Length: 0\r\nCache-Control: max-age=60\r\n\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private final CacheEntry a = entry("/a");
+    private final CacheEntry b = entry("/b");
+    private final CacheEntry c = entry("/c");
+    private final CacheEntry d = entry("/d");
+    // 항목 세 개 자리. window는 세그먼트 하나라서 항목 하나만 머문다
+    private final CachePolicy policy = new CachePolicy(3 * a.weight);
+    private final List<CacheEntry> evicted = new ArrayList<>();
+
+    @Test
+    void windowOverflowMovesOldestToProbation() {
+        policy.add(a, evicted);
+        policy.add(b, evicted);
+        policy.add(c, evicted);
+
+        assertEquals(CachePolicy.PROBATION, a.queue);
+        assertEquals(CachePolicy.PROBATION, b.queue);
+        assertEquals(CachePolicy.WINDOW, c.queue);
+        assertTrue(evicted.isEmpty());
+        assertEquals(3 * a.weight, policy.getWeight());
+    }
+
+    @Test
+    void rejectsCandidateLessFrequentThanVictim() {
+        fill();
+        access(a, 3);
+        access(b, 3);
+
+        // c가 window에서 밀려나는데 probation 끝의 a보다 덜 찾혔다
+        policy.add(d, evicted);
+
+        assertEquals(List.of(c), evicted);
+        assertEquals(CachePolicy.NONE, c.queue);
+        assertEquals(CachePolicy.PROBATION, a.queue);
+        assertEquals(1, policy.getAdmissionRejects());
+    }
+
+    @Test
+    void admitsCandidateMoreFrequentThanVictim() {
+        fill();
+        access(c, 3);
+
+        policy.add(d, evicted);
+
+        assertEquals(List.of(a), evicted);
+        assertEquals(CachePolicy.NONE, a.queue);
+        assertEquals(CachePolicy.PROBATION, c.queue);
+        assertEquals(CachePolicy.WINDOW, d.queue);
+        assertEquals(0, policy.getAdmissionRejects());
+    }
+
+    @Test
+    void hitInProbationPromotesToProtected() {
+        fill();
+        policy.recordAccess(a.hash, a);
+
+        assertEquals(CachePolicy.PROTECTED, a.queue);
+        // 쫓아낼 때는 probation이 먼저다
+        access(c, 3);
+        policy.add(d, evicted);
+        assertEquals(List.of(b), evicted);
+        assertEquals(CachePolicy.PROTECTED, a.queue);
+    }
+
+    @Test
+    void evictForAdmitsOnlyMoreFrequentCandidate() {
+        fill();
+        access(a, 2);
+
+        assertNull(policy.evictFor("/cold".hashCode()));
+        assertEquals(1, policy.getAdmissionRejects());
+        assertEquals(CachePolicy.PROBATION, a.queue);
+
+        int hot = "/hot".hashCode();
+        for (int i = 0; i < 5; i++) {
+            policy.recordAccess(hot, null);
+        }
+        assertEquals(a, policy.evictFor(hot));
+        assertEquals(CachePolicy.NONE, a.queue);
+        assertEquals(2 * a.weight, policy.getWeight());
+    }
+
+    /**
+     * probation [a, b], window [c]
+     */
+    private void fill() {
+        policy.add(a, evicted);
+        policy.add(b, evicted);
+        policy.add(c, evicted);
+    }
+
+    private void access(CacheEntry entry, int times) {
+        for (int i = 0; i < times; i++) {
+            policy.recordAccess(entry.hash, null);
+        }
+    }
+
+    private static CacheEntry entry(String key) {
+        CachedHeaders headers = CachedHeaders.parse(HEAD, HEAD.length, System.currentTimeMillis());
+        return new CacheEntry(key, key.hashCode(), null, new ByteBuffer[1], 0, headers);
+    }
+}
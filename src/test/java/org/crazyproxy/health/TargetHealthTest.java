@@ -0,0 +1,106 @@
+package org.crazyproxy.health;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TargetHealthTest {
+
+    private static final long EJECTION_MILLIS = 100;
+
+    private final TargetHealth health = new TargetHealth("test");
+
+    @BeforeAll
+    static void init() {
+        // 연속 실패 3번에 연다. 실패율로는 안 연다
+        OutlierDetection.initInstance(true, 3, 101, 100, EJECTION_MILLIS, 10 * EJECTION_MILLIS);
+    }
+
+    @Test
+    void opensOnConsecutiveFailures() {
+        health.onResult(true, TargetHealth.NO_PROBE);
+        health.onResult(true, TargetHealth.NO_PROBE);
+        assertEquals(TargetHealth.CLOSED, health.getState());
+
+        health.onResult(true, TargetHealth.NO_PROBE);
+        assertEquals(TargetHealth.OPEN, health.getState());
+        assertFalse(health.allowRequest());
+        assertEquals(1, health.getEjections());
+    }
+
+    @Test
+    void closesOnProbeSuccess() throws InterruptedException {
+        open();
+        TimeUnit.MILLISECONDS.sleep(EJECTION_MILLIS + 20);
+
+        assertTrue(health.allowRequest());
+        assertEquals(TargetHealth.HALF_OPEN, health.getState());
+        // 시험 요청은 하나만
+        assertFalse(health.allowRequest());
+
+        long probe = health.startRequest();
+        assertNotEquals(TargetHealth.NO_PROBE, probe);
+        assertEquals(TargetHealth.NO_PROBE, health.startRequest());
+
+        // 열리기 전에 나간 요청의 결과는 상태를 안 바꾼다
+        health.onResult(false, TargetHealth.NO_PROBE);
+        assertEquals(TargetHealth.HALF_OPEN, health.getState());
+
+        health.onResult(false, probe);
+        assertEquals(TargetHealth.CLOSED, health.getState());
+        assertTrue(health.allowRequest());
+        assertEquals(TargetHealth.NO_PROBE, health.startRequest());
+    }
+
+    @Test
+    void reopensOnProbeFailureWithLongerEjection() throws InterruptedException {
+        open();
+        TimeUnit.MILLISECONDS.sleep(EJECTION_MILLIS + 20);
+        assertTrue(health.allowRequest());
+
+        health.onResult(true, health.startRequest());
+        assertEquals(TargetHealth.OPEN, health.getState());
+        assertEquals(2, health.getEjections());
+
+        // 두 번째는 두 배 동안 빠져 있다
+        TimeUnit.MILLISECONDS.sleep(EJECTION_MILLIS + 20);
+        assertFalse(health.allowRequest());
+        TimeUnit.MILLISECONDS.sleep(EJECTION_MILLIS);
+        assertTrue(health.allowRequest());
+    }
+
+    @Test
+    void ignoresStaleProbeResult() throws InterruptedException {
+        open();
+        TimeUnit.MILLISECONDS.sleep(EJECTION_MILLIS + 20);
+        assertTrue(health.allowRequest());
+        long stale = health.startRequest();
+
+        // 시험 요청이 ejectionTime 안에 안 끝나서 다음 요청을 다시 시험으로 보낸다
+        TimeUnit.MILLISECONDS.sleep(EJECTION_MILLIS + 20);
+        assertTrue(health.allowRequest());
+        long probe = health.startRequest();
+        assertNotEquals(stale, probe);
+
+        health.onResult(false, stale);
+        assertEquals(TargetHealth.HALF_OPEN, health.getState());
+        health.onResult(true, stale);
+        assertEquals(TargetHealth.HALF_OPEN, health.getState());
+
+        health.onResult(false, probe);
+        assertEquals(TargetHealth.CLOSED, health.getState());
+    }
+
+    private void open() {
+        for (int i = 0; i < 3; i++) {
+            health.onResult(true, TargetHealth.NO_PROBE);
+        }
+        assertEquals(TargetHealth.OPEN, health.getState());
+    }
+}
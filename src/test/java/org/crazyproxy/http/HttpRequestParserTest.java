@@ -0,0 +1,220 @@
+package org.crazyproxy.http;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpRequestParserTest {
+
+    private final HttpRequestParser parser = new HttpRequestParser(8 * 1024);
+
+    @Test
+    void parsesRequestWithoutBody() {
+        ByteBuffer buffer = ascii("GET /index.html HTTP/1.1\r\nHost: example.com\r\nAccept: */*\r\n\r\n");
+        assertEquals(HttpRequestParser.Result.HEADERS_DONE, parser.parseHeaders(buffer, 0, buffer.limit()));
+        assertEquals(buffer.limit(), parser.getHeaderLength());
+        assertEquals("/index.html", parser.getTarget(buffer, 0));
+        assertEquals(2, parser.getHeaderCount());
+        assertEquals("host", parser.getHeaderName(buffer, 0, 0));
+        assertEquals("example.com", parser.getHeaderValue(buffer, 0, 0));
+        assertTrue(parser.isGetRequest());
+        assertTrue(parser.isIdempotent());
+        assertTrue(parser.isPersistent());
+        assertFalse(parser.hasBody());
+        assertTrue(parser.isMessageComplete());
+    }
+
+    @Test
+    void resumesHeadersSplitAcrossReads() {
+        String request = "POST /submit HTTP/1.1\r\nHost: example.com\r\nContent-Length: 3\r\n\r\nabc";
+        ByteBuffer buffer = ascii(request);
+        int headerEnd = request.indexOf("abc");
+        // 한 바이트씩 들어와도, \r과 \n 사이에서 끊겨도 같은 결과
+        for (int end = 0; end < headerEnd; end++) {
+            assertEquals(HttpRequestParser.Result.NEED_MORE, parser.parseHeaders(buffer, 0, end), "end = " + end);
+        }
+        assertEquals(HttpRequestParser.Result.HEADERS_DONE, parser.parseHeaders(buffer, 0, headerEnd));
+        assertEquals(headerEnd, parser.getHeaderLength());
+        assertEquals("content-length", parser.getHeaderName(buffer, 0, 1));
+        assertFalse(parser.isIdempotent());
+        assertEquals(3, parser.frameBody(buffer, headerEnd, buffer.limit()));
+        assertTrue(parser.isMessageComplete());
+    }
+
+    @Test
+    void usesOffsetsRelativeToMessageStart() {
+        // 앞 요청 뒤에 붙어 온 두 번째 요청. 오프셋은 start 기준
+        ByteBuffer buffer = ascii("GET /a HTTP/1.1\r\n\r\nGET /b HTTP/1.1\r\nX-Id: 2\r\n\r\n");
+        assertEquals(HttpRequestParser.Result.HEADERS_DONE, parser.parseHeaders(buffer, 0, buffer.limit()));
+        int next = parser.getHeaderLength();
+        parser.reset();
+        assertEquals(HttpRequestParser.Result.HEADERS_DONE, parser.parseHeaders(buffer, next, buffer.limit()));
+        assertEquals("/b", parser.getTarget(buffer, next));
+        assertEquals("2", parser.getHeaderValue(buffer, next, 0));
+    }
+
+    @Test
+    void skipsLeadingEmptyLines() {
+        ByteBuffer buffer = ascii("\r\n\r\nGET / HTTP/1.1\r\n\r\n");
+        assertEquals(HttpRequestParser.Result.HEADERS_DONE, parser.parseHeaders(buffer, 0, buffer.limit()));
+        assertEquals("/", parser.getTarget(buffer, 0));
+    }
+
+    @Test
+    void acceptsRepeatedIdenticalContentLength() {
+        ByteBuffer buffer = ascii("POST / HTTP/1.1\r\nContent-Length: 2\r\nContent-Length: 2\r\n\r\nok");
+        assertEquals(HttpRequestParser.Result.HEADERS_DONE, parser.parseHeaders(buffer, 0, buffer.limit()));
+        assertEquals(2, parser.frameBody(buffer, parser.getHeaderLength(), buffer.limit()));
+        assertTrue(parser.isMessageComplete());
+    }
+
+    @Test
+    void rejectsConflictingContentLength() {
+        assertBadRequest("POST / HTTP/1.1\r\nContent-Length: 2\r\nContent-Length: 3\r\n\r\n");
+    }
+
+    @Test
+    void rejectsInvalidContentLength() {
+        assertBadRequest("POST / HTTP/1.1\r\nContent-Length: 2, 2\r\n\r\n");
+        assertBadRequest("POST / HTTP/1.1\r\nContent-Length: -1\r\n\r\n");
+        assertBadRequest("POST / HTTP/1.1\r\nContent-Length:\r\n\r\n");
+        assertBadRequest("POST / HTTP/1.1\r\nContent-Length: 99999999999999999999\r\n\r\n");
+    }
+
+    @Test
+    void rejectsTransferEncodingWithContentLength() {
+        assertBadRequest("POST / HTTP/1.1\r\nContent-Length: 5\r\nTransfer-Encoding: chunked\r\n\r\n");
+        assertBadRequest("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nContent-Length: 0\r\n\r\n");
+    }
+
+    @Test
+    void rejectsTransferEncodingNotEndingInChunked() {
+        assertBadRequest("POST / HTTP/1.1\r\nTransfer-Encoding: chunked, gzip\r\n\r\n");
+        assertBadRequest("POST / HTTP/1.1\r\nTransfer-Encoding: xchunked\r\n\r\n");
+        assertBadRequest("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\nTransfer-Encoding: gzip\r\n\r\n");
+    }
+
+    @Test
+    void acceptsChunkedAsFinalCoding() {
+        ByteBuffer buffer = ascii("POST / HTTP/1.1\r\nTransfer-Encoding: gzip, CHUNKED \r\n\r\n0\r\n\r\n");
+        assertEquals(HttpRequestParser.Result.HEADERS_DONE, parser.parseHeaders(buffer, 0, buffer.limit()));
+        assertTrue(parser.hasBody());
+        assertEquals(5, parser.frameBody(buffer, parser.getHeaderLength(), buffer.limit()));
+        assertTrue(parser.isMessageComplete());
+    }
+
+    @Test
+    void framesChunkedBodyWithExtensionsAndTrailers() {
+        String body = "5;name=value\r\nhello\r\n"
+                + "A\r\n0123456789\r\n"
+                + "0;last\r\nX-Checksum: abc\r\nX-Other: 1\r\n\r\n";
+        ByteBuffer buffer = ascii("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" + body + "GET /next HTTP/1.1\r\n\r\n");
+        assertEquals(HttpRequestParser.Result.HEADERS_DONE, parser.parseHeaders(buffer, 0, buffer.limit()));
+        // 뒤에 붙은 다음 요청은 바디에 넣지 않는다
+        assertEquals(body.length(), parser.frameBody(buffer, parser.getHeaderLength(), buffer.limit()));
+        assertTrue(parser.isMessageComplete());
+    }
+
+    @Test
+    void framesChunkedBodySplitAcrossReads() {
+        String head = "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n";
+        String body = "1a\r\nabcdefghijklmnopqrstuvwxyz\r\n0\r\nTrailer: t\r\n\r\n";
+        ByteBuffer buffer = ascii(head + body);
+        assertEquals(HttpRequestParser.Result.HEADERS_DONE, parser.parseHeaders(buffer, 0, buffer.limit()));
+        int framed = 0;
+        for (int i = head.length(); i < buffer.limit(); i++) {
+            assertFalse(parser.isMessageComplete());
+            framed += parser.frameBody(buffer, i, i + 1);
+        }
+        assertEquals(body.length(), framed);
+        assertTrue(parser.isMessageComplete());
+    }
+
+    @Test
+    void rejectsMalformedChunkSize() {
+        assertChunkError("\r\nhello\r\n0\r\n\r\n");
+        assertChunkError(";ext\r\nhello\r\n0\r\n\r\n");
+        assertChunkError("10000000000000000\r\n");
+    }
+
+    @Test
+    void framesContentLengthBodyAcrossReads() {
+        ByteBuffer buffer = ascii("PUT / HTTP/1.1\r\nContent-Length: 10\r\n\r\n0123456789GET");
+        assertEquals(HttpRequestParser.Result.HEADERS_DONE, parser.parseHeaders(buffer, 0, buffer.limit()));
+        int from = parser.getHeaderLength();
+        assertEquals(4, parser.frameBody(buffer, from, from + 4));
+        assertFalse(parser.isMessageComplete());
+        assertEquals(6, parser.frameBody(buffer, from + 4, buffer.limit()));
+        assertTrue(parser.isMessageComplete());
+    }
+
+    @Test
+    void rejectsOversizedHeaders() {
+        HttpRequestParser small = new HttpRequestParser(64);
+        ByteBuffer buffer = ascii("GET / HTTP/1.1\r\nX-Long: " + "a".repeat(100) + "\r\n\r\n");
+        assertEquals(HttpRequestParser.Result.HEADER_TOO_LARGE, small.parseHeaders(buffer, 0, buffer.limit()));
+        // 아직 다 안 왔어도 크기만 넘으면 바로 안다
+        small.reset();
+        assertEquals(HttpRequestParser.Result.HEADER_TOO_LARGE, small.parseHeaders(buffer, 0, 64));
+    }
+
+    @Test
+    void rejectsTooManyHeaders() {
+        StringBuilder request = new StringBuilder("GET / HTTP/1.1\r\n");
+        for (int i = 0; i <= 128; i++) {
+            request.append("X-").append(i).append(": v\r\n");
+        }
+        ByteBuffer buffer = ascii(request.append("\r\n").toString());
+        assertEquals(HttpRequestParser.Result.HEADER_TOO_LARGE, parser.parseHeaders(buffer, 0, buffer.limit()));
+    }
+
+    @Test
+    void rejectsMalformedLines() {
+        assertBadRequest("GET /\r\n\r\n");
+        assertBadRequest("GET / HTTP/2.0\r\n\r\n");
+        assertBadRequest("GET / HTTP/1.1\r\nNoColon\r\n\r\n");
+        assertBadRequest("GET / HTTP/1.1\r\nX-A: 1\r\n folded\r\n\r\n");
+    }
+
+    @Test
+    void followsConnectionSemantics() {
+        ByteBuffer http10 = ascii("GET / HTTP/1.0\r\n\r\n");
+        assertEquals(HttpRequestParser.Result.HEADERS_DONE, parser.parseHeaders(http10, 0, http10.limit()));
+        assertFalse(parser.isPersistent());
+
+        parser.reset();
+        ByteBuffer keepAlive = ascii("GET / HTTP/1.0\r\nConnection: Keep-Alive\r\n\r\n");
+        assertEquals(HttpRequestParser.Result.HEADERS_DONE, parser.parseHeaders(keepAlive, 0, keepAlive.limit()));
+        assertTrue(parser.isPersistent());
+
+        parser.reset();
+        ByteBuffer close = ascii("HEAD / HTTP/1.1\r\nConnection: close\r\n\r\n");
+        assertEquals(HttpRequestParser.Result.HEADERS_DONE, parser.parseHeaders(close, 0, close.limit()));
+        assertFalse(parser.isPersistent());
+        assertTrue(parser.isHeadRequest());
+    }
+
+    private void assertBadRequest(String request) {
+        parser.reset();
+        ByteBuffer buffer = ascii(request);
+        assertEquals(HttpRequestParser.Result.BAD_REQUEST, parser.parseHeaders(buffer, 0, buffer.limit()), request);
+    }
+
+    private void assertChunkError(String body) {
+        parser.reset();
+        String head = "POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n";
+        ByteBuffer buffer = ascii(head + body);
+        assertEquals(HttpRequestParser.Result.HEADERS_DONE, parser.parseHeaders(buffer, 0, buffer.limit()));
+        assertThrows(IllegalStateException.class, () -> parser.frameBody(buffer, head.length(), buffer.limit()));
+    }
+
+    private static ByteBuffer ascii(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,161 @@
+package org.crazyproxy.http;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HttpResponseFramerTest {
+
+    private final HttpResponseFramer framer = new HttpResponseFramer();
+
+    @Test
+    void framesContentLengthResponse() {
+        framer.reset(false);
+        assertTrue(framer.feed(ascii("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello")));
+        assertEquals(200, framer.getStatusCode());
+        assertTrue(framer.isKeepAlive());
+    }
+
+    @Test
+    void framesResponseSplitAcrossReads() {
+        framer.reset(false);
+        byte[] response = "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello".getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < response.length - 1; i++) {
+            assertFalse(framer.feed(ByteBuffer.wrap(response, i, 1)));
+        }
+        assertTrue(framer.feed(ByteBuffer.wrap(response, response.length - 1, 1)));
+    }
+
+    @Test
+    void leavesBufferPositionAlone() {
+        framer.reset(false);
+        ByteBuffer buffer = ascii("HTTP/1.1 204 No Content\r\n\r\n");
+        framer.feed(buffer);
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    void acceptsRepeatedIdenticalContentLength() {
+        framer.reset(false);
+        assertTrue(framer.feed(ascii("HTTP/1.1 200 OK\r\nContent-Length: 2\r\nContent-Length: 2 \r\n\r\nok")));
+    }
+
+    @Test
+    void rejectsConflictingContentLength() {
+        framer.reset(false);
+        assertThrows(IllegalStateException.class,
+                () -> framer.feed(ascii("HTTP/1.1 200 OK\r\nContent-Length: 2\r\nContent-Length: 3\r\n\r\n")));
+    }
+
+    @Test
+    void rejectsInvalidContentLength() {
+        framer.reset(false);
+        assertThrows(IllegalStateException.class, () -> framer.feed(ascii("HTTP/1.1 200 OK\r\nContent-Length: 2x\r\n\r\n")));
+        framer.reset(false);
+        assertThrows(IllegalStateException.class, () -> framer.feed(ascii("HTTP/1.1 200 OK\r\nContent-Length:\r\n\r\n")));
+    }
+
+    @Test
+    void prefersChunkedOverContentLength() {
+        framer.reset(false);
+        // Content-Length를 따르면 3바이트에서 끝난 걸로 본다
+        assertFalse(framer.feed(ascii("HTTP/1.1 200 OK\r\nContent-Length: 3\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n")));
+        assertTrue(framer.feed(ascii("0\r\n\r\n")));
+    }
+
+    @Test
+    void readsUntilCloseWhenChunkedIsNotFinal() {
+        framer.reset(false);
+        assertFalse(framer.feed(ascii("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked, gzip\r\nContent-Length: 2\r\n\r\nok")));
+        assertTrue(framer.onEndOfStream());
+        assertFalse(framer.isKeepAlive());
+    }
+
+    @Test
+    void framesChunkedResponseWithExtensionsAndTrailers() {
+        framer.reset(false);
+        assertFalse(framer.feed(ascii("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5;name=value\r\nhel")));
+        assertFalse(framer.feed(ascii("lo\r\n0;last\r\nX-Checksum: abc\r\n")));
+        assertTrue(framer.feed(ascii("\r\n")));
+        assertTrue(framer.isKeepAlive());
+    }
+
+    @Test
+    void rejectsMalformedChunkSize() {
+        framer.reset(false);
+        assertThrows(IllegalStateException.class,
+                () -> framer.feed(ascii("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n;ext\r\n")));
+        framer.reset(false);
+        assertThrows(IllegalStateException.class,
+                () -> framer.feed(ascii("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n10000000000000000\r\n")));
+    }
+
+    @Test
+    void headResponseHasNoBody() {
+        framer.reset(true);
+        assertTrue(framer.feed(ascii("HTTP/1.1 200 OK\r\nContent-Length: 1000\r\n\r\n")));
+        assertTrue(framer.isKeepAlive());
+    }
+
+    @Test
+    void noContentAndNotModifiedHaveNoBody() {
+        framer.reset(false);
+        assertTrue(framer.feed(ascii("HTTP/1.1 204 No Content\r\nContent-Length: 10\r\n\r\n")));
+        framer.reset(false);
+        assertTrue(framer.feed(ascii("HTTP/1.1 304 Not Modified\r\nTransfer-Encoding: chunked\r\n\r\n")));
+        assertEquals(304, framer.getStatusCode());
+    }
+
+    @Test
+    void skipsInterimResponses() {
+        framer.reset(false);
+        assertFalse(framer.feed(ascii("HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 103 Early Hints\r\nLink: </a>\r\n\r\n")));
+        assertTrue(framer.feed(ascii("HTTP/1.1 201 Created\r\nContent-Length: 0\r\n\r\n")));
+        assertEquals(201, framer.getStatusCode());
+    }
+
+    @Test
+    void readsUntilCloseWithoutLength() {
+        framer.reset(false);
+        assertFalse(framer.feed(ascii("HTTP/1.1 200 OK\r\n\r\nsome body")));
+        assertFalse(framer.isComplete());
+        assertTrue(framer.onEndOfStream());
+        assertFalse(framer.isKeepAlive());
+    }
+
+    @Test
+    void endOfStreamBeforeLengthIsIncomplete() {
+        framer.reset(false);
+        assertFalse(framer.feed(ascii("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\nshort")));
+        assertFalse(framer.onEndOfStream());
+    }
+
+    @Test
+    void followsConnectionSemantics() {
+        framer.reset(false);
+        assertTrue(framer.feed(ascii("HTTP/1.0 200 OK\r\nContent-Length: 0\r\n\r\n")));
+        assertFalse(framer.isKeepAlive());
+        framer.reset(false);
+        assertTrue(framer.feed(ascii("HTTP/1.0 200 OK\r\nConnection: keep-alive\r\nContent-Length: 0\r\n\r\n")));
+        assertTrue(framer.isKeepAlive());
+        framer.reset(false);
+        assertTrue(framer.feed(ascii("HTTP/1.1 200 OK\r\nConnection: close\r\nContent-Length: 0\r\n\r\n")));
+        assertFalse(framer.isKeepAlive());
+    }
+
+    @Test
+    void rejectsInvalidStatusLine() {
+        framer.reset(false);
+        assertThrows(IllegalStateException.class, () -> framer.feed(ascii("SSH-2.0-OpenSSH\r\n")));
+    }
+
+    private static ByteBuffer ascii(String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.US_ASCII));
+    }
+}
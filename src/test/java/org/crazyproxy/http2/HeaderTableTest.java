@@ -0,0 +1,116 @@
+package org.crazyproxy.http2;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class HeaderTableTest {
+
+    @Test
+    void looksUpStaticEntries() throws Http2Exception {
+        HeaderTable table = new HeaderTable();
+        assertEquals(HeaderTable.STATIC_LENGTH, table.length());
+        assertArrayEquals(bytes(":authority"), table.name(1));
+        assertArrayEquals(bytes("GET"), table.value(2));
+        assertArrayEquals(bytes("www-authenticate"), table.name(61));
+    }
+
+    @Test
+    void addsNewestEntryFirst() throws Http2Exception {
+        HeaderTable table = new HeaderTable();
+        table.add(bytes("a"), bytes("1"));
+        table.add(bytes("b"), bytes("2"));
+        assertEquals(HeaderTable.STATIC_LENGTH + 2, table.length());
+        assertArrayEquals(bytes("b"), table.name(62));
+        assertArrayEquals(bytes("a"), table.name(63));
+        assertArrayEquals(bytes("1"), table.value(63));
+    }
+
+    @Test
+    void evictsOldestWhenFull() throws Http2Exception {
+        HeaderTable table = new HeaderTable();
+        // 항목 하나가 1 + 1 + 32 = 34바이트. 100바이트면 둘까지 들어간다
+        table.setMaxSize(100);
+        table.add(bytes("a"), bytes("1"));
+        table.add(bytes("b"), bytes("2"));
+        table.add(bytes("c"), bytes("3"));
+        assertEquals(HeaderTable.STATIC_LENGTH + 2, table.length());
+        assertArrayEquals(bytes("c"), table.name(62));
+        assertArrayEquals(bytes("b"), table.name(63));
+        assertThrows(Http2Exception.class, () -> table.name(64));
+    }
+
+    @Test
+    void oversizedEntryClearsTable() {
+        HeaderTable table = new HeaderTable();
+        table.setMaxSize(100);
+        table.add(bytes("a"), bytes("1"));
+        table.add(bytes("long-name"), new byte[100]);
+        assertEquals(HeaderTable.STATIC_LENGTH, table.length());
+    }
+
+    @Test
+    void entryExactlyAtMaxSizeFits() throws Http2Exception {
+        HeaderTable table = new HeaderTable();
+        table.setMaxSize(34);
+        table.add(bytes("a"), bytes("1"));
+        assertEquals(HeaderTable.STATIC_LENGTH + 1, table.length());
+        table.add(bytes("b"), bytes("2"));
+        assertEquals(HeaderTable.STATIC_LENGTH + 1, table.length());
+        assertArrayEquals(bytes("b"), table.name(62));
+    }
+
+    @Test
+    void shrinkingEvictsOldest() throws Http2Exception {
+        HeaderTable table = new HeaderTable();
+        table.add(bytes("a"), bytes("1"));
+        table.add(bytes("b"), bytes("2"));
+        table.add(bytes("c"), bytes("3"));
+        table.setMaxSize(68);
+        assertEquals(HeaderTable.STATIC_LENGTH + 2, table.length());
+        assertArrayEquals(bytes("b"), table.name(63));
+        table.setMaxSize(0);
+        assertEquals(HeaderTable.STATIC_LENGTH, table.length());
+        assertEquals(0, table.getMaxSize());
+    }
+
+    @Test
+    void keepsOrderAcrossGrowth() throws Http2Exception {
+        HeaderTable table = new HeaderTable();
+        for (int i = 0; i < 40; i++) {
+            table.add(bytes("h" + i), bytes("v" + i));
+        }
+        assertEquals(HeaderTable.STATIC_LENGTH + 40, table.length());
+        for (int i = 0; i < 40; i++) {
+            assertArrayEquals(bytes("h" + (39 - i)), table.name(62 + i));
+        }
+    }
+
+    @Test
+    void findsExactAndNameMatches() {
+        HeaderTable table = new HeaderTable();
+        table.add(bytes("x-custom"), bytes("1"));
+        assertEquals(2, table.find(bytes(":method"), bytes("GET")));
+        assertEquals(-2, table.find(bytes(":method"), bytes("PUT")));
+        assertEquals(62, table.find(bytes("x-custom"), bytes("1")));
+        assertEquals(-62, table.find(bytes("x-custom"), bytes("2")));
+        assertEquals(0, table.find(bytes("x-other"), bytes("1")));
+    }
+
+    @Test
+    void rejectsInvalidIndex() {
+        HeaderTable table = new HeaderTable();
+        Http2Exception zero = assertThrows(Http2Exception.class, () -> table.name(0));
+        assertEquals(Http2Frame.COMPRESSION_ERROR, zero.getErrorCode());
+        Http2Exception empty = assertThrows(Http2Exception.class, () -> table.value(62));
+        assertEquals(Http2Frame.COMPRESSION_ERROR, empty.getErrorCode());
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,19 @@
+package org.crazyproxy.http2;
+
+/**
+ * RFC 예제를 옮겨 적기 위한 16진수 헬퍼. 공백은 무시한다.
+ */
+final class Hex {
+
+    private Hex() {
+    }
+
+    static byte[] decode(String hex) {
+        String digits = hex.replace(" ", "");
+        byte[] bytes = new byte[digits.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(digits.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,175 @@
+package org.crazyproxy.http2;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * RFC 7541 Appendix C의 헤더 블록 예제. 같은 절의 블록은 한 디코더로 이어서 풀어야 동적 테이블이 맞는다.
+ */
+class HpackDecoderTest {
+
+    private static final String DATE_21 = "Mon, 21 Oct 2013 20:13:21 GMT";
+    private static final String DATE_22 = "Mon, 21 Oct 2013 20:13:22 GMT";
+    private static final String LOCATION = "https://www.example.com";
+    private static final String COOKIE = "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1";
+
+    @Test
+    void decodesLiteralWithIndexing() throws Http2Exception {
+        // C.2.1
+        HpackDecoder decoder = new HpackDecoder(HeaderTable.DEFAULT_SIZE, 65_536);
+        assertEquals(List.of("custom-key: custom-header"),
+                decode(decoder, "400a 6375 7374 6f6d 2d6b 6579 0d63 7573 746f 6d2d 6865 6164 6572"));
+        // 방금 넣은 항목이 62번
+        assertEquals(List.of("custom-key: custom-header"), decode(decoder, "be"));
+    }
+
+    @Test
+    void decodesLiteralsWithoutIndexing() throws Http2Exception {
+        // C.2.2, C.2.3. 테이블에 안 들어가니 62번을 찾으면 에러
+        HpackDecoder decoder = new HpackDecoder(HeaderTable.DEFAULT_SIZE, 65_536);
+        assertEquals(List.of(":path: /sample/path"), decode(decoder, "040c 2f73 616d 706c 652f 7061 7468"));
+        assertEquals(List.of("password: secret"), decode(decoder, "1008 7061 7373 776f 7264 0673 6563 7265 74"));
+        assertCompressionError(decoder, "be");
+    }
+
+    @Test
+    void decodesIndexedField() throws Http2Exception {
+        // C.2.4
+        HpackDecoder decoder = new HpackDecoder(HeaderTable.DEFAULT_SIZE, 65_536);
+        assertEquals(List.of(":method: GET"), decode(decoder, "82"));
+    }
+
+    @Test
+    void decodesRequestsWithoutHuffman() throws Http2Exception {
+        // C.3
+        HpackDecoder decoder = new HpackDecoder(HeaderTable.DEFAULT_SIZE, 65_536);
+        assertEquals(List.of(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com"),
+                decode(decoder, "8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d"));
+        assertEquals(List.of(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com", "cache-control: no-cache"),
+                decode(decoder, "8286 84be 5808 6e6f 2d63 6163 6865"));
+        assertEquals(List.of(":method: GET", ":scheme: https", ":path: /index.html", ":authority: www.example.com", "custom-key: custom-value"),
+                decode(decoder, "8287 85bf 400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75 65"));
+    }
+
+    @Test
+    void decodesRequestsWithHuffman() throws Http2Exception {
+        // C.4
+        HpackDecoder decoder = new HpackDecoder(HeaderTable.DEFAULT_SIZE, 65_536);
+        assertEquals(List.of(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com"),
+                decode(decoder, "8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff"));
+        assertEquals(List.of(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com", "cache-control: no-cache"),
+                decode(decoder, "8286 84be 5886 a8eb 1064 9cbf"));
+        assertEquals(List.of(":method: GET", ":scheme: https", ":path: /index.html", ":authority: www.example.com", "custom-key: custom-value"),
+                decode(decoder, "8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf"));
+    }
+
+    @Test
+    void evictsOldestEntriesWithoutHuffman() throws Http2Exception {
+        // C.5. 테이블 256바이트라 두 번째 블록에서 :status 302가, 세 번째 블록에서 나머지 넷 중 셋이 밀려난다
+        HpackDecoder decoder = new HpackDecoder(256, 65_536);
+        assertEquals(List.of(":status: 302", "cache-control: private", "date: " + DATE_21, "location: " + LOCATION),
+                decode(decoder, "4803 3330 3258 0770 7269 7661 7465 611d 4d6f 6e2c 2032 3120 4f63 7420 3230 3133 2032 303a"
+                        + "3133 3a32 3120 474d 546e 1768 7474 7073 3a2f 2f77 7777 2e65 7861 6d70 6c65 2e63 6f6d"));
+        assertEquals(List.of(":status: 307", "cache-control: private", "date: " + DATE_21, "location: " + LOCATION),
+                decode(decoder, "4803 3330 37c1 c0bf"));
+        assertEquals(List.of(":status: 200", "cache-control: private", "date: " + DATE_22, "location: " + LOCATION,
+                        "content-encoding: gzip", "set-cookie: " + COOKIE),
+                decode(decoder, "88c1 611d 4d6f 6e2c 2032 3120 4f63 7420 3230 3133 2032 303a 3133 3a32 3220 474d 54c0"
+                        + "5a04 677a 6970 7738 666f 6f3d 4153 444a 4b48 514b 425a 584f 5157 454f 5049 5541 5851"
+                        + "5745 4f49 553b 206d 6178 2d61 6765 3d33 3630 303b 2076 6572 7369 6f6e 3d31"));
+        // 남은 건 set-cookie, content-encoding, date 셋뿐이다
+        assertEquals(List.of("set-cookie: " + COOKIE, "date: " + DATE_22), decode(decoder, "be c0"));
+        assertCompressionError(decoder, "c1");
+    }
+
+    @Test
+    void evictsOldestEntriesWithHuffman() throws Http2Exception {
+        // C.6
+        HpackDecoder decoder = new HpackDecoder(256, 65_536);
+        assertEquals(List.of(":status: 302", "cache-control: private", "date: " + DATE_21, "location: " + LOCATION),
+                decode(decoder, "4882 6402 5885 aec3 771a 4b61 96d0 7abe 9410 54d4 44a8 2005 9504 0b81 66e0 82a6"
+                        + "2d1b ff6e 919d 29ad 1718 63c7 8f0b 97c8 e9ae 82ae 43d3"));
+        assertEquals(List.of(":status: 307", "cache-control: private", "date: " + DATE_21, "location: " + LOCATION),
+                decode(decoder, "4883 640e ffc1 c0bf"));
+        assertEquals(List.of(":status: 200", "cache-control: private", "date: " + DATE_22, "location: " + LOCATION,
+                        "content-encoding: gzip", "set-cookie: " + COOKIE),
+                decode(decoder, "88c1 6196 d07a be94 1054 d444 a820 0595 040b 8166 e084 a62d 1bff c05a 839b d9ab 77ad"
+                        + "94e7 821d d7f2 e6c7 b335 dfdf cd5b 3960 d5af 2708 7f36 72c1 ab27 0fb5 291f 9587 3160"
+                        + "65c0 03ed 4ee5 b106 3d50 07"));
+        assertCompressionError(decoder, "c1");
+    }
+
+    @Test
+    void appliesSizeUpdateAtBlockStart() throws Http2Exception {
+        HpackDecoder decoder = new HpackDecoder(HeaderTable.DEFAULT_SIZE, 65_536);
+        decode(decoder, "400a 6375 7374 6f6d 2d6b 6579 0d63 7573 746f 6d2d 6865 6164 6572");
+        // 크기 0으로 줄이면 동적 테이블이 비워진다. 다시 늘려도 지워진 항목은 돌아오지 않는다
+        assertEquals(List.of(), decode(decoder, "20"));
+        assertEquals(List.of(":method: GET"), decode(decoder, "3fe1 1f 82"));
+        assertCompressionError(decoder, "be");
+    }
+
+    @Test
+    void rejectsSizeUpdateAfterHeader() {
+        HpackDecoder decoder = new HpackDecoder(HeaderTable.DEFAULT_SIZE, 65_536);
+        assertCompressionError(decoder, "82 20");
+    }
+
+    @Test
+    void rejectsSizeUpdateAboveAdvertisedSize() {
+        // 3fe1 1f = 4096, 3fe2 1f = 4097
+        HpackDecoder decoder = new HpackDecoder(HeaderTable.DEFAULT_SIZE, 65_536);
+        assertCompressionError(decoder, "3fe2 1f");
+    }
+
+    @Test
+    void rejectsInvalidIndex() {
+        HpackDecoder decoder = new HpackDecoder(HeaderTable.DEFAULT_SIZE, 65_536);
+        assertCompressionError(decoder, "80");
+        assertCompressionError(decoder, "be");
+    }
+
+    @Test
+    void rejectsTruncatedInput() {
+        HpackDecoder decoder = new HpackDecoder(HeaderTable.DEFAULT_SIZE, 65_536);
+        // 이어지는 바이트가 없는 정수, 길이보다 짧은 문자열
+        assertCompressionError(decoder, "ff");
+        assertCompressionError(decoder, "400a 6375 7374");
+    }
+
+    @Test
+    void rejectsIntegerOverflow() {
+        HpackDecoder decoder = new HpackDecoder(HeaderTable.DEFAULT_SIZE, 65_536);
+        assertCompressionError(decoder, "ff ff ff ff ff 0f");
+    }
+
+    @Test
+    void rejectsHeaderListAboveLimit() {
+        // custom-key: custom-header는 10 + 13 + 32 = 55바이트
+        HpackDecoder decoder = new HpackDecoder(HeaderTable.DEFAULT_SIZE, 54);
+        Http2Exception e = assertThrows(Http2Exception.class,
+                () -> decode(decoder, "400a 6375 7374 6f6d 2d6b 6579 0d63 7573 746f 6d2d 6865 6164 6572"));
+        assertEquals(Http2Frame.PROTOCOL_ERROR, e.getErrorCode());
+    }
+
+    private static List<String> decode(HpackDecoder decoder, String hex) throws Http2Exception {
+        List<String> headers = new ArrayList<>();
+        ByteBuffer block = ByteBuffer.wrap(Hex.decode(hex));
+        decoder.decode(block, (name, value) -> headers.add(
+                new String(name, StandardCharsets.US_ASCII) + ": " + new String(value, StandardCharsets.US_ASCII)));
+        assertEquals(0, block.remaining());
+        return headers;
+    }
+
+    private static void assertCompressionError(HpackDecoder decoder, String hex) {
+        Http2Exception e = assertThrows(Http2Exception.class, () -> decode(decoder, hex));
+        assertEquals(Http2Frame.COMPRESSION_ERROR, e.getErrorCode());
+    }
+}
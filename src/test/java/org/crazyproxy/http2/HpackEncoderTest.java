@@ -0,0 +1,112 @@
+package org.crazyproxy.http2;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HpackEncoderTest {
+
+    @Test
+    void encodesRfcRequestsWithHuffman() {
+        // C.4: 인코더가 고르는 표현이 RFC 예제와 같아서 바이트까지 똑같이 나온다
+        HpackEncoder encoder = new HpackEncoder();
+        assertArrayEquals(Hex.decode("8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff"),
+                encode(encoder, ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com"));
+        assertArrayEquals(Hex.decode("8286 84be 5886 a8eb 1064 9cbf"),
+                encode(encoder, ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                        "cache-control", "no-cache"));
+        assertArrayEquals(Hex.decode("8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf"),
+                encode(encoder, ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+                        "custom-key", "custom-value"));
+    }
+
+    @Test
+    void roundTripsThroughDecoder() throws Http2Exception {
+        HpackEncoder encoder = new HpackEncoder();
+        HpackDecoder decoder = new HpackDecoder(HeaderTable.DEFAULT_SIZE, 65_536);
+        String[] headers = {":method", "POST", ":path", "/api/v1/items?id=42", "content-length", "1234",
+                "user-agent", "curl/8.0", "x-binary", "\u0000ÿ\t"};
+        for (int i = 0; i < 3; i++) {
+            assertEquals(pairs(headers), decode(decoder, encode(encoder, headers)));
+        }
+    }
+
+    @Test
+    void doesNotIndexVolatileOrSensitiveHeaders() {
+        HpackEncoder encoder = new HpackEncoder();
+        // :path는 테이블에 안 넣고(0000), cookie는 never-indexed(0001)
+        byte[] first = encode(encoder, ":path", "/a", "cookie", "a=b");
+        assertEquals(0x04, first[0] & 0xff);
+        byte[] second = encode(encoder, ":path", "/a", "cookie", "a=b");
+        assertArrayEquals(first, second);
+        assertEquals(0x10, second[4] & 0xf0);
+    }
+
+    @Test
+    void indexesRepeatedHeaders() {
+        HpackEncoder encoder = new HpackEncoder();
+        encode(encoder, "user-agent", "curl/8.0");
+        assertArrayEquals(Hex.decode("be"), encode(encoder, "user-agent", "curl/8.0"));
+    }
+
+    @Test
+    void signalsTableSizeChangeAtNextBlock() throws Http2Exception {
+        HpackEncoder encoder = new HpackEncoder();
+        HpackDecoder decoder = new HpackDecoder(HeaderTable.DEFAULT_SIZE, 65_536);
+        decode(decoder, encode(encoder, "user-agent", "curl/8.0"));
+        encoder.setMaxTableSize(0);
+        // 크기 변경(0x20) 뒤에 리터럴. 테이블이 비었으니 인덱스로 못 보낸다
+        byte[] block = encode(encoder, "user-agent", "curl/8.0");
+        assertEquals(0x20, block[0] & 0xff);
+        assertEquals(0x40 | 58, block[1] & 0xff);
+        assertEquals(List.of("user-agent: curl/8.0"), decode(decoder, block));
+        // 한 번 알렸으면 다음 블록에는 다시 쓰지 않는다
+        assertEquals(0x40 | 58, encode(encoder, "user-agent", "curl/8.0")[0] & 0xff);
+    }
+
+    @Test
+    void capsTableSizeAtDefault() {
+        HpackEncoder encoder = new HpackEncoder();
+        // 상대가 더 크게 알려도 4096을 넘지 않으니 알릴 것도 없다
+        encoder.setMaxTableSize(1 << 20);
+        assertArrayEquals(Hex.decode("82"), encode(encoder, ":method", "GET"));
+    }
+
+    private static byte[] encode(HpackEncoder encoder, String... headers) {
+        ByteBuffer dst = ByteBuffer.allocate(1024);
+        encoder.beginBlock(dst);
+        for (int i = 0; i < headers.length; i += 2) {
+            byte[] name = headers[i].getBytes(StandardCharsets.ISO_8859_1);
+            byte[] value = headers[i + 1].getBytes(StandardCharsets.ISO_8859_1);
+            int before = dst.position();
+            encoder.encode(name, value, dst);
+            assertTrue(dst.position() - before <= HpackEncoder.maxEncodedLength(name, value));
+        }
+        dst.flip();
+        byte[] bytes = new byte[dst.remaining()];
+        dst.get(bytes);
+        return bytes;
+    }
+
+    private static List<String> decode(HpackDecoder decoder, byte[] block) throws Http2Exception {
+        List<String> headers = new ArrayList<>();
+        decoder.decode(ByteBuffer.wrap(block), (name, value) -> headers.add(
+                new String(name, StandardCharsets.ISO_8859_1) + ": " + new String(value, StandardCharsets.ISO_8859_1)));
+        return headers;
+    }
+
+    private static List<String> pairs(String... headers) {
+        List<String> pairs = new ArrayList<>();
+        for (int i = 0; i < headers.length; i += 2) {
+            pairs.add(headers[i] + ": " + headers[i + 1]);
+        }
+        return pairs;
+    }
+}
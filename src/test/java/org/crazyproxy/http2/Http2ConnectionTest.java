@@ -0,0 +1,172 @@
+package org.crazyproxy.http2;
+
+import org.crazyproxy.buffer.BufferPool;
+import org.crazyproxy.config.SocketInfo;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.SSLContext;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * 업스트림 h2 커넥션이 서버 프레임을 검증하는지 본다. TLS는 거치지 않고 receive로 평문 프레임을 넣는다.
+ * 커넥션 에러는 Http2Exception으로 나오고, 그 errorCode가 GOAWAY에 실린다.
+ */
+class Http2ConnectionTest {
+
+    private Http2Connection connection;
+
+    @BeforeAll
+    static void initPools() {
+        BufferPool.initInstance(16 * 1024 * 1024, false, 0);
+        Http2ConnectionPool.initInstance(true, 100, Http2Frame.DEFAULT_WINDOW_SIZE, 60_000, 600_000);
+    }
+
+    @BeforeEach
+    void setUp() throws Exception {
+        SocketInfo socketInfo = new SocketInfo(new InetSocketAddress("127.0.0.1", 8443), "localhost", "", true);
+        connection = new Http2Connection(Http2ConnectionPool.getInstance(), null, socketInfo, null, null,
+                SSLContext.getDefault().createSSLEngine(), BufferPool.getInstance().acquire(1024));
+    }
+
+    @Test
+    void acceptsValidSettings() throws Exception {
+        assertTrue(connection.hasCapacity());
+        connection.receive(frame(Http2Frame.SETTINGS, 0, 0, settings(
+                Http2Frame.SETTINGS_MAX_CONCURRENT_STREAMS, 0,
+                Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE, Http2Frame.MAX_WINDOW_SIZE,
+                Http2Frame.SETTINGS_MAX_FRAME_SIZE, 0xffffff)));
+        assertFalse(connection.hasCapacity());
+        connection.receive(frame(Http2Frame.SETTINGS, Http2Frame.FLAG_ACK, 0, new byte[0]));
+    }
+
+    @Test
+    void rejectsSettingsWithBadLength() {
+        assertConnectionError(Http2Frame.FRAME_SIZE_ERROR, frame(Http2Frame.SETTINGS, 0, 0, new byte[5]));
+    }
+
+    @Test
+    void rejectsSettingsAckWithPayload() {
+        assertConnectionError(Http2Frame.FRAME_SIZE_ERROR, frame(Http2Frame.SETTINGS, Http2Frame.FLAG_ACK, 0, new byte[6]));
+    }
+
+    @Test
+    void rejectsSettingsOnStream() {
+        assertConnectionError(Http2Frame.PROTOCOL_ERROR, frame(Http2Frame.SETTINGS, 0, 1, new byte[0]));
+    }
+
+    @Test
+    void rejectsInitialWindowSizeAboveMaximum() {
+        assertConnectionError(Http2Frame.FLOW_CONTROL_ERROR, frame(Http2Frame.SETTINGS, 0, 0,
+                settings(Http2Frame.SETTINGS_INITIAL_WINDOW_SIZE, 0x80000000)));
+    }
+
+    @Test
+    void rejectsMaxFrameSizeOutOfRange() {
+        assertConnectionError(Http2Frame.PROTOCOL_ERROR, frame(Http2Frame.SETTINGS, 0, 0,
+                settings(Http2Frame.SETTINGS_MAX_FRAME_SIZE, Http2Frame.DEFAULT_MAX_FRAME_SIZE - 1)));
+        assertConnectionError(Http2Frame.PROTOCOL_ERROR, frame(Http2Frame.SETTINGS, 0, 0,
+                settings(Http2Frame.SETTINGS_MAX_FRAME_SIZE, 0x1000000)));
+    }
+
+    @Test
+    void acceptsConnectionWindowUpToMaximum() {
+        assertDoesNotThrow(() -> connection.receive(windowUpdate(0, Http2Frame.MAX_WINDOW_SIZE - Http2Frame.DEFAULT_WINDOW_SIZE)));
+    }
+
+    @Test
+    void rejectsConnectionWindowOverflow() throws Exception {
+        connection.receive(windowUpdate(0, Http2Frame.MAX_WINDOW_SIZE - Http2Frame.DEFAULT_WINDOW_SIZE));
+        assertConnectionError(Http2Frame.FLOW_CONTROL_ERROR, windowUpdate(0, 1));
+    }
+
+    @Test
+    void rejectsZeroWindowIncrement() {
+        assertConnectionError(Http2Frame.PROTOCOL_ERROR, windowUpdate(0, 0));
+    }
+
+    @Test
+    void rejectsWindowUpdateWithBadLength() {
+        assertConnectionError(Http2Frame.FRAME_SIZE_ERROR, frame(Http2Frame.WINDOW_UPDATE, 0, 0, new byte[3]));
+    }
+
+    @Test
+    void rejectsFrameInterleavedWithHeaderBlock() throws Exception {
+        // END_HEADERS 없는 HEADERS 뒤에는 같은 스트림의 CONTINUATION만 올 수 있다 (RFC 9113 6.10)
+        connection.receive(frame(Http2Frame.HEADERS, 0, 1, Hex.decode("88")));
+        assertConnectionError(Http2Frame.PROTOCOL_ERROR, frame(Http2Frame.PING, 0, 0, new byte[8]));
+    }
+
+    @Test
+    void rejectsContinuationOnOtherStream() throws Exception {
+        connection.receive(frame(Http2Frame.HEADERS, 0, 1, Hex.decode("88")));
+        assertConnectionError(Http2Frame.PROTOCOL_ERROR, frame(Http2Frame.CONTINUATION, Http2Frame.FLAG_END_HEADERS, 3, new byte[0]));
+    }
+
+    @Test
+    void assemblesHeaderBlockAcrossContinuations() throws Exception {
+        connection.receive(frame(Http2Frame.HEADERS, 0, 1, Hex.decode("4803 3330")));
+        connection.receive(frame(Http2Frame.CONTINUATION, 0, 1, Hex.decode("32")));
+        // 블록이 다 모여야 스트림을 본다. 연 적 없는 스트림 1이라 그때 에러
+        assertConnectionError(Http2Frame.PROTOCOL_ERROR, frame(Http2Frame.CONTINUATION, Http2Frame.FLAG_END_HEADERS, 1, new byte[0]));
+    }
+
+    @Test
+    void rejectsUnexpectedContinuation() {
+        assertConnectionError(Http2Frame.PROTOCOL_ERROR, frame(Http2Frame.CONTINUATION, Http2Frame.FLAG_END_HEADERS, 1, new byte[0]));
+    }
+
+    @Test
+    void rejectsFrameLargerThanMaxFrameSize() {
+        // 헤더만 와도 길이로 알 수 있다
+        ByteBuffer header = ByteBuffer.allocate(Http2Frame.HEADER_LENGTH);
+        Http2Frame.writeHeader(header, Http2Frame.DEFAULT_MAX_FRAME_SIZE + 1, Http2Frame.DATA, 0, 1);
+        assertConnectionError(Http2Frame.FRAME_SIZE_ERROR, header.flip());
+    }
+
+    @Test
+    void rejectsPushPromise() {
+        assertConnectionError(Http2Frame.PROTOCOL_ERROR, frame(Http2Frame.PUSH_PROMISE, Http2Frame.FLAG_END_HEADERS, 1, new byte[4]));
+    }
+
+    @Test
+    void waitsForRestOfSplitFrame() throws Exception {
+        ByteBuffer frame = frame(Http2Frame.SETTINGS, 0, 0, new byte[5]);
+        ByteBuffer head = frame.duplicate();
+        head.limit(Http2Frame.HEADER_LENGTH + 2);
+        frame.position(head.limit());
+        connection.receive(head);
+        assertConnectionError(Http2Frame.FRAME_SIZE_ERROR, frame);
+    }
+
+    private void assertConnectionError(int errorCode, ByteBuffer frames) {
+        Http2Exception e = assertThrows(Http2Exception.class, () -> connection.receive(frames));
+        assertEquals(errorCode, e.getErrorCode());
+    }
+
+    private static ByteBuffer frame(int type, int flags, int streamId, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(Http2Frame.HEADER_LENGTH + payload.length);
+        Http2Frame.writeHeader(frame, payload.length, type, flags, streamId);
+        return frame.put(payload).flip();
+    }
+
+    private static ByteBuffer windowUpdate(int streamId, int increment) {
+        return frame(Http2Frame.WINDOW_UPDATE, 0, streamId, ByteBuffer.allocate(4).putInt(increment).array());
+    }
+
+    private static byte[] settings(int... idValues) {
+        ByteBuffer payload = ByteBuffer.allocate(idValues.length / 2 * 6);
+        for (int i = 0; i < idValues.length; i += 2) {
+            payload.putShort((short) idValues[i]).putInt(idValues[i + 1]);
+        }
+        return payload.array();
+    }
+}
@@ -0,0 +1,95 @@
+package org.crazyproxy.http2;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * RFC 7541 Appendix C.4, C.6의 허프만 문자열로 인코딩/디코딩을 확인한다.
+ */
+class HuffmanTest {
+
+    private static final String[][] VECTORS = {
+            {"www.example.com", "f1e3 c2e5 f23a 6ba0 ab90 f4ff"},
+            {"no-cache", "a8eb 1064 9cbf"},
+            {"custom-key", "25a8 49e9 5ba9 7d7f"},
+            {"custom-value", "25a8 49e9 5bb8 e8b4 bf"},
+            {"302", "6402"},
+            {"private", "aec3 771a 4b"},
+            {"Mon, 21 Oct 2013 20:13:21 GMT", "d07a be94 1054 d444 a820 0595 040b 8166 e082 a62d 1bff"},
+            {"https://www.example.com", "9d29 ad17 1863 c78f 0b97 c8e9 ae82 ae43 d3"},
+            {"gzip", "9bd9 ab"},
+    };
+
+    @Test
+    void encodesRfcVectors() {
+        for (String[] vector : VECTORS) {
+            byte[] value = vector[0].getBytes(StandardCharsets.US_ASCII);
+            byte[] expected = Hex.decode(vector[1]);
+            ByteBuffer dst = ByteBuffer.allocate(64);
+            Huffman.encode(value, dst);
+            assertEquals(expected.length, Huffman.encodedLength(value), vector[0]);
+            assertArrayEquals(expected, toArray(dst.flip()));
+        }
+    }
+
+    @Test
+    void decodesRfcVectors() throws Http2Exception {
+        for (String[] vector : VECTORS) {
+            byte[] encoded = Hex.decode(vector[1]);
+            ByteBuffer src = ByteBuffer.wrap(encoded);
+            assertEquals(vector[0], new String(Huffman.decode(src, encoded.length), StandardCharsets.US_ASCII));
+            assertEquals(encoded.length, src.position());
+        }
+    }
+
+    @Test
+    void roundTripsEveryOctet() throws Http2Exception {
+        byte[] value = new byte[256];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) i;
+        }
+        ByteBuffer dst = ByteBuffer.allocate(Huffman.encodedLength(value));
+        Huffman.encode(value, dst);
+        assertEquals(0, dst.remaining());
+        dst.flip();
+        assertArrayEquals(value, Huffman.decode(dst, dst.remaining()));
+    }
+
+    @Test
+    void rejectsEos() {
+        // EOS(30비트 전부 1)가 문자열 안에 오면 안 된다 (RFC 7541 5.2)
+        Http2Exception e = assertThrows(Http2Exception.class, () -> decode("ffff ffff"));
+        assertEquals(Http2Frame.COMPRESSION_ERROR, e.getErrorCode());
+    }
+
+    @Test
+    void rejectsPaddingLongerThanSevenBits() {
+        // 'a'(00011) 뒤에 1 여덟 개: 패딩이 7비트를 넘는다
+        Http2Exception e = assertThrows(Http2Exception.class, () -> decode("1f ff"));
+        assertEquals(Http2Frame.COMPRESSION_ERROR, e.getErrorCode());
+    }
+
+    @Test
+    void rejectsPaddingThatIsNotEosPrefix() {
+        // 'a'(00011) 뒤에 000: 패딩은 1이어야 한다
+        Http2Exception e = assertThrows(Http2Exception.class, () -> decode("18"));
+        assertEquals(Http2Frame.COMPRESSION_ERROR, e.getErrorCode());
+    }
+
+    private static byte[] decode(String hex) throws Http2Exception {
+        byte[] encoded = Hex.decode(hex);
+        return Huffman.decode(ByteBuffer.wrap(encoded), encoded.length);
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
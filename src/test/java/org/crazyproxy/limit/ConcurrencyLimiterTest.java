@@ -0,0 +1,86 @@
+package org.crazyproxy.limit;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConcurrencyLimiterTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 1, 100);
+
+    @Test
+    void rejectsOverLimit() {
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        assertFalse(limiter.tryAcquire());
+        assertEquals(1, limiter.getRejected());
+
+        limiter.onIgnore();
+        assertTrue(limiter.tryAcquire());
+    }
+
+    @Test
+    void increasesWhenLatencyHoldsSteady() throws InterruptedException {
+        for (int i = 0; i < 5; i++) {
+            window(limiter.getLimit(), FAST);
+        }
+        assertTrue(limiter.getLimit() > 10, "limit = " + limiter.getLimit());
+    }
+
+    @Test
+    void decreasesWhenLatencyRises() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            window(limiter.getLimit(), FAST);
+        }
+        int before = limiter.getLimit();
+
+        // 창 평균 RTT가 long RTT의 1.5배를 넘으면 gradient가 1보다 작아진다. SMOOTHING 때문에 천천히 준다
+        for (int i = 0; i < 8; i++) {
+            window(limiter.getLimit(), SLOW);
+        }
+        assertTrue(limiter.getLimit() < before, "before = " + before + ", after = " + limiter.getLimit());
+    }
+
+    @Test
+    void holdsWhenLimitIsUnused() throws InterruptedException {
+        // 한도의 절반도 안 쓰면 RTT가 좋아도 늘리지 않는다
+        for (int i = 0; i < 3; i++) {
+            window(2, FAST);
+        }
+        assertEquals(10, limiter.getLimit());
+    }
+
+    @Test
+    void backsOffOnDrop() throws InterruptedException {
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        TimeUnit.MILLISECONDS.sleep(110);
+        limiter.onDropped();
+        limiter.onSuccess(FAST);
+
+        assertEquals(9, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    /**
+     * 창 하나 동안 concurrency개를 동시에 잡고 있다가 창이 끝난 뒤 rttNanos로 돌려준다.
+     * 첫 반납이 창을 닫으면서 한도를 다시 잰다.
+     */
+    private void window(int concurrency, long rttNanos) throws InterruptedException {
+        for (int i = 0; i < concurrency; i++) {
+            assertTrue(limiter.tryAcquire());
+        }
+        TimeUnit.MILLISECONDS.sleep(110);
+        for (int i = 0; i < concurrency; i++) {
+            limiter.onSuccess(rttNanos);
+        }
+    }
+}
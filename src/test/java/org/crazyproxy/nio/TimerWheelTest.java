@@ -0,0 +1,93 @@
+package org.crazyproxy.nio;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimerWheelTest {
+
+    // 테스트가 실제 시간에 흔들리지 않게 tick을 크게 잡고, advance에는 tick 중간 시각을 넣는다
+    private static final long TICK_MILLIS = 100;
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+    // 바퀴(512칸) 한 바퀴보다 먼 만기
+    private static final long FAR_TICKS = 600;
+
+    private final long base = System.nanoTime();
+    private final TimerWheel wheel = new TimerWheel(TICK_MILLIS);
+
+    @Test
+    void firesTimeoutBeyondOneTurnOnlyWhenDue() {
+        AtomicInteger fired = new AtomicInteger();
+        TimerWheel.Timeout timeout = wheel.schedule(fired::incrementAndGet, FAR_TICKS * TICK_MILLIS);
+
+        // 같은 칸을 한 바퀴 전에 지나간다
+        assertEquals(0, wheel.advance(at((FAR_TICKS + 1) & 511)));
+        assertEquals(0, wheel.advance(at(FAR_TICKS - 1)));
+        assertEquals(0, fired.get());
+        assertTrue(timeout.isPending());
+
+        assertEquals(1, wheel.advance(at(FAR_TICKS + 1)));
+        assertEquals(1, fired.get());
+        assertFalse(timeout.isPending());
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    void firesTimeoutWhenAdvanceSkipsMoreThanOneTurn() {
+        AtomicInteger fired = new AtomicInteger();
+        wheel.schedule(fired::incrementAndGet, FAR_TICKS * TICK_MILLIS);
+
+        // 한참 못 돌다가 한 번에 바퀴보다 많이 넘어간다
+        assertEquals(1, wheel.advance(at(FAR_TICKS + 100)));
+        assertEquals(1, fired.get());
+    }
+
+    @Test
+    void cancelAfterFireIsNoOp() {
+        AtomicInteger fired = new AtomicInteger();
+        TimerWheel.Timeout timeout = wheel.schedule(fired::incrementAndGet, 0);
+        assertEquals(1, wheel.advance(at(2)));
+
+        assertDoesNotThrow(timeout::cancel);
+        assertDoesNotThrow(timeout::cancel);
+        assertEquals(1, fired.get());
+        assertTrue(wheel.isEmpty());
+
+        // 취소가 개수를 한 번 더 빼면 여기서 비어 보인다
+        wheel.schedule(fired::incrementAndGet, 10 * TICK_MILLIS);
+        assertFalse(wheel.isEmpty());
+    }
+
+    @Test
+    void cancelledTimeoutDoesNotFire() {
+        AtomicInteger fired = new AtomicInteger();
+        TimerWheel.Timeout timeout = wheel.schedule(fired::incrementAndGet, 5 * TICK_MILLIS);
+        timeout.cancel();
+        assertTrue(wheel.isEmpty());
+
+        assertEquals(0, wheel.advance(at(10)));
+        assertEquals(0, fired.get());
+    }
+
+    @Test
+    void taskCanCancelTimeoutExpiringInSameAdvance() {
+        AtomicInteger fired = new AtomicInteger();
+        TimerWheel.Timeout[] second = new TimerWheel.Timeout[1];
+        wheel.schedule(() -> second[0].cancel(), 3 * TICK_MILLIS);
+        second[0] = wheel.schedule(fired::incrementAndGet, 3 * TICK_MILLIS);
+
+        wheel.advance(at(10));
+        assertEquals(0, fired.get());
+        assertTrue(wheel.isEmpty());
+    }
+
+    private long at(long ticks) {
+        return base + ticks * TICK_NANOS + TICK_NANOS / 2;
+    }
+}